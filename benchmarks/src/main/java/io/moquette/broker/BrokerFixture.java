@@ -0,0 +1,102 @@
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.security.IAuthenticator;
+import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.persistence.MemorySessionsRepository;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Assembles the in memory broker's subsystems (session registry, post office and session loops) without
+ * any network acceptor, so that benchmarks can drive them directly.
+ * */
+final class BrokerFixture {
+
+    static final IAuthenticator ACCEPT_ALL = (clientId, username, password) -> true;
+    static final BrokerConfiguration CONFIG = new BrokerConfiguration(true, true, false,
+        BrokerConstants.NO_BUFFER_FLUSH);
+
+    final CTrieSubscriptionDirectory subscriptions;
+    final SessionRegistry sessionRegistry;
+    final PostOffice postOffice;
+    private final ScheduledExecutorService scheduler;
+
+    BrokerFixture() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final BrokerInterceptor interceptor = new BrokerInterceptor(Collections.emptyList());
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, 1024);
+        final MemorySessionsRepository sessionsRepository = new MemorySessionsRepository();
+        sessionRegistry = new SessionRegistry(subscriptions, sessionsRepository, new MemoryQueueRepository(),
+            permitAll, scheduler, loopsGroup);
+        postOffice = new PostOffice(subscriptions, new MemoryRetainedRepository(), sessionRegistry,
+            sessionsRepository, interceptor, permitAll, loopsGroup);
+    }
+
+    MQTTConnectionFactory connectionFactory() {
+        return new MQTTConnectionFactory(CONFIG, ACCEPT_ALL, sessionRegistry, postOffice);
+    }
+
+    /**
+     * Connect a client on a channel that silently releases everything the broker writes to it.
+     * */
+    MQTTConnection connect(String clientId) throws ExecutionException, InterruptedException {
+        return connect(clientId, new ChannelHandler[0]);
+    }
+
+    /**
+     * Connect a client on a channel that passes everything the broker writes through the given outbound handlers,
+     * before releasing it.
+     * */
+    MQTTConnection connect(String clientId, ChannelHandler... outboundHandlers) throws ExecutionException, InterruptedException {
+        final EmbeddedChannel channel = new EmbeddedChannel(new DiscardOutbound());
+        channel.pipeline().addLast(outboundHandlers);
+        final MQTTConnection connection = connectionFactory().create(channel);
+        final MqttConnectMessage connect = MqttMessageBuilders.connect()
+            .clientId(clientId)
+            .build();
+        connection.processConnect(connect).completableFuture().get();
+        return connection;
+    }
+
+    void subscribe(MQTTConnection connection, String topicFilter, MqttQoS qos) {
+        final MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+            .addSubscription(qos, topicFilter)
+            .messageId(1)
+            .build();
+        postOffice.subscribeClientToTopics(subscribe, connection.getClientId(), null, connection);
+    }
+
+    void close() {
+        postOffice.terminate();
+        scheduler.shutdown();
+    }
+
+    @ChannelHandler.Sharable
+    static final class DiscardOutbound extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.moquette.broker;
+
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.BrokerConstants.FLIGHT_BEFORE_RESEND_MS;
+
+/**
+ * Tracking the retransmission deadlines of a full inflight window for each session of a loop and expiring them,
+ * comparing the per session DelayQueue used before with the loop's {@link InflightTimingWheel}. The sessions are
+ * disconnected, so the cost of the resends themselves is left out.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InflightTimerBenchmark {
+
+    private static final int WINDOW = 10;
+
+    private static final class InFlightPacket implements Delayed {
+
+        final int packetId;
+        private final long startTime;
+
+        InFlightPacket(int packetId, long delayInMilliseconds) {
+            this.packetId = packetId;
+            this.startTime = System.currentTimeMillis() + delayInMilliseconds;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(startTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(startTime, ((InFlightPacket) o).startTime);
+        }
+    }
+
+    @Param({"50000"})
+    private int sessionsCount;
+
+    private Session[] sessions;
+    private InflightTimingWheel wheel;
+    private long now;
+    private List<DelayQueue<InFlightPacket>> delayQueues;
+    private final List<InFlightPacket> expired = new ArrayList<>(WINDOW);
+
+    @Setup
+    public void setUp() {
+        now = 0;
+        wheel = new InflightTimingWheel(null, FLIGHT_BEFORE_RESEND_MS, TimeUnit.MILLISECONDS, now);
+        sessions = new Session[sessionsCount];
+        delayQueues = new ArrayList<>(sessionsCount);
+        for (int i = 0; i < sessionsCount; i++) {
+            final ISessionsRepository.SessionData data = new ISessionsRepository.SessionData("client" + i,
+                MqttVersion.MQTT_3_1_1, Session.INFINITE_EXPIRY, Clock.systemDefaultZone());
+            sessions[i] = new Session(data, false, new InMemoryQueue(), new InflightWindow(WINDOW, false), wheel);
+            delayQueues.add(new DelayQueue<>());
+        }
+    }
+
+    @Benchmark
+    public int delayQueues() {
+        int count = 0;
+        for (DelayQueue<InFlightPacket> queue : delayQueues) {
+            for (int packetId = 1; packetId <= WINDOW; packetId++) {
+                // already expired, to drain them right away
+                queue.add(new InFlightPacket(packetId, 0));
+            }
+        }
+        for (DelayQueue<InFlightPacket> queue : delayQueues) {
+            count += queue.drainTo(expired);
+            expired.clear();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int timingWheel() {
+        for (Session session : sessions) {
+            for (int packetId = 1; packetId <= WINDOW; packetId++) {
+                wheel.schedule(session, packetId);
+            }
+        }
+        now += TimeUnit.MILLISECONDS.toNanos(FLIGHT_BEFORE_RESEND_MS + InflightTimingWheel.TICK_MILLIS);
+        return wheel.expire(now);
+    }
+}
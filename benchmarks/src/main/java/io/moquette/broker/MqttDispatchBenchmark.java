@@ -0,0 +1,110 @@
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the inbound path of a connected client: bytes decoded by Netty's {@link MqttDecoder} and
+ * dispatched by {@link NewNettyMQTTHandler} to the {@link MQTTConnection} and then to the session loops.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MqttDispatchBenchmark {
+
+    private static final String CLIENT_ID = "publisher";
+    // every read completion routes a flush command to the session loop, so packets are pushed in
+    // batches and then the loop is awaited, to never overflow its command queue.
+    private static final int BATCH = 256;
+
+    private BrokerFixture broker;
+    private EmbeddedChannel channel;
+    private ByteBuf pingReq;
+    private ByteBuf publishQos0;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = new BrokerFixture();
+        channel = new EmbeddedChannel(new BrokerFixture.DiscardOutbound(), new MqttDecoder(),
+            new NewNettyMQTTHandler(broker.connectionFactory()));
+
+        channel.writeInbound(encode(MqttMessageBuilders.connect().clientId(CLIENT_ID).build()));
+        awaitSessionLoop();
+
+        pingReq = encode(new MqttMessage(new MqttFixedHeader(MqttMessageType.PINGREQ, false,
+            MqttQoS.AT_MOST_ONCE, false, 0)));
+        publishQos0 = encode(MqttMessageBuilders.publish()
+            .topicName("sensors/room1/temperature")
+            .qos(MqttQoS.AT_MOST_ONCE)
+            .retained(false)
+            .payload(Unpooled.wrappedBuffer(new byte[64]))
+            .build());
+    }
+
+    private static ByteBuf encode(MqttMessage message) throws Exception {
+        final EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(message);
+        final ByteBuf encoded = encoder.readOutbound();
+        final ByteBuf frame = Unpooled.directBuffer(encoded.readableBytes()).writeBytes(encoded);
+        encoded.release();
+        encoder.finishAndReleaseAll();
+        return frame;
+    }
+
+    private void awaitSessionLoop() throws ExecutionException, InterruptedException {
+        broker.postOffice.routeCommand(CLIENT_ID, "benchmark barrier", () -> null)
+            .completableFuture().get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        broker.close();
+        pingReq.release();
+        publishQos0.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pingReq() throws ExecutionException, InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            channel.writeInbound(pingReq.retainedDuplicate());
+        }
+        awaitSessionLoop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishQos0() throws ExecutionException, InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            channel.writeInbound(publishQos0.retainedDuplicate());
+        }
+        awaitSessionLoop();
+    }
+}
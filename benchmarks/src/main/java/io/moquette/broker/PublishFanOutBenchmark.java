@@ -0,0 +1,81 @@
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a PUBLISH fanned out by PostOffice to many connected subscribers of the same topic, from the
+ * subscriptions match, through the batching per session loop, down to the encoding on every subscriber's channel.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishFanOutBenchmark {
+
+    private static final String TOPIC = "fleet/broadcast/firmware";
+
+    @Param({"10", "1000", "10000"})
+    private int subscribers;
+
+    @Param({"AT_MOST_ONCE", "AT_LEAST_ONCE"})
+    private MqttQoS qos;
+
+    @Param({"64"})
+    private int payloadSize;
+
+    private BrokerFixture broker;
+    private ByteBuf payload;
+
+    @Setup
+    public void setUp() throws ExecutionException, InterruptedException {
+        broker = new BrokerFixture();
+        for (int i = 0; i < subscribers; i++) {
+            final MQTTConnection subscriber = broker.connect("subscriber-" + i, MqttEncoder.INSTANCE,
+                SharedPublishEncoder.INSTANCE);
+            broker.subscribe(subscriber, TOPIC, qos);
+        }
+        payload = Unpooled.directBuffer(payloadSize).writeZero(payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        broker.close();
+        payload.release();
+    }
+
+    @Benchmark
+    public void publish() throws ExecutionException, InterruptedException {
+        final MqttPublishMessage msg = MqttMessageBuilders.publish()
+            .topicName(TOPIC)
+            .qos(qos)
+            .retained(false)
+            .messageId(1)
+            .payload(payload.retainedDuplicate())
+            .build();
+        final RoutingResults results = broker.postOffice.internalPublish(msg);
+        results.completableFuture().get();
+        msg.release();
+    }
+}
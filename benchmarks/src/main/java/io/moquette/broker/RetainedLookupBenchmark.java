@@ -0,0 +1,90 @@
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.persistence.H2RetainedRepository;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookup of the retained messages done for every new subscription, on topics shaped like
+ * site/{site}/device/{device}/state.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetainedLookupBenchmark {
+
+    private static final int DEVICES_PER_SITE = 100;
+
+    @Param({"100000"})
+    private int retained;
+
+    @Param({"memory", "h2"})
+    private String store;
+
+    private MVStore mvStore;
+    private IRetainedRepository repository;
+    private int sites;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        if ("h2".equals(store)) {
+            mvStore = new MVStore.Builder().open();
+            repository = new H2RetainedRepository(mvStore);
+        } else {
+            repository = new MemoryRetainedRepository();
+        }
+        sites = retained / DEVICES_PER_SITE;
+        for (int i = 0; i < retained; i++) {
+            final String topic = "site/" + (i / DEVICES_PER_SITE) + "/device/" + i + "/state";
+            final MqttPublishMessage msg = MqttMessageBuilders.publish()
+                .topicName(topic)
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .retained(true)
+                .payload(Unpooled.wrappedBuffer(new byte[16]))
+                .build();
+            repository.retain(new Topic(topic), msg);
+            msg.release();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mvStore != null) {
+            mvStore.close();
+        }
+    }
+
+    @Benchmark
+    public Collection<RetainedMessage> exactTopic() {
+        final int device = next++ % retained;
+        return repository.retainedOnTopic("site/" + (device / DEVICES_PER_SITE) + "/device/" + device + "/state");
+    }
+
+    @Benchmark
+    public Collection<RetainedMessage> singleSiteWildcard() {
+        return repository.retainedOnTopic("site/" + (next++ % sites) + "/device/+/state");
+    }
+}
@@ -0,0 +1,115 @@
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.persistence.MemorySessionsRepository;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.moquette.persistence.SegmentQueueRepository;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Restart of a broker with many persistent sessions, each with its segmented queue: loads the queues from their
+ * checkpoint and recreates the session pool, the time the broker takes before accepting connections. Compare the
+ * recovery on a single session loop with the parallel one, like {@code -p loops=1,8}.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SessionPoolRecoveryBenchmark {
+
+    private static final int SESSION_EXPIRY_SECONDS = 3600;
+
+    @Param({"1000000"})
+    private int sessions;
+
+    @Param({"8"})
+    private int loops;
+
+    private final Clock clock = Clock.systemDefaultZone();
+    private Path dataPath;
+    private MemorySessionsRepository sessionsRepository;
+    private ScheduledExecutorService scheduler;
+    private SessionEventLoopGroup loopsGroup;
+    private SessionRegistry sessionRegistry;
+
+    @Setup(Level.Trial)
+    public void persistSessions() throws IOException, QueueException {
+        dataPath = Files.createTempDirectory("session_pool_recovery_bench");
+        scheduler = Executors.newScheduledThreadPool(1);
+        sessionsRepository = new MemorySessionsRepository();
+        final SegmentQueueRepository queues = openQueues();
+        final Instant expireAt = clock.instant().plusSeconds(SESSION_EXPIRY_SECONDS);
+        for (int i = 0; i < sessions; i++) {
+            final String clientId = "session_" + i;
+            sessionsRepository.saveSession(new ISessionsRepository.SessionData(clientId, expireAt,
+                MqttVersion.MQTT_5, SESSION_EXPIRY_SECONDS, clock));
+            queues.getOrCreateQueue(clientId);
+        }
+        queues.close();
+    }
+
+    private SegmentQueueRepository openQueues() throws QueueException {
+        return new SegmentQueueRepository(dataPath, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopBroker() {
+        // also closes the queues
+        sessionRegistry.close();
+        loopsGroup.terminate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        scheduler.shutdown();
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public SessionRegistry restart() throws QueueException {
+        final SegmentQueueRepository queueRepository = openQueues();
+        loopsGroup = new SessionEventLoopGroup(new BrokerInterceptor(Collections.emptyList()), 1024, loops,
+            SessionLoopAffinities.STRING_HASH);
+        final CTrieSubscriptionDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        sessionRegistry = new SessionRegistry(subscriptions, sessionsRepository, queueRepository,
+            new Authorizator(new PermitAllAuthorizatorPolicy()), scheduler, clock, SESSION_EXPIRY_SECONDS,
+            loopsGroup);
+        return sessionRegistry;
+    }
+}
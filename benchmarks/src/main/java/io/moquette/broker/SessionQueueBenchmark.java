@@ -0,0 +1,98 @@
+package io.moquette.broker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Many producers routing commands to a single session loop, comparing the lock-free ring used by
+ * {@link SessionEventLoop} with the ArrayBlockingQueue consumed with take() used before.
+ * The score is the number of commands accepted by the loop, a producer finding the queue full retries.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionQueueBenchmark {
+
+    private static final Runnable NOOP = () -> { };
+
+    @Param({"1024"})
+    private int queueSize;
+
+    @Param({"array_blocking", "mpsc"})
+    private String queue;
+
+    private Thread consumer;
+    private Predicate<Runnable> producer;
+
+    @Setup
+    public void setUp() {
+        if ("mpsc".equals(queue)) {
+            final SessionEventLoop loop = new SessionEventLoop(queueSize, false);
+            producer = loop::offer;
+            consumer = loop;
+        } else {
+            final BlockingQueue<Runnable> commands = new ArrayBlockingQueue<>(queueSize);
+            producer = commands::offer;
+            consumer = new Thread(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        SessionEventLoop.executeTask(commands.take());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        consumer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        consumer.interrupt();
+        consumer.join(5_000);
+    }
+
+    private boolean route() {
+        while (!producer.test(NOOP)) {
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean producers08() {
+        return route();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean producers16() {
+        return route();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public boolean producers32() {
+        return route();
+    }
+}
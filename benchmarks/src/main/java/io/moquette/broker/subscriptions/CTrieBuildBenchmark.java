@@ -0,0 +1,59 @@
+package io.moquette.broker.subscriptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads all the subscriptions in an empty tree, as the directory does at startup, by
+ * {@link CTrie#addAllToTree(java.util.Collection)} or, with {@code -p mode=single}, one
+ * {@link CTrie#addToTree(Subscription)} at a time. The {@code site} node of the fixture gets one child every 100
+ * subscriptions, so single adds copy a node that grows with the subscriptions loaded.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CTrieBuildBenchmark {
+
+    private static final String BATCH = "batch";
+
+    @Param({"1000000"})
+    private int subscriptions;
+
+    @Param({BATCH, "single"})
+    private String mode;
+
+    private List<Subscription> stored;
+
+    @Setup
+    public void setUp() {
+        stored = SubscriptionsFixture.subscriptions(subscriptions);
+    }
+
+    @Benchmark
+    public CTrie build() {
+        final CTrie tree = new CTrie();
+        if (BATCH.equals(mode)) {
+            tree.addAllToTree(stored);
+        } else {
+            for (Subscription subscription : stored) {
+                tree.addToTree(subscription);
+            }
+        }
+        return tree;
+    }
+}
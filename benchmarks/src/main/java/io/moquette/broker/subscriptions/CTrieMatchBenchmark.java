@@ -0,0 +1,52 @@
+package io.moquette.broker.subscriptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the raw tree walk of {@link CTrie#recursiveMatch(Topic)}, without QoS sharpening.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CTrieMatchBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({"10000", "100000"})
+    private int subscriptions;
+
+    private CTrie tree;
+    private Topic[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        tree = new CTrie();
+        for (Subscription subscription : SubscriptionsFixture.subscriptions(subscriptions)) {
+            tree.addToTree(subscription);
+        }
+        topics = SubscriptionsFixture.publishTopics(subscriptions, SAMPLES);
+    }
+
+    @Benchmark
+    public List<Subscription> recursiveMatch() {
+        final Topic topic = topics[next++ & (SAMPLES - 1)];
+        return tree.recursiveMatch(topic);
+    }
+}
@@ -0,0 +1,60 @@
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the subscription lookup done for every PUBLISH by the
+ * {@link CTrieSubscriptionDirectory#matchQosSharpening(Topic)}.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionDirectoryMatchBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({"10000", "100000"})
+    private int subscriptions;
+
+    // 0 disables the match cache, to compare with the plain tree walk
+    @Param({"0", "10000"})
+    private int matchCacheSize;
+
+    private CTrieSubscriptionDirectory directory;
+    private Topic[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final MemorySubscriptionsRepository repository = new MemorySubscriptionsRepository();
+        for (Subscription subscription : SubscriptionsFixture.subscriptions(subscriptions)) {
+            repository.addNewSubscription(subscription);
+        }
+        directory = new CTrieSubscriptionDirectory(matchCacheSize);
+        directory.init(repository);
+        topics = SubscriptionsFixture.publishTopics(subscriptions, SAMPLES);
+    }
+
+    @Benchmark
+    public List<Subscription> matchQosSharpening() {
+        final Topic topic = topics[next++ & (SAMPLES - 1)];
+        return directory.matchQosSharpening(topic);
+    }
+}
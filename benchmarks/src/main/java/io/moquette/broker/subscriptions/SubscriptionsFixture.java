@@ -0,0 +1,76 @@
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a reproducible population of topic filters and of the topic names that hit them.
+ *
+ * The shape mimics a fleet of devices: {@code site/<s>/device/<d>/<metric>} where a fraction of the
+ * subscriptions uses the single (+) and multi (#) level wildcards.
+ * */
+final class SubscriptionsFixture {
+
+    static final String[] METRICS = {"temperature", "humidity", "pressure", "battery"};
+    private static final int DEVICES_PER_SITE = 100;
+
+    private SubscriptionsFixture() {
+    }
+
+    static List<Subscription> subscriptions(int count) {
+        final List<Subscription> subscriptions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String clientId = "client-" + i;
+            final String filter;
+            switch (i % 10) {
+                case 0:
+                    filter = "site/" + site(i) + "/device/+/" + metric(i);
+                    break;
+                case 1:
+                    filter = "site/" + site(i) + "/#";
+                    break;
+                default:
+                    filter = "site/" + site(i) + "/device/" + device(i) + "/" + metric(i);
+            }
+            subscriptions.add(new Subscription(clientId, new Topic(filter), MqttQoS.valueOf(i % 3)));
+        }
+        return subscriptions;
+    }
+
+    /**
+     * @return topic names each one matching at least one of the {@code count} generated subscriptions.
+     * */
+    static Topic[] publishTopics(int count, int samples) {
+        final Random random = new Random(42);
+        final Topic[] topics = new Topic[samples];
+        for (int i = 0; i < samples; i++) {
+            final int sub = random.nextInt(count);
+            topics[i] = new Topic("site/" + site(sub) + "/device/" + device(sub) + "/" + metric(sub));
+        }
+        return topics;
+    }
+
+    static String[] publishTopicNames(int count, int samples) {
+        final Topic[] topics = publishTopics(count, samples);
+        final String[] names = new String[samples];
+        for (int i = 0; i < samples; i++) {
+            names[i] = topics[i].toString();
+        }
+        return names;
+    }
+
+    private static int site(int i) {
+        return i / DEVICES_PER_SITE;
+    }
+
+    private static int device(int i) {
+        return i % DEVICES_PER_SITE;
+    }
+
+    private static String metric(int i) {
+        return METRICS[(i / 7) % METRICS.length];
+    }
+}
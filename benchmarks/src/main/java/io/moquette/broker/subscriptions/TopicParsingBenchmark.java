@@ -0,0 +1,53 @@
+package io.moquette.broker.subscriptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of turning a topic name into tokens and of walking them level by level, like the
+ * subscriptions tree does while matching.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicParsingBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    private String[] topicNames;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        topicNames = SubscriptionsFixture.publishTopicNames(100_000, SAMPLES);
+    }
+
+    @Benchmark
+    public List<Token> parse() {
+        return new Topic(topicNames[next++ & (SAMPLES - 1)]).getTokens();
+    }
+
+    @Benchmark
+    public void parseAndWalkLevels(Blackhole bh) {
+        Topic topic = new Topic(topicNames[next++ & (SAMPLES - 1)]);
+        while (!topic.isEmpty()) {
+            bh.consume(topic.headToken());
+            topic = topic.exceptHeadToken();
+        }
+    }
+}
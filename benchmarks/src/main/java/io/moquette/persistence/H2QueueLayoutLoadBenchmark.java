@@ -0,0 +1,135 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Opens the queues of all the persistent sessions of an H2 store at startup, kept in the maps shared by
+ * {@link H2QueueRepository} or, with {@code -p layout=per_session}, in the two maps per session used before them.
+ * The size of the store file is reported next to the time, each session has one message queued.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class H2QueueLayoutLoadBenchmark {
+
+    private static final String SHARED = "shared";
+
+    @Param({"500000"})
+    private int sessions;
+
+    @Param({SHARED, "per_session"})
+    private String layout;
+
+    private Path dataPath;
+    private Path storeFile;
+    private long storeBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StoreCounters {
+        public long storeBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("h2_queues_bench");
+        storeFile = dataPath.resolve("moquette_store.h2");
+        final MVStore store = new MVStore.Builder().fileName(storeFile.toString()).open();
+        if (SHARED.equals(layout)) {
+            final H2QueueRepository repository = new H2QueueRepository(store);
+            for (int i = 0; i < sessions; i++) {
+                repository.getOrCreateQueue(clientId(i)).enqueue(message(i));
+            }
+        } else {
+            // the maps of a session queue before the shared ones
+            for (int i = 0; i < sessions; i++) {
+                final MVMap<Long, SessionRegistry.EnqueuedMessage> queue = openLegacyQueue(store, clientId(i));
+                final MVMap<String, Long> meta = store.openMap("queue_" + clientId(i) + "_meta");
+                queue.put(0L, message(i));
+                meta.put("tail", 0L);
+                meta.put("head", 1L);
+            }
+        }
+        store.close();
+        storeBytes = Files.size(storeFile);
+    }
+
+    private static String clientId(int i) {
+        return "client_" + i;
+    }
+
+    private static SessionRegistry.PublishedMessage message(int i) {
+        return new SessionRegistry.PublishedMessage(Topic.asTopic("site/" + (i % 1000) + "/device/" + i),
+            MqttQoS.AT_LEAST_ONCE, Unpooled.copiedBuffer("payload " + i, StandardCharsets.UTF_8), false);
+    }
+
+    private static MVMap<Long, SessionRegistry.EnqueuedMessage> openLegacyQueue(MVStore store, String clientId) {
+        return store.openMap("queue_" + clientId,
+            new MVMap.Builder<Long, SessionRegistry.EnqueuedMessage>().valueType(new EnqueuedMessageValueType()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long openSessionQueues(StoreCounters counters) {
+        counters.storeBytes = storeBytes;
+        final MVStore store = new MVStore.Builder().fileName(storeFile.toString()).readOnly().open();
+        try {
+            long queued = 0;
+            if (SHARED.equals(layout)) {
+                final H2QueueRepository repository = new H2QueueRepository(store);
+                for (String clientId : repository.listQueueNames()) {
+                    queued += repository.getOrCreateQueue(clientId).isEmpty() ? 0 : 1;
+                }
+                return queued;
+            }
+            // what the repository and each queue read before the shared maps
+            for (String name : store.getMapNames()) {
+                if (!name.startsWith("queue_") || name.endsWith("_meta")) {
+                    continue;
+                }
+                final MVMap<String, Long> meta = store.openMap(name + "_meta");
+                openLegacyQueue(store, name.substring("queue_".length()));
+                queued += meta.get("head") - meta.get("tail");
+            }
+            return queued;
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Loads all the subscriptions of an H2 store at startup, stored by the binary data types of
+ * {@link H2SubscriptionsRepository} or, with {@code -p format=serialized}, by the Java serialization used before
+ * them. The size of the store file is reported next to the time, 10 subscriptions are made by each client.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class H2SubscriptionsLoadBenchmark {
+
+    private static final String BINARY = "binary";
+
+    @Param({"5000000"})
+    private int subscriptions;
+
+    @Param({BINARY, "serialized"})
+    private String format;
+
+    private Path dataPath;
+    private Path storeFile;
+    private long storeBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class StoreCounters {
+        public long storeBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataPath = Files.createTempDirectory("h2_subscriptions_bench");
+        storeFile = dataPath.resolve("moquette_store.h2");
+        final MVStore store = new MVStore.Builder().fileName(storeFile.toString()).open();
+        if (BINARY.equals(format)) {
+            final H2SubscriptionsRepository repository = new H2SubscriptionsRepository(store);
+            for (int i = 0; i < subscriptions; i++) {
+                repository.addNewSubscription(subscription(i));
+            }
+        } else {
+            // the map and keys of the repository before the binary data types
+            final MVMap<String, Subscription> legacy = store.openMap("subscriptions");
+            for (int i = 0; i < subscriptions; i++) {
+                final Subscription subscription = subscription(i);
+                legacy.put(subscription.getSubscribedFilter() + "-" + subscription.getClientId(), subscription);
+            }
+        }
+        store.close();
+        storeBytes = Files.size(storeFile);
+    }
+
+    private static Subscription subscription(int i) {
+        final Topic filter = new Topic("site/" + (i % 1000) + "/device/" + i + "/+");
+        return new Subscription("client_" + (i / 10), filter, MqttQoS.AT_LEAST_ONCE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int loadSubscriptions(StoreCounters counters) {
+        counters.storeBytes = storeBytes;
+        final MVStore store = new MVStore.Builder().fileName(storeFile.toString()).readOnly().open();
+        try {
+            if (BINARY.equals(format)) {
+                return new H2SubscriptionsRepository(store).listAllSubscriptions().size();
+            }
+            final MVMap<String, Subscription> legacy = store.openMap("subscriptions");
+            final Set<Subscription> results = new HashSet<>();
+            for (Subscription subscription : legacy.values()) {
+                results.add(subscription);
+            }
+            return results.size();
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.moquette.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the segmented, memory mapped, session queue: serialization of the message plus the copy in and out
+ * of the segments, with the messages stored in batches or one at a time, and the checkpoints of each durability.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentPersistentQueueBenchmark {
+
+    private static final int BURST = 1024;
+    private static final Topic TOPIC = Topic.asTopic("sensors/room1/temperature");
+
+    @Param({"64", "1024", "65536"})
+    private int payloadSize;
+
+    // GROUP_COMMIT forces the pages to disk while the queue is written, INTERVAL once per second
+    @Param({"NONE", "INTERVAL", "GROUP_COMMIT"})
+    private QueuePool.Durability durability;
+
+    private Path dataPath;
+    private SegmentQueueRepository repository;
+    private SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue;
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, QueueException {
+        dataPath = Files.createTempDirectory("segmented_queue_bench");
+        repository = new SegmentQueueRepository(dataPath, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, durability,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SYNC_INTERVAL_MILLIS);
+        queue = repository.getOrCreateQueue("benchmark");
+        payload = Unpooled.directBuffer(payloadSize).writeZero(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repository.close();
+        payload.release();
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private SessionRegistry.PublishedMessage message() {
+        // the queue takes ownership of the enqueued message's reference
+        return new SessionRegistry.PublishedMessage(TOPIC, MqttQoS.AT_LEAST_ONCE, payload.retainedDuplicate(), false);
+    }
+
+    @Benchmark
+    public void enqueueDequeue() {
+        queue.enqueue(message());
+        queue.dequeue().release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void enqueueBurstThenDrain() {
+        for (int i = 0; i < BURST; i++) {
+            queue.enqueue(message());
+        }
+        queue.flush();
+        for (int i = 0; i < BURST; i++) {
+            queue.dequeue().release();
+        }
+    }
+
+    /**
+     * Like a session receiving each message in a different batch of its session loop, so stored one at a time.
+     * */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void enqueueEachFlushedThenDrain() {
+        for (int i = 0; i < BURST; i++) {
+            queue.enqueue(message());
+            queue.flush();
+        }
+        for (int i = 0; i < BURST; i++) {
+            queue.dequeue().release();
+        }
+    }
+}
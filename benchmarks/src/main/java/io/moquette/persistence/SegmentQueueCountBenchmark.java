@@ -0,0 +1,87 @@
+package io.moquette.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.unsafequeues.Queue;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Creates a queue for each of many sessions, each holding a single small message, and reports next to the time how
+ * many bytes of the page files they take. Without the slabs every queue takes a full segment, 4TB for a million queues, so compare the two
+ * modes with a smaller number of queues, like {@code -p queues=10000 -p smallQueueSlabs=true,false}.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SegmentQueueCountBenchmark {
+
+    @Param({"1000000"})
+    private int queues;
+
+    @Param({"true"})
+    private boolean smallQueueSlabs;
+
+    private Path dataPath;
+    private QueuePool queuePool;
+    private final ByteBuffer message = ByteBuffer.allocate(128);
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class DiskUsageCounters {
+        public long pageFilesBytes;
+        public long segmentBytesInUse;
+        public long slabBytesInUse;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, QueueException {
+        dataPath = Files.createTempDirectory("segmented_queue_count_bench");
+        queuePool = QueuePool.loadQueues(dataPath, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, QueuePool.Durability.NONE, 0, smallQueueSlabs);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, QueueException {
+        queuePool.close();
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void createQueues(DiskUsageCounters counters) throws QueueException {
+        for (int i = 0; i < queues; i++) {
+            final Queue queue = queuePool.getOrCreate("session_" + i);
+            queue.enqueue(message.duplicate());
+        }
+        final QueuePool.DiskUsage diskUsage = queuePool.diskUsage();
+        counters.pageFilesBytes = diskUsage.pageFilesBytes();
+        counters.segmentBytesInUse = diskUsage.segmentBytesInUse();
+        counters.slabBytesInUse = diskUsage.slabBytesInUse();
+    }
+}
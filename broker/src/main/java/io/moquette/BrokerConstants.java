@@ -42,7 +42,29 @@ public final class BrokerConstants {
     public static final int DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE = 64 * MB;
     public static final String SEGMENTED_QUEUE_SEGMENT_SIZE = "queue_segment_size";
     public static final int DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE = 4 * MB;
+    public static final String SEGMENTED_QUEUE_DURABILITY = "queue_durability";
+    public static final String DEFAULT_SEGMENTED_QUEUE_DURABILITY = "interval";
+    public static final String SEGMENTED_QUEUE_SYNC_INTERVAL = "queue_sync_interval";
+    public static final int DEFAULT_SEGMENTED_QUEUE_SYNC_INTERVAL_MILLIS = 1000;
+    public static final String SEGMENTED_QUEUE_SMALL_SLABS = "queue_small_slabs";
+    public static final boolean DEFAULT_SEGMENTED_QUEUE_SMALL_SLABS = true;
+    public static final String SEGMENTED_QUEUE_SHARED_TOPIC_LOG = "queue_shared_topic_log";
+    public static final boolean DEFAULT_SEGMENTED_QUEUE_SHARED_TOPIC_LOG = false;
+    public static final String PERSISTENT_QUEUE_MEMORY_MESSAGES = "persistent_queue_memory_messages";
+    public static final int DEFAULT_PERSISTENT_QUEUE_MEMORY_MESSAGES = 0;
+    public static final String PERSISTENT_QUEUE_MEMORY_BYTES = "persistent_queue_memory_bytes";
+    public static final int DEFAULT_PERSISTENT_QUEUE_MEMORY_BYTES = 64 * 1024;
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
+    public static final String H2_CACHE_SIZE = "h2_cache_size";
+    public static final int DEFAULT_H2_CACHE_SIZE_MB = 16;
+    public static final String H2_WRITE_BEHIND = "h2_write_behind";
+    public static final boolean DEFAULT_H2_WRITE_BEHIND = false;
+    public static final String H2_COMMIT_BATCH_SIZE = "h2_commit_batch_size";
+    public static final int DEFAULT_H2_COMMIT_BATCH_SIZE = 10_000;
+    public static final String H2_COMPACT_INTERVAL = "h2_compact_interval";
+    public static final int DEFAULT_H2_COMPACT_INTERVAL_SECONDS = 60;
+    public static final String H2_COMPACT_MAX_BYTES = "h2_compact_max_bytes";
+    public static final int DEFAULT_H2_COMPACT_MAX_BYTES = 16 * 1024 * 1024;
     @Deprecated
     public static final String PASSWORD_FILE_PROPERTY_NAME = IConfig.PASSWORD_FILE_PROPERTY_NAME;
     @Deprecated // use IConfig.PORT_PROPERTY_NAME
@@ -99,6 +121,7 @@ public final class BrokerConstants {
     public static final String NETTY_SO_KEEPALIVE_PROPERTY_NAME = "netty.so_keepalive";
     public static final String NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME = "netty.channel_timeout.seconds";
     public static final String NETTY_EPOLL_PROPERTY_NAME = "netty.epoll";
+    public static final String NETTY_WORKER_THREADS_PROPERTY_NAME = "netty.worker_threads";
     @Deprecated
     public static final String NETTY_MAX_BYTES_PROPERTY_NAME = IConfig.NETTY_MAX_BYTES_PROPERTY_NAME;
     @Deprecated
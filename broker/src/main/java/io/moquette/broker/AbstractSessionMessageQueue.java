@@ -1,8 +1,14 @@
 package io.moquette.broker;
 
-public abstract class AbstractSessionMessageQueue<T> implements SessionMessageQueue<T> {
+public abstract class AbstractSessionMessageQueue<T extends SessionRegistry.EnqueuedMessage> implements SessionMessageQueue<T> {
 
     protected boolean closed = false;
+    private QueueQuota quota = QueueQuota.UNLIMITED;
+    // messages and payload bytes counted in the quota, the ones held when the queue was opened aren't
+    private int quotaMessages;
+    private long quotaBytes;
+    // PUBREL markers enqueued since the queue was opened, not counted in the quota
+    private int pubRelMarkers;
 
     protected void checkEnqueuePreconditions(T t) {
         if (t == null) {
@@ -24,4 +30,121 @@ public abstract class AbstractSessionMessageQueue<T> implements SessionMessageQu
             throw new IllegalStateException("Can't state empty status in a closed queue");
         }
     }
+
+    /**
+     * Limit the queue, before its session enqueues. The messages already held when the queue was opened, for example
+     * reloaded from disk, aren't counted.
+     * */
+    void limitTo(QueueQuota quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * @return true while the next message to dequeue was held when the queue was opened, it's dequeued without
+     * {@link #releaseQuota(SessionRegistry.EnqueuedMessage)}.
+     * */
+    protected boolean dequeuesBacklog() {
+        return false;
+    }
+
+    /**
+     * Count the message in the quota, applying the overflow policy when it doesn't fit: with drop-oldest the
+     * messages at the head of the queue are dequeued and released until it fits. The oldest messages are never
+     * dropped while they are part of the backlog held when the queue was opened, or while a PUBREL marker is queued
+     * with them, then the new message is rejected. PUBREL markers aren't counted, nor rejected.
+     *
+     * @return false when the message is rejected, it's already released and must not be stored.
+     * @throws QueueQuotaExceededException when the message is rejected and the policy is to disconnect.
+     * */
+    protected boolean reserveQuota(T message) {
+        if (message instanceof SessionRegistry.PubRelMarker) {
+            pubRelMarkers++;
+            return true;
+        }
+        if (quota.isUnlimited()) {
+            return true;
+        }
+        final int size = message.payloadSize();
+        // a message larger than the session limit doesn't fit even in an empty queue
+        if (quota.sessionFits(0, 0, size)) {
+            do {
+                if (quota.sessionFits(quotaMessages, quotaBytes, size) && quota.acquire(size)) {
+                    quotaMessages++;
+                    quotaBytes += size;
+                    return true;
+                }
+            } while (quota.overflowPolicy() == QueueQuota.OverflowPolicy.DROP_OLDEST && dropOldest());
+        }
+        message.release();
+        if (quota.overflowPolicy() == QueueQuota.OverflowPolicy.DISCONNECT) {
+            throw new QueueQuotaExceededException("Session queue over " + quota + " holding " + quotaMessages +
+                " messages of " + quotaBytes + " bytes");
+        }
+        return false;
+    }
+
+    private boolean dropOldest() {
+        // a dequeue can't skip the messages that must not be dropped
+        if (quotaMessages == 0 || pubRelMarkers > 0 || dequeuesBacklog()) {
+            return false;
+        }
+        final T oldest = dequeue();
+        if (oldest == null) {
+            return false;
+        }
+        oldest.release();
+        return true;
+    }
+
+    /**
+     * Uncount a dequeued message from the quota, unless it's part of the backlog held when the queue was opened.
+     *
+     * @param dequeued the message returned by the queue, null when it's drained.
+     * @param backlog the value of {@link #dequeuesBacklog()} before the message was dequeued.
+     * @return the dequeued message.
+     * */
+    protected T releaseQuota(T dequeued, boolean backlog) {
+        if (backlog && dequeued != null) {
+            return dequeued;
+        }
+        return releaseQuota(dequeued);
+    }
+
+    /**
+     * Uncount a dequeued message from the quota.
+     *
+     * @param dequeued the message returned by the queue, null when it's drained.
+     * @return the dequeued message.
+     * */
+    protected T releaseQuota(T dequeued) {
+        if (dequeued instanceof SessionRegistry.PubRelMarker) {
+            pubRelMarkers = Math.max(0, pubRelMarkers - 1);
+            return dequeued;
+        }
+        if (quotaMessages == 0) {
+            return dequeued;
+        }
+        if (dequeued == null) {
+            releaseAllQuota();
+            return null;
+        }
+        final long size = Math.min(dequeued.payloadSize(), quotaBytes);
+        quotaMessages--;
+        quotaBytes -= size;
+        quota.release(1, size);
+        if (quotaMessages == 0 && quotaBytes > 0) {
+            // a payload read while queued, don't leak its bytes
+            releaseAllQuota();
+        }
+        return dequeued;
+    }
+
+    /**
+     * Uncount all the messages of the queue from the quota, when it's purged.
+     * */
+    protected void releaseAllQuota() {
+        quota.release(quotaMessages, quotaBytes);
+        quotaMessages = 0;
+        quotaBytes = 0;
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Queued message kept in the MQTT 3.1.1 wire format of its PUBLISH, with 0 as packet id: fixed header, topic name,
+ * packet id and payload. It's the layout a persistent queue stores, so that a dequeued message is written to the
+ * connection by patching the packet id, without decoding it into a {@link io.netty.handler.codec.mqtt.MqttPublishMessage}
+ * and encoding it again.
+ *
+ * The payload is a slice of the frame and shares its reference count, the topic is decoded only when requested, for
+ * example to resend the message.
+ * */
+public final class EncodedPublishedMessage extends SessionRegistry.PublishedMessage {
+
+    private static final int PUBLISH_TYPE = 0x30;
+    private static final int QOS_MASK = 0x06;
+    private static final int TOPIC_LENGTH_SIZE = 2;
+    private static final int PACKET_ID_SIZE = 2;
+
+    private final ByteBuf frame;
+    private final int topicOffset;
+    private final int packetIdOffset;
+    private Topic topic;
+
+    private EncodedPublishedMessage(ByteBuf frame, MqttQoS qos, int topicOffset, int packetIdOffset, ByteBuf payload) {
+        super(null, qos, payload, false);
+        this.frame = frame;
+        this.topicOffset = topicOffset;
+        this.packetIdOffset = packetIdOffset;
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(byte[], MqttQoS, ByteBuf, ByteBuffer)} writes.
+     * */
+    public static int encodedLength(byte[] topicBytes, ByteBuf payload) {
+        final int remainingLength = remainingLength(topicBytes.length, payload.readableBytes());
+        return 1 + variableLengthSize(remainingLength) + remainingLength;
+    }
+
+    /**
+     * Write the frame of a QoS1 or QoS2 message at the position of the target buffer, copying the payload in bulk
+     * without moving its reader index.
+     *
+     * @param topicBytes the UTF-8 encoded topic name.
+     * */
+    public static void encode(byte[] topicBytes, MqttQoS qos, ByteBuf payload, ByteBuffer target) {
+        if (qos == MqttQoS.AT_MOST_ONCE || qos == MqttQoS.FAILURE) {
+            throw new IllegalArgumentException("Only QoS1 and QoS2 messages are queued, was " + qos);
+        }
+        final int payloadLength = payload.readableBytes();
+        target.put((byte) (PUBLISH_TYPE | (qos.value() << 1)));
+        int remaining = remainingLength(topicBytes.length, payloadLength);
+        do {
+            int digit = remaining % 128;
+            remaining /= 128;
+            if (remaining > 0) {
+                digit |= 0x80;
+            }
+            target.put((byte) digit);
+        } while (remaining > 0);
+        target.putShort((short) topicBytes.length);
+        target.put(topicBytes);
+        // placeholder of the packet id, assigned when the message is sent
+        target.putShort((short) 0);
+        // the copy fills the target up to its limit
+        final int limit = target.limit();
+        target.limit(target.position() + payloadLength);
+        payload.getBytes(payload.readerIndex(), target);
+        target.limit(limit);
+    }
+
+    /**
+     * @param frame the buffer written by {@link #encode(byte[], MqttQoS, ByteBuf, ByteBuffer)}, whose ownership is
+     *             transferred to the returned message.
+     * */
+    public static EncodedPublishedMessage decode(ByteBuf frame) {
+        final int start = frame.readerIndex();
+        final byte type = frame.getByte(start);
+        if ((type & 0xF0) != PUBLISH_TYPE) {
+            throw new IllegalArgumentException("Not a PUBLISH frame, first byte is " + (type & 0xFF));
+        }
+        final MqttQoS qos = MqttQoS.valueOf((type & QOS_MASK) >> 1);
+        int pos = start + 1;
+        while ((frame.getByte(pos) & 0x80) != 0) {
+            pos++;
+        }
+        final int topicOffset = pos + 1;
+        final int topicLength = frame.getUnsignedShort(topicOffset);
+        final int packetIdOffset = topicOffset + TOPIC_LENGTH_SIZE + topicLength;
+        final int payloadOffset = packetIdOffset + PACKET_ID_SIZE;
+        final ByteBuf payload = frame.slice(payloadOffset, frame.writerIndex() - payloadOffset);
+        return new EncodedPublishedMessage(frame, qos, topicOffset, packetIdOffset, payload);
+    }
+
+    @Override
+    public Topic getTopic() {
+        if (topic == null) {
+            final int topicLength = frame.getUnsignedShort(topicOffset);
+            topic = Topic.asTopic(frame.toString(topicOffset + TOPIC_LENGTH_SIZE, topicLength, StandardCharsets.UTF_8));
+        }
+        return topic;
+    }
+
+    /**
+     * Assign the packet id and return a buffer ready to be written on the connection, that the caller owns. For MQTT
+     * 3.1.1 it's the frame itself, for MQTT5 the header is rebuilt to add the empty properties, while the payload is
+     * copied or attached like {@link SharedPublishEncoder} does.
+     * */
+    ByteBuf wireFrame(int packetId, boolean mqtt5, ByteBufAllocator alloc) {
+        frame.setShort(packetIdOffset, packetId);
+        if (!mqtt5) {
+            return frame.retainedDuplicate();
+        }
+        final ByteBuf payload = getPayload();
+        final int payloadLength = payload.readableBytes();
+        final int variableHeaderLength = packetIdOffset + PACKET_ID_SIZE - topicOffset;
+        // the properties length byte
+        final int remainingLength = variableHeaderLength + 1 + payloadLength;
+        final boolean copyPayload = payloadLength <= SharedPublishEncoder.COPY_THRESHOLD;
+
+        final int headerLength = 1 + variableLengthSize(remainingLength) + variableHeaderLength + 1;
+        final int bufferLength = headerLength + (copyPayload ? payloadLength : 0);
+        final ByteBuf buffer = alloc.buffer(bufferLength, bufferLength);
+        buffer.writeByte(frame.getByte(frame.readerIndex()));
+        int remaining = remainingLength;
+        do {
+            int digit = remaining % 128;
+            remaining /= 128;
+            if (remaining > 0) {
+                digit |= 0x80;
+            }
+            buffer.writeByte(digit);
+        } while (remaining > 0);
+        buffer.writeBytes(frame, topicOffset, variableHeaderLength);
+        // empty properties
+        buffer.writeByte(0);
+        if (copyPayload) {
+            buffer.writeBytes(payload, payload.readerIndex(), payloadLength);
+            return buffer;
+        }
+        return alloc.compositeBuffer(2).addComponents(true, buffer, payload.retainedDuplicate());
+    }
+
+    private static int remainingLength(int topicLength, int payloadLength) {
+        return TOPIC_LENGTH_SIZE + topicLength + PACKET_ID_SIZE + payloadLength;
+    }
+
+    private static int variableLengthSize(int value) {
+        int size = 0;
+        do {
+            value /= 128;
+            size++;
+        } while (value > 0);
+        return size;
+    }
+}
@@ -25,5 +25,9 @@ public interface ISubscriptionsRepository {
 
     void addNewSubscription(Subscription subscription);
 
+    /**
+     * @param topic the filter as subscribed by the client, so with the $share/{shareName}/ prefix for shared
+     *              subscriptions.
+     * */
     void removeSubscription(String topic, String clientID);
 }
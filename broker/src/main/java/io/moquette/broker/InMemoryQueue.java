@@ -24,13 +24,16 @@ public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.E
     @Override
     public void enqueue(SessionRegistry.EnqueuedMessage message) {
         checkEnqueuePreconditions(message);
+        if (!reserveQuota(message)) {
+            return;
+        }
         queue.add(message);
     }
 
     @Override
     public SessionRegistry.EnqueuedMessage dequeue() {
         checkDequeuePreconditions();
-        return queue.poll();
+        return releaseQuota(queue.poll());
     }
 
     @Override
@@ -44,6 +47,7 @@ public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.E
         for (SessionRegistry.EnqueuedMessage msg : queue) {
             msg.release();
         }
+        releaseAllQuota();
         if (queueRepository != null) {
             // clean up the queue from the repository
             queueRepository.dropQueue(this.queueName);
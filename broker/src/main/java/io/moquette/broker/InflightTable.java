@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Messages sent to a client and not yet completed, by packet id. The ids are assigned by the table with a
+ * {@link PacketIdAllocator}, so an entry is never overwritten by a new message, even when the ids wrap around.
+ *
+ * Open addressing table with linear probing on primitive int keys, 0 marks an empty slot, the same value that isn't
+ * a valid packet id. Ids are assigned in sequence so the identity hash spreads them without collisions until the
+ * range wraps. Not thread safe, used only by the session event loop owning the session.
+ * */
+final class InflightTable<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final PacketIdAllocator packetIds = new PacketIdAllocator();
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    InflightTable() {
+        keys = new int[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Store the value with a packet id not used by any other entry.
+     *
+     * @return the packet id assigned.
+     * @throws IllegalStateException if all the packet ids are in use.
+     * */
+    int add(V value) {
+        final int packetId = packetIds.allocate();
+        if (packetId == PacketIdAllocator.NO_PACKET_ID) {
+            throw new IllegalStateException("All the " + PacketIdAllocator.MAX_PACKET_ID + " packet ids are inflight");
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            rehash(keys.length * 2);
+        }
+        int idx = packetId & mask;
+        while (keys[idx] != 0) {
+            idx = (idx + 1) & mask;
+        }
+        keys[idx] = packetId;
+        values[idx] = value;
+        size++;
+        return packetId;
+    }
+
+    V get(int packetId) {
+        final int idx = indexOf(packetId);
+        return idx < 0 ? null : valueAt(idx);
+    }
+
+    /**
+     * Change the value of an existing entry, keeping its packet id.
+     *
+     * @return the previous value, null if the packet id isn't present, in which case nothing is stored.
+     * */
+    V replace(int packetId, V value) {
+        final int idx = indexOf(packetId);
+        if (idx < 0) {
+            return null;
+        }
+        final V old = valueAt(idx);
+        values[idx] = value;
+        return old;
+    }
+
+    /**
+     * @return the removed value, null if the packet id isn't present.
+     * */
+    V remove(int packetId) {
+        int idx = indexOf(packetId);
+        if (idx < 0) {
+            return null;
+        }
+        final V removed = valueAt(idx);
+        packetIds.release(packetId);
+        size--;
+        // backward shift deletion, moves back the entries of the probe chain that follow the removed one
+        int next = (idx + 1) & mask;
+        while (keys[next] != 0) {
+            final int home = keys[next] & mask;
+            // the entry can fill the hole if its home slot isn't in the cyclic range (idx, next]
+            if (((next - home) & mask) >= ((next - idx) & mask)) {
+                keys[idx] = keys[next];
+                values[idx] = values[next];
+                idx = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[idx] = 0;
+        values[idx] = null;
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a copy of the packet ids present, in ascending order.
+     * */
+    int[] packetIds() {
+        final int[] ids = new int[size];
+        int i = 0;
+        for (int key : keys) {
+            if (key != 0) {
+                ids[i++] = key;
+            }
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    void forEachValue(Consumer<? super V> action) {
+        for (int idx = 0; idx < keys.length; idx++) {
+            if (keys[idx] != 0) {
+                action.accept(valueAt(idx));
+            }
+        }
+    }
+
+    private int indexOf(int packetId) {
+        if (packetId <= 0) {
+            return -1;
+        }
+        int idx = packetId & mask;
+        while (keys[idx] != 0) {
+            if (keys[idx] == packetId) {
+                return idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(int idx) {
+        return (V) values[idx];
+    }
+
+    private void rehash(int newCapacity) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new int[newCapacity];
+        values = new Object[newCapacity];
+        mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            final int key = oldKeys[i];
+            if (key != 0) {
+                int idx = key & mask;
+                while (keys[idx] != 0) {
+                    idx = (idx + 1) & mask;
+                }
+                keys[idx] = key;
+                values[idx] = oldValues[i];
+            }
+        }
+    }
+}
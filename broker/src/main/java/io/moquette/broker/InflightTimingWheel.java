@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmission deadlines of the MQTT3 inflight messages of all the sessions owned by a {@link SessionEventLoop}.
+ *
+ * Hashed timing wheel with a slot every {@value #TICK_MILLIS} ms and enough slots to cover the whole timeout, so
+ * a deadline falls always in the current round and a slot is emptied entirely when its tick expires. Each slot keeps
+ * parallel arrays of sessions and packet ids, reused from tick to tick, so scheduling doesn't allocate. Acknowledged
+ * messages are not removed, when their slot expires the session skips the packet ids that aren't inflight anymore,
+ * and a disconnected session keeps the expired ones to resend them when reopened.
+ *
+ * Not thread safe, it's advanced by the owning loop and a schedule coming from another thread is handed over to the
+ * loop as a command.
+ * */
+final class InflightTimingWheel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InflightTimingWheel.class);
+
+    static final long TICK_MILLIS = 100;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int INITIAL_SLOT_CAPACITY = 16;
+
+    private static final class Slot {
+        Session[] sessions;
+        int[] packetIds;
+        int size;
+
+        void add(Session session, int packetId) {
+            if (sessions == null) {
+                sessions = new Session[INITIAL_SLOT_CAPACITY];
+                packetIds = new int[INITIAL_SLOT_CAPACITY];
+            } else if (size == sessions.length) {
+                sessions = Arrays.copyOf(sessions, size * 2);
+                packetIds = Arrays.copyOf(packetIds, size * 2);
+            }
+            sessions[size] = session;
+            packetIds[size] = packetId;
+            size++;
+        }
+
+        void clear() {
+            if (sessions.length > INITIAL_SLOT_CAPACITY * 64) {
+                // give back the memory of a burst
+                sessions = null;
+                packetIds = null;
+            } else {
+                Arrays.fill(sessions, 0, size, null);
+            }
+            size = 0;
+        }
+    }
+
+    private final SessionEventLoop owner;
+    private final Slot[] slots;
+    private final int mask;
+    private final int timeoutTicks;
+    // the tick expired next, and when
+    private long tick;
+    private long tickDeadlineNanos;
+    private int scheduled;
+
+    /**
+     * @param owner the loop that advances the wheel, null when advanced by the caller as in tests.
+     * @param timeout time after which a not acknowledged message is sent again.
+     * */
+    InflightTimingWheel(SessionEventLoop owner, long timeout, TimeUnit unit) {
+        this(owner, timeout, unit, System.nanoTime());
+    }
+
+    InflightTimingWheel(SessionEventLoop owner, long timeout, TimeUnit unit, long nowNanos) {
+        this.owner = owner;
+        this.timeoutTicks = (int) Math.max(1, (unit.toNanos(timeout) + TICK_NANOS - 1) / TICK_NANOS);
+        // at least a slot more than the ticks of the timeout, so a new deadline never lands in the expiring slot
+        int wheelSize = Integer.highestOneBit(timeoutTicks + 1) << 1;
+        this.slots = new Slot[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = wheelSize - 1;
+        this.tickDeadlineNanos = nowNanos + TICK_NANOS;
+    }
+
+    /**
+     * Track the message for a retransmission when the timeout elapses, between the timeout and the timeout plus a
+     * tick from now.
+     * */
+    void schedule(Session session, int packetId) {
+        if (owner != null && Thread.currentThread() != owner) {
+            if (!owner.offer(() -> schedule(session, packetId))) {
+                LOG.warn("Can't schedule the resend of packet id {} of session {}, the session loop queue is full",
+                    packetId, session.getClientID());
+            }
+            return;
+        }
+        slots[(int) ((tick + timeoutTicks) & mask)].add(session, packetId);
+        scheduled++;
+    }
+
+    /**
+     * Expire all the ticks elapsed, asking the sessions to resend their messages in batches, one for each run of
+     * deadlines of the same session.
+     *
+     * @return the number of deadlines expired.
+     * */
+    int expire(long nowNanos) {
+        if (owner != null && Thread.currentThread() != owner) {
+            // only the owning loop advances the wheel
+            return 0;
+        }
+        int expired = 0;
+        while (nowNanos - tickDeadlineNanos >= 0) {
+            final Slot slot = slots[(int) (tick & mask)];
+            tick++;
+            tickDeadlineNanos += TICK_NANOS;
+            if (slot.size == 0) {
+                continue;
+            }
+            int runStart = 0;
+            for (int i = 1; i <= slot.size; i++) {
+                if (i == slot.size || slot.sessions[i] != slot.sessions[runStart]) {
+                    resend(slot.sessions[runStart], slot.packetIds, runStart, i);
+                    runStart = i;
+                }
+            }
+            expired += slot.size;
+            scheduled -= slot.size;
+            slot.clear();
+        }
+        return expired;
+    }
+
+    private static void resend(Session session, int[] packetIds, int from, int to) {
+        try {
+            session.resendExpiredInflight(packetIds, from, to);
+        } catch (Throwable th) {
+            // doesn't stop the resends of the other sessions
+            LOG.warn("Failed to resend inflight messages of session {}", session.getClientID(), th);
+        }
+    }
+
+    /**
+     * @return number of deadlines pending, comprised the ones of messages already acknowledged.
+     * */
+    int scheduled() {
+        return scheduled;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+
+/**
+ * Number of QoS1 and QoS2 PUBLISHes a session can have sent and not yet acknowledged.
+ *
+ * The maximum is the lower of the Receive Maximum requested by the client and the broker's ceiling. When fixed the
+ * window is always the maximum; when adaptive it starts from {@link BrokerConstants#INFLIGHT_WINDOW_SIZE} and moves
+ * within [1, maximum] following the round trip time of the acknowledgements: it grows while the acks come back as fast
+ * as the fastest seen, doubling until the first latency increase and then one message at a time, and shrinks by a
+ * quarter when both the smoothed and the last round trip time exceed twice the fastest, which means the messages are
+ * queueing somewhere between the broker and the client.
+ *
+ * Only one message at a time is timed, and a resent one is never used as a sample, because its ack could belong to
+ * either transmission.
+ *
+ * Updated only by the session event loop owning the session, the counters are volatile to be read by
+ * {@link #stats(String)} from any thread.
+ * */
+final class InflightWindow {
+
+    // MQTT5 default when CONNECT doesn't carry a Receive Maximum
+    static final int UNLIMITED_RECEIVE_MAXIMUM = 65_535;
+    private static final int NO_SAMPLE = -1;
+
+    private final boolean adaptive;
+    private volatile int maximum;
+    private volatile int limit;
+    private volatile int inflight;
+    private volatile long sentMessages;
+    private volatile long ackedMessages;
+    private volatile long resentMessages;
+
+    private boolean slowStart;
+    private int sampledPacketId = NO_SAMPLE;
+    private long sampleStartNanos;
+    // value of sentMessages when the sampled message was sent
+    private long sampleSequence;
+    private boolean limitedSinceSample;
+    private long lastShrinkSequence;
+    private volatile long smoothedRttNanos;
+    private long minRttNanos;
+
+    InflightWindow(int maximum, boolean adaptive) {
+        this.adaptive = adaptive;
+        resize(maximum);
+    }
+
+    /**
+     * Set a new maximum, for example when a session is reopened by a CONNECT with a different Receive Maximum, and
+     * restart the measure of the round trip time because the client could be on another network.
+     * */
+    void resize(int newMaximum) {
+        if (newMaximum <= 0) {
+            throw new IllegalArgumentException("Inflight window size must be positive, was " + newMaximum);
+        }
+        maximum = newMaximum;
+        limit = adaptive ? Math.min(newMaximum, BrokerConstants.INFLIGHT_WINDOW_SIZE) : newMaximum;
+        slowStart = true;
+        sampledPacketId = NO_SAMPLE;
+        limitedSinceSample = false;
+        lastShrinkSequence = sentMessages;
+        smoothedRttNanos = 0;
+        minRttNanos = Long.MAX_VALUE;
+    }
+
+    boolean hasSlots() {
+        return inflight < limit;
+    }
+
+    int inflight() {
+        return inflight;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    void sent(int packetId) {
+        sent(packetId, System.nanoTime());
+    }
+
+    void sent(int packetId, long nowNanos) {
+        inflight++;
+        sentMessages++;
+        if (!adaptive) {
+            return;
+        }
+        if (inflight >= limit) {
+            limitedSinceSample = true;
+        }
+        if (sampledPacketId == NO_SAMPLE) {
+            sampledPacketId = packetId;
+            sampleStartNanos = nowNanos;
+            sampleSequence = sentMessages;
+        }
+    }
+
+    void resent(int packetId) {
+        resentMessages++;
+        if (packetId == sampledPacketId) {
+            sampledPacketId = NO_SAMPLE;
+        }
+    }
+
+    /**
+     * The peer acknowledged the message, with PUBACK for QoS1 and PUBREC for QoS2. Doesn't free the slot, which in
+     * QoS2 is held until PUBCOMP.
+     * */
+    void acknowledged(int packetId) {
+        acknowledged(packetId, System.nanoTime());
+    }
+
+    void acknowledged(int packetId, long nowNanos) {
+        ackedMessages++;
+        if (packetId != sampledPacketId) {
+            return;
+        }
+        sampledPacketId = NO_SAMPLE;
+        adapt(nowNanos - sampleStartNanos);
+    }
+
+    /**
+     * Free the slot of a message that completed its flow or that was dropped.
+     * */
+    void released() {
+        if (inflight > 0) {
+            inflight--;
+        }
+    }
+
+    private void adapt(long measuredNanos) {
+        // a coarse clock could measure 0, which would make any later sample look twice as slow
+        final long rttNanos = Math.max(1, measuredNanos);
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        final long srtt = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos + (rttNanos - smoothedRttNanos) / 8;
+        smoothedRttNanos = srtt;
+
+        // the smoothed value ignores single spikes, the last sample stops shrinking as soon as the queue is gone
+        if (srtt > 2 * minRttNanos && rttNanos > 2 * minRttNanos) {
+            // shrink once for each window of messages, the samples sent before the last shrink see the old queue
+            if (sampleSequence > lastShrinkSequence) {
+                limit = Math.max(1, limit * 3 / 4);
+                slowStart = false;
+                lastShrinkSequence = sentMessages;
+            }
+        } else if (limitedSinceSample && rttNanos <= minRttNanos + minRttNanos / 4) {
+            // no sense to grow when the sender didn't fill the window
+            limit = Math.min(maximum, slowStart ? limit * 2 : limit + 1);
+        }
+        limitedSinceSample = false;
+    }
+
+    InflightWindowStats stats(String clientId) {
+        return new InflightWindowStats(clientId, limit, maximum, inflight, sentMessages, ackedMessages,
+            resentMessages, smoothedRttNanos / 1_000);
+    }
+
+    @Override
+    public String toString() {
+        return "InflightWindow{inflight=" + inflight + ", limit=" + limit + ", maximum=" + maximum + '}';
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * Snapshot of the inflight window of a session, the values are read one by one so they could be slightly out
+ * of step with each other.
+ * */
+public class InflightWindowStats {
+
+    private final String clientID;
+    private final int windowSize;
+    private final int maxWindowSize;
+    private final int inflight;
+    private final long sentMessages;
+    private final long ackedMessages;
+    private final long resentMessages;
+    private final long smoothedRttMicros;
+
+    InflightWindowStats(String clientID, int windowSize, int maxWindowSize, int inflight, long sentMessages,
+                        long ackedMessages, long resentMessages, long smoothedRttMicros) {
+        this.clientID = clientID;
+        this.windowSize = windowSize;
+        this.maxWindowSize = maxWindowSize;
+        this.inflight = inflight;
+        this.sentMessages = sentMessages;
+        this.ackedMessages = ackedMessages;
+        this.resentMessages = resentMessages;
+        this.smoothedRttMicros = smoothedRttMicros;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return the number of messages that can be inflight now, moved by the adaptive mode.
+     * */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @return the lower of the client's Receive Maximum and the broker's inflight_window_size.
+     * */
+    public int getMaxWindowSize() {
+        return maxWindowSize;
+    }
+
+    public int getInflight() {
+        return inflight;
+    }
+
+    public long getSentMessages() {
+        return sentMessages;
+    }
+
+    /**
+     * @return the number of PUBACKs and PUBRECs received.
+     * */
+    public long getAckedMessages() {
+        return ackedMessages;
+    }
+
+    public long getResentMessages() {
+        return resentMessages;
+    }
+
+    /**
+     * @return the smoothed time between a PUBLISH and its acknowledgement, measured only in adaptive mode,
+     * 0 if not measured.
+     * */
+    public long getSmoothedRttMicros() {
+        return smoothedRttMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "InflightWindowStats{" +
+            "clientID='" + clientID + '\'' +
+            ", windowSize=" + windowSize +
+            ", maxWindowSize=" + maxWindowSize +
+            ", inflight=" + inflight +
+            ", sentMessages=" + sentMessages +
+            ", ackedMessages=" + ackedMessages +
+            ", resentMessages=" + resentMessages +
+            ", smoothedRttMicros=" + smoothedRttMicros +
+            '}';
+    }
+}
@@ -43,8 +43,6 @@ import java.security.cert.CertificateEncodingException;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLPeerUnverifiedException;
 
 import static io.moquette.BrokerConstants.INFLIGHT_WINDOW_SIZE;
@@ -68,7 +66,6 @@ final class MQTTConnection {
     private final SessionRegistry sessionRegistry;
     private final PostOffice postOffice;
     private volatile boolean connected;
-    private final AtomicInteger lastPacketId = new AtomicInteger(0);
     private Session bindedSession;
     private int protocolVersion;
 
@@ -308,11 +305,9 @@ final class MQTTConnection {
                             });
                         }
 
+                        // MQTT3 inflight messages are resent on timeout by the session loop, in MQTT5
+                        // MQTT-4.4.0-1 avoid retries messages on timer base.
                         initializeKeepAliveTimeout(channel, msg, clientIdUsed);
-                        if (isNotProtocolVersion(msg, MqttVersion.MQTT_5)) {
-                            // In MQTT5 MQTT-4.4.0-1 avoid retries messages on timer base.
-                            setupInflightResender(channel);
-                        }
 
                         postOffice.dispatchConnection(msg);
                         LOG.trace("dispatch connection: {}", msg);
@@ -369,15 +364,10 @@ final class MQTTConnection {
             .retainAvailable(true)
             .wildcardSubscriptionAvailable(true)
             .subscriptionIdentifiersAvailable(false)
-            .sharedSubscriptionAvailable(false);
+            .sharedSubscriptionAvailable(true);
         return builder;
     }
 
-    private void setupInflightResender(Channel channel) {
-        channel.pipeline()
-            .addFirst("inflightResender", new InflightResender(5_000, TimeUnit.MILLISECONDS));
-    }
-
     private void initializeKeepAliveTimeout(Channel channel, MqttConnectMessage msg, String clientId) {
         int keepAlive = msg.variableHeader().keepAliveTimeSeconds();
         NettyUtils.keepAlive(channel, keepAlive);
@@ -622,14 +612,12 @@ final class MQTTConnection {
         msg.retain();
         switch (qos) {
             case AT_MOST_ONCE:
-                return postOffice.routeCommand(clientId, "PUB QoS0", () -> {
-                    checkMatchSessionLoop(clientId);
-                    if (!isBoundToSession()) {
-                        return null;
-                    }
-                    postOffice.receivedPublishQos0(topic, username, clientId, msg);
-                    return null;
-                }).ifFailed(msg::release);
+                if (postOffice.routeFireAndForget(clientId, "PUB QoS0", MQTTConnection::executePublishQos0, this,
+                    topic, msg)) {
+                    return PostOffice.RouteResult.queued(clientId);
+                }
+                msg.release();
+                return PostOffice.RouteResult.failed(clientId);
             case AT_LEAST_ONCE:
                 return postOffice.routeCommand(clientId, "PUB QoS1", () -> {
                     checkMatchSessionLoop(clientId);
@@ -662,6 +650,16 @@ final class MQTTConnection {
         }
     }
 
+    private static void executePublishQos0(MQTTConnection connection, Topic topic, MqttPublishMessage msg) {
+        final String clientId = connection.getClientId();
+        connection.checkMatchSessionLoop(clientId);
+        if (!connection.isBoundToSession()) {
+            return;
+        }
+        final String username = NettyUtils.userName(connection.channel);
+        connection.postOffice.receivedPublishQos0(topic, username, clientId, msg);
+    }
+
     void sendPubRec(int messageID) {
         LOG.trace("sendPubRec invoked, messageID: {}", messageID);
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBREC, false, AT_MOST_ONCE,
@@ -698,6 +696,19 @@ final class MQTTConnection {
         sendIfWritableElseDrop(publishMsg);
     }
 
+    /**
+     * Send a PUBLISH read from a persistent queue, writing its stored frame as is. The outbound handlers see it as
+     * a {@link MqttPublishMessage}, so it's counted and logged like the others.
+     * */
+    void sendEncodedPublish(EncodedPublishedMessage msg, int packetId) {
+        final String topicName = msg.getTopic().toString();
+        LOG.debug("Sending PUBLISH({}) message. MessageId={}, topic={}", msg.getPublishingQos(), packetId, topicName);
+        if (channel.isWritable()) {
+            write(new StoredPublishMessage(msg.wireFrame(packetId, isProtocolVersion5(), channel.alloc()),
+                msg.getPublishingQos(), topicName, packetId, msg.getPayload().readableBytes()));
+        }
+    }
+
     void sendIfWritableElseDrop(MqttMessage msg) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("OUT {}", msg.fixedHeader().messageType());
@@ -710,15 +721,18 @@ final class MQTTConnection {
             if (msg instanceof ByteBufHolder) {
                 retainedDup = ((ByteBufHolder) msg).retainedDuplicate();
             }
+            write(retainedDup);
+        }
+    }
 
-            ChannelFuture channelFuture;
-            if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
-                channelFuture = channel.writeAndFlush(retainedDup);
-            } else {
-                channelFuture = channel.write(retainedDup);
-            }
-            channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+    private void write(Object msg) {
+        ChannelFuture channelFuture;
+        if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
+            channelFuture = channel.writeAndFlush(msg);
+        } else {
+            channelFuture = channel.write(msg);
         }
+        channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
     }
 
     public void writabilityChanged() {
@@ -754,18 +768,16 @@ final class MQTTConnection {
         return NettyUtils.userName(channel);
     }
 
-    public void sendPublishWithPacketId(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
-        final int packetId = nextPacketId();
-        MqttPublishMessage publishMsg = createPublishMessage(topic.toString(), qos, payload, packetId, retained);
-        sendPublish(publishMsg);
-    }
-
     // TODO move this method in Session
     void sendPublishQos0(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
         MqttPublishMessage publishMsg = createPublishMessage(topic.toString(), qos, payload, 0, retained);
         sendPublish(publishMsg);
     }
 
+    void sendSharedPublishQos0(SharedPublishFrame frame, ByteBuf payload) {
+        sendPublish(new SharedPublishMessage(frame, AT_MOST_ONCE, 0, payload, isProtocolVersion5()));
+    }
+
     static MqttPublishMessage createRetainedPublishMessage(String topic, MqttQoS qos, ByteBuf message) {
         return createPublishMessage(topic, qos, message, 0, true);
     }
@@ -791,14 +803,6 @@ final class MQTTConnection {
         return new MqttPublishMessage(fixedHeader, varHeader, message);
     }
 
-    public void resendNotAckedPublishes() {
-        bindedSession.resendInflightNotAcked();
-    }
-
-    int nextPacketId() {
-        return lastPacketId.updateAndGet(v -> v == 65535 ? 1 : v + 1);
-    }
-
     @Override
     public String toString() {
         return "MQTTConnection{channel=" + channel + ", connected=" + connected + '}';
@@ -817,10 +821,9 @@ final class MQTTConnection {
     }
 
     private void queueDrainQueueCommand() {
-        postOffice.routeCommand(getClientId(), "flushQueues", () -> {
-            bindedSession.flushAllQueuedMessages();
-            return null;
-        });
+        postOffice.routeFireAndForget(getClientId(), "flushQueues",
+            (MQTTConnection connection, Object unused, Object none) -> connection.bindedSession.flushAllQueuedMessages(),
+            this, null, null);
     }
 
     public void flush() {
@@ -1,13 +1,13 @@
 package io.moquette.broker;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MemoryQueueRepository implements IQueueRepository {
 
-    private Map<String, SessionMessageQueue<SessionRegistry.EnqueuedMessage>> queues = new HashMap<>();
+    private Map<String, SessionMessageQueue<SessionRegistry.EnqueuedMessage>> queues = new ConcurrentHashMap<>();
 
     @Override
     public Set<String> listQueueNames() {
@@ -16,22 +16,18 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.TopicIndex;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 /*
-* In memory retained messages store
+* In memory retained messages store, indexed by topic levels so that a subscription visits only the matching topics.
 * */
 final class MemoryRetainedRepository implements IRetainedRepository {
 
-    private final ConcurrentMap<Topic, RetainedMessage> storage = new ConcurrentHashMap<>();
+    private final TopicIndex<RetainedMessage> storage = new TopicIndex<>();
 
     @Override
     public void cleanRetained(Topic topic) {
@@ -54,14 +50,6 @@ final class MemoryRetainedRepository implements IRetainedRepository {
 
     @Override
     public Collection<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : storage.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
-            }
-        }
-        return matchingMessages;
+        return storage.match(new Topic(topic));
     }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * Hands out the packet ids of outgoing QoS1 and QoS2 PUBLISHes, never returning one still in use.
+ *
+ * Ids are taken in increasing order starting after the last one given, wrapping at {@value #MAX_PACKET_ID}, so a
+ * released id isn't reused until the whole range has been walked. The used ids are tracked in a bitmap split in
+ * chunks of {@value #CHUNK_IDS} ids, allocated on first use and dropped when empty, so that a session with few
+ * messages inflight costs 512 bytes instead of the 8KB of the whole range.
+ * */
+final class PacketIdAllocator {
+
+    static final int MAX_PACKET_ID = 65_535;
+    static final int NO_PACKET_ID = 0;
+    private static final int CHUNK_IDS = 4096;
+    private static final int WORDS_PER_CHUNK = CHUNK_IDS / Long.SIZE;
+
+    private final long[][] chunks = new long[(MAX_PACKET_ID + 1) / CHUNK_IDS][];
+    private final int[] chunkUsage = new int[chunks.length];
+    private int lastAllocated;
+    private int allocated;
+
+    /**
+     * @return a free packet id, or {@link #NO_PACKET_ID} if all of them are in use.
+     * */
+    int allocate() {
+        if (allocated == MAX_PACKET_ID) {
+            return NO_PACKET_ID;
+        }
+        int id = nextFree(lastAllocated == MAX_PACKET_ID ? 1 : lastAllocated + 1);
+        if (id == NO_PACKET_ID) {
+            id = nextFree(1);
+        }
+        final int chunk = id / CHUNK_IDS;
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new long[WORDS_PER_CHUNK];
+        }
+        final int bit = id % CHUNK_IDS;
+        chunks[chunk][bit >>> 6] |= 1L << bit;
+        chunkUsage[chunk]++;
+        allocated++;
+        lastAllocated = id;
+        return id;
+    }
+
+    void release(int id) {
+        if (!isAllocated(id)) {
+            return;
+        }
+        final int chunk = id / CHUNK_IDS;
+        final int bit = id % CHUNK_IDS;
+        chunks[chunk][bit >>> 6] &= ~(1L << bit);
+        allocated--;
+        if (--chunkUsage[chunk] == 0) {
+            chunks[chunk] = null;
+        }
+    }
+
+    boolean isAllocated(int id) {
+        if (id <= NO_PACKET_ID || id > MAX_PACKET_ID) {
+            return false;
+        }
+        final long[] words = chunks[id / CHUNK_IDS];
+        final int bit = id % CHUNK_IDS;
+        return words != null && (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    int allocated() {
+        return allocated;
+    }
+
+    private int nextFree(int from) {
+        for (int chunk = from / CHUNK_IDS; chunk < chunks.length; chunk++) {
+            final int start = chunk == from / CHUNK_IDS ? from % CHUNK_IDS : 0;
+            final long[] words = chunks[chunk];
+            if (words == null) {
+                return chunk * CHUNK_IDS + start;
+            }
+            if (chunkUsage[chunk] == CHUNK_IDS) {
+                continue;
+            }
+            for (int word = start >>> 6; word < WORDS_PER_CHUNK; word++) {
+                long free = ~words[word];
+                if (word == start >>> 6) {
+                    free &= -1L << start;
+                }
+                if (free != 0) {
+                    return chunk * CHUNK_IDS + (word << 6) + Long.numberOfTrailingZeros(free);
+                }
+            }
+        }
+        return NO_PACKET_ID;
+    }
+}
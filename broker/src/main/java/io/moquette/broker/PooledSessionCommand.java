@@ -0,0 +1,63 @@
+package io.moquette.broker;
+
+import io.netty.util.internal.ObjectPool;
+
+/**
+ * Command routed to a session loop when nobody waits for its completion, so it doesn't carry any future.
+ * Instances are taken from a pool and given back once executed; the action is expected to be a non capturing
+ * lambda, with its state passed as arguments, so that routing it doesn't allocate.
+ * */
+final class PooledSessionCommand implements Runnable {
+
+    @FunctionalInterface
+    interface Action<A, B, C> {
+        void execute(A first, B second, C third) throws Exception;
+    }
+
+    private static final ObjectPool<PooledSessionCommand> POOL = ObjectPool.newPool(PooledSessionCommand::new);
+
+    private final ObjectPool.Handle<PooledSessionCommand> handle;
+    private Action<Object, Object, Object> action;
+    private Object first;
+    private Object second;
+    private Object third;
+
+    private PooledSessionCommand(ObjectPool.Handle<PooledSessionCommand> handle) {
+        this.handle = handle;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <A, B, C> PooledSessionCommand newInstance(Action<A, B, C> action, A first, B second, C third) {
+        final PooledSessionCommand cmd = POOL.get();
+        cmd.action = (Action<Object, Object, Object>) action;
+        cmd.first = first;
+        cmd.second = second;
+        cmd.third = third;
+        return cmd;
+    }
+
+    @Override
+    public void run() {
+        final Action<Object, Object, Object> toExecute = action;
+        final Object firstArg = first;
+        final Object secondArg = second;
+        final Object thirdArg = third;
+        recycle();
+        try {
+            toExecute.execute(firstArg, secondArg, thirdArg);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Give back the command to the pool, before its execution or when it can't be queued.
+     * */
+    void recycle() {
+        action = null;
+        first = null;
+        second = null;
+        third = null;
+        handle.recycle(this);
+    }
+}
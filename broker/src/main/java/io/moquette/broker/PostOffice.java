@@ -140,6 +140,8 @@ class PostOffice {
     }
 
     static class RouteResult {
+        private static final CompletableFuture<Void> QUEUED = CompletableFuture.completedFuture(null);
+
         private final String clientId;
         private final Status status;
         private CompletableFuture queuedFuture;
@@ -150,6 +152,13 @@ class PostOffice {
             return new RouteResult(clientId, Status.SUCCESS, queuedFuture);
         }
 
+        /**
+         * Success of a command routed without future, which is already completed once queued.
+         * */
+        public static RouteResult queued(String clientId) {
+            return new RouteResult(clientId, Status.SUCCESS, QUEUED);
+        }
+
         public static RouteResult failed(String clientId) {
             return failed(clientId, null);
         }
@@ -296,16 +305,21 @@ class PostOffice {
         MqttSubAckMessage ackMessage = doAckMessageFromValidateFilters(ackTopics, messageID);
 
         // store topics subscriptions in session
+        final boolean sharedEnabled = mqttConnection.isProtocolVersion5();
         List<Subscription> newSubscriptions = ackTopics.stream()
             .filter(req -> req.qualityOfService() != FAILURE)
             .map(req -> {
+                if (sharedEnabled && isSharedSubscription(req.topicName())) {
+                    // members of a share group are indexed under the filter that follows the share name
+                    final String shareName = extractShareName(req.topicName());
+                    final Topic topic = new Topic(extractFilterFromShared(req.topicName()));
+                    return new Subscription(clientID, topic, req.qualityOfService(), shareName);
+                }
                 final Topic topic = new Topic(req.topicName());
                 return new Subscription(clientID, topic, req.qualityOfService());
             }).collect(Collectors.toList());
 
-        for (Subscription subscription : newSubscriptions) {
-            subscriptions.add(subscription);
-        }
+        subscriptions.addAll(newSubscriptions);
 
         // add the subscriptions to Session
         session.addSubscriptions(newSubscriptions);
@@ -327,9 +341,22 @@ class PostOffice {
     protected static String extractShareName(String sharedTopicFilter) {
         int afterShare = "$share/".length();
         int endOfShareName = sharedTopicFilter.indexOf('/', afterShare);
+        if (endOfShareName < 0) {
+            // no topic filter after the share name, MQTT-4.8.2-2
+            return "";
+        }
         return sharedTopicFilter.substring(afterShare, endOfShareName);
     }
 
+    /**
+     * @return the topic filter in the shared topic filter of format $share/{shareName}/{topicFilter}
+     * */
+    private static String extractFilterFromShared(String sharedTopicFilter) {
+        int afterShare = "$share/".length();
+        int endOfShareName = sharedTopicFilter.indexOf('/', afterShare);
+        return sharedTopicFilter.substring(endOfShareName + 1);
+    }
+
     /**
      * @return true if shareName is well formed, is at least one characted and doesn't contain wildcard matchers
      * */
@@ -350,6 +377,10 @@ class PostOffice {
     private void publishRetainedMessagesForSubscriptions(String clientID, List<Subscription> newSubscriptions) {
         Session targetSession = this.sessionRegistry.retrieve(clientID);
         for (Subscription subscription : newSubscriptions) {
+            if (subscription.isShared()) {
+                // MQTT5 4.8.2, retained messages are not sent when a shared subscription is established
+                continue;
+            }
             final String topicFilter = subscription.getTopicFilter().toString();
             final Collection<RetainedMessage> retainedMsgs = retainedRepository.retainedOnTopic(topicFilter);
 
@@ -404,10 +435,19 @@ class PostOffice {
                 return;
             }
 
-            LOG.trace("Removing subscription topic={}", topic);
-            subscriptions.removeSubscription(topic, clientID);
+            if (mqttConnection.isProtocolVersion5() && isSharedSubscription(t)) {
+                final String shareName = extractShareName(t);
+                final Topic topicFilter = new Topic(extractFilterFromShared(t));
+                LOG.trace("Removing shared subscription share={} topic={}", shareName, topicFilter);
+                subscriptions.removeSharedSubscription(shareName, topicFilter, clientID);
+
+                session.removeSharedSubscription(shareName, topicFilter);
+            } else {
+                LOG.trace("Removing subscription topic={}", topic);
+                subscriptions.removeSubscription(topic, clientID);
 
-            session.removeSubscription(topic);
+                session.removeSubscription(topic);
+            }
 
             String username = NettyUtils.userName(mqttConnection.channel);
             interceptor.notifyTopicUnsubscribed(topic.toString(), clientID, username);
@@ -505,6 +545,7 @@ class PostOffice {
         final List<Subscription>[] subscriptions;
         private final int eventLoops;
         private final SessionEventLoopGroup loopGroup;
+        private int subscriptionsCount;
 
         BatchingPublishesCollector(SessionEventLoopGroup loopGroup) {
             eventLoops = loopGroup.getEventLoopCount();
@@ -518,6 +559,7 @@ class PostOffice {
                 subscriptions[targetQueueId] = new ArrayList<>();
             }
             subscriptions[targetQueueId].add(sub);
+            subscriptionsCount++;
         }
 
         private int subscriberEventLoop(String clientId) {
@@ -552,6 +594,10 @@ class PostOffice {
             return subscriptions[targetQueueId].stream().map(Subscription::getClientId).collect(Collectors.toList());
         }
 
+        int countSubscriptions() {
+            return subscriptionsCount;
+        }
+
         public int countBatches() {
             int count = 0;
             for (List<Subscription> subscriptionsBatch : subscriptions) {
@@ -590,8 +636,12 @@ class PostOffice {
 
         payload.retain(subscriptionCount);
 
+        // a single subscriber gets the message in the plain format, also when queued, that's written once
+        final SharedPublishFrame frame = collector.countSubscriptions() > 1 ?
+            new SharedPublishFrame(topic, payload, false, subscriptionCount) : null;
         List<RouteResult> publishResults = collector.routeBatchedPublishes((batch) -> {
-            publishToSession(payload, topic, batch, publishingQos);
+            publishToSession(frame, payload, topic, batch, publishingQos);
+            batchDelivered(frame);
             payload.release();
         });
 
@@ -606,6 +656,7 @@ class PostOffice {
             Collection<String> subscibersIds = collector.subscriberIdsByEventLoop(rr.clientId);
             if (rr.status == RouteResult.Status.FAIL) {
                 failedRoutings.addAll(subscibersIds);
+                batchDelivered(frame);
                 payload.release();
             } else {
                 successedRoutings.addAll(subscibersIds);
@@ -614,22 +665,37 @@ class PostOffice {
         return new RoutingResults(successedRoutings, failedRoutings, publishes);
     }
 
-    private void publishToSession(ByteBuf payload, Topic topic, Collection<Subscription> subscriptions, MqttQoS publishingQos) {
+    private static void batchDelivered(SharedPublishFrame frame) {
+        if (frame != null) {
+            frame.batchDelivered();
+        }
+    }
+
+    /**
+     * @param frame the encoding shared by the subscribers of a fan-out, null for a single subscriber.
+     * */
+    private void publishToSession(SharedPublishFrame frame, ByteBuf payload, Topic topic,
+                                  Collection<Subscription> subscriptions, MqttQoS publishingQos) {
         ByteBuf duplicate = payload.duplicate();
         for (Subscription sub : subscriptions) {
             MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            publishToSession(duplicate, topic, sub, qos);
+            publishToSession(frame, duplicate, topic, sub, qos);
         }
     }
 
-    private void publishToSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos) {
+    private void publishToSession(SharedPublishFrame frame, ByteBuf payload, Topic topic, Subscription sub,
+                                  MqttQoS qos) {
         Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
 
         boolean isSessionPresent = targetSession != null;
         if (isSessionPresent) {
             LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
                       sub.getClientId(), sub.getTopicFilter(), qos);
-            targetSession.sendNotRetainedPublishOnSessionAtQos(topic, qos, payload);
+            if (frame != null) {
+                targetSession.sendSharedPublishOnSessionAtQos(frame, topic, qos, payload);
+            } else {
+                targetSession.sendNotRetainedPublishOnSessionAtQos(topic, qos, payload);
+            }
         } else {
             // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
             // destination.
@@ -748,6 +814,16 @@ class PostOffice {
         return sessionLoops.routeCommand(clientId, actionDescription, action);
     }
 
+    /**
+     * Route to the owning SessionEventLoop a command which completion nobody waits for.
+     *
+     * @return false if the command can't be queued.
+     * */
+    <A, B, C> boolean routeFireAndForget(String clientId, String actionDescription,
+                                      PooledSessionCommand.Action<A, B, C> action, A first, B second, C third) {
+        return sessionLoops.routeFireAndForget(clientId, actionDescription, action, first, second, third);
+    }
+
     public void terminate() {
         willExpirationService.shutdown();
         sessionLoops.terminate();
@@ -0,0 +1,125 @@
+package io.moquette.broker;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits of the session queues, by number of messages and by payload bytes, for each session and for all the
+ * sessions together, with the policy applied by {@link AbstractSessionMessageQueue} to a message over a limit.
+ *
+ * One instance is shared by all the queues of the broker, it counts the messages they hold. A limit of 0 disables
+ * the check. The global counters are updated without locking, concurrent enqueues may exceed a global limit by a few
+ * messages.
+ * */
+public final class QueueQuota {
+
+    public enum OverflowPolicy {
+        /**
+         * Remove the oldest messages of the session to make room.
+         * */
+        DROP_OLDEST,
+        /**
+         * Discard the message being enqueued.
+         * */
+        DROP_NEWEST,
+        /**
+         * Discard the message being enqueued and disconnect the session.
+         * */
+        DISCONNECT;
+
+        /**
+         * @throws IllegalArgumentException when the name isn't one of drop_oldest, drop_newest or disconnect.
+         * */
+        public static OverflowPolicy fromName(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    public static final QueueQuota UNLIMITED = new QueueQuota(0, 0, 0, 0, OverflowPolicy.DROP_NEWEST);
+
+    private final int maxSessionMessages;
+    private final long maxSessionBytes;
+    private final long maxMessages;
+    private final long maxBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param maxSessionMessages the messages a session queue can hold.
+     * @param maxSessionBytes the payload bytes a session queue can hold.
+     * @param maxMessages the messages all the session queues can hold.
+     * @param maxBytes the payload bytes all the session queues can hold.
+     * */
+    public QueueQuota(int maxSessionMessages, long maxSessionBytes, long maxMessages, long maxBytes,
+                      OverflowPolicy overflowPolicy) {
+        this.maxSessionMessages = maxSessionMessages;
+        this.maxSessionBytes = maxSessionBytes;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    boolean isUnlimited() {
+        return maxSessionMessages <= 0 && maxSessionBytes <= 0 && maxMessages <= 0 && maxBytes <= 0;
+    }
+
+    OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return true when a session queue holding the given messages and bytes can take one more message of size bytes.
+     * */
+    boolean sessionFits(int sessionMessages, long sessionBytes, int size) {
+        if (maxSessionMessages > 0 && sessionMessages + 1 > maxSessionMessages) {
+            return false;
+        }
+        return maxSessionBytes <= 0 || sessionBytes + size <= maxSessionBytes;
+    }
+
+    /**
+     * Count a message of size bytes in the global usage.
+     *
+     * @return false, without counting it, when the message exceeds a global limit.
+     * */
+    boolean acquire(int size) {
+        final long totalMessages = messages.incrementAndGet();
+        final long totalBytes = bytes.addAndGet(size);
+        if ((maxMessages > 0 && totalMessages > maxMessages) || (maxBytes > 0 && totalBytes > maxBytes)) {
+            release(1, size);
+            return false;
+        }
+        return true;
+    }
+
+    void release(int count, long size) {
+        messages.addAndGet(-count);
+        bytes.addAndGet(-size);
+    }
+
+    /**
+     * @return the messages held by all the session queues.
+     * */
+    public long messages() {
+        return messages.get();
+    }
+
+    /**
+     * @return the payload bytes held by all the session queues.
+     * */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "QueueQuota{" +
+            "maxSessionMessages=" + maxSessionMessages +
+            ", maxSessionBytes=" + maxSessionBytes +
+            ", maxMessages=" + maxMessages +
+            ", maxBytes=" + maxBytes +
+            ", overflowPolicy=" + overflowPolicy +
+            '}';
+    }
+}
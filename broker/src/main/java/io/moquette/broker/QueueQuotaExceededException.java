@@ -0,0 +1,14 @@
+package io.moquette.broker;
+
+/**
+ * Thrown by the enqueue of a session queue over its {@link QueueQuota}, when the policy is to disconnect the session.
+ * The rejected message is already released.
+ * */
+public class QueueQuotaExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = -3129485532016413878L;
+
+    QueueQuotaExceededException(String msg) {
+        super(msg);
+    }
+}
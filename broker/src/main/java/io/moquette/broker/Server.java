@@ -30,13 +30,17 @@ import io.moquette.broker.security.IAuthorizatorPolicy;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.security.ResourceAuthenticator;
 import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.persistence.H2Builder;
+import io.moquette.persistence.H2WriteBehind;
 import io.moquette.persistence.MemorySessionsRepository;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.SharedSubscriptionStrategies;
+import io.moquette.broker.subscriptions.SharedSubscriptionStrategy;
 import io.moquette.persistence.SegmentQueueRepository;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import org.slf4j.Logger;
@@ -61,7 +65,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -227,7 +233,13 @@ public class Server {
 
             LOG.debug("Configuring persistent subscriptions store and queues, path: {}", dataPath);
             final int autosaveInterval = Integer.parseInt(config.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
-            h2Builder = new H2Builder(scheduler, dataPath, autosaveInterval, clock).initStore();
+            h2Builder = new H2Builder(dataPath, autosaveInterval, clock)
+                .cacheSize(config.intProp(BrokerConstants.H2_CACHE_SIZE, BrokerConstants.DEFAULT_H2_CACHE_SIZE_MB))
+                .writeBehind(config.boolProp(BrokerConstants.H2_WRITE_BEHIND, BrokerConstants.DEFAULT_H2_WRITE_BEHIND),
+                    config.intProp(BrokerConstants.H2_COMMIT_BATCH_SIZE, BrokerConstants.DEFAULT_H2_COMMIT_BATCH_SIZE))
+                .compaction(config.intProp(BrokerConstants.H2_COMPACT_INTERVAL, BrokerConstants.DEFAULT_H2_COMPACT_INTERVAL_SECONDS),
+                    config.intProp(BrokerConstants.H2_COMPACT_MAX_BYTES, BrokerConstants.DEFAULT_H2_COMPACT_MAX_BYTES))
+                .initStore();
             queueRepository = initQueuesRepository(config, dataPath, h2Builder);
             LOG.trace("Configuring H2 subscriptions repository");
             subscriptionsRepository = h2Builder.subscriptionsRepository();
@@ -241,7 +253,22 @@ public class Server {
             sessionsRepository = new MemorySessionsRepository();
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        final int matchCacheSize = config.intProp(IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE,
+            CTrieSubscriptionDirectory.DEFAULT_MATCH_CACHE_SIZE);
+        final String sharedStrategyName = config.getProperty(IConfig.SHARED_SUBSCRIPTION_STRATEGY,
+            SharedSubscriptionStrategies.ROUND_ROBIN);
+        final SharedSubscriptionStrategy sharedStrategy;
+        try {
+            // sessions is created later, but the strategy queries it only when messages are published
+            sharedStrategy = SharedSubscriptionStrategies.fromName(sharedStrategyName,
+                clientId -> sessions.inflightOf(clientId));
+        } catch (IllegalArgumentException iaex) {
+            final String errMsg = String.format("Invalid property for %s found [%s] while only %s, %s or %s are admitted",
+                IConfig.SHARED_SUBSCRIPTION_STRATEGY, sharedStrategyName, SharedSubscriptionStrategies.ROUND_ROBIN,
+                SharedSubscriptionStrategies.STICKY, SharedSubscriptionStrategies.LEAST_INFLIGHT);
+            throw new RuntimeException(errMsg, iaex);
+        }
+        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory(matchCacheSize, sharedStrategy);
         subscriptions.init(subscriptionsRepository);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
 
@@ -253,9 +280,27 @@ public class Server {
         }
 
         final int sessionQueueSize = config.intProp(IConfig.SESSION_QUEUE_SIZE, 1024);
-        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize);
+        final int sessionLoops = config.intProp(IConfig.SESSION_LOOPS, Runtime.getRuntime().availableProcessors());
+        final String loopAffinity = config.getProperty(IConfig.SESSION_LOOP_AFFINITY, SessionLoopAffinities.MURMUR3);
+        final SessionEventLoopGroup loopsGroup;
+        try {
+            loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize, sessionLoops, loopAffinity);
+        } catch (IllegalArgumentException iaex) {
+            final String errMsg = String.format("Invalid session loops configuration, %s: %d, %s: %s while only %s, %s or %s are admitted",
+                IConfig.SESSION_LOOPS, sessionLoops, IConfig.SESSION_LOOP_AFFINITY, loopAffinity,
+                SessionLoopAffinities.MURMUR3, SessionLoopAffinities.CONSISTENT_HASH, SessionLoopAffinities.STRING_HASH);
+            throw new RuntimeException(errMsg, iaex);
+        }
+        final int inflightWindowSize = config.intProp(IConfig.INFLIGHT_WINDOW_SIZE, BrokerConstants.INFLIGHT_WINDOW_SIZE);
+        if (inflightWindowSize < 1 || inflightWindowSize > InflightWindow.UNLIMITED_RECEIVE_MAXIMUM) {
+            final String errMsg = String.format("%s must be in range [1..%d], was %d", IConfig.INFLIGHT_WINDOW_SIZE,
+                InflightWindow.UNLIMITED_RECEIVE_MAXIMUM, inflightWindowSize);
+            throw new RuntimeException(errMsg);
+        }
+        final boolean adaptiveInflightWindow = config.boolProp(IConfig.INFLIGHT_WINDOW_ADAPTIVE, false);
+        final QueueQuota queueQuota = parseQueueQuota(config);
         sessions = new SessionRegistry(subscriptions, sessionsRepository, queueRepository, authorizator, scheduler,
-            clock, globalSessionExpiry, loopsGroup);
+            clock, globalSessionExpiry, inflightWindowSize, adaptiveInflightWindow, queueQuota, loopsGroup);
         dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, sessionsRepository, interceptor,
             authorizator, loopsGroup, clock);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
@@ -286,8 +331,21 @@ public class Server {
             LOG.info("Configuring segmented queue store to {}", dataPath);
             final int pageSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_PAGE_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE);
             final int segmentSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_SEGMENT_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
+            final QueuePool.Durability durability = parseQueueDurability(config);
+            final int syncInterval = config.intProp(BrokerConstants.SEGMENTED_QUEUE_SYNC_INTERVAL,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SYNC_INTERVAL_MILLIS);
+            if (syncInterval <= 0) {
+                final String errMsg = String.format("Invalid property for %s found [%d] while only positive values are admitted",
+                    BrokerConstants.SEGMENTED_QUEUE_SYNC_INTERVAL, syncInterval);
+                throw new RuntimeException(errMsg);
+            }
+            final boolean smallQueueSlabs = config.boolProp(BrokerConstants.SEGMENTED_QUEUE_SMALL_SLABS,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SMALL_SLABS);
+            final boolean sharedTopicLog = config.boolProp(BrokerConstants.SEGMENTED_QUEUE_SHARED_TOPIC_LOG,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SHARED_TOPIC_LOG);
             try {
-                queueRepository = new SegmentQueueRepository(dataPath, pageSize, segmentSize);
+                queueRepository = new SegmentQueueRepository(dataPath, pageSize, segmentSize, durability, syncInterval,
+                    smallQueueSlabs, sharedTopicLog);
             } catch (QueueException e) {
                 throw new IOException("Problem in configuring persistent queue on path " + dataPath, e);
             }
@@ -295,9 +353,57 @@ public class Server {
             final String errMsg = String.format("Invalid property for %s found [%s] while only h2 or segmented are admitted", IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME, queueType);
             throw new RuntimeException(errMsg);
         }
+        final int memoryMessages = config.intProp(BrokerConstants.PERSISTENT_QUEUE_MEMORY_MESSAGES,
+            BrokerConstants.DEFAULT_PERSISTENT_QUEUE_MEMORY_MESSAGES);
+        if (memoryMessages > 0) {
+            final int memoryBytes = config.intProp(BrokerConstants.PERSISTENT_QUEUE_MEMORY_BYTES,
+                BrokerConstants.DEFAULT_PERSISTENT_QUEUE_MEMORY_BYTES);
+            LOG.info("Keeping up to {} messages and {} bytes of each queue in memory", memoryMessages, memoryBytes);
+            return new TieredQueueRepository(queueRepository, memoryMessages, memoryBytes);
+        }
         return queueRepository;
     }
 
+    private static QueueQuota parseQueueQuota(IConfig config) {
+        final int maxSessionMessages = config.intProp(IConfig.SESSION_QUEUE_MAX_MESSAGES, 0);
+        final long maxSessionBytes = config.longProp(IConfig.SESSION_QUEUE_MAX_BYTES, 0);
+        final long maxMessages = config.longProp(IConfig.QUEUES_MAX_MESSAGES, 0);
+        final long maxBytes = config.longProp(IConfig.QUEUES_MAX_BYTES, 0);
+        final String policyName = config.getProperty(IConfig.SESSION_QUEUE_OVERFLOW_POLICY, "drop_newest");
+        final QueueQuota.OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = QueueQuota.OverflowPolicy.fromName(policyName);
+        } catch (IllegalArgumentException iaex) {
+            final String errMsg = String.format("Invalid property for %s found [%s] while only drop_newest, drop_oldest or disconnect are admitted",
+                IConfig.SESSION_QUEUE_OVERFLOW_POLICY, policyName);
+            throw new RuntimeException(errMsg, iaex);
+        }
+        final QueueQuota queueQuota = new QueueQuota(maxSessionMessages, maxSessionBytes, maxMessages, maxBytes,
+            overflowPolicy);
+        if (queueQuota.isUnlimited()) {
+            return QueueQuota.UNLIMITED;
+        }
+        LOG.info("Limiting the session queues to {}", queueQuota);
+        return queueQuota;
+    }
+
+    private static QueuePool.Durability parseQueueDurability(IConfig config) {
+        final String durability = config.getProperty(BrokerConstants.SEGMENTED_QUEUE_DURABILITY,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_DURABILITY);
+        switch (durability.toLowerCase(Locale.ROOT)) {
+            case "none":
+                return QueuePool.Durability.NONE;
+            case "interval":
+                return QueuePool.Durability.INTERVAL;
+            case "group_commit":
+                return QueuePool.Durability.GROUP_COMMIT;
+            default:
+                final String errMsg = String.format("Invalid property for %s found [%s] while only none, interval or group_commit are admitted",
+                    BrokerConstants.SEGMENTED_QUEUE_DURABILITY, durability);
+                throw new RuntimeException(errMsg);
+        }
+    }
+
     private void collectAndSendTelemetryDataAsynch(IConfig config) {
         final Thread telCollector = new Thread(() -> collectAndSendTelemetryData(config));
         telCollector.start();
@@ -656,6 +762,33 @@ public class Server {
         }
         return sessions.listConnectedClients();
     }
+
+    /**
+     * Return the inflight window size and counters of the session of a client, empty if there isn't a session
+     * for the client.
+     * */
+    public Optional<InflightWindowStats> getInflightStats(final String clientId) {
+        if (!initialized) {
+            LOG.error("Moquette is not started, inflight stats unavailable");
+            throw new IllegalStateException("Can't get inflight stats from a Server that is not yet started");
+        }
+        return sessions.inflightStats(clientId);
+    }
+    /**
+     * Return the cache usage, commit latency and write behind counters of the H2 store, empty if the broker
+     * doesn't persist to H2.
+     * */
+    public Optional<H2WriteBehind.Stats> getH2StoreStats() {
+        if (!initialized) {
+            LOG.error("Moquette is not started, H2 store stats unavailable");
+            throw new IllegalStateException("Can't get H2 store stats from a Server that is not yet started");
+        }
+        if (h2Builder == null) {
+            return Optional.empty();
+        }
+        return Optional.of(h2Builder.storeStats());
+    }
+
     /**
      * Force the disconnection of a client, closing the related session.
      * @param clientId the name of the client to drop session.
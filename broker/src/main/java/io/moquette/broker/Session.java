@@ -29,19 +29,15 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
 
 class Session {
 
@@ -51,35 +47,6 @@ class Session {
     static final int INFINITE_EXPIRY = Integer.MAX_VALUE;
     private final boolean resendInflightOnTimeout;
 
-    static class InFlightPacket implements Delayed {
-
-        final int packetId;
-        private long startTime;
-
-        InFlightPacket(int packetId, long delayInMilliseconds) {
-            this.packetId = packetId;
-            this.startTime = System.currentTimeMillis() + delayInMilliseconds;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit) {
-            long diff = startTime - System.currentTimeMillis();
-            return unit.convert(diff, TimeUnit.MILLISECONDS);
-        }
-
-        @Override
-        public int compareTo(Delayed o) {
-            if ((this.startTime - ((InFlightPacket) o).startTime) == 0) {
-                return 0;
-            }
-            if ((this.startTime - ((InFlightPacket) o).startTime) > 0) {
-                return 1;
-            } else {
-                return -1;
-            }
-        }
-    }
-
     enum SessionStatus {
         CONNECTED, CONNECTING, DISCONNECTING, DISCONNECTED, DESTROYED
     }
@@ -89,14 +56,22 @@ class Session {
     private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
     private MQTTConnection mqttConnection;
     private final Set<Subscription> subscriptions = new HashSet<>();
-    private final Map<Integer, SessionRegistry.EnqueuedMessage> inflightWindow = new HashMap<>();
+    private final InflightTable<SessionRegistry.EnqueuedMessage> inflightWindow = new InflightTable<>();
     // used only in MQTT3 where resends are done on timeout of ACKs.
-    private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
+    private final InflightTimingWheel inflightTimer;
+    private BitSet expiredWhileDisconnected;
     private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
-    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE); // this should be configurable
+    private final InflightWindow inflightSlots;
     private ISessionsRepository.SessionData data;
 
+    // Used in testing, the resend timer is never advanced
     Session(ISessionsRepository.SessionData data, boolean clean, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue) {
+        this(data, clean, sessionQueue, new InflightWindow(INFLIGHT_WINDOW_SIZE, false),
+            new InflightTimingWheel(null, FLIGHT_BEFORE_RESEND_MS, TimeUnit.MILLISECONDS));
+    }
+
+    Session(ISessionsRepository.SessionData data, boolean clean, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue,
+            InflightWindow inflightSlots, InflightTimingWheel inflightTimer) {
         if (sessionQueue == null) {
             throw new IllegalArgumentException("sessionQueue parameter can't be null");
         }
@@ -106,6 +81,8 @@ class Session {
         // in MQTT3 cleanSession = true means  expiryInterval=0 else infinite
 //        expiryInterval = clean ? 0 : 0xFFFFFFFF;
         this.resendInflightOnTimeout = data.protocolVersion() != MqttVersion.MQTT_5;
+        this.inflightSlots = inflightSlots;
+        this.inflightTimer = inflightTimer;
     }
 
     public boolean expireImmediately() {
@@ -160,6 +137,28 @@ class Session {
         subscriptions.remove(new Subscription(data.clientId(), topic, MqttQoS.EXACTLY_ONCE));
     }
 
+    public void removeSharedSubscription(String shareName, Topic topicFilter) {
+        subscriptions.remove(new Subscription(data.clientId(), topicFilter, MqttQoS.EXACTLY_ONCE, shareName));
+    }
+
+    /**
+     * @return the number of messages sent and not yet acknowledged.
+     * */
+    int inflightCount() {
+        return inflightSlots.inflight();
+    }
+
+    /**
+     * Resize the inflight window to the Receive Maximum of a new connection, already capped by the broker's limit.
+     * */
+    void resizeInflightWindow(int maximum) {
+        inflightSlots.resize(maximum);
+    }
+
+    InflightWindowStats inflightStats() {
+        return inflightSlots.stats(data.clientId());
+    }
+
     public boolean hasWill() {
         return getSessionData().hasWill();
     }
@@ -197,24 +196,29 @@ class Session {
     }
 
     public void processPubRec(int pubRecPacketId) {
-        // Message discarded, make sure any buffers in it are released
-        SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(pubRecPacketId);
-        if (removed == null) {
+        final SessionRegistry.EnqueuedMessage received = inflightWindow.get(pubRecPacketId);
+        if (received == null) {
             LOG.warn("Received a PUBREC with not matching packetId");
             return;
         }
-        removed.release();
-        if (removed instanceof SessionRegistry.PubRelMarker) {
+        if (received instanceof SessionRegistry.PubRelMarker) {
+            inflightWindow.remove(pubRecPacketId);
             LOG.info("Received a PUBREC for packetId that was already moved in second step of Qos2");
             return;
         }
+        // Message discarded, make sure any buffers in it are released
+        received.release();
+        inflightSlots.acknowledged(pubRecPacketId);
 
         if (mqttConnection == null) {
+            inflightWindow.remove(pubRecPacketId);
+            inflightSlots.released();
             return;
         }
-        inflightWindow.put(pubRecPacketId, new SessionRegistry.PubRelMarker());
+        // keeps the packet id reserved until the PUBCOMP
+        inflightWindow.replace(pubRecPacketId, new SessionRegistry.PubRelMarker());
         if (resendInflightOnTimeout) {
-            inflightTimeouts.add(new InFlightPacket(pubRecPacketId, FLIGHT_BEFORE_RESEND_MS));
+            inflightTimer.schedule(this, pubRecPacketId);
         }
         MqttMessage pubRel = MQTTConnection.pubrel(pubRecPacketId);
         mqttConnection.sendIfWritableElseDrop(pubRel);
@@ -230,7 +234,7 @@ class Session {
             return;
         }
         removed.release();
-        inflightSlots.incrementAndGet();
+        inflightSlots.released();
         drainQueueToConnection();
 
         // TODO notify the interceptor
@@ -247,25 +251,42 @@ class Session {
         sendPublishOnSessionAtQos(topic, qos, payload, false);
     }
 
+    /**
+     * Send a message that is part of a fan-out, reusing the header encoded in the frame when written directly.
+     * */
+    void sendSharedPublishOnSessionAtQos(SharedPublishFrame frame, Topic topic, MqttQoS qos, ByteBuf payload) {
+        sendPublishOnSessionAtQos(topic, qos, payload, frame.isRetained(), frame);
+    }
+
     private void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+        sendPublishOnSessionAtQos(topic, qos, payload, retained, null);
+    }
+
+    private void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                           SharedPublishFrame frame) {
         switch (qos) {
             case AT_MOST_ONCE:
                 if (connected()) {
-                    mqttConnection.sendPublishQos0(topic, qos, payload, retained);
+                    if (frame != null) {
+                        mqttConnection.sendSharedPublishQos0(frame, payload);
+                    } else {
+                        mqttConnection.sendPublishQos0(topic, qos, payload, retained);
+                    }
                 }
                 break;
             case AT_LEAST_ONCE:
-                sendPublishQos1(topic, qos, payload, retained);
+                sendPublishQos1(topic, qos, payload, retained, frame);
                 break;
             case EXACTLY_ONCE:
-                sendPublishQos2(topic, qos, payload, retained);
+                sendPublishQos2(topic, qos, payload, retained, frame);
                 break;
             case FAILURE:
                 LOG.error("Not admissible");
         }
     }
 
-    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                 SharedPublishFrame frame) {
         if (!connected() && isClean()) {
             //pushing messages to disconnected not clean session
             return;
@@ -273,79 +294,111 @@ class Session {
 
         final MQTTConnection localMqttConnectionRef = mqttConnection;
         if (canSkipQueue(localMqttConnectionRef)) {
-            inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
-
-            // Adding to a map, retain.
+            // Adding to the inflight table, retain.
             payload.retain();
-            EnqueuedMessage old = inflightWindow.put(packetId, new PublishedMessage(topic, qos, payload, retained));
-            // If there already was something, release it.
-            if (old != null) {
-                old.release();
-                inflightSlots.incrementAndGet();
-            }
+            final int packetId = inflightWindow.add(new PublishedMessage(topic, qos, payload, retained));
+            inflightSlots.sent(packetId);
             if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+                inflightTimer.schedule(this, packetId);
             }
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
-                                                                                           payload, packetId);
+            MqttPublishMessage publishMsg = directPublishMessage(localMqttConnectionRef, frame, topic, qos, payload,
+                                                                 packetId);
             localMqttConnectionRef.sendPublish(publishMsg);
-            LOG.debug("Write direct to the peer, inflight slots: {}", inflightSlots.get());
-            if (inflightSlots.get() == 0) {
+            LOG.debug("Write direct to the peer, inflight window: {}", inflightSlots);
+            if (!inflightSlots.hasSlots()) {
                 localMqttConnectionRef.flush();
             }
 
             // TODO drainQueueToConnection();?
         } else {
-            final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload, retained);
+            final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload,
+                retained, frame);
             // Adding to a queue, retain.
             msg.retain();
-            sessionQueue.enqueue(msg);
+            enqueue(msg);
             LOG.debug("Enqueue to peer session");
         }
     }
 
-    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                 SharedPublishFrame frame) {
         final MQTTConnection localMqttConnectionRef = mqttConnection;
         if (canSkipQueue(localMqttConnectionRef)) {
-            inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
-
-            // Retain before adding to map
+            // Retain before adding to the inflight table
             payload.retain();
-            EnqueuedMessage old = inflightWindow.put(packetId, new SessionRegistry.PublishedMessage(topic, qos, payload, retained));
-            // If there already was something, release it.
-            if (old != null) {
-                old.release();
-                inflightSlots.incrementAndGet();
-            }
+            final int packetId = inflightWindow.add(new SessionRegistry.PublishedMessage(topic, qos, payload, retained));
+            inflightSlots.sent(packetId);
             if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+                inflightTimer.schedule(this, packetId);
             }
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
-                                                                                           payload, packetId);
+            MqttPublishMessage publishMsg = directPublishMessage(localMqttConnectionRef, frame, topic, qos, payload,
+                                                                 packetId);
             localMqttConnectionRef.sendPublish(publishMsg);
 
             drainQueueToConnection();
         } else {
-            final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload, retained);
+            final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(topic, qos, payload,
+                retained, frame);
             // Adding to a queue, retain.
             msg.retain();
+            enqueue(msg);
+        }
+    }
+
+    /**
+     * On a session loop the queue is flushed once at the end of the loop's batch of commands, so that all the
+     * messages enqueued to this session by the batch are stored together.
+     * */
+    private void enqueue(SessionRegistry.EnqueuedMessage msg) {
+        try {
             sessionQueue.enqueue(msg);
+        } catch (QueueQuotaExceededException qqex) {
+            LOG.warn("Dropped a message of {}, disconnecting it: {}", getClientID(), qqex.getMessage());
+            disconnectOnQuotaExceeded();
+            return;
+        }
+        final Thread current = Thread.currentThread();
+        if (current instanceof SessionEventLoop) {
+            ((SessionEventLoop) current).flushAfterBatch(sessionQueue);
+        } else {
+            sessionQueue.flush();
+        }
+    }
+
+    /**
+     * Close the connection, the session is cleaned as for a connection lost. MQTT5 clients are told the reason.
+     * */
+    private void disconnectOnQuotaExceeded() {
+        final MQTTConnection localMqttConnectionRef = mqttConnection;
+        if (localMqttConnectionRef == null || !connected()) {
+            return;
+        }
+        if (localMqttConnectionRef.isProtocolVersion5()) {
+            localMqttConnectionRef.brokerDisconnect(MqttReasonCodes.Disconnect.QUOTA_EXCEEDED);
+        } else {
+            localMqttConnectionRef.dropConnection();
         }
     }
 
+    private static MqttPublishMessage directPublishMessage(MQTTConnection connection, SharedPublishFrame frame,
+                                                           Topic topic, MqttQoS qos, ByteBuf payload, int packetId) {
+        if (frame == null) {
+            return MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos, payload, packetId);
+        }
+        return new SharedPublishMessage(frame, qos, packetId, payload, connection.isProtocolVersion5());
+    }
+
     private boolean canSkipQueue(MQTTConnection localMqttConnectionRef) {
         return localMqttConnectionRef != null &&
             sessionQueue.isEmpty() &&
-            inflightSlots.get() > 0 &&
+            inflightSlots.hasSlots() &&
             connected() &&
             localMqttConnectionRef.channel.isWritable();
     }
 
     private boolean inflightHasSlotsAndConnectionIsUp() {
-        return inflightSlots.get() > 0 &&
+        return inflightSlots.hasSlots() &&
             connected() &&
             mqttConnection.channel.isWritable();
     }
@@ -359,7 +412,8 @@ class Session {
         }
         removed.release();
 
-        inflightSlots.incrementAndGet();
+        inflightSlots.acknowledged(ackPacketId);
+        inflightSlots.released();
         drainQueueToConnection();
     }
 
@@ -368,56 +422,83 @@ class Session {
     }
 
     public void resendInflightNotAcked() {
-        Collection<Integer> nonAckPacketIds;
+        final int[] nonAckPacketIds;
         if (resendInflightOnTimeout) {
-            // MQTT3 behavior, resend on timeout
-            Collection<InFlightPacket> expired = new ArrayList<>(INFLIGHT_WINDOW_SIZE);
-            inflightTimeouts.drainTo(expired);
-            nonAckPacketIds = expired.stream().map(p -> p.packetId).collect(Collectors.toList());
+            // MQTT3 behavior, resend on timeout, the ones expired while disconnected and the ones expired now
+            inflightTimer.expire(System.nanoTime());
+            if (expiredWhileDisconnected == null) {
+                return;
+            }
+            nonAckPacketIds = expiredWhileDisconnected.stream().toArray();
+            expiredWhileDisconnected = null;
         } else {
             // MQTT5 behavior resend only not acked present in reopened session.
-            nonAckPacketIds = inflightWindow.keySet();
+            nonAckPacketIds = inflightWindow.packetIds();
         }
 
         debugLogPacketIds(nonAckPacketIds);
 
-        for (Integer notAckPacketId : nonAckPacketIds) {
+        for (int notAckPacketId : nonAckPacketIds) {
             final SessionRegistry.EnqueuedMessage msg = inflightWindow.get(notAckPacketId);
             if (msg == null) {
                 // Already acked...
                 continue;
             }
-            if (msg instanceof SessionRegistry.PubRelMarker) {
-                MqttMessage pubRel = MQTTConnection.pubrel(notAckPacketId);
-                if (resendInflightOnTimeout) {
-                    inflightTimeouts.add(new InFlightPacket(notAckPacketId, FLIGHT_BEFORE_RESEND_MS));
-                }
-                mqttConnection.sendIfWritableElseDrop(pubRel);
-            } else {
-                final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
-                final Topic topic = pubMsg.topic;
-                final MqttQoS qos = pubMsg.publishingQos;
-                final ByteBuf payload = pubMsg.payload;
-                // message fetched from map, but not removed from map. No need to duplicate or release.
-                MqttPublishMessage publishMsg = publishNotRetainedDuplicated(notAckPacketId, topic, qos, payload);
-                if (resendInflightOnTimeout) {
-                    inflightTimeouts.add(new InFlightPacket(notAckPacketId, FLIGHT_BEFORE_RESEND_MS));
-                }
-                mqttConnection.sendPublish(publishMsg);
+            resendInflight(notAckPacketId, msg);
+        }
+    }
+
+    /**
+     * Resend the messages whose acknowledgement timed out, invoked by the {@link InflightTimingWheel} in MQTT3.
+     * */
+    void resendExpiredInflight(int[] packetIds, int from, int to) {
+        if (!connected()) {
+            // resent when the session is reopened
+            if (expiredWhileDisconnected == null) {
+                expiredWhileDisconnected = new BitSet();
+            }
+            for (int i = from; i < to; i++) {
+                expiredWhileDisconnected.set(packetIds[i]);
+            }
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            final SessionRegistry.EnqueuedMessage msg = inflightWindow.get(packetIds[i]);
+            if (msg == null) {
+                // Already acked...
+                continue;
             }
+            resendInflight(packetIds[i], msg);
         }
     }
 
-    private void debugLogPacketIds(Collection<Integer> packetIds) {
-        if (!LOG.isDebugEnabled() || packetIds.isEmpty()) {
+    private void resendInflight(int packetId, SessionRegistry.EnqueuedMessage msg) {
+        if (resendInflightOnTimeout) {
+            inflightTimer.schedule(this, packetId);
+        }
+        if (msg instanceof SessionRegistry.PubRelMarker) {
+            MqttMessage pubRel = MQTTConnection.pubrel(packetId);
+            mqttConnection.sendIfWritableElseDrop(pubRel);
+        } else {
+            final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
+            // message fetched from map, but not removed from map. No need to duplicate or release.
+            MqttPublishMessage publishMsg = publishNotRetainedDuplicated(packetId, pubMsg.getTopic(),
+                pubMsg.getPublishingQos(), pubMsg.getPayload());
+            inflightSlots.resent(packetId);
+            mqttConnection.sendPublish(publishMsg);
+        }
+    }
+
+    private void debugLogPacketIds(int[] packetIds) {
+        if (!LOG.isDebugEnabled() || packetIds.length == 0) {
             return;
         }
 
         StringBuilder sb = new StringBuilder();
-        for (Integer packetId : packetIds) {
+        for (int packetId : packetIds) {
             sb.append(packetId).append(", ");
         }
-        LOG.debug("Resending {} in flight packets [{}]", packetIds.size(), sb);
+        LOG.debug("Resending {} in flight packets [{}]", packetIds.length, sb);
     }
 
     private MqttPublishMessage publishNotRetainedDuplicated(int packetId, Topic topic, MqttQoS qos,
@@ -435,24 +516,23 @@ class Session {
                 // Our message was already fetched by another Thread.
                 return;
             }
-            inflightSlots.decrementAndGet();
-            int sendPacketId = mqttConnection.nextPacketId();
-
-            // Putting it in a map, but the retain is cancelled out by the below release.
-            EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
-            if (old != null) {
-                old.release();
-                inflightSlots.incrementAndGet();
-            }
+            // Putting it in the inflight table, but the retain is cancelled out by the below release.
+            final int sendPacketId = inflightWindow.add(msg);
+            inflightSlots.sent(sendPacketId);
             if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
+                inflightTimer.schedule(this, sendPacketId);
+            }
+            if (msg instanceof EncodedPublishedMessage) {
+                // read from a persistent queue already in wire format
+                mqttConnection.sendEncodedPublish((EncodedPublishedMessage) msg, sendPacketId);
+            } else {
+                final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
+                MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
+                    msgPub.getTopic().toString(),
+                    msgPub.getPublishingQos(),
+                    msgPub.getPayload(), sendPacketId);
+                mqttConnection.sendPublish(publishMsg);
             }
-            final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
-                msgPub.topic.toString(),
-                msgPub.publishingQos,
-                msgPub.payload, sendPacketId);
-            mqttConnection.sendPublish(publishMsg);
 
             // we fetched msg from a map, but the release is cancelled out by the above retain
         }
@@ -498,9 +578,7 @@ class Session {
         // in case of in memory session queues all contained messages
         // has to be released.
         sessionQueue.closeAndPurge();
-        for (EnqueuedMessage msg : inflightWindow.values()) {
-            msg.release();
-        }
+        inflightWindow.forEachValue(EnqueuedMessage::release);
         for (MqttPublishMessage msg : qos2Receiving.values()) {
             msg.release();
         }
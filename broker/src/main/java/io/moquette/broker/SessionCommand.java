@@ -3,7 +3,7 @@ package io.moquette.broker;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 
-final class SessionCommand {
+final class SessionCommand implements Runnable {
 
     private final String sessionId;
     private final Callable<String> action;
@@ -30,4 +30,15 @@ final class SessionCommand {
     public CompletableFuture<String> completableFuture() {
         return task;
     }
+
+    @Override
+    public void run() {
+        try {
+            execute();
+        } catch (Exception ex) {
+            task.completeExceptionally(ex);
+            throw new RuntimeException(ex);
+        }
+        complete();
+    }
 }
@@ -1,56 +1,178 @@
 package io.moquette.broker;
 
+import io.netty.util.internal.PlatformDependent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.FutureTask;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import static io.moquette.BrokerConstants.FLIGHT_BEFORE_RESEND_MS;
+
+/**
+ * Single consumer of the commands routed to the sessions it owns.
+ *
+ * The commands are kept in a bounded lock-free multi producer single consumer ring, drained in batches.
+ * When the ring is empty the loop backs off progressively: it spins, then yields and finally parks, and a
+ * producer unparks it only if it's sleeping, so a busy loop never pays the cost of a wake-up signal.
+ * After each batch the loop flushes the session queues the batch enqueued messages to, so that a persistent queue
+ * stores them together, and advances the {@link InflightTimingWheel} of its sessions' MQTT3 retransmissions.
+ * */
 final class SessionEventLoop extends Thread {
 
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoop.class);
 
-    private final BlockingQueue<FutureTask<String>> sessionQueue;
+    static final int DRAIN_BATCH_SIZE = 256;
+    private static final int IDLE_SPINS = 100;
+    private static final int IDLE_YIELDS = 10;
+    // upper bound to the sleep, it's a safety net, producers wake up the loop as soon as they offer a command
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Queue<Runnable> sessionQueue;
     private final boolean flushOnExit;
+    private volatile boolean sleeping;
+    // written only by the loop thread
+    private volatile long executedCommands;
+    private final AtomicLong rejectedCommands = new AtomicLong();
+    private final InflightTimingWheel inflightTimer;
+    // queues that received messages from the commands of the current batch, flushed at its end
+    private final Set<SessionMessageQueue<?>> queuesToFlush = Collections.newSetFromMap(new IdentityHashMap<>());
 
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> sessionQueue) {
-        this(sessionQueue, true);
+    public SessionEventLoop(int queueCapacity) {
+        this(queueCapacity, true);
     }
 
     /**
+     * @param queueCapacity the minimum number of commands that could be pending, rounded up to a power of 2.
      * @param flushOnExit consume the commands queue before exit.
      * */
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> sessionQueue, boolean flushOnExit) {
-        this.sessionQueue = sessionQueue;
+    public SessionEventLoop(int queueCapacity, boolean flushOnExit) {
+        this.sessionQueue = PlatformDependent.newFixedMpscQueue(queueCapacity);
         this.flushOnExit = flushOnExit;
+        this.inflightTimer = new InflightTimingWheel(this, FLIGHT_BEFORE_RESEND_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enqueue a command, could be invoked concurrently by any thread.
+     *
+     * @return false if the commands queue is full.
+     * */
+    boolean offer(Runnable task) {
+        if (!sessionQueue.offer(task)) {
+            rejectedCommands.incrementAndGet();
+            return false;
+        }
+        // the offer publishes the task before the read of the flag, while the loop raises the flag before checking
+        // the queue emptiness, so at least one of the two sides sees the other.
+        if (sleeping) {
+            LockSupport.unpark(this);
+        }
+        return true;
     }
 
     @Override
     public void run() {
-        while (!Thread.interrupted() || (Thread.interrupted() && !sessionQueue.isEmpty() && flushOnExit)) {
-            try {
-                // blocking call
-                final FutureTask<String> task = this.sessionQueue.take();
-                executeTask(task);
-            } catch (InterruptedException e) {
-                LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
-                Thread.currentThread().interrupt();
+        int idleCounter = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            int executed = drain(DRAIN_BATCH_SIZE);
+            flushQueues();
+            executed += inflightTimer.expire(System.nanoTime());
+            if (executed > 0) {
+                idleCounter = 0;
+            } else {
+                idleCounter = idle(idleCounter);
+            }
+        }
+        LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
+        if (flushOnExit) {
+            while (drain(DRAIN_BATCH_SIZE) > 0) {
+                // consume all the pending commands
             }
         }
+        flushQueues();
         LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
     }
 
-    public static void executeTask(final FutureTask<String> task) {
-        if (!task.isCancelled()) {
-            try {
-                task.run();
+    private int drain(int limit) {
+        int executed = 0;
+        Runnable task;
+        while (executed < limit && (task = sessionQueue.poll()) != null) {
+            executeTask(task);
+            executed++;
+        }
+        if (executed > 0) {
+            executedCommands += executed;
+        }
+        return executed;
+    }
 
-                // we ran it, but we have to grab the exception if raised
-                task.get();
+    /**
+     * Flush the queue after the batch of commands in execution, must be invoked by the loop thread.
+     * */
+    void flushAfterBatch(SessionMessageQueue<?> queue) {
+        queuesToFlush.add(queue);
+    }
+
+    private void flushQueues() {
+        if (queuesToFlush.isEmpty()) {
+            return;
+        }
+        for (SessionMessageQueue<?> queue : queuesToFlush) {
+            try {
+                queue.flush();
             } catch (Throwable th) {
-                LOG.warn("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
-                throw new RuntimeException(th);
+                LOG.warn("SessionEventLoop {} reached exception flushing a session queue", getName(), th);
             }
         }
+        queuesToFlush.clear();
+    }
+
+    private int idle(int idleCounter) {
+        if (idleCounter < IDLE_SPINS) {
+            return idleCounter + 1;
+        }
+        if (idleCounter < IDLE_SPINS + IDLE_YIELDS) {
+            Thread.yield();
+            return idleCounter + 1;
+        }
+        sleeping = true;
+        if (sessionQueue.isEmpty()) {
+            LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        }
+        sleeping = false;
+        return idleCounter;
+    }
+
+    /**
+     * @return the retransmission timer of the sessions owned by this loop.
+     * */
+    InflightTimingWheel inflightTimer() {
+        return inflightTimer;
+    }
+
+    long executedCommands() {
+        return executedCommands;
+    }
+
+    long rejectedCommands() {
+        return rejectedCommands.get();
+    }
+
+    int pendingCommands() {
+        return sessionQueue.size();
+    }
+
+    public static void executeTask(final Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable th) {
+            LOG.warn("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
+            throw new RuntimeException(th);
+        }
     }
 }
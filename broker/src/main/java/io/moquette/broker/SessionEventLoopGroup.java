@@ -6,29 +6,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.FutureTask;
 
 class SessionEventLoopGroup {
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoopGroup.class);
 
     private final SessionEventLoop[] sessionExecutors;
-    private final BlockingQueue<FutureTask<String>>[] sessionQueues;
-    private final int eventLoops = Runtime.getRuntime().availableProcessors();
+    private final int eventLoops;
+    private final SessionLoopAffinity affinity;
     private final ConcurrentMap<String, Throwable> loopThrownExceptions = new ConcurrentHashMap<>();
 
     SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize) {
-        this.sessionQueues = new BlockingQueue[eventLoops];
-        for (int i = 0; i < eventLoops; i++) {
-            this.sessionQueues[i] = new ArrayBlockingQueue<>(sessionQueueSize);
-        }
+        this(interceptor, sessionQueueSize, Runtime.getRuntime().availableProcessors(),
+            SessionLoopAffinities.MURMUR3);
+    }
+
+    /**
+     * @param eventLoops number of session loops.
+     * @param affinityName how the sessions are assigned to the loops, one of the names accepted by
+     *                     {@link SessionLoopAffinities#fromName(String, int)}.
+     * */
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int eventLoops, String affinityName) {
+        this(interceptor, sessionQueueSize, eventLoops, SessionLoopAffinities.fromName(affinityName, eventLoops));
+    }
+
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int eventLoops,
+                          SessionLoopAffinity affinity) {
+        this.eventLoops = eventLoops;
+        this.affinity = affinity;
         this.sessionExecutors = new SessionEventLoop[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
-            SessionEventLoop newLoop = new SessionEventLoop(this.sessionQueues[i]);
+            SessionEventLoop newLoop = new SessionEventLoop(sessionQueueSize);
             newLoop.setName(sessionLoopName(i));
             newLoop.setUncaughtExceptionHandler((loopThread, ex) -> {
                 // executed in session loop thread
@@ -44,7 +54,7 @@ class SessionEventLoopGroup {
     }
 
     int targetQueueOrdinal(String clientId) {
-        return Math.abs(clientId.hashCode()) % this.eventLoops;
+        return affinity.loopFor(clientId);
     }
 
     private String sessionLoopName(int i) {
@@ -69,16 +79,11 @@ class SessionEventLoopGroup {
 
         final int targetQueueId = targetQueueOrdinal(cmd.getSessionId());
         LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, cmd.getSessionId(), targetQueueId);
-        final FutureTask<String> task = new FutureTask<>(() -> {
-            cmd.execute();
-            cmd.complete();
-            return cmd.getSessionId();
-        });
         if (Thread.currentThread() == sessionExecutors[targetQueueId]) {
-            SessionEventLoop.executeTask(task);
+            SessionEventLoop.executeTask(cmd);
             return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
         }
-        if (this.sessionQueues[targetQueueId].offer(task)) {
+        if (sessionExecutors[targetQueueId].offer(cmd)) {
             return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
         } else {
             LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
@@ -86,6 +91,41 @@ class SessionEventLoopGroup {
         }
     }
 
+    /**
+     * Route to the owning SessionEventLoop a command which completion is not awaited, without allocating any
+     * future, the action should be a non capturing lambda that receives its state as arguments.
+     *
+     * @return false if the command can't be queued.
+     */
+    <A, B, C> boolean routeFireAndForget(String clientId, String actionDescription,
+                                      PooledSessionCommand.Action<A, B, C> action, A first, B second, C third) {
+        if (clientId == null) {
+            LOG.warn("Routing collision for action [{}]", actionDescription);
+            return false;
+        }
+
+        final int targetQueueId = targetQueueOrdinal(clientId);
+        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, clientId, targetQueueId);
+        final PooledSessionCommand cmd = PooledSessionCommand.newInstance(action, first, second, third);
+        if (Thread.currentThread() == sessionExecutors[targetQueueId]) {
+            SessionEventLoop.executeTask(cmd);
+            return true;
+        }
+        if (sessionExecutors[targetQueueId].offer(cmd)) {
+            return true;
+        }
+        cmd.recycle();
+        LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
+        return false;
+    }
+
+    /**
+     * @return the retransmission timer of the loop owning the client's session.
+     * */
+    InflightTimingWheel inflightTimer(String clientId) {
+        return sessionExecutors[targetQueueOrdinal(clientId)].inflightTimer();
+    }
+
     public void terminate() {
         for (SessionEventLoop processor : sessionExecutors) {
             processor.interrupt();
@@ -98,6 +138,13 @@ class SessionEventLoopGroup {
             }
         }
 
+        if (LOG.isInfoEnabled()) {
+            for (int i = 0; i < eventLoops; i++) {
+                LOG.info("Session event loop {} executed {} commands, rejected {}", i,
+                    sessionExecutors[i].executedCommands(), sessionExecutors[i].rejectedCommands());
+            }
+        }
+
         for (Map.Entry<String, Throwable> loopThrownExceptionEntry : loopThrownExceptions.entrySet()) {
             String threadName = loopThrownExceptionEntry.getKey();
             Throwable threadError = loopThrownExceptionEntry.getValue();
@@ -108,4 +155,22 @@ class SessionEventLoopGroup {
     public int getEventLoopCount() {
         return eventLoops;
     }
+
+    /**
+     * @return number of commands executed so far by the loop, to measure how the load spreads among the loops.
+     * */
+    long executedCommands(int loop) {
+        return sessionExecutors[loop].executedCommands();
+    }
+
+    /**
+     * @return number of commands refused because the loop's queue was full.
+     * */
+    long rejectedCommands(int loop) {
+        return sessionExecutors[loop].rejectedCommands();
+    }
+
+    int pendingCommands(int loop) {
+        return sessionExecutors[loop].pendingCommands();
+    }
 }
@@ -0,0 +1,108 @@
+package io.moquette.broker;
+
+import java.util.Arrays;
+
+/**
+ * The {@link SessionLoopAffinity} implementations provided by the broker.
+ * */
+final class SessionLoopAffinities {
+
+    static final String STRING_HASH = "string_hash";
+    static final String MURMUR3 = "murmur3";
+    static final String CONSISTENT_HASH = "consistent_hash";
+
+    private SessionLoopAffinities() {
+    }
+
+    /**
+     * @param name one of {@value #STRING_HASH}, {@value #MURMUR3} or {@value #CONSISTENT_HASH}.
+     * @param loops number of session loops to spread the sessions on.
+     * */
+    static SessionLoopAffinity fromName(String name, int loops) {
+        if (loops <= 0) {
+            throw new IllegalArgumentException("Session loops must be positive, found " + loops);
+        }
+        switch (name) {
+            case STRING_HASH:
+                return clientId -> Math.floorMod(clientId.hashCode(), loops);
+            case MURMUR3:
+                return clientId -> Math.floorMod(murmur3(clientId), loops);
+            case CONSISTENT_HASH:
+                return new ConsistentHash(loops, ConsistentHash.DEFAULT_VIRTUAL_NODES);
+            default:
+                throw new IllegalArgumentException("Unknown session loop affinity: " + name);
+        }
+    }
+
+    /**
+     * MurmurHash3 x86 32 bits, seed 0, of the UTF-16 code units of the string, two of them per block. Unlike
+     * {@link String#hashCode()} every char affects all the bits, so client ids differing only in the suffix, like
+     * sensor-0001 and sensor-0002, are spread evenly regardless of the number of loops.
+     * */
+    static int murmur3(CharSequence s) {
+        final int length = s.length();
+        int h = 0;
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            h ^= mixK(s.charAt(i) | (s.charAt(i + 1) << 16));
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+        if (i < length) {
+            h ^= mixK(s.charAt(i));
+        }
+        h ^= 2 * length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixK(int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1b873593;
+    }
+
+    /**
+     * Ring of hashes where each loop owns a number of virtual nodes; a client belongs to the loop of the first node
+     * following its hash. Changing the number of loops moves only the sessions of the nodes added or removed.
+     * */
+    static final class ConsistentHash implements SessionLoopAffinity {
+
+        static final int DEFAULT_VIRTUAL_NODES = 128;
+
+        private final int[] points;
+        private final int[] owners;
+
+        ConsistentHash(int loops, int virtualNodes) {
+            final long[] ring = new long[loops * virtualNodes];
+            int idx = 0;
+            for (int loop = 0; loop < loops; loop++) {
+                for (int node = 0; node < virtualNodes; node++) {
+                    final int point = murmur3("session-loop-" + loop + "#" + node);
+                    // hash in the high bits to sort by it, the owner loop in the low ones
+                    ring[idx++] = ((long) point << 32) | loop;
+                }
+            }
+            Arrays.sort(ring);
+            points = new int[ring.length];
+            owners = new int[ring.length];
+            for (int i = 0; i < ring.length; i++) {
+                points[i] = (int) (ring[i] >> 32);
+                owners[i] = (int) ring[i];
+            }
+        }
+
+        @Override
+        public int loopFor(String clientId) {
+            int pos = Arrays.binarySearch(points, murmur3(clientId));
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            return owners[pos == points.length ? 0 : pos];
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package io.moquette.broker;
+
+/**
+ * Assigns each session, by its client id, to the event loop that processes all its commands.
+ * Implementations must be pure functions of the client id, because every command of a session has to land on
+ * the same loop.
+ *
+ * @see SessionLoopAffinities
+ * */
+@FunctionalInterface
+interface SessionLoopAffinity {
+
+    /**
+     * @return the index, in [0, number of loops), of the loop that owns the session.
+     * */
+    int loopFor(String clientId);
+}
@@ -16,6 +16,13 @@ public interface SessionMessageQueue<T> {
 
     boolean isEmpty();
 
+    /**
+     * Store the messages enqueued since the last flush, for the implementations that write them in batches.
+     * Messages not yet flushed are already seen by {@link #dequeue()} and {@link #isEmpty()}.
+     * */
+    default void flush() {
+    }
+
     /**
      * Executes cleanup code to release the queue.
      * A closed queue will not accept new items and will be removed from the repository.
@@ -15,6 +15,7 @@
  */
 package io.moquette.broker;
 
+import io.moquette.BrokerConstants;
 import io.moquette.broker.Session.SessionStatus;
 import io.moquette.broker.scheduler.ScheduledExpirationService;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
@@ -33,9 +34,12 @@ import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static io.moquette.broker.Session.INFINITE_EXPIRY;
@@ -43,7 +47,10 @@ import static io.moquette.broker.Session.INFINITE_EXPIRY;
 public class SessionRegistry {
 
     private int globalExpirySeconds;
+    private final int inflightWindowSize;
+    private final boolean adaptiveInflightWindow;
     private final SessionEventLoopGroup loopsGroup;
+    private final QueueQuota queueQuota;
     static final Duration EXPIRED_SESSION_CLEANER_TASK_INTERVAL = Duration.ofSeconds(1);
     private ScheduledExpirationService<ISessionsRepository.SessionData> sessionExpirationService;
 
@@ -62,6 +69,13 @@ public class SessionRegistry {
          */
         public void retain() {
         }
+
+        /**
+         * @return the bytes of payload held by the message, counted by the {@link QueueQuota}.
+         */
+        public int payloadSize() {
+            return 0;
+        }
     }
 
     public static class PublishedMessage extends EnqueuedMessage {
@@ -70,12 +84,20 @@ public class SessionRegistry {
         final MqttQoS publishingQos;
         final ByteBuf payload;
         final boolean retained;
+        // the fan-out delivering the message to many sessions, null when sent to a single one
+        private final SharedPublishFrame fanOut;
 
         public PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained) {
+            this(topic, publishingQos, payload, retained, null);
+        }
+
+        PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained,
+                         SharedPublishFrame fanOut) {
             this.topic = topic;
             this.publishingQos = publishingQos;
             this.payload = payload;
             this.retained = false;
+            this.fanOut = fanOut;
         }
 
         public Topic getTopic() {
@@ -90,6 +112,21 @@ public class SessionRegistry {
             return payload;
         }
 
+        /**
+         * Share a stored copy of the message among the queues of all the sessions reached by its fan-out: the first
+         * call creates it with store, the following ones get the same copy. The fan-out passes the copy to release
+         * once all its sessions are served, a queue keeping it longer has to take its own reference before
+         * returning.
+         *
+         * @return the shared copy, null when the message isn't part of a fan-out or store returned null.
+         * */
+        public <T> T fanOutCopy(Function<PublishedMessage, T> store, Consumer<T> release) {
+            if (fanOut == null) {
+                return null;
+            }
+            return fanOut.storedCopy(this, store, release);
+        }
+
         @Override
         public void release() {
             payload.release();
@@ -100,6 +137,10 @@ public class SessionRegistry {
             payload.retain();
         }
 
+        @Override
+        public int payloadSize() {
+            return payload.readableBytes();
+        }
     }
 
     public static final class PubRelMarker extends EnqueuedMessage {
@@ -148,6 +189,30 @@ public class SessionRegistry {
                     ScheduledExecutorService scheduler,
                     Clock clock, int globalExpirySeconds,
                     SessionEventLoopGroup loopsGroup) {
+        this(subscriptionsDirectory, sessionsRepository, queueRepository, authorizator, scheduler, clock,
+            globalExpirySeconds, BrokerConstants.INFLIGHT_WINDOW_SIZE, false, loopsGroup);
+    }
+
+    SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory,
+                    ISessionsRepository sessionsRepository,
+                    IQueueRepository queueRepository,
+                    Authorizator authorizator,
+                    ScheduledExecutorService scheduler,
+                    Clock clock, int globalExpirySeconds,
+                    int inflightWindowSize, boolean adaptiveInflightWindow,
+                    SessionEventLoopGroup loopsGroup) {
+        this(subscriptionsDirectory, sessionsRepository, queueRepository, authorizator, scheduler, clock,
+            globalExpirySeconds, inflightWindowSize, adaptiveInflightWindow, QueueQuota.UNLIMITED, loopsGroup);
+    }
+
+    SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory,
+                    ISessionsRepository sessionsRepository,
+                    IQueueRepository queueRepository,
+                    Authorizator authorizator,
+                    ScheduledExecutorService scheduler,
+                    Clock clock, int globalExpirySeconds,
+                    int inflightWindowSize, boolean adaptiveInflightWindow,
+                    QueueQuota queueQuota, SessionEventLoopGroup loopsGroup) {
         this.subscriptionsDirectory = subscriptionsDirectory;
         this.sessionsRepository = sessionsRepository;
         this.queueRepository = queueRepository;
@@ -155,7 +220,10 @@ public class SessionRegistry {
         sessionExpirationService = new ScheduledExpirationService<>(clock, this::removeExpiredSession);
         this.clock = clock;
         this.globalExpirySeconds = globalExpirySeconds;
+        this.inflightWindowSize = inflightWindowSize;
+        this.adaptiveInflightWindow = adaptiveInflightWindow;
         this.loopsGroup = loopsGroup;
+        this.queueQuota = queueQuota;
         recreateSessionPool();
     }
 
@@ -176,21 +244,61 @@ public class SessionRegistry {
     }
 
     private void recreateSessionPool() {
-        final Set<String> queues = queueRepository.listQueueNames();
+        // each loop recreates the sessions it owns, all the loops in parallel
+        final List<List<ISessionsRepository.SessionData>> sessionsByLoop = new ArrayList<>();
+        for (int i = 0; i < loopsGroup.getEventLoopCount(); i++) {
+            sessionsByLoop.add(new ArrayList<>());
+        }
         for (ISessionsRepository.SessionData session : sessionsRepository.list()) {
+            sessionsByLoop.get(loopsGroup.targetQueueOrdinal(session.clientId())).add(session);
+        }
+        final List<CompletableFuture<Void>> recreations = new ArrayList<>();
+        for (List<ISessionsRepository.SessionData> loopSessions : sessionsByLoop) {
+            if (loopSessions.isEmpty()) {
+                continue;
+            }
+            final CompletableFuture<Void> recreated = new CompletableFuture<>();
+            final PostOffice.RouteResult routed = loopsGroup.routeCommand(loopSessions.get(0).clientId(),
+                "recreate sessions", () -> {
+                    // a command that throws stops the loop
+                    try {
+                        recreateSessions(loopSessions);
+                        recreated.complete(null);
+                    } catch (RuntimeException ex) {
+                        recreated.completeExceptionally(ex);
+                    }
+                    return null;
+                });
+            if (!routed.isSuccess()) {
+                recreateSessions(loopSessions);
+                recreated.complete(null);
+            }
+            recreations.add(recreated);
+        }
+        CompletableFuture.allOf(recreations.toArray(new CompletableFuture[0])).join();
+
+        final List<String> unusedQueues = queueRepository.listQueueNames().stream()
+            .filter(queueName -> !pool.containsKey(queueName))
+            .collect(Collectors.toList());
+        if (!unusedQueues.isEmpty()) {
+            LOG.error("Recreating sessions left {} unused queues. This is probably a bug. Session IDs: {}", unusedQueues.size(), unusedQueues);
+        }
+    }
+
+    private void recreateSessions(List<ISessionsRepository.SessionData> sessions) {
+        for (ISessionsRepository.SessionData session : sessions) {
             // if the subscriptions are present is obviously false
             if (queueRepository.containsQueue(session.clientId())) {
-                final SessionMessageQueue<EnqueuedMessage> persistentQueue = queueRepository.getOrCreateQueue(session.clientId());
-                queues.remove(session.clientId());
-                Session rehydrated = new Session(session, false, persistentQueue);
+                final SessionMessageQueue<EnqueuedMessage> persistentQueue = limited(queueRepository.getOrCreateQueue(session.clientId()));
+                // the Receive Maximum of the client is known only when it connects again
+                Session rehydrated = new Session(session, false, persistentQueue,
+                    new InflightWindow(inflightWindowSize, adaptiveInflightWindow),
+                    loopsGroup.inflightTimer(session.clientId()));
                 pool.put(session.clientId(), rehydrated);
 
                 trackForRemovalOnExpiration(session);
             }
         }
-        if (!queues.isEmpty()) {
-            LOG.error("Recreating sessions left {} unused queues. This is probably a bug. Session IDs: {}", queues.size(), Arrays.toString(queues.toArray()));
-        }
     }
 
     SessionCreationResult createOrReopenSession(MqttConnectMessage msg, String clientId, String username) {
@@ -249,6 +357,7 @@ public class SessionRegistry {
             }
             oldSession.updateSessionData(newSessionData);
             oldSession.markAsNotClean();
+            oldSession.resizeInflightWindow(inflightWindowFor(msg));
 
             reactivateSubscriptions(oldSession, username);
 
@@ -265,10 +374,11 @@ public class SessionRegistry {
     private void reactivateSubscriptions(Session session, String username) {
         //verify if subscription still satisfy read ACL permissions
         for (Subscription existingSub : session.getSubscriptions()) {
-            final boolean topicReadable = authorizator.canRead(existingSub.getTopicFilter(), username,
+            // the read access is granted on the filter as subscribed, like in the SUBSCRIBE processing
+            final boolean topicReadable = authorizator.canRead(new Topic(existingSub.getSubscribedFilter()), username,
                 session.getClientID());
             if (!topicReadable) {
-                subscriptionsDirectory.removeSubscription(existingSub.getTopicFilter(), session.getClientID());
+                removeFromDirectory(existingSub, session.getClientID());
             }
             // TODO
 //            subscriptionsDirectory.reactivate(existingSub.getTopicFilter(), session.getClientID());
@@ -277,18 +387,34 @@ public class SessionRegistry {
 
     private void unsubscribe(Session session) {
         for (Subscription existingSub : session.getSubscriptions()) {
-            subscriptionsDirectory.removeSubscription(existingSub.getTopicFilter(), session.getClientID());
+            removeFromDirectory(existingSub, session.getClientID());
         }
     }
 
+    private void removeFromDirectory(Subscription subscription, String clientId) {
+        if (subscription.isShared()) {
+            subscriptionsDirectory.removeSharedSubscription(subscription.getShareName(),
+                subscription.getTopicFilter(), clientId);
+        } else {
+            subscriptionsDirectory.removeSubscription(subscription.getTopicFilter(), clientId);
+        }
+    }
+
+    private SessionMessageQueue<EnqueuedMessage> limited(SessionMessageQueue<EnqueuedMessage> queue) {
+        if (queue instanceof AbstractSessionMessageQueue) {
+            ((AbstractSessionMessageQueue<EnqueuedMessage>) queue).limitTo(queueQuota);
+        }
+        return queue;
+    }
+
     private Session createNewSession(MqttConnectMessage msg, String clientId) {
         final boolean clean = msg.variableHeader().isCleanSession();
         final Session newSession;
         final SessionMessageQueue<EnqueuedMessage> queue;
         if (!clean) {
-            queue = queueRepository.getOrCreateQueue(clientId);
+            queue = limited(queueRepository.getOrCreateQueue(clientId));
         } else {
-            queue = new InMemoryQueue();
+            queue = limited(new InMemoryQueue());
         }
         final int expiryInterval;
         final MqttVersion mqttVersion = Utils.versionFromConnect(msg);
@@ -316,12 +442,30 @@ public class SessionRegistry {
             sessionData = new ISessionsRepository.SessionData(clientId, mqttVersion, expiryInterval, clock);
         }
 
-        newSession = new Session(sessionData, clean, queue);
+        newSession = new Session(sessionData, clean, queue,
+            new InflightWindow(inflightWindowFor(msg), adaptiveInflightWindow), loopsGroup.inflightTimer(clientId));
         newSession.markConnecting();
         sessionsRepository.saveSession(sessionData);
         return newSession;
     }
 
+    /**
+     * @return the Receive Maximum requested by an MQTT5 client, limited by the broker's inflight window size.
+     * */
+    private int inflightWindowFor(MqttConnectMessage msg) {
+        if (Utils.versionFromConnect(msg) != MqttVersion.MQTT_5) {
+            return inflightWindowSize;
+        }
+        final MqttProperties.MqttProperty<Integer> receiveMaximumProperty =
+            (MqttProperties.MqttProperty<Integer>) msg.variableHeader().properties()
+                .getProperty(MqttProperties.MqttPropertyType.RECEIVE_MAXIMUM.value());
+        final int receiveMaximum = receiveMaximumProperty != null
+            ? receiveMaximumProperty.value()
+            : InflightWindow.UNLIMITED_RECEIVE_MAXIMUM;
+        // 0 is a protocol error that the decoder doesn't reject
+        return Math.max(1, Math.min(receiveMaximum, inflightWindowSize));
+    }
+
     private ISessionsRepository.Will createNewWill(MqttConnectMessage msg) {
         final byte[] willPayload = msg.payload().willMessageInBytes();
         final String willTopic = msg.payload().willTopic();
@@ -389,6 +533,18 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    /**
+     * @return the number of messages waiting the acknowledge of the client, or Integer.MAX_VALUE if it's not
+     * connected so that can't receive them now.
+     * */
+    int inflightOf(String clientID) {
+        final Session session = pool.get(clientID);
+        if (session == null || !session.connected()) {
+            return Integer.MAX_VALUE;
+        }
+        return session.inflightCount();
+    }
+
     void connectionClosed(Session session) {
         session.disconnect();
         if (session.expireImmediately()) {
@@ -466,6 +622,14 @@ public class SessionRegistry {
         return remoteAddressOpt.map(r -> new ClientDescriptor(clientID, r.getHostString(), r.getPort()));
     }
 
+    Optional<InflightWindowStats> inflightStats(String clientId) {
+        final Session session = pool.get(clientId);
+        if (session == null) {
+            return Optional.empty();
+        }
+        return Optional.of(session.inflightStats());
+    }
+
     /**
      * Close all resources related to session management
      */
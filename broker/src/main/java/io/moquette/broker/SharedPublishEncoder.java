@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.List;
+
+/**
+ * Writes a {@link SharedPublishMessage} using the header shared by the whole fan-out, with the packet id of the
+ * subscriber appended. Payloads up to {@value #COPY_THRESHOLD} bytes are copied after them in the same buffer,
+ * larger ones are attached without copy in a composite buffer. A {@link StoredPublishMessage} is written as its
+ * frame. Has to be placed in the pipeline between the broker's handlers and {@link MqttEncoder}, which encodes every
+ * other message.
+ * */
+@ChannelHandler.Sharable
+final class SharedPublishEncoder extends MessageToMessageEncoder<MqttPublishMessage> {
+
+    static final SharedPublishEncoder INSTANCE = new SharedPublishEncoder();
+
+    // below this size copying the payload is cheaper than the bookkeeping of a composite buffer
+    static final int COPY_THRESHOLD = 1024;
+
+    private SharedPublishEncoder() {
+    }
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) {
+        return msg instanceof SharedPublishMessage || msg instanceof StoredPublishMessage;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, MqttPublishMessage msg, List<Object> out) {
+        if (msg instanceof StoredPublishMessage) {
+            // released with the message by the encoder
+            out.add(((StoredPublishMessage) msg).wireFrame().retain());
+            return;
+        }
+        encodeShared(ctx, (SharedPublishMessage) msg, out);
+    }
+
+    private void encodeShared(ChannelHandlerContext ctx, SharedPublishMessage msg, List<Object> out) {
+        final MqttQoS qos = msg.fixedHeader().qosLevel();
+        final boolean mqtt5 = msg.isMqtt5();
+        final byte[] header = msg.frame().header(qos, mqtt5);
+        final int packetIdLength = SharedPublishFrame.packetIdLength(qos, mqtt5);
+        final ByteBuf payload = msg.payload();
+        final int payloadLength = payload.readableBytes();
+        final boolean copyPayload = payloadLength <= COPY_THRESHOLD;
+
+        final int bufferLength = header.length + packetIdLength + (copyPayload ? payloadLength : 0);
+        final ByteBuf buffer = ctx.alloc().buffer(bufferLength, bufferLength);
+        buffer.writeBytes(header);
+        if (packetIdLength > 0) {
+            buffer.writeShort(msg.variableHeader().packetId());
+            if (mqtt5) {
+                // empty properties
+                buffer.writeByte(0);
+            }
+        }
+        if (copyPayload) {
+            buffer.writeBytes(payload, payload.readerIndex(), payloadLength);
+            out.add(buffer);
+        } else {
+            out.add(ctx.alloc().compositeBuffer(2)
+                .addComponents(true, buffer, payload.retain()));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Wire encoding of a PUBLISH that is sent to many subscribers: the fixed header and the topic name are encoded
+ * once for each QoS and protocol version, and then shared by all the subscribers' writes, which only add their
+ * own packet id.
+ *
+ * The encoded headers are created on first use by any of the session loops delivering the message; a race
+ * between two loops produces two identical arrays, one of which is dropped.
+ *
+ * The frame also keeps the copy of the message stored once for the queues of all the offline subscribers, until the
+ * last batch of the fan-out is delivered.
+ * */
+final class SharedPublishFrame {
+
+    private static final int PUBLISH_TYPE = 0x30;
+
+    private final String topicName;
+    private final int payloadLength;
+    private final boolean retained;
+    private volatile byte[] topicBytes;
+    // indexed by QoS value, doubled for MQTT5
+    private final AtomicReferenceArray<byte[]> headers = new AtomicReferenceArray<>(6);
+    private final AtomicInteger pendingBatches;
+    // guarded by this
+    private boolean copyStored;
+    private Object storedCopy;
+    private Consumer<Object> storedCopyRelease;
+
+    SharedPublishFrame(Topic topic, ByteBuf payload, boolean retained) {
+        this(topic, payload, retained, 1);
+    }
+
+    /**
+     * @param batches the number of batches the fan-out is delivered in.
+     * */
+    SharedPublishFrame(Topic topic, ByteBuf payload, boolean retained, int batches) {
+        this.topicName = topic.toString();
+        this.payloadLength = payload.readableBytes();
+        this.retained = retained;
+        this.pendingBatches = new AtomicInteger(batches);
+    }
+
+    String topicName() {
+        return topicName;
+    }
+
+    boolean isRetained() {
+        return retained;
+    }
+
+    /**
+     * @return the bytes that precede the packet id: fixed header and topic name, followed for QoS 0 and MQTT5 by
+     * the empty properties.
+     * */
+    byte[] header(MqttQoS qos, boolean mqtt5) {
+        final int idx = qos.value() + (mqtt5 ? 3 : 0);
+        byte[] header = headers.get(idx);
+        if (header == null) {
+            header = encodeHeader(qos, mqtt5);
+            headers.set(idx, header);
+        }
+        return header;
+    }
+
+    /**
+     * @return the stored copy of the message, created by the first call with store.
+     * */
+    @SuppressWarnings("unchecked")
+    synchronized <T> T storedCopy(SessionRegistry.PublishedMessage message,
+                                  Function<SessionRegistry.PublishedMessage, T> store, Consumer<T> release) {
+        if (!copyStored) {
+            copyStored = true;
+            storedCopy = store.apply(message);
+            storedCopyRelease = (Consumer<Object>) release;
+        }
+        return (T) storedCopy;
+    }
+
+    /**
+     * Called when a batch of the fan-out was delivered, or failed to, releasing the stored copy after the last one.
+     * */
+    void batchDelivered() {
+        if (pendingBatches.decrementAndGet() > 0) {
+            return;
+        }
+        final Object copy;
+        final Consumer<Object> release;
+        synchronized (this) {
+            copy = storedCopy;
+            release = storedCopyRelease;
+            storedCopy = null;
+        }
+        if (copy != null) {
+            release.accept(copy);
+        }
+    }
+
+    /**
+     * @return the length of the bytes that follow the header and precede the payload.
+     * */
+    static int packetIdLength(MqttQoS qos, boolean mqtt5) {
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            return 0;
+        }
+        // packet id and, for MQTT5, the empty properties
+        return mqtt5 ? 3 : 2;
+    }
+
+    private byte[] encodeHeader(MqttQoS qos, boolean mqtt5) {
+        final byte[] topic = topicBytes();
+        final boolean trailingProperties = mqtt5 && qos == MqttQoS.AT_MOST_ONCE;
+        final int variableHeaderLength = 2 + topic.length + packetIdLength(qos, mqtt5) + (trailingProperties ? 1 : 0);
+        final int remainingLength = variableHeaderLength + payloadLength;
+
+        final byte[] header = new byte[1 + variableLengthSize(remainingLength) + 2 + topic.length +
+            (trailingProperties ? 1 : 0)];
+        int pos = 0;
+        header[pos++] = (byte) (PUBLISH_TYPE | (qos.value() << 1) | (retained ? 0x01 : 0));
+        int remaining = remainingLength;
+        do {
+            int digit = remaining % 128;
+            remaining /= 128;
+            if (remaining > 0) {
+                digit |= 0x80;
+            }
+            header[pos++] = (byte) digit;
+        } while (remaining > 0);
+        header[pos++] = (byte) (topic.length >> 8);
+        header[pos++] = (byte) topic.length;
+        System.arraycopy(topic, 0, header, pos, topic.length);
+        // with trailing properties the last byte stays 0, the empty properties length
+        return header;
+    }
+
+    private byte[] topicBytes() {
+        byte[] bytes = topicBytes;
+        if (bytes == null) {
+            bytes = topicName.getBytes(StandardCharsets.UTF_8);
+            topicBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private static int variableLengthSize(int value) {
+        int size = 0;
+        do {
+            value /= 128;
+            size++;
+        } while (value > 0);
+        return size;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * PUBLISH sent to one subscriber that refers to the {@link SharedPublishFrame} of the fan-out it's part of, so
+ * that {@link SharedPublishEncoder} writes it without encoding it again. For any other handler it's a plain
+ * {@link MqttPublishMessage}.
+ * */
+final class SharedPublishMessage extends MqttPublishMessage {
+
+    private final SharedPublishFrame frame;
+    private final boolean mqtt5;
+
+    SharedPublishMessage(SharedPublishFrame frame, MqttQoS qos, int packetId, ByteBuf payload, boolean mqtt5) {
+        this(frame, new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, frame.isRetained(), 0),
+            new MqttPublishVariableHeader(frame.topicName(), packetId), payload, mqtt5);
+    }
+
+    private SharedPublishMessage(SharedPublishFrame frame, MqttFixedHeader fixedHeader,
+                                 MqttPublishVariableHeader variableHeader, ByteBuf payload, boolean mqtt5) {
+        super(fixedHeader, variableHeader, payload);
+        this.frame = frame;
+        this.mqtt5 = mqtt5;
+    }
+
+    SharedPublishFrame frame() {
+        return frame;
+    }
+
+    boolean isMqtt5() {
+        return mqtt5;
+    }
+
+    @Override
+    public MqttPublishMessage replace(ByteBuf content) {
+        return new SharedPublishMessage(frame, fixedHeader(), variableHeader(), content, mqtt5);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttFixedHeader;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttPublishVariableHeader;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * PUBLISH read from a persistent queue, whose content is the whole frame already encoded by
+ * {@link EncodedPublishedMessage#wireFrame}, so that {@link SharedPublishEncoder} writes it as is. For any other
+ * handler it's a plain {@link MqttPublishMessage}, its payload is the tail of the frame.
+ * */
+final class StoredPublishMessage extends MqttPublishMessage {
+
+    private final int payloadLength;
+
+    StoredPublishMessage(ByteBuf wireFrame, MqttQoS qos, String topicName, int packetId, int payloadLength) {
+        this(new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, false, 0),
+            new MqttPublishVariableHeader(topicName, packetId), wireFrame, payloadLength);
+    }
+
+    private StoredPublishMessage(MqttFixedHeader fixedHeader, MqttPublishVariableHeader variableHeader,
+                                 ByteBuf wireFrame, int payloadLength) {
+        super(fixedHeader, variableHeader, wireFrame);
+        this.payloadLength = payloadLength;
+    }
+
+    ByteBuf wireFrame() {
+        return content();
+    }
+
+    @Override
+    public ByteBuf payload() {
+        final ByteBuf frame = content();
+        return frame.slice(frame.writerIndex() - payloadLength, payloadLength);
+    }
+
+    @Override
+    public MqttPublishMessage replace(ByteBuf content) {
+        return new StoredPublishMessage(fixedHeader(), variableHeader(), content, payloadLength);
+    }
+}
@@ -0,0 +1,136 @@
+package io.moquette.broker;
+
+import java.util.ArrayDeque;
+
+/**
+ * Session queue that keeps a short backlog in memory and moves to a persistent store when it grows.
+ *
+ * The messages stay in memory, holding their payload buffers, while they are at most the configured count and
+ * bytes. The enqueue that would exceed a limit spills the whole backlog to the store, so that its order is kept,
+ * and the following messages go to the store until a dequeue finds it drained. The store is created by the
+ * repository on the first spill, so a session that is disconnected briefly never writes to disk.
+ *
+ * The messages in memory are lost if the process crashes, they are written to the store when the repository closes.
+ * */
+public class TieredQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
+
+    private final TieredQueueRepository queueRepository;
+    private final String queueName;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ArrayDeque<SessionRegistry.EnqueuedMessage> head = new ArrayDeque<>();
+    private long headBytes;
+    // null until the first spill, unless the store already has the queue
+    private SessionMessageQueue<SessionRegistry.EnqueuedMessage> store;
+    // true while the messages are read from the store, also when it could be empty
+    private boolean spilled;
+
+    TieredQueue(TieredQueueRepository queueRepository, String queueName, int maxMessages, long maxBytes,
+                SessionMessageQueue<SessionRegistry.EnqueuedMessage> store) {
+        this.queueRepository = queueRepository;
+        this.queueName = queueName;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.store = store;
+        // a stored queue isn't opened to know if it's empty, the first dequeue finds it out
+        this.spilled = store != null;
+    }
+
+    @Override
+    public void enqueue(SessionRegistry.EnqueuedMessage message) {
+        checkEnqueuePreconditions(message);
+        if (!reserveQuota(message)) {
+            return;
+        }
+        if (!spilled) {
+            final int size = message.payloadSize();
+            if (head.size() < maxMessages && headBytes + size <= maxBytes) {
+                head.add(message);
+                headBytes += size;
+                return;
+            }
+            spill();
+        }
+        store.enqueue(message);
+    }
+
+    private void spill() {
+        if (store == null) {
+            store = queueRepository.createStore(queueName);
+        }
+        SessionRegistry.EnqueuedMessage message;
+        while ((message = head.poll()) != null) {
+            store.enqueue(message);
+        }
+        headBytes = 0;
+        spilled = true;
+    }
+
+    @Override
+    public void flush() {
+        if (spilled) {
+            store.flush();
+        }
+    }
+
+    @Override
+    public SessionRegistry.EnqueuedMessage dequeue() {
+        checkDequeuePreconditions();
+        if (spilled) {
+            final boolean backlog = dequeuesBacklog();
+            final SessionRegistry.EnqueuedMessage message = store.dequeue();
+            if (message != null) {
+                return releaseQuota(message, backlog);
+            }
+            // drained, the next messages stay in memory
+            spilled = false;
+            return releaseQuota(null);
+        }
+        final SessionRegistry.EnqueuedMessage message = head.poll();
+        if (message != null) {
+            headBytes -= message.payloadSize();
+        }
+        return releaseQuota(message);
+    }
+
+    /**
+     * The backlog is the one of the store the queue was reloaded from.
+     * */
+    @Override
+    protected boolean dequeuesBacklog() {
+        return spilled && store instanceof AbstractSessionMessageQueue &&
+            ((AbstractSessionMessageQueue<?>) store).dequeuesBacklog();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        checkIsEmptyPreconditions();
+        return spilled ? store.isEmpty() : head.isEmpty();
+    }
+
+    /**
+     * Write the messages in memory to the store, called when the repository closes.
+     * */
+    void spillHead() {
+        if (closed || head.isEmpty()) {
+            return;
+        }
+        spill();
+        store.flush();
+    }
+
+    @Override
+    public void closeAndPurge() {
+        for (SessionRegistry.EnqueuedMessage message : head) {
+            message.release();
+        }
+        head.clear();
+        headBytes = 0;
+        releaseAllQuota();
+        if (store != null) {
+            store.closeAndPurge();
+        }
+        queueRepository.dropQueue(queueName);
+        closed = true;
+    }
+}
@@ -0,0 +1,64 @@
+package io.moquette.broker;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Repository of {@link TieredQueue}s, which spill to the queues of a persistent repository.
+ * */
+public class TieredQueueRepository implements IQueueRepository {
+
+    private final IQueueRepository store;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ConcurrentMap<String, TieredQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxMessages how many messages a queue keeps in memory before spilling to the store.
+     * @param maxBytes the payload bytes a queue keeps in memory before spilling to the store.
+     * */
+    public TieredQueueRepository(IQueueRepository store, int maxMessages, long maxBytes) {
+        this.store = store;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Set<String> listQueueNames() {
+        final Set<String> names = new HashSet<>(store.listQueueNames());
+        names.addAll(queues.keySet());
+        return names;
+    }
+
+    @Override
+    public boolean containsQueue(String clientId) {
+        return queues.containsKey(clientId) || store.containsQueue(clientId);
+    }
+
+    @Override
+    public SessionMessageQueue<SessionRegistry.EnqueuedMessage> getOrCreateQueue(String clientId) {
+        return queues.computeIfAbsent(clientId, id -> new TieredQueue(this, id, maxMessages, maxBytes,
+            store.containsQueue(id) ? store.getOrCreateQueue(id) : null));
+    }
+
+    SessionMessageQueue<SessionRegistry.EnqueuedMessage> createStore(String queueName) {
+        return store.getOrCreateQueue(queueName);
+    }
+
+    void dropQueue(String queueName) {
+        queues.remove(queueName);
+    }
+
+    /**
+     * Write to the store the messages kept in memory and close it.
+     * */
+    @Override
+    public void close() {
+        for (TieredQueue queue : queues.values()) {
+            queue.spillHead();
+        }
+        store.close();
+    }
+}
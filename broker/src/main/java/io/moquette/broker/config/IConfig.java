@@ -50,6 +50,56 @@ public abstract class IConfig {
     public static final String ACL_FILE_PROPERTY_NAME = "acl_file";
     public static final String PERSISTENT_CLIENT_EXPIRATION_PROPERTY_NAME = "persistent_client_expiration";
     public static final String SESSION_QUEUE_SIZE = "session_queue_size";
+    /**
+     * Number of session event loops, default to the number of available processors.
+     * */
+    public static final String SESSION_LOOPS = "session_loops";
+    /**
+     * How sessions are assigned to the session event loops by client id: murmur3 (default), consistent_hash or
+     * string_hash.
+     * */
+    public static final String SESSION_LOOP_AFFINITY = "session_loop_affinity";
+    /**
+     * Max number of QoS1 and QoS2 messages sent to a client and not yet acknowledged, MQTT5 clients can lower it
+     * with their Receive Maximum. Default to 10.
+     * */
+    public static final String INFLIGHT_WINDOW_SIZE = "inflight_window_size";
+    /**
+     * When true the inflight window of each session moves between 1 and its maximum following the acknowledgement
+     * latency, default false.
+     * */
+    public static final String INFLIGHT_WINDOW_ADAPTIVE = "inflight_window_adaptive";
+    /**
+     * Max number of topic names whose matching subscriptions are cached, 0 disables the cache.
+     * */
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE = "subscriptions_match_cache_size";
+    /**
+     * How a message is delivered to the members of a shared subscription group: round_robin (default), sticky or
+     * least_inflight.
+     * @see io.moquette.broker.subscriptions.SharedSubscriptionStrategies
+     * */
+    public static final String SHARED_SUBSCRIPTION_STRATEGY = "shared_subscription_strategy";
+    /**
+     * Max number of messages queued for a session, 0 (default) is unlimited.
+     * */
+    public static final String SESSION_QUEUE_MAX_MESSAGES = "session_queue_max_messages";
+    /**
+     * Max payload bytes queued for a session, 0 (default) is unlimited.
+     * */
+    public static final String SESSION_QUEUE_MAX_BYTES = "session_queue_max_bytes";
+    /**
+     * Max number of messages queued for all the sessions, 0 (default) is unlimited.
+     * */
+    public static final String QUEUES_MAX_MESSAGES = "queues_max_messages";
+    /**
+     * Max payload bytes queued for all the sessions, 0 (default) is unlimited.
+     * */
+    public static final String QUEUES_MAX_BYTES = "queues_max_bytes";
+    /**
+     * What happens to a message queued over a limit: drop_newest (default), drop_oldest or disconnect.
+     * @see io.moquette.broker.QueueQuota.OverflowPolicy
+     * */
+    public static final String SESSION_QUEUE_OVERFLOW_POLICY = "session_queue_overflow_policy";
     public static final String ENABLE_TELEMETRY_NAME = "telemetry_enabled";
     /**
      * Defines the SSL implementation to use, default to "JDK".
@@ -112,6 +162,14 @@ public abstract class IConfig {
         return Integer.parseInt(propertyValue);
     }
 
+    public long longProp(String propertyName, long defaultValue) {
+        String propertyValue = getProperty(propertyName);
+        if (propertyValue == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(propertyValue);
+    }
+
     public boolean boolProp(String propertyName, boolean defaultValue) {
         String propertyValue = getProperty(propertyName);
         if (propertyValue == null) {
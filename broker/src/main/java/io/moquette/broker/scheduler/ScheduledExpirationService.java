@@ -6,9 +6,9 @@ import org.slf4j.LoggerFactory;
 import java.time.Clock;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -26,7 +26,8 @@ public class ScheduledExpirationService<T extends Expirable> {
     private final Clock clock;
     private final Consumer<T> action;
 
-    private final Map<String, ExpirableTracker<T>> expiringEntitiesCache = new HashMap<>();
+    // tracked by the session loops concurrently
+    private final Map<String, ExpirableTracker<T>> expiringEntitiesCache = new ConcurrentHashMap<>();
 
     public ScheduledExpirationService(Clock clock, Consumer<T> action) {
         this.clock = clock;
@@ -44,17 +44,40 @@ class CNode implements Comparable<CNode> {
         return new ArrayList<>(this.children);
     }
 
-    Optional<INode> childOf(Token token) {
+    /**
+     * @return the child node for the token or null if not present.
+     * */
+    INode childOf(Token token) {
         int idx = findIndexForToken(token);
         if (idx < 0) {
-            return Optional.empty();
+            return null;
         }
-        return Optional.of(children.get(idx));
+        return children.get(idx);
     }
 
+    boolean hasChildren() {
+        return !children.isEmpty();
+    }
+
+    /**
+     * Binary search of the children, sorted by token, with the same contract of
+     * {@link Collections#binarySearch(List, Object)} but without allocating a key node.
+     * */
     private int findIndexForToken(Token token) {
-        final INode tempTokenNode = new INode(new CNode(token));
-        return Collections.binarySearch(children, tempTokenNode, (INode node, INode tokenHolder) -> node.mainNode().token.compareTo(tokenHolder.mainNode().token));
+        int low = 0;
+        int high = children.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = children.get(mid).mainNode().token.compareTo(token);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     private boolean equalsToken(Token token) {
@@ -100,12 +123,12 @@ class CNode implements Comparable<CNode> {
     }
 
     /**
-     * @return true iff the subscriptions contained in this node are owned by clientId
-     *   AND at least one subscription is actually present for that clientId
+     * @param shareName the share group of the subscription, null for non shared subscriptions.
+     * @return true iff the only subscription contained in this node is the one of clientId in the share group.
      * */
-    boolean containsOnly(String clientId) {
+    boolean containsOnly(String clientId, String shareName) {
         for (Subscription sub : this.subscriptions) {
-            if (!sub.clientId.equals(clientId)) {
+            if (!isSubscriptionOf(sub, clientId, shareName)) {
                 return false;
             }
         }
@@ -113,25 +136,41 @@ class CNode implements Comparable<CNode> {
     }
 
     //TODO this is equivalent to negate(containsOnly(clientId))
-    public boolean contains(String clientId) {
+    public boolean contains(String clientId, String shareName) {
         for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
+            if (isSubscriptionOf(sub, clientId, shareName)) {
                 return true;
             }
         }
         return false;
     }
 
-    void removeSubscriptionsFor(String clientId) {
+    /**
+     * @return true if at least one client is subscribed in the share group.
+     * */
+    boolean containsShareGroup(String shareName) {
+        for (Subscription sub : this.subscriptions) {
+            if (shareName.equals(sub.shareName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void removeSubscriptionsFor(String clientId, String shareName) {
         Set<Subscription> toRemove = new HashSet<>();
         for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
+            if (isSubscriptionOf(sub, clientId, shareName)) {
                 toRemove.add(sub);
             }
         }
         this.subscriptions.removeAll(toRemove);
     }
 
+    private static boolean isSubscriptionOf(Subscription sub, String clientId, String shareName) {
+        return sub.clientId.equals(clientId) && Objects.equals(sub.shareName, shareName);
+    }
+
     @Override
     public int compareTo(CNode o) {
         return token.compareTo(o.token);
@@ -1,7 +1,8 @@
 package io.moquette.broker.subscriptions;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 
@@ -17,6 +18,24 @@ public class CTrie {
     private static final Token ROOT = new Token("root");
     private static final INode NO_PARENT = null;
 
+    /**
+     * Orders the topic filters level by level, so that the filters sharing a prefix are contiguous, and the
+     * subscriptions of the same filter as in {@link CNode#subscriptions}.
+     * */
+    private static final Comparator<Subscription> BY_FILTER_LEVELS = (a, b) -> {
+        final Topic filterA = a.topicFilter;
+        final Topic filterB = b.topicFilter;
+        final int commonLevels = Math.min(filterA.levels(), filterB.levels());
+        for (int level = 0; level < commonLevels; level++) {
+            final int compare = filterA.tokenAt(level).compareTo(filterB.tokenAt(level));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        final int compare = Integer.compare(filterA.levels(), filterB.levels());
+        return compare != 0 ? compare : a.compareTo(b);
+    };
+
     private enum Action {
         OK, REPEAT
     }
@@ -30,17 +49,17 @@ public class CTrie {
 
     Optional<CNode> lookup(Topic topic) {
         INode inode = this.root;
-        Token token = topic.headToken();
-        while (!topic.isEmpty()) {
-            Optional<INode> child = inode.mainNode().childOf(token);
-            if (!child.isPresent()) {
+        final int levels = topic.levels();
+        int level = 0;
+        while (level < levels) {
+            INode child = inode.mainNode().childOf(topic.tokenAt(level));
+            if (child == null) {
                 break;
             }
-            topic = topic.exceptHeadToken();
-            inode = child.get();
-            token = topic.headToken();
+            level++;
+            inode = child;
         }
-        if (inode == null || !topic.isEmpty()) {
+        if (inode == null || level < levels) {
             return Optional.empty();
         }
         return Optional.of(inode.mainNode());
@@ -50,23 +69,26 @@ public class CTrie {
         MATCH, GODEEP, STOP
     }
 
-    private NavigationAction evaluate(Topic topicName, CNode cnode, int depth) {
+    /**
+     * @param level the level of the topic to be matched against the token of the cnode.
+     * */
+    private NavigationAction evaluate(Topic topicName, int level, CNode cnode, int depth) {
         // depth 0 is the root node of all the topics, so for topic filter
         // monitor/sensor we have <root> -> monitor -> sensor
         final boolean isFirstLevel = depth == 1;
+        final boolean topicConsumed = level >= topicName.levels();
         if (Token.MULTI.equals(cnode.getToken())) {
-            Token token = topicName.headToken();
-            if (token != null && token.isReserved() && isFirstLevel) {
+            if (!topicConsumed && topicName.tokenAt(level).isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
                 // if reserved token is the first of the topicName
                 return NavigationAction.STOP;
             }
             return NavigationAction.MATCH;
         }
-        if (topicName.isEmpty()) {
+        if (topicConsumed) {
             return NavigationAction.STOP;
         }
-        final Token token = topicName.headToken();
+        final Token token = topicName.tokenAt(level);
         if (Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken())) {
             if (Token.SINGLE.equals(cnode.getToken()) && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
@@ -78,66 +100,170 @@ public class CTrie {
     }
 
     public List<Subscription> recursiveMatch(Topic topicName) {
-        return recursiveMatch(topicName, this.root, 0);
+        final List<Subscription> subscriptions = new ArrayList<>();
+        recursiveMatch(topicName, this.root, 0, subscriptions);
+        return subscriptions;
     }
 
-    private List<Subscription> recursiveMatch(Topic topicName, INode inode, int depth) {
+    /**
+     * The levels of the topic are addressed by index instead of slicing the topic at every step: the node at
+     * depth d is matched against the level d - 1, the root (depth 0) doesn't consume any level.
+     *
+     * @param matches accumulates the subscriptions found.
+     * */
+    private void recursiveMatch(Topic topicName, INode inode, int depth, List<Subscription> matches) {
         CNode cnode = inode.mainNode();
         if (cnode instanceof TNode) {
-            return Collections.emptyList();
+            return;
         }
-        NavigationAction action = evaluate(topicName, cnode, depth);
+        final int level = depth == 0 ? 0 : depth - 1;
+        NavigationAction action = evaluate(topicName, level, cnode, depth);
         if (action == NavigationAction.MATCH) {
-            return cnode.subscriptions;
+            matches.addAll(cnode.subscriptions);
+            return;
         }
         if (action == NavigationAction.STOP) {
-            return Collections.emptyList();
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topicName : topicName.exceptHeadToken();
-        List<Subscription> subscriptions = new ArrayList<>();
+        final int remainingLevel = depth;
 
         // We should only consider the maximum three children children of
         // type #, + or exact match
-        Optional<INode> subInode = cnode.childOf(Token.MULTI);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+        INode subInode = cnode.childOf(Token.MULTI);
+        if (subInode != null) {
+            recursiveMatch(topicName, subInode, depth + 1, matches);
         }
         subInode = cnode.childOf(Token.SINGLE);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+        if (subInode != null) {
+            recursiveMatch(topicName, subInode, depth + 1, matches);
         }
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        if (remainingLevel >= topicName.levels()) {
+            matches.addAll(cnode.subscriptions);
         } else {
-            subInode = cnode.childOf(remainingTopic.headToken());
-            if (subInode.isPresent()) {
-                subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+            subInode = cnode.childOf(topicName.tokenAt(remainingLevel));
+            if (subInode != null) {
+                recursiveMatch(topicName, subInode, depth + 1, matches);
             }
         }
-        return subscriptions;
     }
 
     public void addToTree(Subscription newSubscription) {
         Action res;
         do {
-            res = insert(newSubscription.topicFilter, this.root, newSubscription);
+            res = insert(newSubscription.topicFilter, 0, this.root, newSubscription);
         } while (res == Action.REPEAT);
     }
 
-    private Action insert(Topic topic, final INode inode, Subscription newSubscription) {
-        final Token token = topic.headToken();
+    /**
+     * Adds many subscriptions copying each node of the tree at most once, instead of once for every subscription
+     * as {@link #addToTree(Subscription)} does. The missing branches are built bottom-up from the subscriptions
+     * sorted by filter and linked to the tree by a single compare and set, so an empty tree is loaded in
+     * O(N log N).
+     * */
+    public void addAllToTree(Collection<Subscription> newSubscriptions) {
+        if (newSubscriptions.isEmpty()) {
+            return;
+        }
+        final List<Subscription> sorted = new ArrayList<>(newSubscriptions);
+        sorted.sort(BY_FILTER_LEVELS);
+        insertAll(this.root, 0, sorted);
+    }
+
+    /**
+     * @param subscriptions sorted by {@link #BY_FILTER_LEVELS}, all with the same tokens before level.
+     * */
+    private void insertAll(INode inode, int level, List<Subscription> subscriptions) {
+        while (true) {
+            final CNode cnode = inode.mainNode();
+            final boolean tombed = cnode instanceof TNode;
+            // the filters consumed by this node come first
+            int nodeEnd = 0;
+            while (nodeEnd < subscriptions.size() && subscriptions.get(nodeEnd).topicFilter.levels() <= level) {
+                nodeEnd++;
+            }
+            final List<INode> existingChildren = new ArrayList<>();
+            final List<List<Subscription>> existingBranches = new ArrayList<>();
+            final List<INode> newChildren = new ArrayList<>();
+            int start = nodeEnd;
+            while (start < subscriptions.size()) {
+                final int end = endOfBranch(subscriptions, start, level);
+                final List<Subscription> branch = subscriptions.subList(start, end);
+                final INode child = tombed ? null : cnode.childOf(branch.get(0).topicFilter.tokenAt(level));
+                if (child != null) {
+                    existingChildren.add(child);
+                    existingBranches.add(branch);
+                } else {
+                    newChildren.add(buildBranch(level, branch));
+                }
+                start = end;
+            }
+
+            if (nodeEnd > 0 || !newChildren.isEmpty()) {
+                final CNode updatedCnode = tombed ? new CNode(cnode.getToken()) : cnode.copy();
+                for (Subscription subscription : subscriptions.subList(0, nodeEnd)) {
+                    updatedCnode.addSubscription(subscription);
+                }
+                for (INode newChild : newChildren) {
+                    updatedCnode.add(newChild);
+                }
+                if (!inode.compareAndSet(cnode, updatedCnode)) {
+                    // the branches built for the missing children are dropped, another thread could have added them
+                    continue;
+                }
+            }
+            for (int i = 0; i < existingChildren.size(); i++) {
+                insertAll(existingChildren.get(i), level + 1, existingBranches.get(i));
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return the index after the last subscription with the same token at level of the one at start.
+     * */
+    private static int endOfBranch(List<Subscription> subscriptions, int start, int level) {
+        final Token token = subscriptions.get(start).topicFilter.tokenAt(level);
+        int end = start + 1;
+        while (end < subscriptions.size() && subscriptions.get(end).topicFilter.tokenAt(level).equals(token)) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Builds the node for the token at level of the subscriptions and all its descendants, before they are
+     * reachable from the tree so without any copy.
+     * */
+    private static INode buildBranch(int level, List<Subscription> subscriptions) {
+        final CNode cnode = new CNode(subscriptions.get(0).topicFilter.tokenAt(level));
+        final int childLevel = level + 1;
+        int start = 0;
+        while (start < subscriptions.size() && subscriptions.get(start).topicFilter.levels() <= childLevel) {
+            // sorted as the subscriptions of the node, so always appended
+            cnode.addSubscription(subscriptions.get(start));
+            start++;
+        }
+        while (start < subscriptions.size()) {
+            final int end = endOfBranch(subscriptions, start, childLevel);
+            cnode.add(buildBranch(childLevel, subscriptions.subList(start, end)));
+            start = end;
+        }
+        return new INode(cnode);
+    }
+
+    private Action insert(Topic topic, int level, final INode inode, Subscription newSubscription) {
         final CNode cnode = inode.mainNode();
-        if (!topic.isEmpty()) {
-            Optional<INode> nextInode = cnode.childOf(token);
-            if (nextInode.isPresent()) {
-                Topic remainingTopic = topic.exceptHeadToken();
-                return insert(remainingTopic, nextInode.get(), newSubscription);
+        final boolean topicConsumed = level >= topic.levels();
+        if (!topicConsumed) {
+            INode nextInode = cnode.childOf(topic.tokenAt(level));
+            if (nextInode != null) {
+                return insert(topic, level + 1, nextInode, newSubscription);
             }
         }
-        if (topic.isEmpty()) {
+        if (topicConsumed) {
             return insertSubscription(inode, cnode, newSubscription);
         } else {
-            return createNodeAndInsertSubscription(topic, inode, cnode, newSubscription);
+            return createNodeAndInsertSubscription(topic, level, inode, cnode, newSubscription);
         }
     }
 
@@ -152,8 +278,9 @@ public class CTrie {
         return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
-    private Action createNodeAndInsertSubscription(Topic topic, INode inode, CNode cnode, Subscription newSubscription) {
-        final INode newInode = createPathRec(topic, newSubscription);
+    private Action createNodeAndInsertSubscription(Topic topic, int level, INode inode, CNode cnode,
+                                                   Subscription newSubscription) {
+        final INode newInode = createPathRec(topic, level, newSubscription);
         final CNode updatedCnode;
         if (cnode instanceof TNode) {
             updatedCnode = new CNode(cnode.getToken());
@@ -165,15 +292,14 @@ public class CTrie {
         return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
-    private INode createPathRec(Topic topic, Subscription newSubscription) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(remainingTopic, newSubscription);
-            CNode cnode = new CNode(topic.headToken());
+    private INode createPathRec(Topic topic, int level, Subscription newSubscription) {
+        if (level + 1 < topic.levels()) {
+            INode inode = createPathRec(topic, level + 1, newSubscription);
+            CNode cnode = new CNode(topic.tokenAt(level));
             cnode.add(inode);
             return new INode(cnode);
         } else {
-            return createLeafNodes(topic.headToken(), newSubscription);
+            return createLeafNodes(topic.tokenAt(level), newSubscription);
         }
     }
 
@@ -185,20 +311,26 @@ public class CTrie {
     }
 
     public void removeFromTree(Topic topic, String clientID) {
+        removeFromTree(topic, clientID, null);
+    }
+
+    /**
+     * @param shareName the share group of the subscription to remove, null for a non shared subscription.
+     * */
+    public void removeFromTree(Topic topic, String clientID, String shareName) {
         Action res;
         do {
-            res = remove(clientID, topic, this.root, NO_PARENT);
+            res = remove(clientID, shareName, topic, 0, this.root, NO_PARENT);
         } while (res == Action.REPEAT);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode, INode iParent) {
-        Token token = topic.headToken();
+    private Action remove(String clientId, String shareName, Topic topic, int level, INode inode, INode iParent) {
         final CNode cnode = inode.mainNode();
-        if (!topic.isEmpty()) {
-            Optional<INode> nextInode = cnode.childOf(token);
-            if (nextInode.isPresent()) {
-                Topic remainingTopic = topic.exceptHeadToken();
-                return remove(clientId, remainingTopic, nextInode.get(), inode);
+        final boolean topicConsumed = level >= topic.levels();
+        if (!topicConsumed) {
+            INode nextInode = cnode.childOf(topic.tokenAt(level));
+            if (nextInode != null) {
+                return remove(clientId, shareName, topic, level + 1, nextInode, inode);
             }
         }
         if (cnode instanceof TNode) {
@@ -207,16 +339,16 @@ public class CTrie {
             // Consider calling cleanTomb here too
             return Action.OK;
         }
-        if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
+        if (cnode.containsOnly(clientId, shareName) && topicConsumed && !cnode.hasChildren()) {
             // last client to leave this node, AND there are no downstream children, remove via TNode tomb
             if (inode == this.root) {
                 return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
             }
             TNode tnode = new TNode(cnode.getToken());
             return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
-        } else if (cnode.contains(clientId) && topic.isEmpty()) {
+        } else if (cnode.contains(clientId, shareName) && topicConsumed) {
             CNode updatedCnode = cnode.copy();
-            updatedCnode.removeSubscriptionsFor(clientId);
+            updatedCnode.removeSubscriptionsFor(clientId, shareName);
             return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
         } else {
             //someone else already removed
@@ -25,13 +25,58 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
 
+    public static final int DEFAULT_MATCH_CACHE_SIZE = 10_000;
+
+    private static final ShareGroup[] NO_SHARE_GROUPS = new ShareGroup[0];
+
+    /**
+     * Subscriptions matched by a topic, the shared ones are kept by group because a member has to be selected for
+     * every message.
+     * */
+    private static final class TopicMatch {
+        // not shared, with QoS sharpened
+        final List<Subscription> subscriptions;
+        final ShareGroup[] shareGroups;
+
+        TopicMatch(List<Subscription> subscriptions, ShareGroup[] shareGroups) {
+            this.subscriptions = subscriptions;
+            this.shareGroups = shareGroups;
+        }
+    }
+
     private CTrie ctrie;
     private volatile ISubscriptionsRepository subscriptionsRepository;
+    // null when disabled
+    private final MatchResultCache<TopicMatch> matchCache;
+    private final SharedSubscriptionStrategy sharedStrategy;
+
+    public CTrieSubscriptionDirectory() {
+        this(DEFAULT_MATCH_CACHE_SIZE);
+    }
+
+    /**
+     * @param matchCacheSize max number of topic names whose matching subscriptions are cached, 0 to disable
+     *                       the cache.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this(matchCacheSize, new SharedSubscriptionStrategies.RoundRobin());
+    }
+
+    /**
+     * @param sharedStrategy selects the member of each shared subscription group that receives a message.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize, SharedSubscriptionStrategy sharedStrategy) {
+        this.matchCache = matchCacheSize > 0 ? new MatchResultCache<>(matchCacheSize) : null;
+        this.sharedStrategy = Objects.requireNonNull(sharedStrategy, "sharedStrategy can't be null");
+    }
 
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
         LOG.info("Initializing CTrie");
         ctrie = new CTrie();
+        if (matchCache != null) {
+            matchCache.clear();
+        }
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -40,10 +85,9 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
         }
 
-        for (Subscription subscription : this.subscriptionsRepository.listAllSubscriptions()) {
-            LOG.debug("Re-subscribing {}", subscription);
-            ctrie.addToTree(subscription);
-        }
+        final Set<Subscription> storedSubscriptions = this.subscriptionsRepository.listAllSubscriptions();
+        LOG.debug("Re-subscribing {} subscriptions", storedSubscriptions.size());
+        ctrie.addAllToTree(storedSubscriptions);
         if (LOG.isTraceEnabled()) {
             LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
         }
@@ -80,27 +124,96 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         return ctrie.recursiveMatch(topicName);
     }
 
+    /**
+     * Shared subscriptions contribute with only one member for each group, selected by the
+     * {@link SharedSubscriptionStrategy}.
+     * The result could be served from the match cache so it must not be modified.
+     * */
     @Override
     public List<Subscription> matchQosSharpening(Topic topicName) {
-        final List<Subscription> subscriptions = matchWithoutQosSharpening(topicName);
+        final TopicMatch match = match(topicName);
+        if (match.shareGroups.length == 0) {
+            return match.subscriptions;
+        }
+        final List<Subscription> selected = new ArrayList<>(match.subscriptions.size() + match.shareGroups.length);
+        selected.addAll(match.subscriptions);
+        for (ShareGroup group : match.shareGroups) {
+            selected.add(sharedStrategy.select(group, topicName));
+        }
+        return selected;
+    }
+
+    private TopicMatch match(Topic topicName) {
+        if (matchCache == null) {
+            return groupAndSharpen(matchWithoutQosSharpening(topicName));
+        }
+        final TopicMatch cached = matchCache.get(topicName);
+        if (cached != null) {
+            return cached;
+        }
+        final MatchResultCache.Stamp stamp = matchCache.stamp(topicName);
+        final TopicMatch matched = groupAndSharpen(matchWithoutQosSharpening(topicName));
+        matchCache.put(topicName, matched, stamp);
+        return matched;
+    }
 
+    private static TopicMatch groupAndSharpen(List<Subscription> subscriptions) {
         Map<String, Subscription> subsGroupedByClient = new HashMap<>();
+        Map<String, List<Subscription>> shareGroups = null;
         for (Subscription sub : subscriptions) {
+            if (sub.isShared()) {
+                if (shareGroups == null) {
+                    shareGroups = new LinkedHashMap<>();
+                }
+                shareGroups.computeIfAbsent(ShareGroup.key(sub.shareName, sub.topicFilter), k -> new ArrayList<>())
+                    .add(sub);
+                continue;
+            }
             Subscription existingSub = subsGroupedByClient.get(sub.clientId);
             // update the selected subscriptions if not present or if has a greater qos
             if (existingSub == null || existingSub.qosLessThan(sub)) {
                 subsGroupedByClient.put(sub.clientId, sub);
             }
         }
-        return new ArrayList<>(subsGroupedByClient.values());
+        final List<Subscription> sharpened = Collections.unmodifiableList(
+            new ArrayList<>(subsGroupedByClient.values()));
+        if (shareGroups == null) {
+            return new TopicMatch(sharpened, NO_SHARE_GROUPS);
+        }
+        final ShareGroup[] groups = new ShareGroup[shareGroups.size()];
+        int i = 0;
+        for (List<Subscription> members : shareGroups.values()) {
+            final Subscription first = members.get(0);
+            groups[i++] = new ShareGroup(first.shareName, first.topicFilter, members);
+        }
+        return new TopicMatch(sharpened, groups);
     }
 
     @Override
     public void add(Subscription newSubscription) {
         ctrie.addToTree(newSubscription);
+        invalidateMatches(newSubscription.topicFilter);
         subscriptionsRepository.addNewSubscription(newSubscription);
     }
 
+    /**
+     * Adds all the subscriptions to the tree in one pass, so that the nodes shared by their filters are copied once.
+     * */
+    @Override
+    public void addAll(Collection<Subscription> newSubscriptions) {
+        ctrie.addAllToTree(newSubscriptions);
+        for (Subscription newSubscription : newSubscriptions) {
+            invalidateMatches(newSubscription.topicFilter);
+            subscriptionsRepository.addNewSubscription(newSubscription);
+        }
+    }
+
+    private void invalidateMatches(Topic topicFilter) {
+        if (matchCache != null) {
+            matchCache.invalidate(topicFilter);
+        }
+    }
+
     /**
      * Removes subscription from CTrie, adds TNode when the last client unsubscribes, then calls for cleanTomb in a
      * separate atomic CAS operation.
@@ -111,14 +224,50 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     @Override
     public void removeSubscription(Topic topic, String clientID) {
         ctrie.removeFromTree(topic, clientID);
+        invalidateMatches(topic);
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
+    @Override
+    public void removeSharedSubscription(String shareName, Topic topicFilter, String clientID) {
+        ctrie.removeFromTree(topicFilter, clientID, shareName);
+        invalidateMatches(topicFilter);
+        this.subscriptionsRepository.removeSubscription(Subscription.sharedFilter(shareName, topicFilter), clientID);
+
+        final boolean groupIsEmpty = ctrie.lookup(topicFilter)
+            .map(node -> !node.containsShareGroup(shareName))
+            .orElse(true);
+        if (groupIsEmpty) {
+            sharedStrategy.groupRemoved(ShareGroup.key(shareName, topicFilter));
+        }
+    }
+
     @Override
     public int size() {
         return ctrie.size();
     }
 
+    /**
+     * @return number of matches served by the match cache, 0 if disabled.
+     * */
+    public long matchCacheHits() {
+        return matchCache != null ? matchCache.hits() : 0;
+    }
+
+    /**
+     * @return number of matches that walked the subscriptions tree because not cached or stale.
+     * */
+    public long matchCacheMisses() {
+        return matchCache != null ? matchCache.misses() : 0;
+    }
+
+    /**
+     * @return number of cached matches dropped to respect the size limit of the cache.
+     * */
+    public long matchCacheEvictions() {
+        return matchCache != null ? matchCache.evictions() : 0;
+    }
+
     @Override
     public String dumpTree() {
         return ctrie.dumpTree();
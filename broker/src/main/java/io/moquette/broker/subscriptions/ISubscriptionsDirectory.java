@@ -17,6 +17,7 @@ package io.moquette.broker.subscriptions;
 
 import io.moquette.broker.ISubscriptionsRepository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -35,8 +36,22 @@ public interface ISubscriptionsDirectory {
 
     void add(Subscription newSubscription);
 
+    /**
+     * Adds the subscriptions of a SUBSCRIBE carrying many topic filters.
+     * */
+    default void addAll(Collection<Subscription> newSubscriptions) {
+        for (Subscription newSubscription : newSubscriptions) {
+            add(newSubscription);
+        }
+    }
+
     void removeSubscription(Topic topic, String clientID);
 
+    /**
+     * @param topicFilter the filter of the shared subscription, without the $share/{shareName}/ prefix.
+     * */
+    void removeSharedSubscription(String shareName, Topic topicFilter, String clientID);
+
     int size();
 
     String dumpTree();
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the subscriptions matched by a topic name.
+ *
+ * @param <V> the type of the cached match result.
+ *
+ * Entries are never updated in place, they are stamped with the generations seen before the match was computed
+ * and discarded on read when those generations moved on. A change to a topic filter bumps the generation of the
+ * stripe of its first level, while filters starting with a wildcard can match any topic and so bump the global one.
+ *
+ * The LRU is split into segments, each one guarded by its own lock, to keep low the contention between the
+ * session loops that match concurrently.
+ * */
+final class MatchResultCache<V> {
+
+    private static final int SEGMENTS = 16;
+    // must be a power of 2
+    private static final int STRIPES = 1024;
+
+    private static final class Entry<V> {
+        final V result;
+        final long globalGeneration;
+        final long stripeGeneration;
+
+        Entry(V result, long globalGeneration, long stripeGeneration) {
+            this.result = result;
+            this.globalGeneration = globalGeneration;
+            this.stripeGeneration = stripeGeneration;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<String, Entry<V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments;
+    private final AtomicLong globalGeneration = new AtomicLong();
+    private final AtomicLongArray stripeGenerations = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Opaque token of the generations observed before computing a match, to be passed back in
+     * {@link #put(Topic, Object, Stamp)}.
+     * */
+    static final class Stamp {
+        private final long globalGeneration;
+        private final long stripeGeneration;
+
+        private Stamp(long globalGeneration, long stripeGeneration) {
+            this.globalGeneration = globalGeneration;
+            this.stripeGeneration = stripeGeneration;
+        }
+    }
+
+    MatchResultCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was " + maxEntries);
+        }
+        final int segmentCapacity = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+        segments = newSegments();
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Segment[] newSegments() {
+        return (Segment[]) new MatchResultCache.Segment[SEGMENTS];
+    }
+
+    /**
+     * @return the cached match of the topic or null if not present or stale.
+     * */
+    V get(Topic topic) {
+        final String key = topic.toString();
+        final Segment segment = segmentFor(key);
+        final Entry<V> entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+        }
+        if (entry != null && entry.globalGeneration == globalGeneration.get()
+            && entry.stripeGeneration == stripeGenerations.get(stripe(topic.headToken()))) {
+            hits.increment();
+            return entry.result;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Has to be invoked before walking the subscriptions tree to compute the result to {@link #put}.
+     * */
+    Stamp stamp(Topic topic) {
+        return new Stamp(globalGeneration.get(), stripeGenerations.get(stripe(topic.headToken())));
+    }
+
+    /**
+     * @param result the match to cache, it's shared between the readers so must be immutable.
+     * */
+    void put(Topic topic, V result, Stamp stamp) {
+        final String key = topic.toString();
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry<>(result, stamp.globalGeneration, stamp.stripeGeneration));
+        }
+    }
+
+    /**
+     * Invalidates the cached results that could be matched by the topic filter. Has to be invoked after the
+     * subscriptions tree has been updated.
+     * */
+    void invalidate(Topic topicFilter) {
+        final Token head = topicFilter.headToken();
+        if (head == null || Token.MULTI.equals(head) || Token.SINGLE.equals(head)) {
+            globalGeneration.incrementAndGet();
+        } else {
+            stripeGenerations.incrementAndGet(stripe(head));
+        }
+    }
+
+    void clear() {
+        globalGeneration.incrementAndGet();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        final int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static int stripe(Token head) {
+        if (head == null) {
+            return 0;
+        }
+        final int h = head.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+}
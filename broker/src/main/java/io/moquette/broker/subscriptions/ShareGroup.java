@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The members of a shared subscription group, identified by share name and topic filter, that matched a topic.
+ * */
+public final class ShareGroup {
+
+    private final String shareName;
+    private final Topic topicFilter;
+    private final List<Subscription> members;
+
+    ShareGroup(String shareName, Topic topicFilter, List<Subscription> members) {
+        this.shareName = shareName;
+        this.topicFilter = topicFilter;
+        this.members = Collections.unmodifiableList(members);
+    }
+
+    public String getShareName() {
+        return shareName;
+    }
+
+    public Topic getTopicFilter() {
+        return topicFilter;
+    }
+
+    /**
+     * @return the subscriptions of the group, never empty and sorted by client id.
+     * */
+    public List<Subscription> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return the identifier of the group, which is in the form {shareName}/{topicFilter}.
+     * */
+    public String key() {
+        return key(shareName, topicFilter);
+    }
+
+    static String key(String shareName, Topic topicFilter) {
+        return shareName + "/" + topicFilter;
+    }
+
+    @Override
+    public String toString() {
+        return "ShareGroup{" + key() + ", members=" + members.size() + '}';
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * The {@link SharedSubscriptionStrategy} implementations provided by the broker.
+ * */
+public final class SharedSubscriptionStrategies {
+
+    public static final String ROUND_ROBIN = "round_robin";
+    public static final String STICKY = "sticky";
+    public static final String LEAST_INFLIGHT = "least_inflight";
+
+    private SharedSubscriptionStrategies() {
+    }
+
+    /**
+     * @param name one of {@value #ROUND_ROBIN}, {@value #STICKY} or {@value #LEAST_INFLIGHT}.
+     * @param inflightByClient number of messages waiting for acknowledge by each client, used only by
+     *                         {@value #LEAST_INFLIGHT}.
+     * */
+    public static SharedSubscriptionStrategy fromName(String name, ToIntFunction<String> inflightByClient) {
+        switch (name) {
+            case ROUND_ROBIN:
+                return new RoundRobin();
+            case STICKY:
+                return new StickyByHash();
+            case LEAST_INFLIGHT:
+                return new LeastInflight(inflightByClient);
+            default:
+                throw new IllegalArgumentException("Unknown shared subscription strategy: " + name);
+        }
+    }
+
+    /**
+     * Delivers to the members of each group in turn.
+     * */
+    public static final class RoundRobin implements SharedSubscriptionStrategy {
+
+        private final ConcurrentMap<String, AtomicInteger> cursors = new ConcurrentHashMap<>();
+
+        @Override
+        public Subscription select(ShareGroup group, Topic topicName) {
+            final String key = group.key();
+            AtomicInteger cursor = cursors.get(key);
+            if (cursor == null) {
+                final AtomicInteger newCursor = new AtomicInteger();
+                cursor = cursors.putIfAbsent(key, newCursor);
+                if (cursor == null) {
+                    cursor = newCursor;
+                }
+            }
+            final List<Subscription> members = group.getMembers();
+            return members.get(Math.floorMod(cursor.getAndIncrement(), members.size()));
+        }
+
+        @Override
+        public void groupRemoved(String groupKey) {
+            cursors.remove(groupKey);
+        }
+    }
+
+    /**
+     * Delivers all the messages of a topic to the same member, preserving their order. Uses rendezvous hashing
+     * so that when a member joins or leaves only the topics assigned to it are moved.
+     * */
+    public static final class StickyByHash implements SharedSubscriptionStrategy {
+
+        @Override
+        public Subscription select(ShareGroup group, Topic topicName) {
+            final int topicHash = topicName.hashCode();
+            Subscription selected = null;
+            int maxWeight = 0;
+            for (Subscription member : group.getMembers()) {
+                final int weight = mix(topicHash ^ member.getClientId().hashCode());
+                if (selected == null || Integer.compareUnsigned(weight, maxWeight) > 0) {
+                    selected = member;
+                    maxWeight = weight;
+                }
+            }
+            return selected;
+        }
+
+        // murmur3 finalizer
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    /**
+     * Delivers to the member with the lowest number of messages in flight, starting the scan from a rotating
+     * position so that ties are spread over the members.
+     * */
+    public static final class LeastInflight implements SharedSubscriptionStrategy {
+
+        private final ToIntFunction<String> inflightByClient;
+        private final AtomicInteger tieBreaker = new AtomicInteger();
+
+        public LeastInflight(ToIntFunction<String> inflightByClient) {
+            this.inflightByClient = inflightByClient;
+        }
+
+        @Override
+        public Subscription select(ShareGroup group, Topic topicName) {
+            final List<Subscription> members = group.getMembers();
+            final int size = members.size();
+            final int start = Math.floorMod(tieBreaker.getAndIncrement(), size);
+            Subscription selected = null;
+            int minInflight = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                final Subscription member = members.get((start + i) % size);
+                final int inflight = inflightByClient.applyAsInt(member.getClientId());
+                if (selected == null || inflight < minInflight) {
+                    selected = member;
+                    minInflight = inflight;
+                    if (inflight == 0) {
+                        break;
+                    }
+                }
+            }
+            return selected;
+        }
+    }
+}
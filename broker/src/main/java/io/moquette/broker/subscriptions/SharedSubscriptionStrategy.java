@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+/**
+ * Chooses which member of a shared subscription group receives a message.
+ * */
+public interface SharedSubscriptionStrategy {
+
+    /**
+     * Invoked for every message published on a topic matched by the group, from the session event loops, so
+     * must be thread safe.
+     *
+     * @param group the matching group, with at least one member.
+     * @param topicName the topic of the message to deliver.
+     * @return the subscription, between the members of the group, that has to receive the message.
+     * */
+    Subscription select(ShareGroup group, Topic topicName);
+
+    /**
+     * Notified when the last member leaves the group, to release any state kept for it.
+     * */
+    default void groupRemoved(String groupKey) {
+    }
+}
@@ -19,6 +19,7 @@ package io.moquette.broker.subscriptions;
 import io.netty.handler.codec.mqtt.MqttQoS;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 /**
  * Maintain the information about which Topic a certain ClientID is subscribed and at which QoS
@@ -29,17 +30,29 @@ public final class Subscription implements Serializable, Comparable<Subscription
     private final MqttQoS requestedQos; // max QoS acceptable
     final String clientId;
     final Topic topicFilter;
+    // null if not a shared subscription
+    final String shareName;
 
     public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos) {
+        this(clientId, topicFilter, requestedQos, null);
+    }
+
+    /**
+     * @param topicFilter the filter of a shared subscription without the $share/{shareName}/ prefix.
+     * @param shareName the name of the share group or null if it's not a shared subscription.
+     * */
+    public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos, String shareName) {
         this.requestedQos = requestedQos;
         this.clientId = clientId;
         this.topicFilter = topicFilter;
+        this.shareName = shareName;
     }
 
     public Subscription(Subscription orig) {
         this.requestedQos = orig.requestedQos;
         this.clientId = orig.clientId;
         this.topicFilter = orig.topicFilter;
+        this.shareName = orig.shareName;
     }
 
     public String getClientId() {
@@ -54,6 +67,29 @@ public final class Subscription implements Serializable, Comparable<Subscription
         return topicFilter;
     }
 
+    public boolean isShared() {
+        return shareName != null;
+    }
+
+    public String getShareName() {
+        return shareName;
+    }
+
+    /**
+     * @return the topic filter as requested by the client, so in the form $share/{shareName}/{topicFilter}
+     * for shared subscriptions.
+     * */
+    public String getSubscribedFilter() {
+        if (shareName == null) {
+            return topicFilter.toString();
+        }
+        return sharedFilter(shareName, topicFilter);
+    }
+
+    static String sharedFilter(String shareName, Topic topicFilter) {
+        return "$share/" + shareName + "/" + topicFilter;
+    }
+
     public boolean qosLessThan(Subscription sub) {
         return requestedQos.value() < sub.requestedQos.value();
     }
@@ -69,6 +105,8 @@ public final class Subscription implements Serializable, Comparable<Subscription
 
         if (clientId != null ? !clientId.equals(that.clientId) : that.clientId != null)
             return false;
+        if (!Objects.equals(shareName, that.shareName))
+            return false;
         return !(topicFilter != null ? !topicFilter.equals(that.topicFilter) : that.topicFilter != null);
     }
 
@@ -76,12 +114,13 @@ public final class Subscription implements Serializable, Comparable<Subscription
     public int hashCode() {
         int result = clientId != null ? clientId.hashCode() : 0;
         result = 31 * result + (topicFilter != null ? topicFilter.hashCode() : 0);
+        result = 31 * result + (shareName != null ? shareName.hashCode() : 0);
         return result;
     }
 
     @Override
     public String toString() {
-        return String.format("[filter:%s, clientID: %s, qos: %s]", topicFilter, clientId, requestedQos);
+        return String.format("[filter:%s, clientID: %s, qos: %s]", getSubscribedFilter(), clientId, requestedQos);
     }
 
     @Override
@@ -99,6 +138,13 @@ public final class Subscription implements Serializable, Comparable<Subscription
         if (compare != 0) {
             return compare;
         }
-        return this.topicFilter.compareTo(o.topicFilter);
+        compare = this.topicFilter.compareTo(o.topicFilter);
+        if (compare != 0) {
+            return compare;
+        }
+        if (this.shareName == null || o.shareName == null) {
+            return this.shareName == null ? (o.shareName == null ? 0 : -1) : 1;
+        }
+        return this.shareName.compareTo(o.shareName);
     }
 }
@@ -15,8 +15,6 @@
  */
 package io.moquette.broker.subscriptions;
 
-import java.util.Optional;
-
 class TNode extends CNode {
 
     public TNode(Token token) {
@@ -24,7 +22,7 @@ class TNode extends CNode {
     }
 
     @Override
-    Optional<INode> childOf(Token token) {
+    INode childOf(Token token) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -44,17 +42,17 @@ class TNode extends CNode {
     }
 
     @Override
-    boolean containsOnly(String clientId) {
+    boolean containsOnly(String clientId, String shareName) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    public boolean contains(String clientId) {
+    public boolean contains(String clientId, String shareName) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
     @Override
-    void removeSubscriptionsFor(String clientId) {
+    void removeSubscriptionsFor(String clientId, String shareName) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -24,6 +24,18 @@ public class Token implements Comparable<Token> {
     static final Token EMPTY = new Token("");
     static final Token MULTI = new Token("#");
     static final Token SINGLE = new Token("+");
+
+    // must be a power of 2
+    private static final int INTERNED_CAPACITY = 1 << 16;
+    private static final int MAX_PROBES = 4;
+
+    /**
+     * Bounded table of the tokens already seen, indexed by the hash of their name. Topics published over and
+     * over share the same Token instances instead of allocating new ones on every parse. Races between
+     * threads are benign: a lost update only means that an equal Token is created once more.
+     * */
+    private static final Token[] INTERNED = new Token[INTERNED_CAPACITY];
+
     final String name;
 
     protected Token(String s) {
@@ -34,6 +46,33 @@ public class Token implements Comparable<Token> {
         return name;
     }
 
+    /**
+     * @param hash the {@link String#hashCode()} of the characters in the range.
+     * @return the interned token for the characters of {@code topic} in the range [start, end).
+     * */
+    static Token intern(String topic, int start, int end, int hash) {
+        final int length = end - start;
+        // same spreading of HashMap, the low bits of String hashes are poorly distributed
+        hash ^= hash >>> 16;
+        final int mask = INTERNED_CAPACITY - 1;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            final int idx = (hash + probe) & mask;
+            final Token candidate = INTERNED[idx];
+            if (candidate == null) {
+                final Token token = new Token(topic.substring(start, end));
+                INTERNED[idx] = token;
+                return token;
+            }
+            if (candidate.name.length() == length && topic.regionMatches(start, candidate.name, 0, length)) {
+                return candidate;
+            }
+        }
+        // the neighbourhood is full, the newcomer replaces the first slot so that the table follows the traffic
+        final Token token = new Token(topic.substring(start, end));
+        INTERNED[hash & mask] = token;
+        return token;
+    }
+
     @Override
     public int hashCode() {
         int hash = 7;
@@ -43,6 +82,9 @@ public class Token implements Comparable<Token> {
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (obj == null) {
             return false;
         }
@@ -16,26 +16,38 @@
 
 package io.moquette.broker.subscriptions;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.ParseException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A topic name or a topic filter.
+ *
+ * The tokens are parsed lazily, once, into an array; a Topic obtained by {@link #exceptHeadToken()} is a view
+ * that shares that array and only moves the offset of the first level, so walking the levels doesn't copy
+ * tokens around. Plain tokens are taken from the {@link Token#intern(String, int, int, int) interned table}.
+ * */
 public class Topic implements Serializable, Comparable<Topic> {
 
     private static final Logger LOG = LoggerFactory.getLogger(Topic.class);
 
     private static final long serialVersionUID = 2438799283749822L;
 
-    private final String topic;
+    // lazily rebuilt from the tokens when this is a view on the levels of another topic
+    private String topic;
+
+    private transient Token[] tokens;
 
-    private transient List<Token> tokens;
+    // index of the first level of this topic into tokens
+    private transient int offset;
 
     private transient boolean valid;
 
@@ -53,15 +65,24 @@ public class Topic implements Serializable, Comparable<Topic> {
         this.topic = topic;
     }
 
-    Topic(List<Token> tokens) {
+    private Topic(Token[] tokens, int offset) {
         this.tokens = tokens;
-        List<String> strTokens = tokens.stream().map(Token::toString).collect(Collectors.toList());
-        this.topic = String.join("/", strTokens);
+        this.offset = offset;
         this.valid = true;
     }
 
     public List<Token> getTokens() {
-        if (tokens == null) {
+        if (!parse()) {
+            return null;
+        }
+        return Collections.unmodifiableList(Arrays.asList(tokens).subList(offset, tokens.length));
+    }
+
+    /**
+     * @return true if the topic is well formed and its tokens are available.
+     * */
+    private boolean parse() {
+        if (tokens == null && topic != null) {
             try {
                 tokens = parseTopic(topic);
                 valid = true;
@@ -70,91 +91,118 @@ public class Topic implements Serializable, Comparable<Topic> {
                 LOG.error("Error parsing the topic: {}, message: {}", topic, e.getMessage());
             }
         }
-
-        return tokens;
+        return tokens != null;
     }
 
-    private List<Token> parseTopic(String topic) throws ParseException {
-        if (topic.length() == 0) {
+    private static Token[] parseTopic(String topic) throws ParseException {
+        final int length = topic.length();
+        if (length == 0) {
             throw new ParseException("Bad format of topic, topic MUST be at least 1 character [MQTT-4.7.3-1] and " +
                                      "this was empty", 0);
         }
-        List<Token> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
+        // as with String.split, a run of trailing separators ends with a single empty level
+        int end = length;
+        while (end > 0 && topic.charAt(end - 1) == '/') {
+            end--;
         }
-
-        if (topic.endsWith("/")) {
-            // Add a fictious space
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
+        if (end == 0) {
+            return new Token[] {Token.EMPTY, Token.EMPTY};
         }
+        int levels = end < length ? 2 : 1;
+        for (int i = 0; i < end; i++) {
+            if (topic.charAt(i) == '/') {
+                levels++;
+            }
+        }
+        final Token[] res = new Token[levels];
+        int level = 0;
+        int start = 0;
+        for (int i = 0; i <= end; i++) {
+            if (i == end || topic.charAt(i) == '/') {
+                res[level] = parseToken(topic, start, i, level, levels);
+                level++;
+                start = i + 1;
+            }
+        }
+        if (end < length) {
+            res[level] = Token.EMPTY;
+        }
+        return res;
+    }
 
-        for (int i = 0; i < splitted.length; i++) {
-            String s = splitted[i];
-            if (s.isEmpty()) {
-                // if (i != 0) {
-                // throw new ParseException("Bad format of topic, expetec topic name between
-                // separators", i);
-                // }
-                res.add(Token.EMPTY);
-            } else if (s.equals("#")) {
+    private static Token parseToken(String topic, int start, int end, int level, int levels) throws ParseException {
+        if (start == end) {
+            return Token.EMPTY;
+        }
+        if (end - start == 1) {
+            final char c = topic.charAt(start);
+            if (c == '#') {
                 // check that multi is the last symbol
-                if (i != splitted.length - 1) {
+                if (level != levels - 1) {
                     throw new ParseException(
-                            "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
-                            i);
+                        "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
+                        level);
                 }
-                res.add(Token.MULTI);
-            } else if (s.contains("#")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else if (s.equals("+")) {
-                res.add(Token.SINGLE);
-            } else if (s.contains("+")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else {
-                res.add(new Token(s));
+                return Token.MULTI;
+            }
+            if (c == '+') {
+                return Token.SINGLE;
+            }
+        }
+        // validates and hashes in one pass
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            final char c = topic.charAt(i);
+            if (c == '#' || c == '+') {
+                throw new ParseException("Bad format of topic, invalid subtopic name: " +
+                                         topic.substring(start, end), level);
             }
+            hash = 31 * hash + c;
         }
+        return Token.intern(topic, start, end, hash);
+    }
 
-        return res;
+    /**
+     * @return the number of levels of this topic, 0 if the topic is empty or invalid.
+     * */
+    int levels() {
+        if (!parse()) {
+            return 0;
+        }
+        return tokens.length - offset;
+    }
+
+    /**
+     * @param level the index of the level, starting from 0 and less than {@link #levels()}.
+     * @return the token at the requested level.
+     * */
+    Token tokenAt(int level) {
+        parse();
+        return tokens[offset + level];
     }
 
     public Token headToken() {
-        final List<Token> tokens = getTokens();
-        if (tokens.isEmpty()) {
+        if (isEmpty()) {
             //TODO UGLY use Optional
             return null;
         }
-        return tokens.get(0);
+        return tokens[offset];
     }
 
     public boolean isEmpty() {
-        final List<Token> tokens = getTokens();
-        return tokens == null || tokens.isEmpty();
+        return levels() == 0;
     }
 
     /**
-     * @return a new Topic corresponding to this less than the head token
+     * @return a Topic corresponding to this less than the head token, it shares the tokens with this instance.
      * */
     public Topic exceptHeadToken() {
-        List<Token> tokens = getTokens();
-        if (tokens.isEmpty()) {
-            return new Topic(Collections.emptyList());
-        }
-        List<Token> tokensCopy = new ArrayList<>(tokens);
-        tokensCopy.remove(0);
-        return new Topic(tokensCopy);
+        parse();
+        return new Topic(tokens, Math.min(offset + 1, tokens.length));
     }
 
     public boolean isValid() {
-        if (tokens == null)
-            getTokens();
-
+        parse();
         return valid;
     }
 
@@ -165,38 +213,52 @@ public class Topic implements Serializable, Comparable<Topic> {
      *            the topic filter of the subscription
      * @return true if the two topics match.
      */
-    // TODO reimplement with iterators or with queues
     public boolean match(Topic subscriptionTopic) {
-        List<Token> msgTokens = getTokens();
-        List<Token> subscriptionTokens = subscriptionTopic.getTokens();
+        final int msgLevels = levels();
+        final int subscriptionLevels = subscriptionTopic.levels();
         int i = 0;
-        for (; i < subscriptionTokens.size(); i++) {
-            Token subToken = subscriptionTokens.get(i);
-            if (!Token.MULTI.equals(subToken) && !Token.SINGLE.equals(subToken)) {
-                if (i >= msgTokens.size()) {
+        for (; i < subscriptionLevels; i++) {
+            Token subToken = subscriptionTopic.tokenAt(i);
+            if (subToken == Token.MULTI) {
+                return true;
+            }
+            if (subToken != Token.SINGLE) {
+                if (i >= msgLevels) {
                     return false;
                 }
-                Token msgToken = msgTokens.get(i);
-                if (!msgToken.equals(subToken)) {
+                if (!tokenAt(i).equals(subToken)) {
                     return false;
                 }
-            } else {
-                if (Token.MULTI.equals(subToken)) {
-                    return true;
-                }
-//                if (Token.SINGLE.equals(subToken)) {
-//                    // skip a step forward
-//                }
             }
         }
-        return i == msgTokens.size();
+        return i == msgLevels;
     }
 
     @Override
     public String toString() {
+        if (topic == null) {
+            topic = joinTokens();
+        }
         return topic;
     }
 
+    private String joinTokens() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = offset; i < tokens.length; i++) {
+            if (i > offset) {
+                sb.append('/');
+            }
+            sb.append(tokens[i].toString());
+        }
+        return sb.toString();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // views carry only the tokens, materialize the string that is the serialized form
+        toString();
+        out.defaultWriteObject();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -207,16 +269,16 @@ public class Topic implements Serializable, Comparable<Topic> {
         }
         Topic other = (Topic) obj;
 
-        return Objects.equals(this.topic, other.topic);
+        return Objects.equals(this.toString(), other.toString());
     }
 
     @Override
     public int hashCode() {
-        return topic.hashCode();
+        return toString().hashCode();
     }
 
     @Override
     public int compareTo(Topic o) {
-        return topic.compareTo(o.topic);
+        return toString().compareTo(o.toString());
     }
 }
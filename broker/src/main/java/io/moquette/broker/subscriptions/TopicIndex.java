@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tree of values indexed by topic name, one level of the topic per node.
+ *
+ * Lookup of a topic name costs O(levels) while a lookup by topic filter descends only the branches that the
+ * filter can match. Updates are serialized, reads are lock free and see the tree as updated by the last
+ * completed update.
+ *
+ * @param <V> the type of the values.
+ * */
+public final class TopicIndex<V> {
+
+    private static final class Node<V> {
+        final ConcurrentMap<Token, Node<V>> children = new ConcurrentHashMap<>();
+        volatile V value;
+
+        boolean isEmpty() {
+            return value == null && children.isEmpty();
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+    private volatile int size;
+
+    /**
+     * @return the value previously stored for the topic, or null.
+     * */
+    public synchronized V put(Topic topic, V value) {
+        Node<V> node = root;
+        final int levels = topic.levels();
+        for (int i = 0; i < levels; i++) {
+            node = node.children.computeIfAbsent(topic.tokenAt(i), t -> new Node<>());
+        }
+        final V previous = node.value;
+        node.value = value;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the value of the topic and the nodes left empty.
+     *
+     * @return the removed value or null if not present.
+     * */
+    public synchronized V remove(Topic topic) {
+        final int levels = topic.levels();
+        @SuppressWarnings("unchecked")
+        final Node<V>[] path = (Node<V>[]) new Node[levels + 1];
+        path[0] = root;
+        for (int i = 0; i < levels; i++) {
+            path[i + 1] = path[i].children.get(topic.tokenAt(i));
+            if (path[i + 1] == null) {
+                return null;
+            }
+        }
+        final V previous = path[levels].value;
+        if (previous == null) {
+            return null;
+        }
+        path[levels].value = null;
+        size--;
+        for (int i = levels; i > 0 && path[i].isEmpty(); i--) {
+            path[i - 1].children.remove(topic.tokenAt(i - 1));
+        }
+        return previous;
+    }
+
+    /**
+     * @return the value stored for the topic name, or null.
+     * */
+    public V get(Topic topic) {
+        Node<V> node = root;
+        final int levels = topic.levels();
+        for (int i = 0; i < levels && node != null; i++) {
+            node = node.children.get(topic.tokenAt(i));
+        }
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * @return the values of the topic names matched by the topic filter, the same the CTrie would match, so a
+     * + never matches a missing level.
+     * */
+    public List<V> match(Topic topicFilter) {
+        final List<V> matches = new ArrayList<>();
+        if (topicFilter.isValid()) {
+            match(topicFilter, 0, root, matches);
+        }
+        return matches;
+    }
+
+    private void match(Topic topicFilter, int level, Node<V> node, List<V> matches) {
+        if (level == topicFilter.levels()) {
+            addIfPresent(node, matches);
+            return;
+        }
+        final Token token = topicFilter.tokenAt(level);
+        if (token == Token.MULTI) {
+            // # matches also the parent level
+            collectAll(node, matches);
+        } else if (token == Token.SINGLE) {
+            for (Node<V> child : node.children.values()) {
+                match(topicFilter, level + 1, child, matches);
+            }
+        } else {
+            final Node<V> child = node.children.get(token);
+            if (child != null) {
+                match(topicFilter, level + 1, child, matches);
+            }
+        }
+    }
+
+    private void collectAll(Node<V> node, List<V> matches) {
+        addIfPresent(node, matches);
+        for (Node<V> child : node.children.values()) {
+            collectAll(child, matches);
+        }
+    }
+
+    private static <V> void addIfPresent(Node<V> node, List<V> matches) {
+        final V value = node.value;
+        if (value != null) {
+            matches.add(value);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
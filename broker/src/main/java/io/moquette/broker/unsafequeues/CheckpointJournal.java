@@ -0,0 +1,477 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Append only file where the {@link QueuePool} saves the position of its queues.
+ *
+ * Each checkpoint appends the state of the allocator, the state of the queues changed since the previous one and a
+ * commit record. Every record is framed as:
+ * <pre>
+ *   int body length | int CRC32 of type and body | byte type | body
+ * </pre>
+ * On load the records are replayed up to the last commit; a record cut by a crash or with a wrong checksum ends the
+ * replay and the file is truncated there, so that the following checkpoints are appended after a valid one.
+ *
+ * When the journal grows beyond twice the size of its last compaction it's rewritten with the state of all the queues,
+ * into a temporary file that atomically replaces the old one.
+ *
+ * Not thread safe, the queue pool writes it holding its checkpoint lock.
+ * */
+final class CheckpointJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CheckpointJournal.class);
+
+    static final String FILE_NAME = "checkpoint.journal";
+    static final String LEGACY_FILE_NAME = "checkpoint.properties";
+    private static final String COMPACTION_FILE_NAME = "checkpoint.journal.tmp";
+
+    private static final int MAGIC = 0x4D514A31; // "MQJ1"
+    private static final int FILE_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 1;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final int REPLAY_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte ALLOCATOR_RECORD = 1;
+    private static final byte QUEUE_RECORD = 2;
+    private static final byte COMMIT_RECORD = 3;
+
+    /**
+     * Position of a queue: its segments from head to tail and the offsets of head and tail inside their segment,
+     * with the same meaning they had in the properties checkpoint, and how many of its records reference each
+     * segment of the {@link SharedLog}.
+     * */
+    static final class QueueState {
+        private static final QueuePool.SegmentRef[] NO_LOG_SEGMENTS = new QueuePool.SegmentRef[0];
+        private static final int[] NO_LOG_REFERENCES = new int[0];
+
+        final String name;
+        final QueuePool.SegmentRef[] segments;
+        final long headOffset;
+        final long tailOffset;
+        final QueuePool.SegmentRef[] logSegments;
+        final int[] logReferences;
+
+        QueueState(String name, QueuePool.SegmentRef[] segments, long headOffset, long tailOffset) {
+            this(name, segments, headOffset, tailOffset, NO_LOG_SEGMENTS, NO_LOG_REFERENCES);
+        }
+
+        QueueState(String name, QueuePool.SegmentRef[] segments, long headOffset, long tailOffset,
+                   QueuePool.SegmentRef[] logSegments, int[] logReferences) {
+            this.name = name;
+            this.segments = segments;
+            this.headOffset = headOffset;
+            this.tailOffset = tailOffset;
+            this.logSegments = logSegments;
+            this.logReferences = logReferences;
+        }
+
+        boolean references(QueuePool.SegmentRef segment) {
+            for (QueuePool.SegmentRef ref : segments) {
+                if (ref.pageId == segment.pageId && ref.offset == segment.offset && ref.slabSize == segment.slabSize) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int encodedSize(byte[] nameBytes) {
+            final int logReferencesSize = logSegments.length == 0 ? 0 : 4 + logSegments.length * 12;
+            return 2 + nameBytes.length + 8 + 8 + 4 + 4 + segments.length * 8 + logReferencesSize;
+        }
+    }
+
+    /**
+     * Content of the last committed checkpoint.
+     * */
+    static final class Checkpoint {
+        int lastPage;
+        int lastSegment;
+        long commitSequence;
+        // in the order the queues were first saved
+        final Map<String, QueueState> queues = new LinkedHashMap<>();
+    }
+
+    private final Path dataPath;
+    private final boolean sync;
+    private FileChannel channel;
+    private long compactedSize;
+    private long commitSequence;
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    private CheckpointJournal(Path dataPath, boolean sync, FileChannel channel, long compactedSize) {
+        this.dataPath = dataPath;
+        this.sync = sync;
+        this.channel = channel;
+        this.compactedSize = compactedSize;
+    }
+
+    /**
+     * Open the journal in the folder, creating it when missing, and fill loaded with the committed state. A folder
+     * that has only the properties file written by older versions is loaded from it, and converted to a journal.
+     *
+     * @param sync when true every checkpoint is forced to disk.
+     * */
+    static CheckpointJournal open(Path dataPath, boolean sync, Checkpoint loaded) throws QueueException {
+        final Path journalPath = dataPath.resolve(FILE_NAME);
+        final Path legacyPath = dataPath.resolve(LEGACY_FILE_NAME);
+        try {
+            if (!Files.exists(journalPath) && Files.exists(legacyPath)) {
+                LOG.info("Loading queues from {}, they will be saved in {}", legacyPath, journalPath);
+                loadLegacy(legacyPath, loaded);
+                // the journal appears only once it contains all the queues, else a crash would lose the old state
+                final CheckpointJournal journal = new CheckpointJournal(dataPath, sync, null, 0);
+                journal.compact(loaded.lastPage, loaded.lastSegment, loaded.queues.values());
+                Files.delete(legacyPath);
+                return journal;
+            }
+            if (!Files.exists(journalPath)) {
+                LOG.info("Can't find any file named '{}' in path: {}, creating new one", FILE_NAME, dataPath);
+                return new CheckpointJournal(dataPath, sync, createJournal(journalPath), 0);
+            }
+            final FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final long validSize = replay(channel, journalPath, loaded);
+            if (validSize < channel.size()) {
+                LOG.warn("Discarding {} bytes not committed at the end of {}", channel.size() - validSize, journalPath);
+                channel.truncate(validSize);
+            }
+            channel.position(validSize);
+            final CheckpointJournal journal = new CheckpointJournal(dataPath, sync, channel, validSize);
+            journal.commitSequence = loaded.commitSequence;
+            return journal;
+        } catch (IOException ex) {
+            throw new QueueException("Problem loading the checkpoint journal in " + dataPath, ex);
+        }
+    }
+
+    /**
+     * Read the committed state without opening the journal for write.
+     * */
+    static Checkpoint read(Path dataPath) throws QueueException {
+        final Path journalPath = dataPath.resolve(FILE_NAME);
+        final Checkpoint checkpoint = new Checkpoint();
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ)) {
+            replay(channel, journalPath, checkpoint);
+        } catch (IOException ex) {
+            throw new QueueException("Problem reading the checkpoint journal " + journalPath, ex);
+        }
+        return checkpoint;
+    }
+
+    private static FileChannel createJournal(Path journalPath) throws IOException {
+        final FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(channel, (ByteBuffer) ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).flip());
+        return channel;
+    }
+
+    /**
+     * @return the position after the last commit record.
+     * */
+    private static long replay(FileChannel channel, Path journalPath, Checkpoint loaded) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (channel.read(fileHeader, 0) != FILE_HEADER_SIZE || fileHeader.getInt(0) != MAGIC) {
+            throw new IOException("File " + journalPath + " is not a checkpoint journal");
+        }
+        long position = FILE_HEADER_SIZE;
+        long committedPosition = position;
+        // the records after the last commit are staged and discarded if the commit is missing
+        final Checkpoint staged = new Checkpoint();
+        staged.lastPage = loaded.lastPage;
+        staged.lastSegment = loaded.lastSegment;
+        final SequentialReader reader = new SequentialReader(channel, position, size);
+        final CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            ByteBuffer records = reader.fill(RECORD_HEADER_SIZE);
+            final int length = records.getInt();
+            final int checksum = records.getInt();
+            final byte type = records.get();
+            if (length < 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            records = reader.fill(length);
+            crc.reset();
+            crc.update(type);
+            crc.update(records.array(), records.arrayOffset() + records.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+            final ByteBuffer body = records.slice();
+            body.limit(length);
+            records.position(records.position() + length);
+            switch (type) {
+                case ALLOCATOR_RECORD:
+                    staged.lastPage = body.getInt();
+                    staged.lastSegment = body.getInt();
+                    break;
+                case QUEUE_RECORD:
+                    final QueueState state = decodeQueue(body);
+                    staged.queues.put(state.name, state);
+                    break;
+                case COMMIT_RECORD:
+                    loaded.lastPage = staged.lastPage;
+                    loaded.lastSegment = staged.lastSegment;
+                    loaded.commitSequence = body.getLong();
+                    loaded.queues.putAll(staged.queues);
+                    staged.queues.clear();
+                    committedPosition = position;
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " in " + journalPath);
+            }
+        }
+        return committedPosition;
+    }
+
+    /**
+     * Reads the journal in large chunks, instead of a read for each header and body.
+     * */
+    private static final class SequentialReader {
+        private final FileChannel channel;
+        private final long size;
+        private long readPosition;
+        private ByteBuffer buffer = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+
+        SequentialReader(FileChannel channel, long position, long size) {
+            this.channel = channel;
+            this.readPosition = position;
+            this.size = size;
+            buffer.flip();
+        }
+
+        /**
+         * @return the buffer positioned on the next bytes, with at least the requested ones unless the file ends.
+         * */
+        ByteBuffer fill(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return buffer;
+            }
+            if (bytes > buffer.capacity()) {
+                final ByteBuffer larger = ByteBuffer.allocate(bytes);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < bytes && readPosition < size) {
+                final int read = channel.read(buffer, readPosition);
+                if (read < 0) {
+                    break;
+                }
+                readPosition += read;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static QueueState decodeQueue(ByteBuffer body) {
+        final byte[] nameBytes = new byte[body.getShort() & 0xFFFF];
+        body.get(nameBytes);
+        final long headOffset = body.getLong();
+        final long tailOffset = body.getLong();
+        final int slabSize = body.getInt();
+        final QueuePool.SegmentRef[] segments = new QueuePool.SegmentRef[body.getInt()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new QueuePool.SegmentRef(body.getInt(), body.getInt(), slabSize);
+        }
+        final String name = new String(nameBytes, StandardCharsets.UTF_8);
+        if (!body.hasRemaining()) {
+            // without references to the shared log, also the records of previous versions
+            return new QueueState(name, segments, headOffset, tailOffset);
+        }
+        final QueuePool.SegmentRef[] logSegments = new QueuePool.SegmentRef[body.getInt()];
+        final int[] logReferences = new int[logSegments.length];
+        for (int i = 0; i < logSegments.length; i++) {
+            logSegments[i] = new QueuePool.SegmentRef(body.getInt(), body.getInt());
+            logReferences[i] = body.getInt();
+        }
+        return new QueueState(name, segments, headOffset, tailOffset, logSegments, logReferences);
+    }
+
+    private static void loadLegacy(Path legacyPath, Checkpoint loaded) throws IOException {
+        // structure of queues definitions in properties file:
+        // queues.0.name = bla bla
+        // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
+        // queues.0.head_offset = bytes offset from the start of the page where last data was written
+        // queues.0.tail_offset = bytes offset from the start of the page where first data could be read
+        final Properties checkpointProps = new Properties();
+        try (FileReader fileReader = new FileReader(legacyPath.toFile())) {
+            checkpointProps.load(fileReader);
+        }
+        loaded.lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
+        loaded.lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+        for (int queueId = 0; checkpointProps.containsKey(String.format("queues.%d.name", queueId)); queueId++) {
+            final String name = checkpointProps.getProperty(String.format("queues.%d.name", queueId));
+            final List<QueuePool.SegmentRef> segments =
+                decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
+            final long headOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.head_offset", queueId)));
+            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
+            loaded.queues.put(name, new QueueState(name, segments.toArray(new QueuePool.SegmentRef[0]),
+                headOffset, tailOffset));
+        }
+    }
+
+    private static List<QueuePool.SegmentRef> decodeSegments(String s) {
+        final String[] segments = s.substring(s.indexOf("(") + 1, s.lastIndexOf(")"))
+                .split("\\), \\(");
+
+        final QueuePool.SegmentRef[] acc = new QueuePool.SegmentRef[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            final String[] split = segments[i].split(",");
+            acc[i] = new QueuePool.SegmentRef(Integer.parseInt(split[0].trim()), Integer.parseInt(split[1].trim()));
+        }
+        return Arrays.asList(acc);
+    }
+
+    /**
+     * @return true when the next checkpoint has to save all the queues, rewriting the journal.
+     * */
+    boolean needsCompaction() throws QueueException {
+        try {
+            return channel.size() > Math.max(MIN_COMPACTION_SIZE, 2 * compactedSize);
+        } catch (IOException ex) {
+            throw new QueueException("Problem reading the size of the checkpoint journal", ex);
+        }
+    }
+
+    /**
+     * Append the changed queues followed by a commit.
+     * */
+    void append(int lastPage, int lastSegment, Collection<QueueState> changed) throws QueueException {
+        encode(lastPage, lastSegment, changed);
+        try {
+            writeFully(channel, buffer);
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Problem appending to the checkpoint journal", ex);
+        }
+    }
+
+    /**
+     * Replace the journal with one containing only the state of all the queues.
+     * */
+    void compact(int lastPage, int lastSegment, Collection<QueueState> all) throws QueueException {
+        encode(lastPage, lastSegment, all);
+        final Path compactionPath = dataPath.resolve(COMPACTION_FILE_NAME);
+        final Path journalPath = dataPath.resolve(FILE_NAME);
+        try {
+            final FileChannel compacted = createJournal(compactionPath);
+            writeFully(compacted, buffer);
+            compacted.force(false);
+            if (channel != null) {
+                channel.close();
+            }
+            Files.move(compactionPath, journalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel = compacted;
+            compactedSize = channel.size();
+        } catch (IOException ex) {
+            throw new QueueException("Problem compacting the checkpoint journal", ex);
+        }
+        if (sync) {
+            syncDirectory();
+        }
+        LOG.debug("Compacted checkpoint journal to {} bytes with {} queues", compactedSize, all.size());
+    }
+
+    private void syncDirectory() {
+        // makes the rename durable, not supported on every platform
+        try (FileChannel directory = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException ex) {
+            LOG.debug("Can't force the directory {}", dataPath, ex);
+        }
+    }
+
+    private void encode(int lastPage, int lastSegment, Collection<QueueState> states) {
+        buffer.clear();
+        final int allocatorStart = beginRecord(8);
+        buffer.putInt(lastPage).putInt(lastSegment);
+        endRecord(allocatorStart, ALLOCATOR_RECORD);
+        for (QueueState state : states) {
+            final byte[] nameBytes = state.name.getBytes(StandardCharsets.UTF_8);
+            final int queueStart = beginRecord(state.encodedSize(nameBytes));
+            buffer.putShort((short) nameBytes.length).put(nameBytes)
+                .putLong(state.headOffset)
+                .putLong(state.tailOffset)
+                // a queue in a slab has only that segment
+                .putInt(state.segments.length == 1 ? state.segments[0].slabSize : 0)
+                .putInt(state.segments.length);
+            for (QueuePool.SegmentRef segment : state.segments) {
+                buffer.putInt(segment.pageId).putInt(segment.offset);
+            }
+            if (state.logSegments.length > 0) {
+                buffer.putInt(state.logSegments.length);
+                for (int i = 0; i < state.logSegments.length; i++) {
+                    buffer.putInt(state.logSegments[i].pageId).putInt(state.logSegments[i].offset)
+                        .putInt(state.logReferences[i]);
+                }
+            }
+            endRecord(queueStart, QUEUE_RECORD);
+        }
+        final int commitStart = beginRecord(8);
+        buffer.putLong(++commitSequence);
+        endRecord(commitStart, COMMIT_RECORD);
+        buffer.flip();
+    }
+
+    private int beginRecord(int bodySize) {
+        final int required = RECORD_HEADER_SIZE + bodySize;
+        if (buffer.remaining() < required) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+            buffer.flip();
+            buffer = grown.put(buffer);
+        }
+        final int start = buffer.position();
+        buffer.position(start + RECORD_HEADER_SIZE);
+        return start;
+    }
+
+    private void endRecord(int start, byte type) {
+        final int bodyStart = start + RECORD_HEADER_SIZE;
+        final int length = buffer.position() - bodyStart;
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(buffer.array(), bodyStart, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.put(start + 8, type);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer content) throws IOException {
+        while (content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+
+    void close() throws QueueException {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new QueueException("Problem closing the checkpoint journal", ex);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package io.moquette.broker.unsafequeues;
+
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single mapping of each page file, shared by all the segments in it.
+ *
+ * A page stays mapped while pinned: the segments referenced by a queue, the carriers of the slabs and the page the
+ * allocator is splitting hold a pin each, taken by {@link #acquire(int)} and given back by {@link #release(int)}.
+ * A page without pins is kept mapped in case it's reused, and the least recently released ones are unmapped when
+ * there are more than the idle limit. A page written after the last {@link #forceDirtyPages()} isn't unmapped, so
+ * that the next checkpoint finds it to force.
+ *
+ * A background thread maps the next page before the allocator needs it and reads ahead the segments queues are
+ * going to read.
+ * */
+final class MappedPageCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedPageCache.class);
+
+    // size of the memory pages touched by the read ahead
+    private static final int OS_PAGE_SIZE = 4096;
+
+    private static final class Page {
+        final MappedByteBuffer buffer;
+        int pins;
+
+        Page(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path pagesFolder;
+    private final int pageSize;
+    private final int maxIdlePages;
+    // pinned pages are read without lock
+    private final Map<Integer, Page> pages = new ConcurrentHashMap<>();
+    // pages without pins, least recently released first
+    private final LinkedHashMap<Integer, Page> idlePages = new LinkedHashMap<>();
+    private final Set<Integer> dirtyPages = ConcurrentHashMap.newKeySet();
+    private final ExecutorService background;
+    private long maps;
+    private long unmaps;
+    // written by the read ahead, so that its reads aren't optimized away
+    private long readAheadChecksum;
+
+    MappedPageCache(Path pagesFolder, int pageSize, int maxIdlePages) {
+        this.pagesFolder = pagesFolder;
+        this.pageSize = pageSize;
+        this.maxIdlePages = maxIdlePages;
+        this.background = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "queue-pages-" + pagesFolder.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Pin the page, mapping it if it isn't, creating its file if it doesn't exist.
+     *
+     * @return the mapping of the whole page.
+     * */
+    MappedByteBuffer acquire(int pageId) throws QueueException {
+        synchronized (this) {
+            final Page page = pages.get(pageId);
+            if (page != null) {
+                pin(pageId, page);
+                return page.buffer;
+            }
+        }
+        // mapped out of the lock, a thread mapping the same page meanwhile has the duplicate dropped
+        final MappedByteBuffer mapped = map(pageId);
+        final Page page;
+        final boolean duplicate;
+        synchronized (this) {
+            maps++;
+            final Page existing = pages.get(pageId);
+            duplicate = existing != null;
+            if (duplicate) {
+                unmaps++;
+            }
+            page = duplicate ? existing : new Page(mapped);
+            pages.put(pageId, page);
+            pin(pageId, page);
+        }
+        if (duplicate) {
+            unmap(mapped);
+        }
+        return page.buffer;
+    }
+
+    /**
+     * Pin in background the page that's going to be needed.
+     * */
+    Future<MappedByteBuffer> acquireAsync(int pageId) {
+        return background.submit(() -> acquire(pageId));
+    }
+
+    private void pin(int pageId, Page page) {
+        if (page.pins++ == 0) {
+            idlePages.remove(pageId);
+        }
+    }
+
+    void release(int pageId) {
+        final List<MappedByteBuffer> evicted;
+        synchronized (this) {
+            final Page page = pages.get(pageId);
+            if (page == null || page.pins == 0) {
+                throw new IllegalStateException("Page " + pageId + " isn't pinned");
+            }
+            if (--page.pins > 0) {
+                return;
+            }
+            idlePages.put(pageId, page);
+            evicted = evictIdlePages();
+        }
+        evicted.forEach(MappedPageCache::unmap);
+    }
+
+    /**
+     * @return the mapping of a page that the caller pinned.
+     * */
+    MappedByteBuffer pinned(int pageId) {
+        final Page page = pages.get(pageId);
+        if (page == null) {
+            throw new IllegalStateException("Page " + pageId + " isn't mapped");
+        }
+        return page.buffer;
+    }
+
+    // to be called holding the lock, the buffers are unmapped after releasing it
+    private List<MappedByteBuffer> evictIdlePages() {
+        final List<MappedByteBuffer> evicted = new ArrayList<>();
+        final Iterator<Map.Entry<Integer, Page>> idleIt = idlePages.entrySet().iterator();
+        while (idlePages.size() > maxIdlePages && idleIt.hasNext()) {
+            final Map.Entry<Integer, Page> idle = idleIt.next();
+            if (dirtyPages.contains(idle.getKey())) {
+                continue;
+            }
+            idleIt.remove();
+            pages.remove(idle.getKey());
+            evicted.add(idle.getValue().buffer);
+            unmaps++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Record that a pinned page was written, to be forced by the next {@link #forceDirtyPages()}.
+     * */
+    void markDirty(int pageId) {
+        // the lookup doesn't lock, the insert does
+        if (!dirtyPages.contains(pageId)) {
+            dirtyPages.add(pageId);
+        }
+    }
+
+    /**
+     * Force to disk the pages written after the previous call.
+     * */
+    void forceDirtyPages() {
+        // a page marked again while forced is kept for the next call
+        for (Integer pageId : dirtyPages) {
+            final MappedByteBuffer buffer;
+            synchronized (this) {
+                // a dirty page is evicted only by close
+                final Page page = pages.get(pageId);
+                if (page == null) {
+                    dirtyPages.remove(pageId);
+                    continue;
+                }
+                pin(pageId, page);
+                buffer = page.buffer;
+            }
+            dirtyPages.remove(pageId);
+            try {
+                buffer.force();
+            } finally {
+                release(pageId);
+            }
+        }
+    }
+
+    /**
+     * Touch in background the memory of a pinned page range, to load it before a queue reads it.
+     * */
+    void readAhead(int pageId, int offset, int length) throws QueueException {
+        final MappedByteBuffer buffer = acquire(pageId);
+        try {
+            background.execute(() -> {
+                try {
+                    long checksum = 0;
+                    for (int i = offset; i < offset + length; i += OS_PAGE_SIZE) {
+                        checksum += buffer.get(i);
+                    }
+                    readAheadChecksum = checksum;
+                } finally {
+                    release(pageId);
+                }
+            });
+        } catch (RejectedExecutionException closing) {
+            release(pageId);
+        }
+    }
+
+    synchronized long mappedBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    synchronized long maps() {
+        return maps;
+    }
+
+    synchronized long unmaps() {
+        return unmaps;
+    }
+
+    /**
+     * Stop the background thread and unmap the pages without pins. The pinned ones could be still accessed by a
+     * queue, their mapping is freed once collected.
+     * */
+    void close() {
+        background.shutdown();
+        try {
+            if (!background.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warn("Background tasks on pages in {} didn't terminate", pagesFolder);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final List<MappedByteBuffer> idle = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Integer, Page> entry : idlePages.entrySet()) {
+                pages.remove(entry.getKey());
+                idle.add(entry.getValue().buffer);
+                unmaps++;
+            }
+            idlePages.clear();
+            LOG.debug("Closing page cache in {}, {} pages left to the GC", pagesFolder, pages.size());
+        }
+        idle.forEach(MappedPageCache::unmap);
+    }
+
+    private MappedByteBuffer map(int pageId) throws QueueException {
+        final Path pageFile = pagesFolder.resolve(String.format("%d.page", pageId));
+        boolean createNew = false;
+        if (!Files.exists(pageFile)) {
+            try {
+                pageFile.toFile().createNewFile();
+                createNew = true;
+            } catch (IOException ex) {
+                throw new QueueException("Can't create page file " + pageFile, ex);
+            }
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer mappedPage = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
+            // DBG
+            if (createNew && QueuePool.queueDebug) {
+                for (int i = 0; i < pageSize; i++) {
+                    mappedPage.put(i, (byte) 'C');
+                }
+            }
+            // DBG
+            LOG.debug("Mapped page file {}", pageFile);
+            return mappedPage;
+        } catch (IOException e) {
+            throw new QueueException("Can't open page file " + pageFile, e);
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        // without a cleaner available the mapping is freed once the buffer is collected
+        PlatformDependent.freeDirectBuffer(buffer);
+    }
+}
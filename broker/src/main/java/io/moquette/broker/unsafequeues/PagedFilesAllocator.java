@@ -1,15 +1,13 @@
 package io.moquette.broker.unsafequeues;
 
-import java.io.IOException;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
- * Default implementation of SegmentAllocator. It uses a series of files (named pages) and split them in segments.
+ * Default implementation of SegmentAllocator. It uses a series of files (named pages) and split them in segments,
+ * mapped by a {@link MappedPageCache}.
  *
  * This class is not thread safe.
  * */
@@ -19,72 +17,73 @@ class PagedFilesAllocator implements SegmentAllocator {
         void segmentedCreated(String name, Segment segment);
     }
 
-    private final Path pagesFolder;
+    private final MappedPageCache pages;
     private final int pageSize;
     private final int segmentSize;
     private int lastSegmentAllocated;
     private int lastPage;
+    // pinned while segments are taken from it
     private MappedByteBuffer currentPage;
-    private FileChannel currentPageFile;
+    // mapping of the page after the current one, prepared in background
+    private Future<MappedByteBuffer> nextPage;
 
-    PagedFilesAllocator(Path pagesFolder, int pageSize, int segmentSize, int lastPage, int lastSegmentAllocated) throws QueueException {
+    PagedFilesAllocator(MappedPageCache pages, int pageSize, int segmentSize, int lastPage, int lastSegmentAllocated) throws QueueException {
         if (pageSize % segmentSize != 0) {
             throw new IllegalArgumentException("The pageSize must be an exact multiple of the segmentSize");
         }
-        this.pagesFolder = pagesFolder;
+        this.pages = pages;
         this.pageSize = pageSize;
         this.segmentSize = segmentSize;
         this.lastPage = lastPage;
         this.lastSegmentAllocated = lastSegmentAllocated;
-        this.currentPage = openRWPageFile(this.pagesFolder, this.lastPage);
-    }
-
-    private MappedByteBuffer openRWPageFile(Path pagesFolder, int pageId) throws QueueException {
-        final Path pageFile = pagesFolder.resolve(String.format("%d.page", pageId));
-        boolean createNew = false;
-        if (!Files.exists(pageFile)) {
-            try {
-                pageFile.toFile().createNewFile();
-                createNew = true;
-            } catch (IOException ex) {
-                throw new QueueException("Reached an IO error during the bootstrapping of empty 'checkpoint.properties'", ex);
-            }
-        }
-
-        try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            this.currentPageFile = fileChannel;
-            final MappedByteBuffer mappedPage = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
-            // DBG
-            if (createNew && QueuePool.queueDebug) {
-                for (int i = 0; i < pageSize; i++) {
-                    mappedPage.put(i, (byte) 'C');
-                }
-            }
-            // DBG
-            return mappedPage;
-        } catch (IOException e) {
-            throw new QueueException("Can't open page file " + pageFile, e);
-        }
+        this.currentPage = pages.acquire(this.lastPage);
     }
 
     @Override
     public Segment nextFreeSegment() throws QueueException {
         if (currentPageIsExhausted()) {
-            lastPage++;
-            currentPage = openRWPageFile(pagesFolder, lastPage);
-            lastSegmentAllocated = 0;
+            moveToNextPage();
         }
 
         final int beginOffset = lastSegmentAllocated * segmentSize;
         final int endOffset = ((lastSegmentAllocated + 1) * segmentSize) - 1;
 
         lastSegmentAllocated += 1;
+        if (nextPage == null && lastSegmentAllocated * segmentSize >= pageSize / 2) {
+            // map the next page before it's needed, so that no writer waits for the file to be created
+            nextPage = pages.acquireAsync(lastPage + 1);
+        }
+        pages.acquire(lastPage);
         return new Segment(currentPage, new SegmentPointer(lastPage, beginOffset), new SegmentPointer(lastPage, endOffset));
     }
 
+    private void moveToNextPage() throws QueueException {
+        final Future<MappedByteBuffer> prepared = nextPage;
+        nextPage = null;
+        final MappedByteBuffer next = prepared != null ? await(prepared) : pages.acquire(lastPage + 1);
+        pages.release(lastPage);
+        lastPage++;
+        currentPage = next;
+        lastSegmentAllocated = 0;
+    }
+
+    private MappedByteBuffer await(Future<MappedByteBuffer> prepared) throws QueueException {
+        try {
+            return prepared.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueueException("Interrupted waiting the mapping of page " + (lastPage + 1), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof QueueException) {
+                throw (QueueException) e.getCause();
+            }
+            throw new QueueException("Can't map page " + (lastPage + 1), e.getCause());
+        }
+    }
+
     @Override
     public Segment reopenSegment(int pageId, int beginOffset) throws QueueException {
-        final MappedByteBuffer page = openRWPageFile(pagesFolder, pageId);
+        final MappedByteBuffer page = pages.acquire(pageId);
         final SegmentPointer begin = new SegmentPointer(pageId, beginOffset);
         final SegmentPointer end = new SegmentPointer(pageId, beginOffset + segmentSize - 1);
         return new Segment(page, begin, end);
@@ -92,12 +91,14 @@ class PagedFilesAllocator implements SegmentAllocator {
 
     @Override
     public void close() throws QueueException {
-        if (currentPageFile != null) {
-            try {
-                currentPageFile.close();
-            } catch (IOException ex) {
-                throw new QueueException("Problem closing current page file", ex);
+        try {
+            if (nextPage != null) {
+                await(nextPage);
+                nextPage = null;
+                pages.release(lastPage + 1);
             }
+        } finally {
+            pages.release(lastPage);
         }
     }
 
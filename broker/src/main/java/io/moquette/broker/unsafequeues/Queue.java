@@ -6,11 +6,17 @@ import org.slf4j.LoggerFactory;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 
 /**
  * Not thread safe disk persisted queue.
+ *
+ * After each change the queue publishes its position for the checkpoints of the {@link QueuePool}, which read it from
+ * their own thread.
  * */
 public class Queue {
     private static final Logger LOG = LoggerFactory.getLogger(Queue.class);
@@ -30,6 +36,20 @@ public class Queue {
     private final PagedFilesAllocator.AllocationListener allocationListener;
 //    private final ReentrantLock lock = new ReentrantLock();
 
+    // segments from head to tail, copied from the pool only when they change
+    private QueuePool.SegmentRef[] segmentRefs;
+    private boolean segmentsChanged = true;
+    // how many records of the queue reference each segment of the shared log
+    private final TreeMap<QueuePool.SegmentRef, Integer> logReferences = new TreeMap<>();
+    private QueuePool.SegmentRef[] logSegmentRefs = new QueuePool.SegmentRef[0];
+    private int[] logReferenceCounts = new int[0];
+    private boolean logReferencesChanged;
+    private volatile CheckpointJournal.QueueState state;
+    // true when state was published after the last checkpoint read it
+    private volatile boolean changed;
+    // last state saved by a checkpoint, accessed only holding the checkpoint lock of the pool
+    private CheckpointJournal.QueueState durableState;
+
     Queue(String name, Segment headSegment, VirtualPointer currentHeadPtr,
           Segment tailSegment, VirtualPointer currentTailPtr,
           SegmentAllocator allocator, PagedFilesAllocator.AllocationListener allocationListener, QueuePool queuePool) {
@@ -47,28 +67,82 @@ public class Queue {
      * @throws QueueException if an error happens during access to file.
      * */
     public void enqueue(ByteBuffer payload) throws QueueException {
-        final int messageSize = LENGTH_HEADER_SIZE + payload.remaining();
-        if (headSegment.hasSpace(currentHeadPtr, messageSize)) {
-            LOG.debug("Head segment has sufficient space for message length {}", LENGTH_HEADER_SIZE + payload.remaining());
-            writeData(headSegment, currentHeadPtr.plus(1), payload);
-            // move head segment
-            currentHeadPtr = currentHeadPtr.moveForward(messageSize);
-            return;
+        enqueueBatch(Collections.singletonList(payload));
+    }
+
+    /**
+     * Append the messages in order, reserving the space for all of them at once. When the batch fits in the head
+     * segment each message is copied in place, else the batch is laid out contiguously and all the new segments it
+     * spans are taken from the pool with a single acquisition of its allocation lock.
+     *
+     * @throws QueueException if an error happens during access to file.
+     * */
+    public void enqueueBatch(List<ByteBuffer> payloads) throws QueueException {
+        enqueueBatch(payloads, Collections.emptyList());
+    }
+
+    /**
+     * Append the messages as {@link #enqueueBatch(List)}, with the references to the shared log held by their
+     * records. The references are counted only once the batch is written, the queue takes them over from the caller.
+     *
+     * @throws QueueException if an error happens during access to file, the references are still owned by the
+     * caller.
+     * */
+    public void enqueueBatch(List<ByteBuffer> payloads, List<SharedLog.Entry> logEntries) throws QueueException {
+        if (append(payloads)) {
+            for (SharedLog.Entry entry : logEntries) {
+                referenceLog(entry);
+            }
+            publishState();
         }
+    }
 
-        LOG.debug("Head segment doesn't have enough space");
-        // the payload can't be fully contained into the current head segment and needs to be splitted
-        // with another segment.
+    private boolean append(List<ByteBuffer> payloads) throws QueueException {
+        long batchSize = 0;
+        for (ByteBuffer payload : payloads) {
+            batchSize += LENGTH_HEADER_SIZE + payload.remaining();
+        }
+        if (batchSize == 0) {
+            return false;
+        }
+        if (queuePool != null && !headSegment.hasSpace(currentHeadPtr, batchSize)) {
+            final boolean inSlab = headSegment.segmentSize != allocator.getSegmentSize();
+            final Segment target = queuePool.relocationTarget(name, liveBytes() + batchSize, inSlab);
+            if (target != null) {
+                relocate(target);
+            }
+        }
+        if (headSegment.hasSpace(currentHeadPtr, batchSize)) {
+            LOG.debug("Head segment has sufficient space for {} messages of total length {}", payloads.size(), batchSize);
+            for (ByteBuffer payload : payloads) {
+                final int messageSize = LENGTH_HEADER_SIZE + payload.remaining();
+                writeData(headSegment, currentHeadPtr.plus(1), payload);
+                // move head segment
+                currentHeadPtr = currentHeadPtr.moveForward(messageSize);
+            }
+            segmentWritten(headSegment);
+            return true;
+        }
+        if (batchSize > Integer.MAX_VALUE) {
+            throw new QueueException("Batch of " + batchSize + " bytes exceeds the maximum size");
+        }
 
+        LOG.debug("Head segment doesn't have enough space");
+        // the batch can't be fully contained into the current head segment and needs to be splitted
+        // with other segments.
 
-        final int dataSize = payload.remaining();
-        final ByteBuffer rawData = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE + dataSize)
-            .putInt(dataSize)
-            .put(payload)
-            .flip();
+        final ByteBuffer rawData = ByteBuffer.allocate((int) batchSize);
+        for (ByteBuffer payload : payloads) {
+            rawData.putInt(payload.remaining()).put(payload);
+        }
+        rawData.flip();
 
         // the bytes written from the payload input
         long bytesRemainingInHeaderSegment = Math.min(rawData.remaining(), headSegment.bytesAfter(currentHeadPtr));
+        // the new segments are requested together in global lock, before writing, so that a batch that can't be
+        // stored leaves the queue untouched
+        final List<Segment> newSegments = queuePool.nextFreeSegments(
+            segmentCountFromSize((int) (rawData.remaining() - bytesRemainingInHeaderSegment)));
         LOG.trace("Writing partial payload to offset {} for {} bytes", currentHeadPtr, bytesRemainingInHeaderSegment);
 
         if (bytesRemainingInHeaderSegment > 0) {
@@ -76,6 +150,7 @@ public class Queue {
             ByteBuffer slice = rawData.slice();
             slice.limit(copySize);
             writeDataNoHeader(headSegment, currentHeadPtr.plus(1), slice);
+            segmentWritten(headSegment);
             currentHeadPtr = currentHeadPtr.moveForward(bytesRemainingInHeaderSegment);
             // No need to move newSegmentPointer the pointer because the last spinningMove has already moved it
 
@@ -83,15 +158,11 @@ public class Queue {
             rawData.position(rawData.position() + copySize);
         }
 
-        Segment newSegment = null;
-
-        // till the payload is not completely stored,
-        // save the remaining part into a new segment.
-        while (rawData.hasRemaining()) {
-            // To request the next segment, it's needed to be done in global lock.
-            newSegment = queuePool.nextFreeSegment();
+        // save the remaining part into the new segments
+        for (Segment newSegment : newSegments) {
             //notify segment creation for queue in queue pool
             allocationListener.segmentedCreated(name, newSegment);
+            segmentsChanged = true;
 
             int copySize = (int) Math.min(rawData.remaining(), allocator.getSegmentSize());
             ByteBuffer slice = rawData.slice();
@@ -99,11 +170,177 @@ public class Queue {
 
             currentHeadPtr = currentHeadPtr.moveForward(copySize);
             writeDataNoHeader(newSegment, newSegment.begin, slice);
+            segmentWritten(newSegment);
             headSegment = newSegment;
 
             // shift forward the consumption point
             rawData.position(rawData.position() + copySize);
         }
+        return true;
+    }
+
+    /**
+     * @return the bytes of the records not yet dequeued, with their length headers.
+     * */
+    public long liveBytes() {
+        final long start = isTailFirstUsage(currentTailPtr) ? 0 : currentTailPtr.logicalOffset();
+        return currentHeadPtr.logicalOffset() - start + 1;
+    }
+
+    /**
+     * Move the content of the queue, that's at most in one segment, to the beginning of the target and release the
+     * old segment.
+     * */
+    private void relocate(Segment target) {
+        final long live = liveBytes();
+        LOG.debug("Relocating {} bytes of queue {} from {} to {}", live, name, tailSegment, target);
+        if (live > 0) {
+            final VirtualPointer start = isTailFirstUsage(currentTailPtr) ? currentTailPtr.plus(1) : currentTailPtr;
+            writeDataNoHeader(target, target.begin, tailSegment.read(start, (int) live));
+        }
+        final boolean holdsSegment = tailSegment != null;
+        allocationListener.segmentedCreated(name, target);
+        if (holdsSegment) {
+            consumedTailSegment();
+        }
+        segmentsChanged = true;
+        headSegment = target;
+        tailSegment = target;
+        currentTailPtr = VirtualPointer.buildUntouched();
+        currentHeadPtr = new VirtualPointer(live - 1);
+        segmentWritten(target);
+    }
+
+    /**
+     * Make the current position visible to the checkpoints, and notify the pool on the first change after the
+     * last checkpoint.
+     * */
+    void publishState() {
+        if (queuePool == null) {
+            // not part of a pool, nothing saves it
+            return;
+        }
+        if (segmentsChanged) {
+            segmentRefs = queuePool.segmentRefs(name);
+            segmentsChanged = false;
+        }
+        // the segments of a queue have all the same size, a full segment or a single slab
+        final int segmentSize = headSegment.segmentSize;
+        if (logReferencesChanged) {
+            logSegmentRefs = logReferences.keySet().toArray(new QueuePool.SegmentRef[0]);
+            logReferenceCounts = logReferences.values().stream().mapToInt(Integer::intValue).toArray();
+            logReferencesChanged = false;
+        }
+        state = new CheckpointJournal.QueueState(name, segmentRefs, currentHeadPtr.segmentOffset(segmentSize),
+            currentTailPtr.segmentOffset(segmentSize), logSegmentRefs, logReferenceCounts);
+        if (!changed) {
+            changed = true;
+            queuePool.queueChanged(this);
+        }
+    }
+
+    private void segmentWritten(Segment segment) {
+        if (queuePool != null) {
+            queuePool.segmentWritten(segment);
+        }
+    }
+
+    /**
+     * Set the state of a queue loaded from a checkpoint, that's already saved.
+     * */
+    void restoreState(CheckpointJournal.QueueState restored) {
+        segmentRefs = restored.segments;
+        segmentsChanged = false;
+        logSegmentRefs = restored.logSegments;
+        logReferenceCounts = restored.logReferences;
+        for (int i = 0; i < logSegmentRefs.length; i++) {
+            logReferences.put(logSegmentRefs[i], logReferenceCounts[i]);
+        }
+        state = restored;
+        durableState = restored;
+    }
+
+    /**
+     * Called by the checkpoints, from any thread.
+     *
+     * @return the last published state, null if the queue has never published one.
+     * */
+    CheckpointJournal.QueueState captureState() {
+        // cleared before reading the state, so that a change published meanwhile is notified again
+        changed = false;
+        return state;
+    }
+
+    void saved(CheckpointJournal.QueueState savedState) {
+        durableState = savedState;
+    }
+
+    /**
+     * @return true if after a crash the queue would be restored with the segment.
+     * */
+    boolean durablyReferences(QueuePool.SegmentRef segment) {
+        return durableState != null && durableState.references(segment);
+    }
+
+    /**
+     * Count a reference to the shared log held by a record just appended, saved together with the position
+     * published by the enqueue. The queue takes over the reference owned by the caller.
+     * */
+    private void referenceLog(SharedLog.Entry entry) {
+        logReferences.merge(queuePool.sharedLog().segmentRefOf(entry), 1, Integer::sum);
+        logReferencesChanged = true;
+    }
+
+    /**
+     * Drop the reference to the shared log held by the record just dequeued.
+     *
+     * @return a copy of the referenced record.
+     * */
+    public ByteBuffer dereferenceLog(SharedLog.Entry entry) {
+        final SharedLog log = queuePool.sharedLog();
+        final ByteBuffer record = log.read(entry);
+        final QueuePool.SegmentRef logSegment = log.segmentRefOf(entry);
+        logReferences.computeIfPresent(logSegment, (segment, count) -> count == 1 ? null : count - 1);
+        logReferencesChanged = true;
+        // references restored after a crash could outnumber the records, left when the queue drains
+        final Map<QueuePool.SegmentRef, Integer> stale = isEmpty() && !logReferences.isEmpty() ?
+            new TreeMap<>(logReferences) : Collections.emptyMap();
+        logReferences.keySet().removeAll(stale.keySet());
+        publishState();
+        log.release(entry);
+        stale.forEach(log::release);
+        return record;
+    }
+
+    /**
+     * Drop the records left in the queue, when it's purged without reading them, and all the references to the
+     * shared log they held. The records are skipped so that none can dereference a released log segment later.
+     *
+     * @throws QueueException if an error happens during access to file.
+     * */
+    public void releaseLogReferences() throws QueueException {
+        boolean skipped = false;
+        while (readNext().isPresent()) {
+            skipped = true;
+        }
+        if (logReferences.isEmpty()) {
+            if (skipped) {
+                publishState();
+            }
+            return;
+        }
+        final Map<QueuePool.SegmentRef, Integer> released = new TreeMap<>(logReferences);
+        logReferences.clear();
+        logReferencesChanged = true;
+        // published before the release, so the checkpoint that recycles a segment saves the queue without it
+        publishState();
+        final SharedLog log = queuePool.sharedLog();
+        released.forEach(log::release);
+    }
+
+    private void consumedTailSegment() {
+        queuePool.consumedTailSegment(name);
+        segmentsChanged = true;
     }
 
     private void writeDataNoHeader(Segment segment, SegmentPointer start, ByteBuffer data) {
@@ -128,8 +365,7 @@ public class Queue {
      * @param data the data to write.
      * */
     private void writeData(Segment segment, VirtualPointer start, int size, ByteBuffer data) {
-        ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE).putInt(size).flip();
-        segment.write(start, length); // write 4 bytes header
+        segment.writeHeader(start, size); // write 4 bytes header
         segment.write(start.plus(LENGTH_HEADER_SIZE), data); // write the payload
     }
 
@@ -160,14 +396,22 @@ public class Queue {
      * Read next message or return null if the queue has no data.
      * */
     public Optional<ByteBuffer> dequeue() throws QueueException {
-        if (!currentHeadPtr.isGreaterThan(currentTailPtr)) {
-            if (currentTailPtr.isGreaterThan(currentHeadPtr)) {
-                // sanity check
-                throw new QueueException("Current tail " + currentTailPtr + " is forward head " + currentHeadPtr);
-            }
-            // head and tail pointer are the same, the queue is empty
+        final Optional<ByteBuffer> data = readNext();
+        if (data.isPresent()) {
+            publishState();
+        }
+        return data;
+    }
+
+    private Optional<ByteBuffer> readNext() throws QueueException {
+        if (isEmpty()) {
+            // never written, or the tail is right after the last written byte
             return Optional.empty();
         }
+        if (!currentHeadPtr.isGreaterThan(currentTailPtr)) {
+            // sanity check
+            throw new QueueException("Current tail " + currentTailPtr + " is forward head " + currentHeadPtr);
+        }
         if (tailSegment == null) {
             tailSegment = queuePool.openNextTailSegment(name).get();
         }
@@ -199,10 +443,11 @@ public class Queue {
                 VirtualPointer dataStart = existingTail.moveForward(LENGTH_HEADER_SIZE);
 
                 if (remainingInSegment - LENGTH_HEADER_SIZE == 0) {
-                    queuePool.consumedTailSegment(name);
+                    // wiped before releasing it, then it could be unmapped
                     if (QueuePool.queueDebug) {
                         tailSegment.fillWith((byte) 'D');
                     }
+                    consumedTailSegment();
                     tailSegment = queuePool.openNextTailSegment(name).get();
                 }
 
@@ -244,11 +489,11 @@ public class Queue {
         final ByteBuffer partialHeader = segment.readAllBytesAfter(pointer);
         final int consumedHeaderSize = partialHeader.remaining();
         lengthBuffer.put(partialHeader);
-        queuePool.consumedTailSegment(name);
 
         if (QueuePool.queueDebug) {
             segment.fillWith((byte) 'D');
         }
+        consumedTailSegment();
 
         // read second part
         final int remainingHeaderSize = LENGTH_HEADER_SIZE - consumedHeaderSize;
@@ -275,10 +520,10 @@ public class Queue {
             remaining -= buffer.remaining();
 
             if (remaining > 0 || segmentCompletelyConsumed) {
-                queuePool.consumedTailSegment(name);
                 if (QueuePool.queueDebug) {
                     segment.fillWith((byte) 'D');
                 }
+                consumedTailSegment();
                 segment = queuePool.openNextTailSegment(name).orElse(null);
             }
         } while (remaining > 0);
@@ -3,16 +3,11 @@ package io.moquette.broker.unsafequeues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -20,39 +15,83 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
+/**
+ * Set of queues sharing the same page files.
+ *
+ * The position of the queues is saved by checkpoints in a {@link CheckpointJournal}, written on {@link #close()},
+ * on {@link #checkpoint()} and, depending on the {@link Durability}, from a background thread. A checkpoint saves
+ * only the queues changed after the previous one. A queue is restored from the last checkpoint: the messages
+ * enqueued after it are lost and the ones dequeued after it are read again.
+ * */
 public class QueuePool {
 
+    /**
+     * How the queues are saved to survive a crash of the process or of the machine.
+     * */
+    public enum Durability {
+        /**
+         * Checkpoints only on close or on request, and nothing is forced to disk. A crash of the process restores
+         * the queues from the last checkpoint, a consumed segment is reused immediately, so a queue restored from
+         * an older checkpoint could read messages of others.
+         * */
+        NONE,
+        /**
+         * A checkpoint at a fixed period, forcing to disk the pages written and then the journal.
+         * */
+        INTERVAL,
+        /**
+         * A checkpoint as soon as a queue changes; the changes made while one is forced to disk are batched in the
+         * next, so the forced pages are shared by all the queues that wrote them.
+         * */
+        GROUP_COMMIT
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(QueuePool.class);
 
     static final boolean queueDebug = Boolean.parseBoolean(System.getProperty("moquette.queue.debug", "false"));
 
+    // pages kept mapped after the last segment in them was released
+    private static final int IDLE_MAPPED_PAGES = 8;
+
     private final SegmentAllocationCallback callback;
 
     // visible for testing
     static class SegmentRef implements Comparable<SegmentRef> {
         final int pageId;
         final int offset;
+        // 0 for a full segment
+        final int slabSize;
 
         // visible for testing
         SegmentRef(int pageId, int offset) {
+            this(pageId, offset, 0);
+        }
+
+        SegmentRef(int pageId, int offset, int slabSize) {
             this.pageId = pageId;
             this.offset = offset;
+            this.slabSize = slabSize;
         }
 
-        public SegmentRef(Segment segment) {
-            this.pageId = segment.begin.pageId();
-            this.offset = segment.begin.offset();
+        boolean isSlab() {
+            return slabSize != 0;
         }
 
         @Override
         public String toString() {
+            if (isSlab()) {
+                return String.format("(%d, %d, slab %d)", pageId, offset, slabSize);
+            }
             return String.format("(%d, %d)", pageId, offset);
         }
 
@@ -93,18 +132,55 @@ public class QueuePool {
     }
 
     private final SegmentAllocator allocator;
+    private final MappedPageCache pages;
     private final Path dataPath;
     private final int segmentSize;
     private final ConcurrentMap<QueueName, LinkedList<SegmentRef>> queueSegments = new ConcurrentHashMap<>();
     private final ConcurrentMap<QueueName, Queue> queues = new ConcurrentHashMap<>();
+    // queues loaded from the checkpoint and not accessed yet, their segments are opened on first access
+    private final ConcurrentMap<QueueName, CheckpointJournal.QueueState> unopenedQueues = new ConcurrentHashMap<>();
     private final ConcurrentSkipListSet<SegmentRef> recycledSegments = new ConcurrentSkipListSet<>();
     private final ReentrantLock segmentsAllocationLock = new ReentrantLock();
-
-    private QueuePool(SegmentAllocator allocator, Path dataPath, int segmentSize) {
+    private final SlabAllocator slabs;
+    private final SharedLog sharedLog;
+
+    private final CheckpointJournal journal;
+    private final Durability durability;
+    private final long syncIntervalNanos;
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Queue> changedQueues = new ConcurrentLinkedQueue<>();
+    // consumed segments that are recycled once no saved queue state references them
+    private final ConcurrentLinkedQueue<ReleasedSegment> releasedSegments = new ConcurrentLinkedQueue<>();
+    // segments of the shared log without references, recycled after the next checkpoint
+    private final ConcurrentLinkedQueue<SegmentRef> reclaimedLogSegments = new ConcurrentLinkedQueue<>();
+    private int savedLastPage;
+    private int savedLastSegment;
+    private Thread checkpointer;
+    private volatile boolean commitRequested;
+    private volatile boolean closed;
+
+    private QueuePool(SegmentAllocator allocator, MappedPageCache pages, Path dataPath, int segmentSize,
+                      CheckpointJournal journal, Durability durability, long syncIntervalMillis, boolean smallQueueSlabs) {
         this.allocator = allocator;
+        this.pages = pages;
         this.dataPath = dataPath;
         this.segmentSize = segmentSize;
         this.callback = new SegmentAllocationCallback(this);
+        this.slabs = new SlabAllocator(segmentSize, smallQueueSlabs);
+        this.sharedLog = new SharedLog(this, pages, segmentSize);
+        this.journal = journal;
+        this.durability = durability;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+    }
+
+    private static final class ReleasedSegment {
+        final QueueName owner;
+        final SegmentRef segment;
+
+        private ReleasedSegment(QueueName owner, SegmentRef segment) {
+            this.owner = owner;
+            this.segment = segment;
+        }
     }
 
     private static class SegmentAllocationCallback implements PagedFilesAllocator.AllocationListener {
@@ -127,126 +203,164 @@ public class QueuePool {
         List<SegmentRef> segmentRefs = this.queueSegments.computeIfAbsent(queueName, k -> new LinkedList<>());
 
         // adds in head
-        segmentRefs.add(0, new SegmentRef(segment));
+        segmentRefs.add(0, refOf(segment));
 
         LOG.debug("queueSegments for queue {} after insertion {}", queueName, segmentRefs);
     }
 
+    private SegmentRef refOf(Segment segment) {
+        final int slabSize = segment.segmentSize == segmentSize ? 0 : segment.segmentSize;
+        return new SegmentRef(segment.begin.pageId(), segment.begin.offset(), slabSize);
+    }
+
     public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize) throws QueueException {
-        // read in checkpoint.properties
-        final Properties checkpointProps = createOrLoadCheckpointFile(dataPath);
+        return loadQueues(dataPath, pageSize, segmentSize, Durability.NONE, 0);
+    }
 
-        // load last references to segment and instantiate the allocator
-        final int lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
-        final int lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+    /**
+     * @param syncIntervalMillis period of the checkpoints in {@link Durability#INTERVAL} mode.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, Durability durability,
+                                       long syncIntervalMillis) throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, durability, syncIntervalMillis, false);
+    }
 
-        final PagedFilesAllocator allocator = new PagedFilesAllocator(dataPath, pageSize, segmentSize, lastPage, lastSegment);
+    /**
+     * @param smallQueueSlabs when true a new queue starts in a slab of few KB, shared with other queues, and takes
+     *                        full segments only when it grows; when false every queue has at least one segment.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, Durability durability,
+                                       long syncIntervalMillis, boolean smallQueueSlabs) throws QueueException {
+        if (durability == Durability.INTERVAL && syncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive, was " + syncIntervalMillis);
+        }
+        // read in checkpoint.journal
+        final CheckpointJournal.Checkpoint checkpoint = new CheckpointJournal.Checkpoint();
+        final CheckpointJournal journal = CheckpointJournal.open(dataPath, durability != Durability.NONE, checkpoint);
 
-        final QueuePool queuePool = new QueuePool(allocator, dataPath, segmentSize);
-        queuePool.loadQueueDefinitions(checkpointProps);
+        // load last references to segment and instantiate the allocator
+        final MappedPageCache pages = new MappedPageCache(dataPath, pageSize, IDLE_MAPPED_PAGES);
+        final PagedFilesAllocator allocator = new PagedFilesAllocator(pages, pageSize, segmentSize,
+            checkpoint.lastPage, checkpoint.lastSegment);
+
+        final QueuePool queuePool = new QueuePool(allocator, pages, dataPath, segmentSize, journal, durability,
+            syncIntervalMillis, smallQueueSlabs);
+        queuePool.savedLastPage = checkpoint.lastPage;
+        queuePool.savedLastSegment = checkpoint.lastSegment;
+        queuePool.loadSlabs(checkpoint);
+        queuePool.loadSharedLog(checkpoint);
+        queuePool.loadQueueDefinitions(checkpoint);
         LOG.debug("Loaded queues definitions: {}", queuePool.queueSegments);
 
-        queuePool.loadRecycledSegments(checkpointProps);
+        queuePool.loadRecycledSegments(checkpoint);
         LOG.debug("Recyclable segments are: {}", queuePool.recycledSegments);
+        LOG.info("Loaded {} queues from {}, {}", queuePool.size(), dataPath, queuePool.diskUsage());
+        queuePool.startCheckpoints();
         return queuePool;
     }
 
     public Set<String> queueNames() {
-        return queues.keySet().stream().map(qn -> qn.name).collect(Collectors.toSet());
+        final Set<String> names = new HashSet<>(size());
+        queues.keySet().forEach(qn -> names.add(qn.name));
+        unopenedQueues.keySet().forEach(qn -> names.add(qn.name));
+        return names;
     }
 
-    private static Properties createOrLoadCheckpointFile(Path dataPath) throws QueueException {
-        final Path checkpointPath = dataPath.resolve("checkpoint.properties");
-        if (!Files.exists(checkpointPath)) {
-            LOG.info("Can't find any file named 'checkpoint.properties' in path: {}, creating new one", dataPath);
-            final boolean notExisted;
-            try {
-                notExisted = checkpointPath.toFile().createNewFile();
-            } catch (IOException e) {
-                LOG.error("IO Error creating the file {}", checkpointPath, e);
-                throw new QueueException("Reached an IO error during the bootstrapping of empty 'checkpoint.properties'", e);
-            }
-            if (!notExisted) {
-                LOG.warn("Found a checkpoint file while bootstrapping {}", checkpointPath);
+    /**
+     * @return true if the queue exists, also when it's not opened yet.
+     * */
+    public boolean contains(String queueName) {
+        final QueueName queueN = new QueueName(queueName);
+        return queues.containsKey(queueN) || unopenedQueues.containsKey(queueN);
+    }
+
+    private int size() {
+        return queues.size() + unopenedQueues.size();
+    }
+
+    private void loadSlabs(CheckpointJournal.Checkpoint checkpoint) throws QueueException {
+        for (CheckpointJournal.QueueState state : checkpoint.queues.values()) {
+            for (SegmentRef segment : state.segments) {
+                if (segment.isSlab()) {
+                    slabs.restore(segment, allocator::reopenSegment);
+                }
             }
         }
+    }
 
-        final FileReader fileReader;
-        try {
-            fileReader = new FileReader(checkpointPath.toFile());
-        } catch (FileNotFoundException e) {
-            throw new QueueException("Can't find any file named 'checkpoint.properties' in path: " + dataPath, e);
-        }
-        final Properties checkpointProps = new Properties();
-        try {
-            checkpointProps.load(fileReader);
-        } catch (IOException e) {
-            throw new QueueException("if an error occurred when reading from: " + checkpointPath, e);
-        }
-        return checkpointProps;
-    }
-
-    private void loadQueueDefinitions(Properties checkpointProps) throws QueueException {
-        // structure of queues definitions in properties file:
-        // queues.0.name = bla bla
-        // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-        // queues.0.head_offset = bytes offset from the start of the page where last data was written
-        // queues.0.tail_offset = bytes offset from the start of the page where first data could be read
-        boolean noMoreQueues = false;
-        int queueId = 0;
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
-                continue;
+    private void loadSharedLog(CheckpointJournal.Checkpoint checkpoint) throws QueueException {
+        final TreeMap<SegmentRef, Integer> references = new TreeMap<>();
+        for (CheckpointJournal.QueueState state : checkpoint.queues.values()) {
+            for (int i = 0; i < state.logSegments.length; i++) {
+                references.merge(state.logSegments[i], state.logReferences[i], Integer::sum);
             }
-            final QueueName queueName = new QueueName(checkpointProps.getProperty(queueKey));
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
-            final int numSegments = segmentRefs.size();
-            queueSegments.put(queueName, segmentRefs);
-
-            final long headOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.head_offset", queueId)));
-            final SegmentRef headSegmentRef = segmentRefs.get(0);
-            final SegmentPointer currentHead = new SegmentPointer(headSegmentRef.pageId, headOffset);
-            // TODO this reopen could be done in lazy way during getOrCreate method.
-            Segment headSegment = allocator.reopenSegment(headSegmentRef.pageId, headSegmentRef.offset);
+        }
+        for (Map.Entry<SegmentRef, Integer> segmentReferences : references.entrySet()) {
+            sharedLog.restore(segmentReferences.getKey(), segmentReferences.getValue());
+        }
+    }
 
-            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
-            final SegmentRef tailSegmentRef = segmentRefs.getLast();
-            final SegmentPointer currentTail = new SegmentPointer(tailSegmentRef.pageId, tailOffset);
-            Segment tailSegment = allocator.reopenSegment(tailSegmentRef.pageId, tailSegmentRef.offset);
+    private void loadQueueDefinitions(CheckpointJournal.Checkpoint checkpoint) {
+        for (CheckpointJournal.QueueState state : checkpoint.queues.values()) {
+            unopenedQueues.put(new QueueName(state.name), state);
+        }
+    }
 
-            // Create relative positioned head and tail pointers
-            // Tail is an offset relative to start of the first segment in the list
-            // Head is n-1 full segments plus the offset of the physical head
-            final VirtualPointer logicalTail = new VirtualPointer(currentTail.offset());
-            final VirtualPointer logicalHead = new VirtualPointer((long) (numSegments - 1) * segmentSize + currentHead.offset());
-            final Queue queue = new Queue(queueName.name, headSegment, logicalHead, tailSegment, logicalTail,
-                allocator, callback, this);
-            queues.put(queueName, queue);
+    /**
+     * Open a queue restored from the checkpoint, pinning the pages of its segments.
+     * */
+    private Queue openQueue(QueueName queueName, CheckpointJournal.QueueState state) throws QueueException {
+        if (state.segments.length == 0) {
+            // consumed up to the end of its last segment
+            queueSegments.put(queueName, new LinkedList<>());
+            return createQueue(queueName);
+        }
+        LinkedList<SegmentRef> segmentRefs = new LinkedList<>(Arrays.asList(state.segments));
+        final int numSegments = segmentRefs.size();
+        queueSegments.put(queueName, segmentRefs);
+        for (SegmentRef segmentRef : segmentRefs) {
+            pages.acquire(segmentRef.pageId);
+        }
+
+        final SegmentRef headSegmentRef = segmentRefs.get(0);
+        final SegmentPointer currentHead = new SegmentPointer(headSegmentRef.pageId, state.headOffset);
+        Segment headSegment = segmentOf(headSegmentRef);
+
+        final SegmentRef tailSegmentRef = segmentRefs.getLast();
+        final SegmentPointer currentTail = new SegmentPointer(tailSegmentRef.pageId, state.tailOffset);
+        Segment tailSegment = numSegments == 1 ? headSegment : segmentOf(tailSegmentRef);
+
+        // Create relative positioned head and tail pointers
+        // Tail is an offset relative to start of the first segment in the list
+        // Head is n-1 full segments plus the offset of the physical head
+        final VirtualPointer logicalTail = new VirtualPointer(currentTail.offset());
+        final VirtualPointer logicalHead = new VirtualPointer((long) (numSegments - 1) * headSegment.segmentSize + currentHead.offset());
+        final Queue queue = new Queue(queueName.name, headSegment, logicalHead, tailSegment, logicalTail,
+            allocator, callback, this);
+        queue.restoreState(state);
+        queues.put(queueName, queue);
+        return queue;
+    }
 
-            queueId++;
+    /**
+     * @return the segment of a reference owned by a queue, whose page is pinned.
+     * */
+    private Segment segmentOf(SegmentRef segment) {
+        if (segment.isSlab()) {
+            return slabs.segment(segment);
         }
+        final SegmentPointer begin = new SegmentPointer(segment.pageId, segment.offset);
+        final SegmentPointer end = new SegmentPointer(segment.pageId, segment.offset + segmentSize - 1);
+        return new Segment(pages.pinned(segment.pageId), begin, end);
     }
 
-    private void loadRecycledSegments(Properties checkpointProps) throws QueueException {
+    private void loadRecycledSegments(CheckpointJournal.Checkpoint checkpoint) throws QueueException {
         TreeSet<SegmentRef> usedSegments = new TreeSet<>();
-
-        boolean noMoreQueues = false;
-        int queueId = 0;
-
-        // load all queues definitions from checkpoint file
-        // TODO second use of this, extract as an iterator
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
-                continue;
+        for (CheckpointJournal.QueueState state : checkpoint.queues.values()) {
+            for (SegmentRef segment : state.segments) {
+                usedSegments.add(segment.isSlab() ? slabs.carrierOf(segment) : segment);
             }
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
-            usedSegments.addAll(segmentRefs);
-
-            queueId++;
+            usedSegments.addAll(Arrays.asList(state.logSegments));
         }
 
         if (usedSegments.isEmpty()) {
@@ -349,81 +463,397 @@ public class QueuePool {
         return recreatedSegments;
     }
 
-    private LinkedList<SegmentRef> decodeSegments(String s) {
-        final String[] segments = s.substring(s.indexOf("(") + 1, s.lastIndexOf(")"))
-                .split("\\), \\(");
+    public Queue getOrCreate(String queueName) throws QueueException {
+        final QueueName queueN = new QueueName(queueName);
+        Queue queue = queues.get(queueN);
+        if (queue != null) {
+            return queue;
+        }
+        final CheckpointJournal.QueueState restored = unopenedQueues.get(queueN);
+        if (restored != null) {
+            return reopen(queueN, restored);
+        }
+        // opened meanwhile by another thread, that makes it visible before removing it from the unopened
+        queue = queues.get(queueN);
+        if (queue != null) {
+            return queue;
+        }
+        return createQueue(queueN);
+    }
+
+    private Queue reopen(QueueName queueName, CheckpointJournal.QueueState restored) throws QueueException {
+        // the sessions of different loops reopen their queues concurrently, each queue is opened once
+        synchronized (restored) {
+            Queue queue = queues.get(queueName);
+            if (queue == null) {
+                queue = openQueue(queueName, restored);
+                // removed once visible in queues, so that a compaction iterating both doesn't miss it
+                unopenedQueues.remove(queueName);
+            }
+            return queue;
+        }
+    }
 
-        LinkedList<SegmentRef> acc = new LinkedList<>();
-        for (String segment : segments) {
-            final String[] split = segment.split(",");
-            final int idPage = Integer.parseInt(split[0].trim());
-            final int offset = Integer.parseInt(split[1].trim());
+    private Queue createQueue(QueueName queueN) throws QueueException {
+        // create new queue with first empty segment, a slab of the smallest class when available
+        final int slabSize = slabs.slabSizeFor(0);
+        final Segment segment = slabSize > 0 ? nextFreeSlab(slabSize) : nextFreeSegment();
+        //notify segment creation for queue in queue pool
+        segmentedCreated(queueN.name, segment);
+
+        // When a segment is freshly created the head must the last occupied byte,
+        // so can't be the start of a segment, but one position before, or in case
+        // of a new page, -1
+        final Queue queue = new Queue(queueN.name, segment, VirtualPointer.buildUntouched(), segment, VirtualPointer.buildUntouched(),
+            this.allocator, callback, this);
+        queues.put(queueN, queue);
+        queue.publishState();
+        return queue;
+    }
 
-            acc.offer(new SegmentRef(idPage, offset));
+    /**
+     * Choose where to move a queue that doesn't have space for the next write and has at most one segment: a slab
+     * when its content fits, also for a queue that drained a full segment, or a full segment for a slab queue that
+     * outgrew the largest class.
+     *
+     * @param bytes the size of the queue's content plus the bytes to write.
+     * @return the new segment, or null if the queue has to grow with full segments.
+     * */
+    Segment relocationTarget(String name, long bytes, boolean inSlab) throws QueueException {
+        if (queueSegments.get(new QueueName(name)).size() > 1) {
+            return null;
         }
-        return acc;
+        final int slabSize = slabs.slabSizeFor(bytes);
+        if (slabSize > 0) {
+            return nextFreeSlab(slabSize);
+        }
+        return inSlab ? nextFreeSegment() : null;
     }
 
-    public Queue getOrCreate(String queueName) throws QueueException {
-        final QueueName queueN = new QueueName(queueName);
-        if (queues.containsKey(queueN)) {
-            return queues.get(queueN);
-        } else {
-            // create new queue with first empty segment
-            final Segment segment = nextFreeSegment();
-            //notify segment creation for queue in queue pool
-            segmentedCreated(queueName, segment);
-
-            // When a segment is freshly created the head must the last occupied byte,
-            // so can't be the start of a segment, but one position before, or in case
-            // of a new page, -1
-            final Queue queue = new Queue(queueName, segment, VirtualPointer.buildUntouched(), segment, VirtualPointer.buildUntouched(),
-                this.allocator, callback, this);
-            queues.put(queueN, queue);
-            return queue;
+    private Segment nextFreeSlab(int slabSize) throws QueueException {
+        segmentsAllocationLock.lock();
+        try {
+            final Segment slab = slabs.allocate(slabSize, this);
+            // the carrier has its own pin
+            pages.acquire(slab.begin.pageId());
+            return slab;
+        } finally {
+            segmentsAllocationLock.unlock();
         }
     }
 
     /**
-     * Free mapped files
+     * Space taken by the page files and how it's used.
      * */
-    public void close() throws QueueException {
-        allocator.close();
+    public DiskUsage diskUsage() {
+        final Properties allocatorState = new Properties();
+        segmentsAllocationLock.lock();
+        try {
+            allocator.dumpState(allocatorState);
+            final int lastPage = Integer.parseInt(allocatorState.getProperty("segments.last_page", "0"));
+            final int lastSegment = Integer.parseInt(allocatorState.getProperty("segments.last_segment", "0"));
+            final int segmentsPerPage = allocator.getPageSize() / segmentSize;
+            final long allocatedSegments = (long) lastPage * segmentsPerPage + lastSegment;
+            final int carriers = slabs.carriersCount();
+            return new DiskUsage((long) (lastPage + 1) * allocator.getPageSize(), segmentSize, allocatedSegments,
+                recycledSegments.size(), carriers, slabs.slabBytesInUse());
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * @return the log of the records shared by the queues of this pool.
+     * */
+    public SharedLog sharedLog() {
+        return sharedLog;
+    }
+
+    /**
+     * Mappings of the page files.
+     * */
+    public MappingStats mappingStats() {
+        return new MappingStats(pages.mappedBytes(), pages.maps(), pages.unmaps());
+    }
+
+    public static final class MappingStats {
+        private final long mappedBytes;
+        private final long maps;
+        private final long unmaps;
+
+        private MappingStats(long mappedBytes, long maps, long unmaps) {
+            this.mappedBytes = mappedBytes;
+            this.maps = maps;
+            this.unmaps = unmaps;
+        }
+
+        /**
+         * @return the size of the pages currently mapped.
+         * */
+        public long mappedBytes() {
+            return mappedBytes;
+        }
+
+        /**
+         * @return how many times a page was mapped.
+         * */
+        public long maps() {
+            return maps;
+        }
+
+        /**
+         * @return how many times a page was unmapped.
+         * */
+        public long unmaps() {
+            return unmaps;
+        }
+
+        @Override
+        public String toString() {
+            return "MappingStats{mapped=" + mappedBytes + ", maps=" + maps + ", unmaps=" + unmaps + '}';
+        }
+    }
 
-        //save all into the checkpoint file
-        Properties checkpoint = new Properties();
-        allocator.dumpState(checkpoint);
+    public static final class DiskUsage {
+        private final long pageFilesBytes;
+        private final int segmentSize;
+        private final long allocatedSegments;
+        private final long freeSegments;
+        private final long slabCarriers;
+        private final long slabBytes;
 
-        int queueCounter = 0;
-        for (Map.Entry<QueueName, LinkedList<SegmentRef>> entry : queueSegments.entrySet()) {
-            // queues.0.name = bla bla
-            final QueueName queueName = entry.getKey();
-            checkpoint.setProperty("queues." + queueCounter + ".name", queueName.name);
+        private DiskUsage(long pageFilesBytes, int segmentSize, long allocatedSegments, long freeSegments,
+                          long slabCarriers, long slabBytes) {
+            this.pageFilesBytes = pageFilesBytes;
+            this.segmentSize = segmentSize;
+            this.allocatedSegments = allocatedSegments;
+            this.freeSegments = freeSegments;
+            this.slabCarriers = slabCarriers;
+            this.slabBytes = slabBytes;
+        }
 
-            // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-            final LinkedList<SegmentRef> segmentRefs = entry.getValue();
-            final String segmentsDef = segmentRefs.stream()
-                .map(SegmentRef::toString)
-                .collect(Collectors.joining(", "));
-            checkpoint.setProperty("queues." + queueCounter + ".segments", segmentsDef);
+        /**
+         * @return the size of the page files segments are taken from, the storage reserved on disk apart from the
+         * next page, created in advance.
+         * */
+        public long pageFilesBytes() {
+            return pageFilesBytes;
+        }
+
+        /**
+         * @return the bytes of the segments ever handed out by the page files, free or used.
+         * */
+        public long allocatedBytes() {
+            return allocatedSegments * segmentSize;
+        }
+
+        /**
+         * @return the bytes of the full segments owned by queues, including the ones waiting a checkpoint to be
+         * recycled.
+         * */
+        public long segmentBytesInUse() {
+            return (allocatedSegments - freeSegments - slabCarriers) * segmentSize;
+        }
+
+        /**
+         * @return the bytes of the segments split in slabs.
+         * */
+        public long slabCarrierBytes() {
+            return slabCarriers * segmentSize;
+        }
+
+        /**
+         * @return the bytes of the slabs owned by queues.
+         * */
+        public long slabBytesInUse() {
+            return slabBytes;
+        }
 
-            // queues.0.head_offset = bytes offset from the start of the page where last data was written
-            final Queue queue = queues.get(queueName);
-            checkpoint.setProperty("queues." + queueCounter + ".head_offset", String.valueOf(queue.currentHead().segmentOffset(segmentSize)));
-            checkpoint.setProperty("queues." + queueCounter + ".tail_offset", String.valueOf(queue.currentTail().segmentOffset(segmentSize)));
+        @Override
+        public String toString() {
+            return "DiskUsage{pageFiles=" + pageFilesBytes + ", allocated=" + allocatedBytes()
+                + ", segmentsInUse=" + segmentBytesInUse() + ", slabCarriers=" + slabCarrierBytes()
+                + ", slabsInUse=" + slabBytes + '}';
         }
+    }
 
-        final File propertiesFile = dataPath.resolve("checkpoint.properties").toFile();
-        final FileWriter fileWriter;
+    /**
+     * Save the queues changed after the last checkpoint. Unless the durability is {@link Durability#NONE}, the pages
+     * they wrote are forced to disk before the journal, and a checkpoint that returns survives a crash.
+     *
+     * @throws QueueException if an error happens writing the files.
+     * */
+    public void checkpoint() throws QueueException {
+        checkpointLock.lock();
         try {
-            fileWriter = new FileWriter(propertiesFile);
-        } catch (IOException ex) {
-            throw new QueueException("Problem opening checkpoint.properties file", ex);
+            // dropped before the queues are read, which saves their states without references to them
+            final List<SegmentRef> reclaimedLog = new ArrayList<>();
+            SegmentRef reclaimed;
+            while ((reclaimed = reclaimedLogSegments.poll()) != null) {
+                reclaimedLog.add(reclaimed);
+            }
+            final boolean compaction = journal.needsCompaction();
+            final List<Queue> savedQueues = new ArrayList<>();
+            final List<CheckpointJournal.QueueState> states = new ArrayList<>();
+            final List<CheckpointJournal.QueueState> unopenedStates = new ArrayList<>();
+            if (compaction) {
+                changedQueues.clear();
+                // read before the opened queues, a queue opened meanwhile is found in those too and its later
+                // record wins on load
+                unopenedStates.addAll(unopenedQueues.values());
+                for (Queue queue : queues.values()) {
+                    capture(queue, savedQueues, states);
+                }
+            } else {
+                Queue queue;
+                while ((queue = changedQueues.poll()) != null) {
+                    capture(queue, savedQueues, states);
+                }
+            }
+
+            // read after the queues, so that it covers all the segments they reference
+            final Properties allocatorState = new Properties();
+            segmentsAllocationLock.lock();
+            try {
+                allocator.dumpState(allocatorState);
+            } finally {
+                segmentsAllocationLock.unlock();
+            }
+            final int lastPage = Integer.parseInt(allocatorState.getProperty("segments.last_page", "0"));
+            final int lastSegment = Integer.parseInt(allocatorState.getProperty("segments.last_segment", "0"));
+            if (!compaction && states.isEmpty() && lastPage == savedLastPage && lastSegment == savedLastSegment) {
+                // the saved states already don't reference them
+                reclaimedLog.forEach(this::recycle);
+                return;
+            }
+
+            if (durability != Durability.NONE) {
+                pages.forceDirtyPages();
+            }
+            if (compaction) {
+                unopenedStates.addAll(states);
+                journal.compact(lastPage, lastSegment, unopenedStates);
+            } else {
+                journal.append(lastPage, lastSegment, states);
+            }
+            savedLastPage = lastPage;
+            savedLastSegment = lastSegment;
+            for (int i = 0; i < savedQueues.size(); i++) {
+                savedQueues.get(i).saved(states.get(i));
+            }
+            recycleReleasedSegments();
+            reclaimedLog.forEach(this::recycle);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private static void capture(Queue queue, List<Queue> savedQueues, List<CheckpointJournal.QueueState> states) {
+        final CheckpointJournal.QueueState state = queue.captureState();
+        // a queue just created publishes its state after being visible, and notifies the change
+        if (state != null) {
+            savedQueues.add(queue);
+            states.add(state);
+        }
+    }
+
+    private void recycleReleasedSegments() {
+        final Iterator<ReleasedSegment> releasedIt = releasedSegments.iterator();
+        while (releasedIt.hasNext()) {
+            final ReleasedSegment released = releasedIt.next();
+            if (!queues.get(released.owner).durablyReferences(released.segment)) {
+                releasedIt.remove();
+                recycle(released.segment);
+            }
+        }
+    }
+
+    private void startCheckpoints() {
+        if (durability == Durability.NONE) {
+            return;
+        }
+        checkpointer = new Thread(this::runCheckpoints, "queue-checkpoint-" + dataPath.getFileName());
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    private void runCheckpoints() {
+        while (!closed) {
+            if (durability == Durability.INTERVAL) {
+                LockSupport.parkNanos(this, syncIntervalNanos);
+            } else if (!commitRequested) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (closed) {
+                return;
+            }
+            commitRequested = false;
+            try {
+                checkpoint();
+            } catch (QueueException | RuntimeException ex) {
+                LOG.error("Problem saving the checkpoint of the queues in {}", dataPath, ex);
+            }
+        }
+    }
+
+    /**
+     * Called by a queue on its first change after the last checkpoint.
+     * */
+    void queueChanged(Queue queue) {
+        changedQueues.add(queue);
+        if (durability == Durability.GROUP_COMMIT && !commitRequested) {
+            commitRequested = true;
+            LockSupport.unpark(checkpointer);
+        }
+    }
+
+    /**
+     * Called by a queue after writing into the segment, before publishing its new state.
+     * */
+    void segmentWritten(Segment segment) {
+        if (durability == Durability.NONE) {
+            return;
+        }
+        pages.markDirty(segment.begin.pageId());
+    }
+
+    /**
+     * @return the segments of the queue, from head to tail.
+     * */
+    SegmentRef[] segmentRefs(String name) {
+        final QueueName queueName = new QueueName(name);
+        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
+        if (segmentRefs == null) {
+            return unopenedQueues.get(queueName).segments.clone();
+        }
+        return segmentRefs.toArray(new SegmentRef[0]);
+    }
+
+    /**
+     * Save a last checkpoint and free mapped files
+     * */
+    public void close() throws QueueException {
+        closed = true;
+        if (checkpointer != null) {
+            LockSupport.unpark(checkpointer);
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         try {
-            checkpoint.store(fileWriter, "DON'T EDIT, AUTOGENERATED");
-        } catch (IOException ex) {
-            throw new QueueException("Problem writing checkpoint.properties file", ex);
+            checkpoint();
+            LOG.info("Closing {} queues, {} not opened, {}, {}", size(), unopenedQueues.size(), diskUsage(),
+                mappingStats());
+        } finally {
+            try {
+                journal.close();
+                allocator.close();
+            } finally {
+                pages.close();
+            }
         }
     }
 
@@ -436,22 +866,12 @@ public class QueuePool {
         if (pollSegment == null) {
             return Optional.empty();
         }
-
-        final Path pageFile = dataPath.resolve(String.format("%d.page", pollSegment.pageId));
-        if (!Files.exists(pageFile)) {
-            throw new QueueException("Can't find file for page file" + pageFile);
-        }
-
-        final MappedByteBuffer tailPage;
-        try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            tailPage = fileChannel.map(FileChannel.MapMode.READ_WRITE/*READ_ONLY*/, 0, allocator.getPageSize());
-        } catch (IOException ex) {
-            throw new QueueException("Can't open page file " + pageFile, ex);
+        if (segmentRefs.size() > 1 && !pollSegment.isSlab()) {
+            // the segment read after this one
+            final SegmentRef next = segmentRefs.get(segmentRefs.size() - 2);
+            pages.readAhead(next.pageId, next.offset, segmentSize);
         }
-
-        final SegmentPointer begin = new SegmentPointer(pollSegment.pageId, pollSegment.offset);
-        final SegmentPointer end = new SegmentPointer(pollSegment.pageId, pollSegment.offset + segmentSize - 1);
-        return Optional.of(new Segment(tailPage, begin, end));
+        return Optional.of(segmentOf(pollSegment));
     }
 
     /**
@@ -462,14 +882,61 @@ public class QueuePool {
         final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
         final SegmentRef segmentRef = segmentRefs.pollLast();
         LOG.debug("Consumed tail segment {} from queue {}", segmentRef, queueName);
+        pages.release(segmentRef.pageId);
+        if (durability == Durability.NONE) {
+            recycle(segmentRef);
+        } else {
+            // the last checkpoint could still restore the queue with this segment
+            releasedSegments.add(new ReleasedSegment(queueName, segmentRef));
+        }
+    }
+
+    /**
+     * Called by the shared log when no reference is left to one of its segments.
+     * */
+    void logSegmentReclaimed(SegmentRef segmentRef) {
+        if (durability == Durability.NONE) {
+            recycle(segmentRef);
+        } else {
+            // the last checkpoint could still restore a queue referencing it
+            reclaimedLogSegments.add(segmentRef);
+        }
+    }
+
+    private void recycle(SegmentRef segmentRef) {
         segmentsAllocationLock.lock();
         try {
+            if (segmentRef.isSlab()) {
+                final SegmentRef emptyCarrier = slabs.free(segmentRef);
+                if (emptyCarrier != null) {
+                    pages.release(emptyCarrier.pageId);
+                    recycledSegments.add(emptyCarrier);
+                }
+                return;
+            }
             recycledSegments.add(segmentRef);
         } finally {
             segmentsAllocationLock.unlock();
         }
     }
 
+    /**
+     * Take the segments needed by a write that spans many of them holding the allocation lock once.
+     * */
+    List<Segment> nextFreeSegments(int count) throws QueueException {
+        final List<Segment> segments = new ArrayList<>(count);
+        segmentsAllocationLock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                // the lock is reentrant, already owned it's not contended
+                segments.add(nextFreeSegment());
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+        return segments;
+    }
+
     Segment nextFreeSegment() throws QueueException {
         segmentsAllocationLock.lock();
         try {
@@ -24,6 +24,15 @@ final class Segment {
         this.mappedBuffer = page;
     }
 
+    /**
+     * @return a segment of size bytes starting at the page offset, mapped by the same buffer of this one.
+     * */
+    Segment slice(int pageOffset, int size) {
+        assert pageOffset >= begin.offset() && pageOffset + size - 1 <= end.offset();
+        return new Segment(mappedBuffer, new SegmentPointer(begin.pageId(), pageOffset),
+            new SegmentPointer(begin.pageId(), pageOffset + size - 1));
+    }
+
     boolean hasSpace(VirtualPointer mark, long length) {
         return bytesAfter(mark) >= length;
     }
@@ -44,12 +53,7 @@ final class Segment {
     }
 
     void write(SegmentPointer offset, ByteBuffer content) {
-        checkContentStartWith(content);
-        final int startPos = offset.offset();
-        final int endPos = startPos + content.remaining();
-        for (int i = startPos; i < endPos; i++) {
-            mappedBuffer.put(i, content.get());
-        }
+        write(offset.offset(), content);
     }
 
     // fill the segment with value bytes
@@ -61,19 +65,29 @@ final class Segment {
         }
     }
 
-    // debug method
-    private void checkContentStartWith(ByteBuffer content) {
-        if (content.get(0) == 0 && content.get(1) == 0 && content.get(2) == 0 && content.get(3) == 0) {
-            System.out.println("DNADBG content starts with 4 zero");
-        }
+    void write(VirtualPointer offset, ByteBuffer content) {
+        write(rebasedOffset(offset), content);
     }
 
-    void write(VirtualPointer offset, ByteBuffer content) {
-        final int startPos = rebasedOffset(offset);
-        final int endPos = startPos + content.remaining();
-        for (int i = startPos; i < endPos; i++) {
-            mappedBuffer.put(i, content.get());
-        }
+    /**
+     * Copy all the remaining bytes of content, moving its position, with a single transfer into the page.
+     * */
+    private void write(int pageOffset, ByteBuffer content) {
+        // a view on the page, so that the position of the shared mapped buffer is never moved
+        final ByteBuffer target = mappedBuffer.duplicate();
+        target.position(pageOffset);
+        target.put(content);
+    }
+
+    /**
+     * Write the int length header at the pointer, all the 4 bytes must be contained in the segment.
+     * */
+    void writeHeader(VirtualPointer pointer, int value) {
+        mappedBuffer.putInt(rebasedOffset(pointer), value);
+    }
+
+    void writeHeader(SegmentPointer pointer, int value) {
+        mappedBuffer.putInt(pointer.offset(), value);
     }
 
     /**
@@ -99,34 +113,31 @@ final class Segment {
         return mappedBuffer.getInt(rebasedIndex);
     }
 
+    int readHeader(SegmentPointer pointer) {
+        return mappedBuffer.getInt(pointer.offset());
+    }
+
     /*private*/ int rebasedOffset(VirtualPointer virtualPtr) {
         final int pointerOffset = (int) virtualPtr.segmentOffset(segmentSize);
         return this.begin.plus(pointerOffset).offset();
     }
 
     public ByteBuffer read(VirtualPointer start, int length) {
-        final int pageOffset = rebasedOffset(start);
-        byte[] dst = new byte[length];
-
-        int sourceIdx = pageOffset;
-        for (int dstIndex = 0; dstIndex < length; dstIndex++, sourceIdx++) {
-            dst[dstIndex] = mappedBuffer.get(sourceIdx);
-        }
-
-        return ByteBuffer.wrap(dst);
+        return read(rebasedOffset(start), length);
     }
 
     public ByteBuffer read(SegmentPointer start, int length) {
-        byte[] dst = new byte[length];
-
         if (length > mappedBuffer.remaining() - start.offset())
             throw new BufferUnderflowException();
 
-        int sourceIdx = start.offset();
-        for (int dstIndex = 0; dstIndex < length; dstIndex++, sourceIdx++) {
-            dst[dstIndex] = mappedBuffer.get(sourceIdx);
-        }
+        return read(start.offset(), length);
+    }
 
+    private ByteBuffer read(int pageOffset, int length) {
+        byte[] dst = new byte[length];
+        final ByteBuffer source = mappedBuffer.duplicate();
+        source.position(pageOffset);
+        source.get(dst);
         return ByteBuffer.wrap(dst);
     }
 
@@ -9,10 +9,16 @@ interface SegmentAllocator {
      *
      * This method has to be invoked inside a lock, it's not thread safe.
      *
+     * The page of the returned segment is pinned in the {@link MappedPageCache}, to be released when the segment
+     * isn't used anymore.
+     *
      * @throws QueueException if any IO error happens on the filesystem.
      * */
     Segment nextFreeSegment() throws QueueException;
 
+    /**
+     * Open a segment already allocated, pinning its page like {@link #nextFreeSegment()}.
+     * */
     Segment reopenSegment(int pageId, int beginOffset) throws QueueException;
 
     void close() throws QueueException;
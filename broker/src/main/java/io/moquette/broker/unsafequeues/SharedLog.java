@@ -0,0 +1,211 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records shared by many queues of a {@link QueuePool}: a message published to many offline subscribers is appended
+ * once, and each of their queues stores only the {@link Entry} that locates it.
+ *
+ * The log is made of full segments taken from the pool, a record never spans two of them. Each segment counts the
+ * references to its records, held by the queues, by the publisher until its fan-out ends and, for the segment being
+ * appended, by the log itself. When no reference is left the segment goes back to the pool, that recycles it once
+ * the saved states of the queues don't reference it anymore.
+ *
+ * Appends are serialized, references and reads don't lock.
+ * */
+public final class SharedLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedLog.class);
+
+    /**
+     * Position of a record in the log.
+     * */
+    public static final class Entry {
+        /**
+         * Bytes written by {@link #writeTo(ByteBuffer)}.
+         * */
+        public static final int ENCODED_SIZE = 8;
+
+        final int pageId;
+        // page offset of the record length
+        final int offset;
+
+        Entry(int pageId, int offset) {
+            this.pageId = pageId;
+            this.offset = offset;
+        }
+
+        public void writeTo(ByteBuffer buffer) {
+            buffer.putInt(pageId).putInt(offset);
+        }
+
+        public static Entry readFrom(ByteBuffer buffer) {
+            return new Entry(buffer.getInt(), buffer.getInt());
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{page=" + pageId + ", offset=" + offset + '}';
+        }
+    }
+
+    private static final class LogSegment {
+        final Segment segment;
+        final AtomicInteger references;
+
+        LogSegment(Segment segment, int references) {
+            this.segment = segment;
+            this.references = new AtomicInteger(references);
+        }
+    }
+
+    private final QueuePool queuePool;
+    private final MappedPageCache pages;
+    private final int segmentSize;
+    private final ConcurrentMap<Long, LogSegment> segments = new ConcurrentHashMap<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // accessed holding the append lock
+    private LogSegment current;
+    private int nextOffset;
+
+    SharedLog(QueuePool queuePool, MappedPageCache pages, int segmentSize) {
+        this.queuePool = queuePool;
+        this.pages = pages;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Append the remaining bytes of the record.
+     *
+     * @return the entry of the record, with a reference owned by the caller, or null when the record doesn't fit
+     * in a segment.
+     * */
+    public Entry append(ByteBuffer record) throws QueueException {
+        final int size = Queue.LENGTH_HEADER_SIZE + record.remaining();
+        if (size > segmentSize) {
+            return null;
+        }
+        appendLock.lock();
+        try {
+            if (current == null || nextOffset + size > current.segment.end.offset() + 1) {
+                startSegment();
+            }
+            final Segment segment = current.segment;
+            final SegmentPointer start = new SegmentPointer(segment.begin.pageId(), nextOffset);
+            segment.writeHeader(start, record.remaining());
+            segment.write(start.moveForward(Queue.LENGTH_HEADER_SIZE), record);
+            queuePool.segmentWritten(segment);
+            current.references.incrementAndGet();
+            nextOffset += size;
+            return new Entry(start.pageId(), start.offset());
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void startSegment() throws QueueException {
+        final Segment segment = queuePool.nextFreeSegment();
+        LOG.debug("Appending shared records to {}", segment);
+        final LogSegment sealed = current;
+        // the reference of the log, dropped when the segment is sealed
+        current = new LogSegment(segment, 1);
+        segments.put(key(segment.begin.pageId(), segment.begin.offset()), current);
+        nextOffset = segment.begin.offset();
+        if (sealed != null) {
+            release(sealed);
+        }
+    }
+
+    /**
+     * Take one more reference to the record, the caller must already hold one.
+     * */
+    public void retain(Entry entry) {
+        final int previous = segmentOf(entry).references.getAndIncrement();
+        if (previous <= 0) {
+            throw new IllegalStateException("Retained " + entry + " of a reclaimed segment");
+        }
+    }
+
+    public void release(Entry entry) {
+        release(segmentOf(entry));
+    }
+
+    void release(QueuePool.SegmentRef segmentRef, int references) {
+        final LogSegment logSegment = segments.get(key(segmentRef.pageId, segmentRef.offset));
+        for (int i = 0; i < references; i++) {
+            release(logSegment);
+        }
+    }
+
+    private void release(LogSegment logSegment) {
+        final int left = logSegment.references.decrementAndGet();
+        if (left > 0) {
+            return;
+        }
+        if (left < 0) {
+            throw new IllegalStateException("Released " + logSegment.segment + " more than retained");
+        }
+        final Segment segment = logSegment.segment;
+        segments.remove(key(segment.begin.pageId(), segment.begin.offset()));
+        LOG.debug("No references left to {}", segment);
+        pages.release(segment.begin.pageId());
+        queuePool.logSegmentReclaimed(new QueuePool.SegmentRef(segment.begin.pageId(), segment.begin.offset()));
+    }
+
+    /**
+     * @return a copy of the record, the caller must hold a reference to it.
+     * */
+    public ByteBuffer read(Entry entry) {
+        final Segment segment = segmentOf(entry).segment;
+        final SegmentPointer start = new SegmentPointer(entry.pageId, entry.offset);
+        final int length = segment.readHeader(start);
+        return segment.read(start.moveForward(Queue.LENGTH_HEADER_SIZE), length);
+    }
+
+    /**
+     * @return the segment containing the record.
+     * */
+    QueuePool.SegmentRef segmentRefOf(Entry entry) {
+        return new QueuePool.SegmentRef(entry.pageId, segmentBegin(entry));
+    }
+
+    private LogSegment segmentOf(Entry entry) {
+        final LogSegment logSegment = segments.get(key(entry.pageId, segmentBegin(entry)));
+        if (logSegment == null) {
+            throw new IllegalStateException("No segment of the shared log contains " + entry);
+        }
+        return logSegment;
+    }
+
+    private int segmentBegin(Entry entry) {
+        return entry.offset - entry.offset % segmentSize;
+    }
+
+    /**
+     * Reopen a segment referenced by the queues loaded from the checkpoint, pinning its page.
+     * */
+    void restore(QueuePool.SegmentRef segmentRef, int references) throws QueueException {
+        final SegmentPointer begin = new SegmentPointer(segmentRef.pageId, segmentRef.offset);
+        final SegmentPointer end = new SegmentPointer(segmentRef.pageId, segmentRef.offset + segmentSize - 1);
+        final Segment segment = new Segment(pages.acquire(segmentRef.pageId), begin, end);
+        segments.put(key(segmentRef.pageId, segmentRef.offset), new LogSegment(segment, references));
+    }
+
+    /**
+     * @return the number of segments the log holds.
+     * */
+    int segmentsCount() {
+        return segments.size();
+    }
+
+    private static long key(int pageId, int offset) {
+        return ((long) pageId << 32) | offset;
+    }
+}
@@ -0,0 +1,205 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Size classes for the queues holding few bytes. A segment taken from the pool, named carrier, is split in slabs of
+ * one size class, so a queue with a handful of messages reserves a slab instead of a whole segment.
+ *
+ * Which slabs are used isn't saved: on load it's rebuilt from the slabs referenced by the queues, and the carriers
+ * without any are free segments like the others.
+ *
+ * Not thread safe, used holding the allocation lock of the {@link QueuePool}, apart from {@link #segment(QueuePool.SegmentRef)}.
+ * */
+final class SlabAllocator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SlabAllocator.class);
+
+    static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024};
+
+    private static final class Carrier {
+        final Segment segment;
+        final int slabSize;
+        final BitSet used;
+        final int slabs;
+        int usedSlabs;
+        boolean hasFreeSlabs;
+
+        Carrier(Segment segment, int slabSize, int segmentSize) {
+            this.segment = segment;
+            this.slabSize = slabSize;
+            this.slabs = segmentSize / slabSize;
+            this.used = new BitSet(slabs);
+        }
+
+        int takeSlab() {
+            final int slab = used.nextClearBit(0);
+            used.set(slab);
+            usedSlabs++;
+            return segment.begin.offset() + slab * slabSize;
+        }
+
+        QueuePool.SegmentRef ref() {
+            return new QueuePool.SegmentRef(segment.begin.pageId(), segment.begin.offset());
+        }
+    }
+
+    private final int segmentSize;
+    // the classes that split a segment in at least two slabs, empty when new slabs aren't allocated
+    private final int[] sizeClasses;
+    // by class of SIZE_CLASSES, the slabs loaded are restored also when new ones aren't allocated
+    private final List<ArrayDeque<Carrier>> carriersWithFreeSlabs = new ArrayList<>();
+    // by the page offset of the segment, read without lock when a queue opens its slab
+    private final ConcurrentMap<Long, Carrier> carriers = new ConcurrentHashMap<>();
+
+    SlabAllocator(int segmentSize, boolean enabled) {
+        this.segmentSize = segmentSize;
+        this.sizeClasses = Arrays.stream(SIZE_CLASSES)
+            .filter(size -> enabled && size * 2 <= segmentSize && segmentSize % size == 0)
+            .toArray();
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            carriersWithFreeSlabs.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Choose the slab size of a queue that has to hold the bytes, leaving as much free space for the next messages.
+     *
+     * @return 0 when the bytes don't fit in any slab.
+     * */
+    int slabSizeFor(long bytes) {
+        for (int size : sizeClasses) {
+            if (size >= 2 * bytes) {
+                return size;
+            }
+        }
+        if (sizeClasses.length > 0 && bytes <= sizeClasses[sizeClasses.length - 1]) {
+            return sizeClasses[sizeClasses.length - 1];
+        }
+        return 0;
+    }
+
+    /**
+     * @param queuePool source of a new carrier when all the ones of the class are full.
+     * */
+    Segment allocate(int slabSize, QueuePool queuePool) throws QueueException {
+        final ArrayDeque<Carrier> withFreeSlabs = carriersWithFreeSlabs.get(classIndex(slabSize));
+        Carrier carrier = withFreeSlabs.peekFirst();
+        if (carrier == null) {
+            carrier = new Carrier(queuePool.nextFreeSegment(), slabSize, segmentSize);
+            LOG.debug("Splitting segment {} in slabs of {} bytes", carrier.segment, slabSize);
+            carriers.put(key(carrier.segment.begin.pageId(), carrier.segment.begin.offset()), carrier);
+            carrier.hasFreeSlabs = true;
+            withFreeSlabs.addFirst(carrier);
+        }
+        final int offset = carrier.takeSlab();
+        if (carrier.usedSlabs == carrier.slabs) {
+            withFreeSlabs.pollFirst();
+            carrier.hasFreeSlabs = false;
+        }
+        return carrier.segment.slice(offset, slabSize);
+    }
+
+    /**
+     * @return the carrier segment when the freed slab was its last one used, to be recycled.
+     * */
+    QueuePool.SegmentRef free(QueuePool.SegmentRef slab) {
+        final Carrier carrier = carriers.get(carrierKey(slab));
+        carrier.used.clear((slab.offset - carrier.segment.begin.offset()) / carrier.slabSize);
+        carrier.usedSlabs--;
+        final ArrayDeque<Carrier> withFreeSlabs = carriersWithFreeSlabs.get(classIndex(carrier.slabSize));
+        if (carrier.usedSlabs == 0) {
+            withFreeSlabs.remove(carrier);
+            carriers.remove(carrierKey(slab));
+            return carrier.ref();
+        }
+        if (!carrier.hasFreeSlabs) {
+            carrier.hasFreeSlabs = true;
+            withFreeSlabs.addLast(carrier);
+        }
+        return null;
+    }
+
+    /**
+     * Mark as used a slab referenced by a loaded queue.
+     *
+     * @param carrierSegment the segment containing the slab, opened only for the first slab of each carrier.
+     * */
+    void restore(QueuePool.SegmentRef slab, SegmentOpener carrierSegment) throws QueueException {
+        Carrier carrier = carriers.get(carrierKey(slab));
+        if (carrier == null) {
+            carrier = new Carrier(carrierSegment.open(slab.pageId, carrierOffset(slab)), slab.slabSize, segmentSize);
+            carriers.put(carrierKey(slab), carrier);
+        }
+        carrier.used.set((slab.offset - carrier.segment.begin.offset()) / carrier.slabSize);
+        carrier.usedSlabs++;
+        final ArrayDeque<Carrier> withFreeSlabs = carriersWithFreeSlabs.get(classIndex(carrier.slabSize));
+        if (carrier.usedSlabs == carrier.slabs && carrier.hasFreeSlabs) {
+            withFreeSlabs.remove(carrier);
+            carrier.hasFreeSlabs = false;
+        } else if (carrier.usedSlabs < carrier.slabs && !carrier.hasFreeSlabs) {
+            withFreeSlabs.addLast(carrier);
+            carrier.hasFreeSlabs = true;
+        }
+    }
+
+    interface SegmentOpener {
+        Segment open(int pageId, int offset) throws QueueException;
+    }
+
+    /**
+     * @return a view on the slab, for a queue that's reading it.
+     * */
+    Segment segment(QueuePool.SegmentRef slab) {
+        return carriers.get(carrierKey(slab)).segment.slice(slab.offset, slab.slabSize);
+    }
+
+    /**
+     * @return the segment containing the slab.
+     * */
+    QueuePool.SegmentRef carrierOf(QueuePool.SegmentRef slab) {
+        return new QueuePool.SegmentRef(slab.pageId, carrierOffset(slab));
+    }
+
+    int carriersCount() {
+        return carriers.size();
+    }
+
+    long slabBytesInUse() {
+        long bytes = 0;
+        for (Carrier carrier : carriers.values()) {
+            bytes += (long) carrier.usedSlabs * carrier.slabSize;
+        }
+        return bytes;
+    }
+
+    private int carrierOffset(QueuePool.SegmentRef slab) {
+        return slab.offset - slab.offset % segmentSize;
+    }
+
+    private long carrierKey(QueuePool.SegmentRef slab) {
+        return key(slab.pageId, carrierOffset(slab));
+    }
+
+    private static long key(int pageId, int offset) {
+        return ((long) pageId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private int classIndex(int slabSize) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] == slabSize) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a slab size: " + slabSize);
+    }
+}
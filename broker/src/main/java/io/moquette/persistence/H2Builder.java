@@ -22,18 +22,53 @@ public class H2Builder {
 
     private final String storePath;
     private final int autosaveInterval; // in seconds
-    private final ScheduledExecutorService scheduler;
     private final Clock clock;
+    private int cacheSize = 16; // in MB, the MVStore default
+    private boolean writeBehind;
+    private int commitBatchSize = 10_000;
+    private int compactInterval; // in seconds, 0 disables
+    private int compactMaxBytes = 16 * 1024 * 1024;
     private MVStore mvStore;
+    private H2WriteBehind committer;
 
+    /**
+     * @deprecated the store is committed by its own thread, use {@link #H2Builder(Path, int, Clock)}
+     * */
+    @Deprecated
     public H2Builder(ScheduledExecutorService scheduler, Path storePath, int autosaveInterval, Clock clock) {
+        this(storePath, autosaveInterval, clock);
+    }
+
+    public H2Builder(Path storePath, int autosaveInterval, Clock clock) {
         this.storePath = storePath.resolve("moquette_store.h2").toAbsolutePath().toString();
         this.autosaveInterval = autosaveInterval;
-        this.scheduler = scheduler;
         this.clock = clock;
     }
 
-    @SuppressWarnings("FutureReturnValueIgnored")
+    public H2Builder cacheSize(int megabytes) {
+        this.cacheSize = megabytes;
+        return this;
+    }
+
+    /**
+     * When enabled the repositories keep their updates pending until the next commit, coalescing the ones of the
+     * same key, and a commit is started also when batchSize keys are pending.
+     * */
+    public H2Builder writeBehind(boolean enabled, int batchSize) {
+        this.writeBehind = enabled;
+        this.commitBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Rewrite the chunks of the store mostly empty every interval seconds, writing at most maxBytes each time.
+     * */
+    public H2Builder compaction(int interval, int maxBytes) {
+        this.compactInterval = interval;
+        this.compactMaxBytes = maxBytes;
+        return this;
+    }
+
     public H2Builder initStore() {
         LOG.info("Initializing H2 store to {}", storePath);
         if (storePath == null || storePath.isEmpty()) {
@@ -50,34 +85,45 @@ public class H2Builder {
 
         mvStore = new MVStore.Builder()
             .fileName(storePath)
+            .cacheSize(cacheSize)
             .autoCommitDisabled()
             .open();
 
-        LOG.trace("Scheduling H2 commit task");
-        scheduler.scheduleWithFixedDelay(() -> {
-            LOG.trace("Committing to H2");
-            mvStore.commit();
-        }, autosaveInterval, autosaveInterval, TimeUnit.SECONDS);
+        LOG.trace("Starting H2 writer, write behind: {}", writeBehind);
+        committer = new H2WriteBehind(mvStore, TimeUnit.SECONDS.toMillis(autosaveInterval), commitBatchSize,
+            TimeUnit.SECONDS.toMillis(compactInterval), compactMaxBytes);
         return this;
     }
 
+    private H2Writer writer() {
+        return writeBehind ? committer : H2Writer.DIRECT;
+    }
+
     public ISubscriptionsRepository subscriptionsRepository() {
-        return new H2SubscriptionsRepository(mvStore);
+        return new H2SubscriptionsRepository(mvStore, writer());
     }
 
     public void closeStore() {
+        committer.close();
         mvStore.close();
     }
 
     public IQueueRepository queueRepository() {
-        return new H2QueueRepository(mvStore);
+        return new H2QueueRepository(mvStore, writer());
     }
 
     public IRetainedRepository retainedRepository() {
-        return new H2RetainedRepository(mvStore);
+        return new H2RetainedRepository(mvStore, writer());
     }
 
     public ISessionsRepository sessionsRepository() {
-        return new H2SessionsRepository(mvStore, clock);
+        return new H2SessionsRepository(mvStore, clock, writer());
+    }
+
+    /**
+     * @return the cache usage of the store and the counters of its commits.
+     * */
+    public H2WriteBehind.Stats storeStats() {
+        return committer.stats();
     }
 }
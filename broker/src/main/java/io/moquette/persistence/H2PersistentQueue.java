@@ -16,90 +16,100 @@
 package io.moquette.persistence;
 
 import io.moquette.broker.AbstractSessionMessageQueue;
-import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry;
+import io.moquette.persistence.H2QueueRepository.QueueKey;
+import io.moquette.persistence.H2QueueRepository.QueueMeta;
 import org.h2.mvstore.MVMap;
-import org.h2.mvstore.MVStore;
 
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Session queue stored in the maps shared by all the queues of {@link H2QueueRepository}, its messages keyed by the
+ * queue id and a sequence number, between the tail and the head kept in its {@link QueueMeta}.
+ * */
 class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
-    private final MVMap<Long, SessionRegistry.EnqueuedMessage> queueMap;
-    private final MVMap<String, Long> metadataMap;
+    private final MVMap<QueueKey, SessionRegistry.EnqueuedMessage> messages;
+    private final MVMap<String, QueueMeta> queues;
+    private final String queueName;
+    private final long id;
     private final AtomicLong head;
     private final AtomicLong tail;
-    private final MVStore store;
-    private final String queueName;
+    // the messages before it were stored when the queue was opened
+    private final long backlogEnd;
+    private final H2Writer writer;
 
-    H2PersistentQueue(MVStore store, String queueName) {
+    /**
+     * With a write behind writer the message removed by a dequeue before the commit is never written.
+     * */
+    H2PersistentQueue(MVMap<QueueKey, SessionRegistry.EnqueuedMessage> messages, MVMap<String, QueueMeta> queues,
+                      String queueName, QueueMeta meta, H2Writer writer) {
         if (queueName == null || queueName.isEmpty()) {
             throw new IllegalArgumentException("queueName parameter can't be empty or null");
         }
-        final MVMap.Builder<Long, SessionRegistry.EnqueuedMessage> messageTypeBuilder =
-            new MVMap.Builder<Long, SessionRegistry.EnqueuedMessage>()
-                .valueType(new EnqueuedMessageValueType());
-
-        this.store = store;
+        this.messages = messages;
+        this.queues = queues;
         this.queueName = queueName;
-        this.queueMap = this.store.openMap("queue_" + this.queueName, messageTypeBuilder);
-        this.metadataMap = store.openMap("queue_" + queueName + "_meta");
-
-        //setup head index
-        long headIdx = 0L;
-        if (this.metadataMap.containsKey("head")) {
-            headIdx = this.metadataMap.get("head");
-        } else {
-            this.metadataMap.put("head", headIdx);
-        }
-        this.head = new AtomicLong(headIdx);
-
-        //setup tail index
-        long tailIdx = 0L;
-        if (this.metadataMap.containsKey("tail")) {
-            tailIdx = this.metadataMap.get("tail");
-        } else {
-            this.metadataMap.put("tail", tailIdx);
-        }
-        this.tail = new AtomicLong(tailIdx);
+        this.id = meta.id;
+        this.head = new AtomicLong(meta.head);
+        this.tail = new AtomicLong(meta.tail);
+        this.backlogEnd = meta.head;
+        this.writer = writer;
     }
 
     @Override
     public void enqueue(SessionRegistry.EnqueuedMessage t) {
         checkEnqueuePreconditions(t);
+        if (!reserveQuota(t)) {
+            return;
+        }
         final long nextHead = head.getAndIncrement();
-        this.queueMap.put(nextHead, t);
-        this.metadataMap.put("head", nextHead + 1);
+        writer.put(messages, new QueueKey(id, nextHead), t);
+        updateMeta();
     }
 
     @Override
     public SessionRegistry.EnqueuedMessage dequeue() {
         checkDequeuePreconditions();
-        if (head.equals(tail)) {
-            return null;
+        if (head.get() == tail.get()) {
+            return releaseQuota(null);
         }
-        final long nextTail = tail.getAndIncrement();
-        final SessionRegistry.EnqueuedMessage tail = this.queueMap.get(nextTail);
-        queueMap.remove(nextTail);
-        this.metadataMap.put("tail", nextTail + 1);
-        return tail;
+        final boolean backlog = dequeuesBacklog();
+        final QueueKey key = new QueueKey(id, tail.getAndIncrement());
+        final SessionRegistry.EnqueuedMessage tail = writer.get(messages, key);
+        writer.remove(messages, key);
+        updateMeta();
+        return releaseQuota(tail, backlog);
+    }
+
+    @Override
+    protected boolean dequeuesBacklog() {
+        return tail.get() < backlogEnd;
+    }
+
+    private void updateMeta() {
+        writer.put(queues, queueName, new QueueMeta(id, head.get(), tail.get()));
     }
 
     @Override
     public boolean isEmpty() {
         checkIsEmptyPreconditions();
-        return (this.head.intValue() - this.tail.intValue()) == 0;
+        return head.get() == tail.get();
     }
 
     @Override
     public void closeAndPurge() {
+        releaseAllQuota();
         this.closed = true;
-        dropQueue(this.queueName);
+        dropQueue();
     }
 
-    private void dropQueue(String queueName) {
-        store.removeMap(store.openMap("queue_" + queueName));
-        store.removeMap(store.openMap("queue_" + queueName + "_meta"));
+    private void dropQueue() {
+        // the keys of the queue are contiguous, from the tail to the head
+        final long end = head.get();
+        for (long seq = tail.get(); seq < end; seq++) {
+            writer.remove(messages, new QueueKey(id, seq));
+        }
+        writer.remove(queues, queueName);
     }
-
 }
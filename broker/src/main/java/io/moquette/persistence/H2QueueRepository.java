@@ -18,39 +18,227 @@ package io.moquette.persistence;
 import io.moquette.broker.IQueueRepository;
 import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry.EnqueuedMessage;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+/**
+ * All the session queues share two maps: the messages keyed by queue id and sequence number, and the id, head and
+ * tail of each queue keyed by client id. Queue ids are assigned from a counter kept in the store, so that ids are
+ * never reused by a later session of the same client.
+ * */
 public class H2QueueRepository implements IQueueRepository {
 
-    private MVStore mvStore;
+    private static final Logger LOG = LoggerFactory.getLogger(H2QueueRepository.class);
+    static final String MESSAGES_MAP = "session_queue_messages";
+    static final String QUEUES_MAP = "session_queues";
+    private static final String QUEUE_IDS_MAP = "session_queue_ids";
+    private static final String NEXT_ID = "next";
+    // one map of messages and one of head and tail for each queue, migrated on open
+    private static final String LEGACY_QUEUE_PREFIX = "queue_";
+    private static final String LEGACY_META_SUFFIX = "_meta";
+
+    private final MVMap<QueueKey, EnqueuedMessage> messages;
+    private final MVMap<String, QueueMeta> queues;
+    private final MVMap<String, Long> queueIds;
+    private final H2Writer writer;
+    private long nextId;
 
     public H2QueueRepository(MVStore mvStore) {
-        this.mvStore = mvStore;
+        this(mvStore, H2Writer.DIRECT);
+    }
+
+    H2QueueRepository(MVStore mvStore, H2Writer writer) {
+        this.writer = writer;
+        this.messages = mvStore.openMap(MESSAGES_MAP, new MVMap.Builder<QueueKey, EnqueuedMessage>()
+            .keyType(new QueueKeyDataType())
+            .valueType(new EnqueuedMessageValueType()));
+        this.queues = mvStore.openMap(QUEUES_MAP, new MVMap.Builder<String, QueueMeta>()
+            .valueType(new QueueMetaDataType()));
+        this.queueIds = mvStore.openMap(QUEUE_IDS_MAP);
+        final Long storedNextId = writer.get(queueIds, NEXT_ID);
+        this.nextId = storedNextId == null ? 0L : storedNextId;
+        migrateLegacyQueues(mvStore);
+    }
+
+    private void migrateLegacyQueues(MVStore mvStore) {
+        final Set<String> mapNames = mvStore.getMapNames();
+        // a queue is known by its companion, a client id could end with the suffix
+        final List<String> legacyQueues = mapNames.stream()
+            .filter(name -> name.startsWith(LEGACY_QUEUE_PREFIX) && mapNames.contains(name + LEGACY_META_SUFFIX))
+            .collect(Collectors.toList());
+        if (legacyQueues.isEmpty()) {
+            return;
+        }
+        LOG.info("Migrating {} session queues to the {} map", legacyQueues.size(), MESSAGES_MAP);
+        for (String legacyName : legacyQueues) {
+            final String clientId = legacyName.substring(LEGACY_QUEUE_PREFIX.length());
+            final MVMap<Long, EnqueuedMessage> legacyMessages = mvStore.openMap(legacyName,
+                new MVMap.Builder<Long, EnqueuedMessage>().valueType(new EnqueuedMessageValueType()));
+            final MVMap<String, Long> legacyMeta = mvStore.openMap(legacyName + LEGACY_META_SUFFIX);
+            final long head = legacyMeta.getOrDefault("head", 0L);
+            final long tail = legacyMeta.getOrDefault("tail", 0L);
+            final long id = allocateId();
+            // only the range from the tail to the head is queued, copied without gaps
+            long next = tail;
+            for (long seq = tail; seq < head; seq++) {
+                final EnqueuedMessage message = legacyMessages.get(seq);
+                if (message != null) {
+                    writer.put(messages, new QueueKey(id, next++), message);
+                }
+            }
+            writer.put(queues, clientId, new QueueMeta(id, next, tail));
+            // dropped in the same version, a crash before the next commit leaves both untouched
+            mvStore.removeMap(legacyMessages);
+            mvStore.removeMap(legacyMeta);
+        }
+    }
+
+    private synchronized long allocateId() {
+        final long id = nextId++;
+        writer.put(queueIds, NEXT_ID, nextId);
+        return id;
     }
 
     @Override
     public Set<String> listQueueNames() {
-        return mvStore.getMapNames().stream()
-            .filter(name -> name.startsWith("queue_") && !name.endsWith("_meta"))
-            .map(name -> name.substring("queue_".length()))
-            .collect(Collectors.toSet());
+        writer.flush(queues);
+        return new HashSet<>(queues.keyList());
     }
 
     @Override
     public boolean containsQueue(String queueName) {
-        return mvStore.hasMap("queue_" + queueName);
+        return writer.get(queues, queueName) != null;
     }
 
     @Override
     public SessionMessageQueue<EnqueuedMessage> getOrCreateQueue(String clientId) {
-        return new H2PersistentQueue(mvStore, clientId);
+        QueueMeta meta = writer.get(queues, clientId);
+        if (meta == null) {
+            meta = new QueueMeta(allocateId(), 0, 0);
+            writer.put(queues, clientId, meta);
+        }
+        return new H2PersistentQueue(messages, queues, clientId, meta, writer);
     }
 
     @Override
     public void close() {
         // No-op
     }
+
+    /**
+     * Sorted by queue id, so that the messages of a queue are contiguous, then by sequence number.
+     * */
+    static final class QueueKey implements Comparable<QueueKey> {
+        final long queueId;
+        final long seq;
+
+        QueueKey(long queueId, long seq) {
+            this.queueId = queueId;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(QueueKey o) {
+            final int compare = Long.compare(queueId, o.queueId);
+            return compare != 0 ? compare : Long.compare(seq, o.seq);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final QueueKey that = (QueueKey) o;
+            return queueId == that.queueId && seq == that.seq;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(queueId) + Long.hashCode(seq);
+        }
+    }
+
+    /**
+     * Id of a queue with the sequence numbers of its next enqueue (head) and dequeue (tail).
+     * */
+    static final class QueueMeta {
+        final long id;
+        final long head;
+        final long tail;
+
+        QueueMeta(long id, long head, long tail) {
+            this.id = id;
+            this.head = head;
+            this.tail = tail;
+        }
+    }
+
+    private static final class QueueKeyDataType extends BasicDataType<QueueKey> {
+
+        @Override
+        public int compare(QueueKey a, QueueKey b) {
+            return a.compareTo(b);
+        }
+
+        @Override
+        public int getMemory(QueueKey key) {
+            return 2 * DataUtils.getVarLongLen(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void write(WriteBuffer buff, QueueKey key) {
+            buff.putVarLong(key.queueId);
+            buff.putVarLong(key.seq);
+        }
+
+        @Override
+        public QueueKey read(ByteBuffer buff) {
+            return new QueueKey(DataUtils.readVarLong(buff), DataUtils.readVarLong(buff));
+        }
+
+        @Override
+        public QueueKey[] createStorage(int size) {
+            return new QueueKey[size];
+        }
+    }
+
+    private static final class QueueMetaDataType extends BasicDataType<QueueMeta> {
+
+        @Override
+        public int getMemory(QueueMeta meta) {
+            return 3 * DataUtils.getVarLongLen(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void write(WriteBuffer buff, QueueMeta meta) {
+            buff.putVarLong(meta.id);
+            buff.putVarLong(meta.head);
+            buff.putVarLong(meta.tail);
+        }
+
+        @Override
+        public QueueMeta read(ByteBuffer buff) {
+            return new QueueMeta(DataUtils.readVarLong(buff), DataUtils.readVarLong(buff),
+                DataUtils.readVarLong(buff));
+        }
+
+        @Override
+        public QueueMeta[] createStorage(int size) {
+            return new QueueMeta[size];
+        }
+    }
 }
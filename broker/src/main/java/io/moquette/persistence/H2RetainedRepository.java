@@ -5,25 +5,63 @@ import io.moquette.broker.RetainedMessage;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.Cursor;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+import org.h2.mvstore.type.ByteArrayDataType;
+import org.h2.mvstore.type.StringDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
+/**
+ * Retained messages stored in an MVMap whose keys, compared as strings, are sorted by topic name. Seen as a tree,
+ * the levels that follow the same prefix are a contiguous range of keys, so a topic filter is resolved walking
+ * only the ranges of the matching levels, seeking in the B-tree from one level to the next.
+ *
+ * Keys and values are written by hand-made data types, the Java serialized map of the previous versions is
+ * migrated when opened.
+ * */
 public class H2RetainedRepository implements IRetainedRepository {
 
+    private static final Logger LOG = LoggerFactory.getLogger(H2RetainedRepository.class);
+    private static final String LEGACY_RETAINED_MAP = "retained_store";
+    private static final String RETAINED_MAP = "retained_messages";
+    private static final byte RETAINED_SERDES_V1 = 1;
+
     private final MVMap<Topic, RetainedMessage> queueMap;
+    private final H2Writer writer;
 
     public H2RetainedRepository(MVStore mvStore) {
-        this.queueMap = mvStore.openMap("retained_store");
+        this(mvStore, H2Writer.DIRECT);
+    }
+
+    H2RetainedRepository(MVStore mvStore, H2Writer writer) {
+        this.writer = writer;
+        final MVMap.Builder<Topic, RetainedMessage> retainedTypeBuilder = new MVMap.Builder<Topic, RetainedMessage>()
+            .keyType(new TopicDataType())
+            .valueType(new RetainedMessageValueType());
+        this.queueMap = mvStore.openMap(RETAINED_MAP, retainedTypeBuilder);
+        if (mvStore.hasMap(LEGACY_RETAINED_MAP)) {
+            final MVMap<Topic, RetainedMessage> legacy = mvStore.openMap(LEGACY_RETAINED_MAP);
+            LOG.info("Migrating {} retained messages to the {} map", legacy.size(), RETAINED_MAP);
+            queueMap.putAll(legacy);
+            mvStore.removeMap(legacy);
+        }
     }
 
     @Override
     public void cleanRetained(Topic topic) {
-        queueMap.remove(topic);
+        writer.remove(queueMap, topic);
     }
 
     @Override
@@ -32,25 +70,148 @@ public class H2RetainedRepository implements IRetainedRepository {
         byte[] rawPayload = new byte[payload.readableBytes()];
         payload.getBytes(0, rawPayload);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload);
-        queueMap.put(topic, toStore);
+        writer.put(queueMap, topic, toStore);
     }
 
     @Override
     public boolean isEmpty() {
+        writer.flush(queueMap);
         return queueMap.isEmpty();
     }
 
     @Override
     public Collection<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
         final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : queueMap.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
+        if (!new Topic(topic).isValid()) {
+            return matchingMessages;
+        }
+        // the wildcards are resolved by ranges of keys, that don't see the pending updates
+        writer.flush(queueMap);
+        // keep the empty levels, like Topic does
+        final String[] levels = topic.split("/", -1);
+        collectMatching(levels, 0, null, matchingMessages);
+        return matchingMessages;
+    }
+
+    /**
+     * @param path the topic name matched by the levels of the filter that precede level, null at the start.
+     * */
+    private void collectMatching(String[] levels, int level, String path, List<RetainedMessage> matches) {
+        if (level == levels.length) {
+            addIfPresent(path, matches);
+            return;
+        }
+        final String token = levels[level];
+        final String prefix = path == null ? "" : path + "/";
+        if ("#".equals(token)) {
+            // # matches also the parent level
+            if (path != null) {
+                addIfPresent(path, matches);
+            }
+            final Cursor<Topic, RetainedMessage> cursor = queueMap.cursor(new Topic(prefix));
+            while (cursor.hasNext() && cursor.next().toString().startsWith(prefix)) {
+                matches.add(cursor.getValue());
             }
+        } else if ("+".equals(token)) {
+            // the keys of a level are interleaved by its siblings that extend its name with chars sorting before
+            // the separator, as "a", "a!", "a/b", so a level could be met again after one of those.
+            final Set<String> visited = new HashSet<>();
+            Topic key = queueMap.ceilingKey(new Topic(prefix));
+            while (key != null && key.toString().startsWith(prefix)) {
+                final String keyName = key.toString();
+                final int endOfLevel = keyName.indexOf('/', prefix.length());
+                final String child = endOfLevel < 0 ? keyName.substring(prefix.length())
+                    : keyName.substring(prefix.length(), endOfLevel);
+                if (visited.add(child)) {
+                    collectMatching(levels, level + 1, prefix + child, matches);
+                }
+                if (endOfLevel < 0) {
+                    key = queueMap.higherKey(key);
+                } else {
+                    // skip all the keys under child/, '0' is the char that follows '/'
+                    key = queueMap.ceilingKey(new Topic(prefix + child + '0'));
+                }
+            }
+        } else {
+            collectMatching(levels, level + 1, prefix + token, matches);
         }
+    }
 
-        return matchingMessages;
+    private void addIfPresent(String topicName, List<RetainedMessage> matches) {
+        final RetainedMessage retained = queueMap.get(new Topic(topicName));
+        if (retained != null) {
+            matches.add(retained);
+        }
+    }
+
+    /**
+     * Codec data type of the topic names, sorted as strings like {@link Topic#compareTo(Topic)}, that the lookup of
+     * the wildcards relies on.
+     * */
+    static final class TopicDataType extends BasicDataType<Topic> {
+
+        private final StringDataType stringDataType = StringDataType.INSTANCE;
+
+        @Override
+        public int compare(Topic a, Topic b) {
+            return a.compareTo(b);
+        }
+
+        @Override
+        public int getMemory(Topic topic) {
+            return stringDataType.getMemory(topic.toString());
+        }
+
+        @Override
+        public void write(WriteBuffer buff, Topic topic) {
+            stringDataType.write(buff, topic.toString());
+        }
+
+        @Override
+        public Topic read(ByteBuffer buff) {
+            return new Topic(stringDataType.read(buff));
+        }
+
+        @Override
+        public Topic[] createStorage(int size) {
+            return new Topic[size];
+        }
+    }
+
+    private static final class RetainedMessageValueType extends BasicDataType<RetainedMessage> {
+
+        private final StringDataType stringDataType = StringDataType.INSTANCE;
+        private final ByteArrayDataType byteArrayDataType = ByteArrayDataType.INSTANCE;
+
+        @Override
+        public int getMemory(RetainedMessage retained) {
+            return 1 + 1 + stringDataType.getMemory(retained.getTopic().toString()) +
+                byteArrayDataType.getMemory(retained.getPayload());
+        }
+
+        @Override
+        public void write(WriteBuffer buff, RetainedMessage retained) {
+            buff.put(RETAINED_SERDES_V1);
+            buff.put((byte) retained.qosLevel().value());
+            stringDataType.write(buff, retained.getTopic().toString());
+            byteArrayDataType.write(buff, retained.getPayload());
+        }
+
+        @Override
+        public RetainedMessage read(ByteBuffer buff) {
+            final byte serDesVersion = buff.get();
+            if (serDesVersion != RETAINED_SERDES_V1) {
+                throw new IllegalArgumentException("Unrecognized serialization version " + serDesVersion);
+            }
+            final MqttQoS qos = MqttQoS.valueOf(buff.get());
+            final Topic topic = new Topic(stringDataType.read(buff));
+            final byte[] payload = byteArrayDataType.read(buff);
+            return new RetainedMessage(topic, qos, payload);
+        }
+
+        @Override
+        public RetainedMessage[] createStorage(int size) {
+            return new RetainedMessage[size];
+        }
     }
 }
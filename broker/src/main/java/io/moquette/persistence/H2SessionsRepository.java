@@ -32,9 +32,15 @@ class H2SessionsRepository implements ISessionsRepository {
     private final MVMap<String, SessionData> sessionMap;
     private final MVMap<String, Will> willMap;
     private final Clock clock;
+    private final H2Writer writer;
 
     public H2SessionsRepository(MVStore mvStore, Clock clock) {
+        this(mvStore, clock, H2Writer.DIRECT);
+    }
+
+    H2SessionsRepository(MVStore mvStore, Clock clock, H2Writer writer) {
         this.clock = clock;
+        this.writer = writer;
         final MVMap.Builder<String, ISessionsRepository.SessionData> sessionTypeBuilder =
             new MVMap.Builder<String, ISessionsRepository.SessionData>()
                 .valueType(new SessionDataValueType());
@@ -48,33 +54,35 @@ class H2SessionsRepository implements ISessionsRepository {
 
     @Override
     public Collection<SessionData> list() {
+        writer.flush(sessionMap);
         return sessionMap.values();
     }
 
     @Override
     public void saveSession(SessionData session) {
-        sessionMap.put(session.clientId(), session);
+        writer.put(sessionMap, session.clientId(), session);
     }
 
     @Override
     public void delete(SessionData session) {
-        sessionMap.remove(session.clientId());
+        writer.remove(sessionMap, session.clientId());
     }
 
     @Override
     public void listSessionsWill(BiConsumer<String, Will> visitor) {
+        writer.flush(willMap);
         willMap.entrySet().stream()
             .forEach(e -> visitor.accept(e.getKey(), e.getValue()));
     }
 
     @Override
     public void saveWill(String clientId, Will will) {
-        willMap.put(clientId, will);
+        writer.put(willMap, clientId, will);
     }
 
     @Override
     public void deleteWill(String clientId) {
-        willMap.remove(clientId);
+        writer.remove(willMap, clientId);
     }
 
     /**
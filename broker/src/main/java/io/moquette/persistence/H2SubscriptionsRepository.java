@@ -2,35 +2,75 @@ package io.moquette.persistence;
 
 import io.moquette.broker.ISubscriptionsRepository;
 import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+import org.h2.mvstore.type.StringDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
+/**
+ * Subscriptions keyed by client id, share name and topic filter, with the requested QoS as value, both written by
+ * hand-made data types instead of the Java serialization of {@link Subscription}.
+ * */
 public class H2SubscriptionsRepository implements ISubscriptionsRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(H2SubscriptionsRepository.class);
-    private static final String SUBSCRIPTIONS_MAP = "subscriptions";
+    // Java serialized subscriptions keyed by "topicFilter-clientId", migrated on open
+    private static final String LEGACY_SUBSCRIPTIONS_MAP = "subscriptions";
+    private static final String SUBSCRIPTIONS_MAP = "subscriptions_by_client";
+    private static final String SHARE_PREFIX = "$share/";
+    private static final byte QOS_SERDES_V1 = 1;
 
-    private MVMap<String, Subscription> subscriptions;
+    private final MVMap<SubscriptionKey, MqttQoS> subscriptions;
+    private final H2Writer writer;
 
     H2SubscriptionsRepository(MVStore mvStore) {
-        this.subscriptions = mvStore.openMap(SUBSCRIPTIONS_MAP);
+        this(mvStore, H2Writer.DIRECT);
+    }
+
+    H2SubscriptionsRepository(MVStore mvStore, H2Writer writer) {
+        this.writer = writer;
+        final MVMap.Builder<SubscriptionKey, MqttQoS> subscriptionsTypeBuilder =
+            new MVMap.Builder<SubscriptionKey, MqttQoS>()
+                .keyType(new SubscriptionKeyDataType())
+                .valueType(new QosDataType());
+        this.subscriptions = mvStore.openMap(SUBSCRIPTIONS_MAP, subscriptionsTypeBuilder);
+        if (mvStore.hasMap(LEGACY_SUBSCRIPTIONS_MAP)) {
+            migrateLegacySubscriptions(mvStore);
+        }
+    }
+
+    private void migrateLegacySubscriptions(MVStore mvStore) {
+        final MVMap<String, Subscription> legacy = mvStore.openMap(LEGACY_SUBSCRIPTIONS_MAP);
+        LOG.info("Migrating {} subscriptions to the {} map", legacy.size(), SUBSCRIPTIONS_MAP);
+        for (Subscription subscription : legacy.values()) {
+            subscriptions.put(SubscriptionKey.of(subscription), subscription.getRequestedQos());
+        }
+        // dropped in the same version, a crash before the next commit leaves both untouched
+        mvStore.removeMap(legacy);
     }
 
     @Override
     public Set<Subscription> listAllSubscriptions() {
         LOG.debug("Retrieving existing subscriptions");
+        writer.flush(subscriptions);
 
         Set<Subscription> results = new HashSet<>();
-        Cursor<String, Subscription> mapCursor = subscriptions.cursor(null);
+        Cursor<SubscriptionKey, MqttQoS> mapCursor = subscriptions.cursor(null);
         while (mapCursor.hasNext()) {
-            String subscriptionStr = mapCursor.next();
-            results.add(mapCursor.getValue());
+            final SubscriptionKey key = mapCursor.next();
+            results.add(new Subscription(key.clientId, new Topic(key.topicFilter), mapCursor.getValue(),
+                key.shareName));
         }
         LOG.debug("Loaded {} subscriptions", results.size());
         return results;
@@ -38,11 +78,167 @@ public class H2SubscriptionsRepository implements ISubscriptionsRepository {
 
     @Override
     public void addNewSubscription(Subscription subscription) {
-        subscriptions.put(subscription.getTopicFilter() + "-" + subscription.getClientId(), subscription);
+        writer.put(subscriptions, SubscriptionKey.of(subscription), subscription.getRequestedQos());
     }
 
     @Override
     public void removeSubscription(String topicFilter, String clientID) {
-        subscriptions.remove(topicFilter + "-" + clientID);
+        writer.remove(subscriptions, SubscriptionKey.of(clientID, topicFilter));
+    }
+
+    /**
+     * Sorted by client id, so that the subscriptions of a client are contiguous, then by share name, with the non
+     * shared subscriptions first, and by topic filter.
+     * */
+    static final class SubscriptionKey implements Comparable<SubscriptionKey> {
+        final String clientId;
+        // null if not a shared subscription
+        final String shareName;
+        final String topicFilter;
+
+        SubscriptionKey(String clientId, String shareName, String topicFilter) {
+            this.clientId = clientId;
+            this.shareName = shareName;
+            this.topicFilter = topicFilter;
+        }
+
+        static SubscriptionKey of(Subscription subscription) {
+            return new SubscriptionKey(subscription.getClientId(), subscription.getShareName(),
+                subscription.getTopicFilter().toString());
+        }
+
+        /**
+         * @param subscribedFilter the filter as subscribed by the client, $share/{shareName}/{topicFilter} for
+         *                         shared subscriptions.
+         * */
+        static SubscriptionKey of(String clientId, String subscribedFilter) {
+            if (!subscribedFilter.startsWith(SHARE_PREFIX)) {
+                return new SubscriptionKey(clientId, null, subscribedFilter);
+            }
+            final int endOfShareName = subscribedFilter.indexOf('/', SHARE_PREFIX.length());
+            if (endOfShareName < 0) {
+                // no topic filter after the share name, it can't be a stored shared subscription
+                return new SubscriptionKey(clientId, null, subscribedFilter);
+            }
+            return new SubscriptionKey(clientId, subscribedFilter.substring(SHARE_PREFIX.length(), endOfShareName),
+                subscribedFilter.substring(endOfShareName + 1));
+        }
+
+        @Override
+        public int compareTo(SubscriptionKey o) {
+            int compare = clientId.compareTo(o.clientId);
+            if (compare != 0) {
+                return compare;
+            }
+            if (shareName == null || o.shareName == null) {
+                compare = shareName == null ? (o.shareName == null ? 0 : -1) : 1;
+            } else {
+                compare = shareName.compareTo(o.shareName);
+            }
+            if (compare != 0) {
+                return compare;
+            }
+            return topicFilter.compareTo(o.topicFilter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final SubscriptionKey that = (SubscriptionKey) o;
+            return clientId.equals(that.clientId) && Objects.equals(shareName, that.shareName) &&
+                topicFilter.equals(that.topicFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientId, shareName, topicFilter);
+        }
+    }
+
+    /**
+     * Codec data type of the subscription keys: client id, a flag telling if the share name follows, and the topic
+     * filter.
+     * */
+    static final class SubscriptionKeyDataType extends BasicDataType<SubscriptionKey> {
+
+        private static final byte NOT_SHARED = 0;
+        private static final byte SHARED = 1;
+
+        private final StringDataType stringDataType = StringDataType.INSTANCE;
+
+        @Override
+        public int compare(SubscriptionKey a, SubscriptionKey b) {
+            return a.compareTo(b);
+        }
+
+        @Override
+        public int getMemory(SubscriptionKey key) {
+            int length = stringDataType.getMemory(key.clientId) + 1 + stringDataType.getMemory(key.topicFilter);
+            if (key.shareName != null) {
+                length += stringDataType.getMemory(key.shareName);
+            }
+            return length;
+        }
+
+        @Override
+        public void write(WriteBuffer buff, SubscriptionKey key) {
+            stringDataType.write(buff, key.clientId);
+            if (key.shareName == null) {
+                buff.put(NOT_SHARED);
+            } else {
+                buff.put(SHARED);
+                stringDataType.write(buff, key.shareName);
+            }
+            stringDataType.write(buff, key.topicFilter);
+        }
+
+        @Override
+        public SubscriptionKey read(ByteBuffer buff) {
+            final String clientId = stringDataType.read(buff);
+            final String shareName = buff.get() == SHARED ? stringDataType.read(buff) : null;
+            final String topicFilter = stringDataType.read(buff);
+            return new SubscriptionKey(clientId, shareName, topicFilter);
+        }
+
+        @Override
+        public SubscriptionKey[] createStorage(int size) {
+            return new SubscriptionKey[size];
+        }
+    }
+
+    /**
+     * Codec data type of the requested QoS, prefixed by a version byte to add subscription options later.
+     * */
+    private static final class QosDataType extends BasicDataType<MqttQoS> {
+
+        @Override
+        public int getMemory(MqttQoS qos) {
+            return 2;
+        }
+
+        @Override
+        public void write(WriteBuffer buff, MqttQoS qos) {
+            buff.put(QOS_SERDES_V1);
+            buff.put((byte) qos.value());
+        }
+
+        @Override
+        public MqttQoS read(ByteBuffer buff) {
+            final byte serDesVersion = buff.get();
+            if (serDesVersion != QOS_SERDES_V1) {
+                throw new IllegalArgumentException("Unrecognized serialization version " + serDesVersion);
+            }
+            return MqttQoS.valueOf(buff.get());
+        }
+
+        @Override
+        public MqttQoS[] createStorage(int size) {
+            return new MqttQoS[size];
+        }
     }
 }
@@ -0,0 +1,325 @@
+package io.moquette.persistence;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Commits the MVStore from its own thread and, used as {@link H2Writer}, keeps the updates of the repositories
+ * pending until the commit, so that a key updated many times between two commits is written to its map once.
+ *
+ * The pending updates are applied and committed together every commit interval, or as soon as the number of keys
+ * pending reaches the batch size. The chunks left mostly empty by the commits are compacted by the same thread,
+ * rewriting at most the configured bytes each compaction interval, so that it doesn't compete with the commits
+ * for the disk.
+ *
+ * Pending updates are lost if the process crashes, as the changes not yet committed always were.
+ * */
+public final class H2WriteBehind implements H2Writer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(H2WriteBehind.class);
+    private static final Object REMOVED = new Object();
+    // chunks with less live data than this percentage are rewritten
+    private static final int COMPACT_TARGET_FILL_RATE = 80;
+
+    private final MVStore store;
+    private final int commitBatchSize;
+    private final int compactMaxBytes;
+    private final ConcurrentMap<MVMap<?, ?>, ConcurrentMap<Object, Object>> pending = new ConcurrentHashMap<>();
+    // updates are applied by one thread at a time, so that an older value never overwrites a newer one
+    private final ReentrantLock applyLock = new ReentrantLock();
+    private final ScheduledExecutorService writer;
+    private final AtomicBoolean commitRequested = new AtomicBoolean();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final LongAdder appliedWrites = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final AtomicLong lastCommitNanos = new AtomicLong();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+    private final AtomicLong totalCommitNanos = new AtomicLong();
+    private final LongAdder compactions = new LongAdder();
+
+    /**
+     * @param commitBatchSize the pending keys that trigger a commit before the interval elapses.
+     * @param compactIntervalMillis the period of the compactions, 0 disables them.
+     * @param compactMaxBytes the bytes a compaction rewrites at most.
+     * */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    H2WriteBehind(MVStore store, long commitIntervalMillis, int commitBatchSize, long compactIntervalMillis,
+                  int compactMaxBytes) {
+        this.store = store;
+        this.commitBatchSize = commitBatchSize;
+        this.compactMaxBytes = compactMaxBytes;
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "moquette-h2-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::commit, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+        if (compactIntervalMillis > 0) {
+            writer.scheduleWithFixedDelay(this::compact, compactIntervalMillis, compactIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public <K, V> void put(MVMap<K, V> map, K key, V value) {
+        stage(map, key, value);
+    }
+
+    @Override
+    public <K, V> void remove(MVMap<K, V> map, K key) {
+        stage(map, key, REMOVED);
+    }
+
+    private void stage(MVMap<?, ?> map, Object key, Object value) {
+        final Object previous = pending.computeIfAbsent(map, m -> new ConcurrentHashMap<>()).put(key, value);
+        if (previous != null) {
+            coalescedWrites.increment();
+            return;
+        }
+        if (pendingWrites.incrementAndGet() >= commitBatchSize && commitRequested.compareAndSet(false, true)) {
+            writer.execute(this::commit);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <K, V> V get(MVMap<K, V> map, K key) {
+        final ConcurrentMap<Object, Object> entries = pending.get(map);
+        if (entries != null) {
+            final Object value = entries.get(key);
+            if (value != null) {
+                return value == REMOVED ? null : (V) value;
+            }
+        }
+        // an update is removed from the pending ones after it's in the map
+        return map.get(key);
+    }
+
+    @Override
+    public void flush(MVMap<?, ?> map) {
+        final ConcurrentMap<Object, Object> entries = pending.get(map);
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        applyLock.lock();
+        try {
+            apply(map, entries);
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeMap(MVStore store, MVMap<?, ?> map) {
+        applyLock.lock();
+        try {
+            final ConcurrentMap<Object, Object> entries = pending.remove(map);
+            if (entries != null) {
+                pendingWrites.addAndGet(-entries.size());
+            }
+            store.removeMap(map);
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void apply(MVMap<?, ?> map, ConcurrentMap<Object, Object> entries) {
+        final MVMap<Object, Object> target = (MVMap<Object, Object>) map;
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            final Object value = entry.getValue();
+            if (value == REMOVED) {
+                target.remove(entry.getKey());
+            } else {
+                target.put(entry.getKey(), value);
+            }
+            appliedWrites.increment();
+            // an update staged meanwhile stays pending
+            if (entries.remove(entry.getKey(), value)) {
+                pendingWrites.decrementAndGet();
+            }
+        }
+    }
+
+    private void applyAll() {
+        applyLock.lock();
+        try {
+            for (Map.Entry<MVMap<?, ?>, ConcurrentMap<Object, Object>> mapEntries : pending.entrySet()) {
+                apply(mapEntries.getKey(), mapEntries.getValue());
+            }
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    private void commit() {
+        commitRequested.set(false);
+        final long start = System.nanoTime();
+        try {
+            applyAll();
+            store.commit();
+        } catch (RuntimeException ex) {
+            // keep the periodic commit scheduled
+            LOG.error("Failed to commit the H2 store", ex);
+            return;
+        }
+        final long elapsed = System.nanoTime() - start;
+        commits.increment();
+        lastCommitNanos.set(elapsed);
+        totalCommitNanos.addAndGet(elapsed);
+        maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+        LOG.trace("Committed H2 store in {} us", TimeUnit.NANOSECONDS.toMicros(elapsed));
+    }
+
+    private void compact() {
+        try {
+            if (store.compact(COMPACT_TARGET_FILL_RATE, compactMaxBytes)) {
+                compactions.increment();
+                LOG.debug("Compacted H2 store, chunks fill rate {}%", store.getChunksFillRate());
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed to compact the H2 store", ex);
+        }
+    }
+
+    /**
+     * Stop the writer thread and commit what is pending, the store is left open.
+     * */
+    void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warn("H2 writer didn't complete its task in 10 seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+    }
+
+    public Stats stats() {
+        final long commitsCount = commits.sum();
+        return new Stats(store.getCacheSize() * 1024L * 1024L, store.getCacheSizeUsed() * 1024L * 1024L,
+            pendingWrites.get(), coalescedWrites.sum(), appliedWrites.sum(), commitsCount,
+            TimeUnit.NANOSECONDS.toMicros(lastCommitNanos.get()), TimeUnit.NANOSECONDS.toMicros(maxCommitNanos.get()),
+            commitsCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalCommitNanos.get() / commitsCount),
+            compactions.sum(), store.getChunksFillRate());
+    }
+
+    /**
+     * Snapshot of the H2 store and of its writer, the values are read one by one so they could be slightly out of
+     * step with each other.
+     * */
+    public static final class Stats {
+        private final long cacheBytes;
+        private final long cacheUsedBytes;
+        private final int pendingWrites;
+        private final long coalescedWrites;
+        private final long appliedWrites;
+        private final long commits;
+        private final long lastCommitMicros;
+        private final long maxCommitMicros;
+        private final long averageCommitMicros;
+        private final long compactions;
+        private final int chunksFillRate;
+
+        private Stats(long cacheBytes, long cacheUsedBytes, int pendingWrites, long coalescedWrites,
+                      long appliedWrites, long commits, long lastCommitMicros, long maxCommitMicros,
+                      long averageCommitMicros, long compactions, int chunksFillRate) {
+            this.cacheBytes = cacheBytes;
+            this.cacheUsedBytes = cacheUsedBytes;
+            this.pendingWrites = pendingWrites;
+            this.coalescedWrites = coalescedWrites;
+            this.appliedWrites = appliedWrites;
+            this.commits = commits;
+            this.lastCommitMicros = lastCommitMicros;
+            this.maxCommitMicros = maxCommitMicros;
+            this.averageCommitMicros = averageCommitMicros;
+            this.compactions = compactions;
+            this.chunksFillRate = chunksFillRate;
+        }
+
+        /**
+         * @return the maximum size of the page cache.
+         * */
+        public long cacheBytes() {
+            return cacheBytes;
+        }
+
+        public long cacheUsedBytes() {
+            return cacheUsedBytes;
+        }
+
+        /**
+         * @return the keys with an update waiting for the next commit.
+         * */
+        public int pendingWrites() {
+            return pendingWrites;
+        }
+
+        /**
+         * @return the updates that replaced a pending one of the same key, never written to the maps.
+         * */
+        public long coalescedWrites() {
+            return coalescedWrites;
+        }
+
+        public long appliedWrites() {
+            return appliedWrites;
+        }
+
+        public long commits() {
+            return commits;
+        }
+
+        public long lastCommitMicros() {
+            return lastCommitMicros;
+        }
+
+        public long maxCommitMicros() {
+            return maxCommitMicros;
+        }
+
+        public long averageCommitMicros() {
+            return averageCommitMicros;
+        }
+
+        /**
+         * @return the compactions that rewrote some chunks.
+         * */
+        public long compactions() {
+            return compactions;
+        }
+
+        /**
+         * @return the percentage of live data in the chunks of the store file.
+         * */
+        public int chunksFillRate() {
+            return chunksFillRate;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{cache=" + cacheUsedBytes + "/" + cacheBytes + ", pending=" + pendingWrites +
+                ", coalesced=" + coalescedWrites + ", applied=" + appliedWrites + ", commits=" + commits +
+                ", lastCommitMicros=" + lastCommitMicros + ", maxCommitMicros=" + maxCommitMicros +
+                ", averageCommitMicros=" + averageCommitMicros + ", compactions=" + compactions +
+                ", chunksFillRate=" + chunksFillRate + '}';
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.moquette.persistence;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+/**
+ * How the H2 repositories change their maps: directly, or through the {@link H2WriteBehind} stage that coalesces
+ * the updates of the same key until the next commit. Reads by key see the pending updates, a repository that scans
+ * a range of a map has to {@link #flush(MVMap)} it first.
+ * */
+interface H2Writer {
+
+    H2Writer DIRECT = new H2Writer() {
+        @Override
+        public <K, V> void put(MVMap<K, V> map, K key, V value) {
+            map.put(key, value);
+        }
+
+        @Override
+        public <K, V> void remove(MVMap<K, V> map, K key) {
+            map.remove(key);
+        }
+
+        @Override
+        public <K, V> V get(MVMap<K, V> map, K key) {
+            return map.get(key);
+        }
+
+        @Override
+        public void flush(MVMap<?, ?> map) {
+        }
+
+        @Override
+        public void removeMap(MVStore store, MVMap<?, ?> map) {
+            store.removeMap(map);
+        }
+    };
+
+    <K, V> void put(MVMap<K, V> map, K key, V value);
+
+    <K, V> void remove(MVMap<K, V> map, K key);
+
+    <K, V> V get(MVMap<K, V> map, K key);
+
+    /**
+     * Apply the pending updates of the map.
+     * */
+    void flush(MVMap<?, ?> map);
+
+    /**
+     * Drop the map with its pending updates.
+     * */
+    void removeMap(MVStore store, MVMap<?, ?> map);
+}
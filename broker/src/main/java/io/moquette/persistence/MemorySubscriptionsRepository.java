@@ -39,7 +39,7 @@ public class MemorySubscriptionsRepository implements ISubscriptionsRepository {
     @Override
     public void removeSubscription(String topic, String clientID) {
         subscriptions.stream()
-            .filter(s -> s.getTopicFilter().toString().equals(topic) && s.getClientId().equals(clientID))
+            .filter(s -> s.getSubscribedFilter().equals(topic) && s.getClientId().equals(clientID))
             .findFirst()
             .ifPresent(subscriptions::remove);
     }
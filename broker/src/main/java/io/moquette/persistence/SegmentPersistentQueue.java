@@ -1,90 +1,95 @@
 package io.moquette.persistence;
 
 import io.moquette.broker.AbstractSessionMessageQueue;
+import io.moquette.broker.EncodedPublishedMessage;
 import io.moquette.broker.SessionRegistry;
 import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.unsafequeues.Queue;
 import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
+import io.moquette.broker.unsafequeues.SharedLog;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.IntFunction;
 
 public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
+    /**
+     * Records are a type byte followed, for messages, by the wire format written by {@link EncodedPublishedMessage}.
+     * Queues written by previous versions contain {@link MessageType#PUBLISHED_MESSAGE} records, which are still read.
+     * A message stored in the shared log is a {@link MessageType#LOG_REFERENCE} record: the QoS of the session
+     * followed by the entry of the message record in the log.
+     * */
     private static class SerDes {
 
-        private enum MessageType {PUB_REL_MARKER, PUBLISHED_MESSAGE}
+        private enum MessageType {PUB_REL_MARKER, PUBLISHED_MESSAGE, PUBLISH_FRAME, LOG_REFERENCE}
 
-        public ByteBuffer toBytes(SessionRegistry.EnqueuedMessage message) {
-            final int memorySize = getMemory(message);
-            final ByteBuffer payload = ByteBuffer.allocate(memorySize);
-            payload.mark();
-            write(message, payload);
-            payload.reset();
-            return payload;
-        }
-
-        private void write(SessionRegistry.EnqueuedMessage obj, ByteBuffer buff) {
-            if (obj instanceof SessionRegistry.PublishedMessage) {
-                buff.put((byte) MessageType.PUBLISHED_MESSAGE.ordinal());
-
-                final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
-                buff.put((byte) casted.getPublishingQos().value());
-
-                final String topic = casted.getTopic().toString();
+        private static final int LOG_REFERENCE_SIZE = 1 + 1 + SharedLog.Entry.ENCODED_SIZE;
 
-                writeTopic(buff, topic);
-                writePayload(buff, casted.getPayload());
-            } else if (obj instanceof SessionRegistry.PubRelMarker) {
+        /**
+         * @param allocator provides a buffer of the requested size where the record is written.
+         * */
+        public ByteBuffer toBytes(SessionRegistry.EnqueuedMessage message, IntFunction<ByteBuffer> allocator) {
+            if (message instanceof SessionRegistry.PubRelMarker) {
+                final ByteBuffer buff = allocator.apply(1);
                 buff.put((byte) MessageType.PUB_REL_MARKER.ordinal());
-            } else {
-                throw new IllegalArgumentException("Unrecognized message class " + obj.getClass());
+                return (ByteBuffer) buff.flip();
             }
+            if (!(message instanceof SessionRegistry.PublishedMessage)) {
+                throw new IllegalArgumentException("Unrecognized message class " + message.getClass());
+            }
+            final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) message;
+            final byte[] topicBytes = casted.getTopic().toString().getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer buff = allocator.apply(1 +
+                EncodedPublishedMessage.encodedLength(topicBytes, casted.getPayload()));
+            buff.put((byte) MessageType.PUBLISH_FRAME.ordinal());
+            EncodedPublishedMessage.encode(topicBytes, casted.getPublishingQos(), casted.getPayload(), buff);
+            return (ByteBuffer) buff.flip();
         }
 
-        private void writePayload(ByteBuffer target, ByteBuf source) {
-            final int payloadSize = source.readableBytes();
-            byte[] rawBytes = new byte[payloadSize];
-            final int pinPoint = source.readerIndex();
-            source.readBytes(rawBytes).release();
-            source.readerIndex(pinPoint);
-            target.putInt(payloadSize);
-            target.put(rawBytes);
-        }
-
-        private void writeTopic(ByteBuffer buff, String topic) {
-            final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
-            buff.putInt(topicBytes.length).put(topicBytes);
+        public ByteBuffer logReference(SessionRegistry.PublishedMessage message, SharedLog.Entry entry,
+                                       IntFunction<ByteBuffer> allocator) {
+            final ByteBuffer buff = allocator.apply(LOG_REFERENCE_SIZE);
+            buff.put((byte) MessageType.LOG_REFERENCE.ordinal());
+            buff.put((byte) message.getPublishingQos().value());
+            entry.writeTo(buff);
+            return (ByteBuffer) buff.flip();
         }
 
-        private int getMemory(SessionRegistry.EnqueuedMessage obj) {
-            if (obj instanceof SessionRegistry.PubRelMarker) {
-                return 1;
+        /**
+         * @return the entry of a {@link MessageType#LOG_REFERENCE} record, else null.
+         * */
+        public SharedLog.Entry referencedEntry(ByteBuffer buff) {
+            if (buff.get(buff.position()) != MessageType.LOG_REFERENCE.ordinal()) {
+                return null;
             }
-            final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
-            return 1 + // message type
-                1 + // qos
-                topicMemorySize(casted.getTopic()) +
-                payloadMemorySize(casted.getPayload());
-        }
-
-        private int payloadMemorySize(ByteBuf payload) {
-            return 4 + // size
-                payload.readableBytes();
+            return SharedLog.Entry.readFrom((ByteBuffer) buff.duplicate().position(buff.position() + 2));
         }
 
-        private int topicMemorySize(Topic topic) {
-            return 4 + // size
-                topic.toString().getBytes(StandardCharsets.UTF_8).length;
+        /**
+         * Decode the message record referenced from the log, delivered at the QoS of the reference.
+         * */
+        public SessionRegistry.EnqueuedMessage fromLog(ByteBuffer reference, ByteBuffer logRecord) {
+            final int qos = reference.get(reference.position() + 1);
+            // the record is shared by sessions subscribed at different QoS, the one in the fixed header is replaced
+            final int headerIdx = logRecord.position() + 1;
+            logRecord.put(headerIdx, (byte) ((logRecord.get(headerIdx) & ~0x06) | (qos << 1)));
+            return fromBytes(logRecord);
         }
 
         public SessionRegistry.EnqueuedMessage fromBytes(ByteBuffer buff) {
             final byte messageType = buff.get();
-            if (messageType == MessageType.PUB_REL_MARKER.ordinal()) {
+            if (messageType == MessageType.PUBLISH_FRAME.ordinal()) {
+                // the dequeued buffer belongs to the message, which is written out from it
+                return EncodedPublishedMessage.decode(Unpooled.wrappedBuffer(buff));
+            } else if (messageType == MessageType.PUB_REL_MARKER.ordinal()) {
                 return new SessionRegistry.PubRelMarker();
             } else if (messageType == MessageType.PUBLISHED_MESSAGE.ordinal()) {
                 final MqttQoS qos = MqttQoS.valueOf(buff.get());
@@ -111,50 +116,205 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
         }
     }
 
-    private final Queue segmentedQueue;
+    // size of the pending batch and of its buffer, reused once the batch is written
+    private static final int MAX_BATCH_BUFFER_SIZE = 64 * 1024;
+
+    // opened on first access when built from the pool
+    private Queue segmentedQueue;
+    private final QueuePool queuePool;
+    private final String queueName;
+    // null when the messages are always stored in the queue
+    private final SharedLog sharedLog;
     private final SerDes serdes = new SerDes();
+    private final List<ByteBuffer> pendingRecords = new ArrayList<>();
+    // the references of the pending records to the shared log, passed to the queue when written
+    private final List<SharedLog.Entry> pendingLogReferences = new ArrayList<>();
+    private ByteBuffer batchBuffer = ByteBuffer.allocate(1024);
+    private int pendingBytes;
+    // bytes of the records held when the queue was opened and not yet dequeued
+    private long backlogBytes;
 
     public SegmentPersistentQueue(Queue segmentedQueue) {
+        this(segmentedQueue, null);
+    }
+
+    /**
+     * @param sharedLog where a message sent to many sessions is stored once, null to store every message in the
+     *                  queue.
+     * */
+    public SegmentPersistentQueue(Queue segmentedQueue, SharedLog sharedLog) {
         this.segmentedQueue = segmentedQueue;
+        this.backlogBytes = segmentedQueue.liveBytes();
+        this.queuePool = null;
+        this.queueName = null;
+        this.sharedLog = sharedLog;
+    }
+
+    /**
+     * A queue of the pool opened only when it's first accessed, so that the sessions recreated on start don't
+     * open the queues of clients that never connect again.
+     * */
+    public SegmentPersistentQueue(QueuePool queuePool, String queueName, SharedLog sharedLog) {
+        this.queuePool = queuePool;
+        this.queueName = queueName;
+        this.sharedLog = sharedLog;
+    }
+
+    private Queue segmentedQueue() throws QueueException {
+        if (segmentedQueue == null) {
+            segmentedQueue = queuePool.getOrCreate(queueName);
+            backlogBytes = segmentedQueue.liveBytes();
+        }
+        return segmentedQueue;
     }
 
+    /**
+     * The message is serialized and kept in the pending batch, written to the segments by {@link #flush()}, or
+     * earlier when the batch reaches {@value #MAX_BATCH_BUFFER_SIZE} bytes. A message of a fan-out is appended
+     * once to the shared log, by the first queue, and the pending record only references it.
+     * */
     @Override
     public void enqueue(SessionRegistry.EnqueuedMessage message) {
         checkEnqueuePreconditions(message);
+        if (!reserveQuota(message)) {
+            return;
+        }
+        try {
+            addPending(message);
+        } catch (RuntimeException e) {
+            // the batch couldn't be written to make room, the message isn't queued
+            releaseQuota(message);
+            throw e;
+        }
+    }
+
+    private void addPending(SessionRegistry.EnqueuedMessage message) {
+        final SharedLog.Entry entry = sharedLog != null && message instanceof SessionRegistry.PublishedMessage ?
+            ((SessionRegistry.PublishedMessage) message).fanOutCopy(this::appendToLog, sharedLog::release) : null;
+        if (entry == null) {
+            pendingRecords.add(serdes.toBytes(message, this::reserve));
+            return;
+        }
+        final ByteBuffer record = serdes.logReference((SessionRegistry.PublishedMessage) message, entry, this::reserve);
+        sharedLog.retain(entry);
+        pendingRecords.add(record);
+        pendingLogReferences.add(entry);
+    }
 
-        final ByteBuffer payload = serdes.toBytes(message);
+    private SharedLog.Entry appendToLog(SessionRegistry.PublishedMessage message) {
         try {
-            segmentedQueue.enqueue(payload);
+            return sharedLog.append(serdes.toBytes(message, ByteBuffer::allocate));
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private ByteBuffer reserve(int size) {
+        // bound the batch, which is copied again when it spans segments
+        if (pendingBytes + size > MAX_BATCH_BUFFER_SIZE) {
+            flush();
+        }
+        pendingBytes += size;
+        if (size > MAX_BATCH_BUFFER_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        if (batchBuffer.remaining() < size) {
+            // the records already pending keep the previous buffer
+            final int capacity = Math.max(batchBuffer.capacity() * 2, Integer.highestOneBit(size - 1) << 1);
+            batchBuffer = ByteBuffer.allocate(Math.min(MAX_BATCH_BUFFER_SIZE, capacity));
+        }
+        final ByteBuffer record = batchBuffer.slice();
+        record.limit(size);
+        batchBuffer.position(batchBuffer.position() + size);
+        return record;
+    }
+
+    /**
+     * Write the pending batch to the segments, reserving the space for all its messages at once. A batch that
+     * fails to be written is kept, and written by the next flush.
+     * */
+    @Override
+    public void flush() {
+        if (pendingRecords.isEmpty()) {
+            return;
+        }
+        try {
+            segmentedQueue().enqueueBatch(pendingRecords, pendingLogReferences);
+        } catch (QueueException e) {
+            throw new RuntimeException(e);
+        }
+        pendingLogReferences.clear();
+        pendingRecords.clear();
+        pendingBytes = 0;
+        batchBuffer.clear();
+    }
+
     @Override
     public SessionRegistry.EnqueuedMessage dequeue() {
         checkDequeuePreconditions();
+        flush();
 
         final Optional<ByteBuffer> dequeue;
         try {
-            dequeue = segmentedQueue.dequeue();
+            dequeue = segmentedQueue().dequeue();
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
         if (!dequeue.isPresent()) {
-            return null;
+            return releaseQuota(null);
         }
 
         final ByteBuffer content = dequeue.get();
-        return serdes.fromBytes(content);
+        final boolean backlog = backlogBytes > 0;
+        if (backlog) {
+            backlogBytes -= Queue.LENGTH_HEADER_SIZE + content.remaining();
+        }
+        final SharedLog.Entry entry = serdes.referencedEntry(content);
+        if (entry != null) {
+            return releaseQuota(serdes.fromLog(content, segmentedQueue.dereferenceLog(entry)), backlog);
+        }
+        return releaseQuota(serdes.fromBytes(content), backlog);
+    }
+
+    @Override
+    protected boolean dequeuesBacklog() {
+        try {
+            segmentedQueue();
+        } catch (QueueException e) {
+            throw new RuntimeException(e);
+        }
+        return backlogBytes > 0;
     }
 
     @Override
     public boolean isEmpty() {
-        return segmentedQueue.isEmpty();
+        if (!pendingRecords.isEmpty()) {
+            return false;
+        }
+        try {
+            return segmentedQueue().isEmpty();
+        } catch (QueueException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void closeAndPurge() {
+        for (SharedLog.Entry entry : pendingLogReferences) {
+            sharedLog.release(entry);
+        }
+        pendingLogReferences.clear();
+        if (sharedLog != null) {
+            // the records already written keep their log segments until released
+            try {
+                segmentedQueue().releaseLogReferences();
+            } catch (QueueException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        pendingRecords.clear();
+        pendingBytes = 0;
+        releaseAllQuota();
         closed = true;
     }
 }
@@ -6,6 +6,7 @@ import io.moquette.broker.SessionRegistry;
 import io.moquette.broker.unsafequeues.Queue;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.broker.unsafequeues.QueuePool;
+import io.moquette.broker.unsafequeues.SharedLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,13 +19,45 @@ public class SegmentQueueRepository implements IQueueRepository {
     private static final Logger LOG = LoggerFactory.getLogger(SegmentQueueRepository.class);
 
     private final QueuePool queuePool;
+    // null when the messages of a fan-out are stored in each queue
+    private final SharedLog sharedLog;
 
     public SegmentQueueRepository(String path, int pageSize, int segmentSize) throws QueueException {
         queuePool = QueuePool.loadQueues(Paths.get(path), pageSize, segmentSize);
+        sharedLog = null;
     }
 
     public SegmentQueueRepository(Path path, int pageSize, int segmentSize) throws QueueException {
         queuePool = QueuePool.loadQueues(path, pageSize, segmentSize);
+        sharedLog = null;
+    }
+
+    /**
+     * @param syncIntervalMillis period of the checkpoints when the durability is {@link QueuePool.Durability#INTERVAL}.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, QueuePool.Durability durability,
+                                  long syncIntervalMillis) throws QueueException {
+        queuePool = QueuePool.loadQueues(path, pageSize, segmentSize, durability, syncIntervalMillis);
+        sharedLog = null;
+    }
+
+    /**
+     * @param smallQueueSlabs start the queues in slabs smaller than a segment.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, QueuePool.Durability durability,
+                                  long syncIntervalMillis, boolean smallQueueSlabs) throws QueueException {
+        this(path, pageSize, segmentSize, durability, syncIntervalMillis, smallQueueSlabs, false);
+    }
+
+    /**
+     * @param sharedTopicLog store a message published to many sessions once, in the shared log of the pool, and
+     *                       only a reference to it in their queues.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, QueuePool.Durability durability,
+                                  long syncIntervalMillis, boolean smallQueueSlabs, boolean sharedTopicLog)
+        throws QueueException {
+        queuePool = QueuePool.loadQueues(path, pageSize, segmentSize, durability, syncIntervalMillis, smallQueueSlabs);
+        sharedLog = sharedTopicLog ? queuePool.sharedLog() : null;
     }
 
     @Override
@@ -34,18 +67,21 @@ public class SegmentQueueRepository implements IQueueRepository {
 
     @Override
     public boolean containsQueue(String clientId) {
-        return listQueueNames().contains(clientId);
+        return queuePool.contains(clientId);
     }
 
     @Override
     public SessionMessageQueue<SessionRegistry.EnqueuedMessage> getOrCreateQueue(String clientId) {
+        if (queuePool.contains(clientId)) {
+            return new SegmentPersistentQueue(queuePool, clientId, sharedLog);
+        }
         final Queue segmentedQueue;
         try {
             segmentedQueue = queuePool.getOrCreate(clientId);
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
-        return new SegmentPersistentQueue(segmentedQueue);
+        return new SegmentPersistentQueue(segmentedQueue, sharedLog);
     }
 
     @Override
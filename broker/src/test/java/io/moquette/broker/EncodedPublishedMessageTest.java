@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EncodedPublishedMessageTest {
+
+    private static final AttributeKey<MqttVersion> MQTT_VERSION_KEY = AttributeKey.valueOf("NETTY_CODEC_MQTT_VERSION");
+    private static final Topic TOPIC = new Topic("plant/café/temperature");
+
+    static List<Arguments> publishes() {
+        final List<Arguments> args = new ArrayList<>();
+        for (MqttQoS qos : new MqttQoS[] {MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+            for (MqttVersion version : new MqttVersion[] {MqttVersion.MQTT_3_1_1, MqttVersion.MQTT_5}) {
+                // remaining length of 1, 2 and 3 bytes, the MQTT5 payload copied or attached
+                for (int payloadSize : new int[] {0, 100, 200, 20_000}) {
+                    args.add(Arguments.of(qos, version, payloadSize));
+                }
+            }
+        }
+        return args;
+    }
+
+    @ParameterizedTest
+    @MethodSource("publishes")
+    public void testWireFrameIsTheSameOfMqttEncoder(MqttQoS qos, MqttVersion version, int payloadSize) {
+        final ByteBuf payload = Unpooled.buffer(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.writeByte(i);
+        }
+        final EncodedPublishedMessage msg = EncodedPublishedMessage.decode(encode(TOPIC, qos, payload));
+        assertEquals(qos, msg.getPublishingQos());
+        assertEquals(TOPIC, msg.getTopic());
+        assertEquals(payload, msg.getPayload());
+
+        final int packetId = 0x1234;
+        final ByteBuf wireFrame = msg.wireFrame(packetId, version == MqttVersion.MQTT_5, ByteBufAllocator.DEFAULT);
+        final String expected = ByteBufUtil.hexDump(encodeWithMqttEncoder(qos, payload, packetId, version));
+        assertEquals(expected, ByteBufUtil.hexDump(wireFrame));
+
+        wireFrame.release();
+        msg.release();
+        assertEquals(0, msg.getPayload().refCnt(), "The frame must be released with its message");
+    }
+
+    @ParameterizedTest
+    @MethodSource("publishes")
+    public void testStoredPublishIsWrittenAsItsFrame(MqttQoS qos, MqttVersion version, int payloadSize) {
+        final ByteBuf payload = Unpooled.buffer(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.writeByte(i);
+        }
+        final EncodedPublishedMessage msg = EncodedPublishedMessage.decode(encode(TOPIC, qos, payload));
+        final int packetId = 0x1234;
+        final MqttPublishMessage stored = new StoredPublishMessage(
+            msg.wireFrame(packetId, version == MqttVersion.MQTT_5, ByteBufAllocator.DEFAULT), qos, TOPIC.toString(),
+            packetId, payloadSize);
+        // what the metrics and the message logger see
+        assertEquals(qos, stored.fixedHeader().qosLevel());
+        assertEquals(TOPIC.toString(), stored.variableHeader().topicName());
+        assertEquals(packetId, stored.variableHeader().packetId());
+        assertEquals(payload, stored.payload());
+
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE, SharedPublishEncoder.INSTANCE);
+        channel.attr(MQTT_VERSION_KEY).set(version);
+        channel.writeOutbound(stored);
+        final ByteBuf written = channel.readOutbound();
+        final String expected = ByteBufUtil.hexDump(encodeWithMqttEncoder(qos, payload, packetId, version));
+        assertEquals(expected, ByteBufUtil.hexDump(written));
+
+        written.release();
+        channel.finishAndReleaseAll();
+        msg.release();
+        assertEquals(0, msg.getPayload().refCnt(), "The frame must be released once written");
+    }
+
+    @Test
+    public void testEncodingDoesNotConsumeThePayload() {
+        final ByteBuf payload = Unpooled.copiedBuffer("temperature is 20°", StandardCharsets.UTF_8);
+        payload.readerIndex(3);
+        final ByteBuf frame = encode(TOPIC, MqttQoS.AT_LEAST_ONCE, payload);
+
+        assertEquals(3, payload.readerIndex());
+        assertEquals(payload, EncodedPublishedMessage.decode(frame).getPayload());
+    }
+
+    @Test
+    public void testOnlyQueuedQosAreEncoded() {
+        final ByteBuffer target = ByteBuffer.allocate(64);
+        assertThrows(IllegalArgumentException.class, () -> EncodedPublishedMessage.encode(
+            topicBytes(TOPIC), MqttQoS.AT_MOST_ONCE, Unpooled.EMPTY_BUFFER, target));
+    }
+
+    private static ByteBuf encode(Topic topic, MqttQoS qos, ByteBuf payload) {
+        final byte[] topicBytes = topicBytes(topic);
+        // larger than needed, like a reused buffer
+        final ByteBuffer target = ByteBuffer.allocate(EncodedPublishedMessage.encodedLength(topicBytes, payload) + 16);
+        EncodedPublishedMessage.encode(topicBytes, qos, payload, target);
+        target.flip();
+        return Unpooled.wrappedBuffer(target);
+    }
+
+    private static byte[] topicBytes(Topic topic) {
+        return topic.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeWithMqttEncoder(MqttQoS qos, ByteBuf payload, int packetId, MqttVersion version) {
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        channel.attr(MQTT_VERSION_KEY).set(version);
+        channel.writeOutbound(MQTTConnection.createNotRetainedPublishMessage(TOPIC.toString(), qos,
+            payload.retainedDuplicate(), packetId));
+        final ByteBuf encoded = channel.readOutbound();
+        final byte[] bytes = ByteBufUtil.getBytes(encoded);
+        encoded.release();
+        channel.finishAndReleaseAll();
+        return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InflightTableTest {
+
+    @Test
+    public void testMessageIdGeneration() {
+        final PacketIdAllocator sut = new PacketIdAllocator();
+        for (int i = 0; i < 65_536; i++) {
+            int nextPacketId = sut.allocate();
+            assertTrue(nextPacketId > 0, "Packet ID must be > 0");
+            assertTrue(nextPacketId <= 65_535, "Packet ID must be <= 65_535");
+            sut.release(nextPacketId);
+        }
+        assertEquals(0, sut.allocated());
+    }
+
+    @Test
+    public void testPacketIdStillInflightIsNotReusedAfterWrapAround() {
+        final InflightTable<String> sut = new InflightTable<>();
+        final int stuck = sut.add("never acked");
+
+        // walk the whole id range more than once, acking everything else
+        for (int i = 0; i < 3 * PacketIdAllocator.MAX_PACKET_ID; i++) {
+            final int packetId = sut.add("msg" + i);
+            assertNotEquals(stuck, packetId, "Packet id of an inflight message reused");
+            assertEquals("msg" + i, sut.remove(packetId));
+        }
+
+        assertEquals("never acked", sut.get(stuck));
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void testAllPacketIdsInUseIsRejected() {
+        final InflightTable<Integer> sut = new InflightTable<>();
+        for (int i = 0; i < PacketIdAllocator.MAX_PACKET_ID; i++) {
+            sut.add(i);
+        }
+
+        assertThrows(IllegalStateException.class, () -> sut.add(-1));
+
+        sut.remove(1234);
+        assertEquals(1234, sut.add(-1), "The only free packet id must be assigned");
+    }
+
+    @Test
+    public void testReplaceKeepsThePacketIdReserved() {
+        final InflightTable<String> sut = new InflightTable<>();
+        final int packetId = sut.add("publish");
+
+        assertEquals("publish", sut.replace(packetId, "pubrel"));
+        assertNull(sut.replace(packetId + 1, "missing"), "Replace must not add entries");
+
+        assertEquals("pubrel", sut.get(packetId));
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void testBehavesLikeAMapUnderRandomAcks() {
+        final InflightTable<Integer> sut = new InflightTable<>();
+        final Map<Integer, Integer> expected = new HashMap<>();
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 500_000; i++) {
+            // keeps up to some thousands inflight, acked in random order
+            if (expected.size() < 2_000 && random.nextInt(3) > 0 || expected.isEmpty()) {
+                final int packetId = sut.add(i);
+                assertNull(expected.put(packetId, i), "Packet id " + packetId + " assigned twice");
+            } else {
+                final int[] ids = sut.packetIds();
+                final int acked = ids[random.nextInt(ids.length)];
+                assertEquals(expected.remove(acked), sut.remove(acked));
+            }
+        }
+
+        assertEquals(expected.size(), sut.size());
+        assertArrayEquals(expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray(), sut.packetIds());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), sut.get(entry.getKey()));
+        }
+        final int[] visited = {0};
+        sut.forEachValue(v -> visited[0]++);
+        assertEquals(expected.size(), visited[0]);
+        assertTrue(sut.packetIds().length > 0);
+    }
+}
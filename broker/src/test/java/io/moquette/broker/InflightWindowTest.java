@@ -0,0 +1,149 @@
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InflightWindowTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private long now;
+    private int nextPacketId = 1;
+
+    @Test
+    public void testFixedWindowIsAlwaysTheMaximum() {
+        final InflightWindow sut = new InflightWindow(3, false);
+
+        for (int round = 0; round < 5; round++) {
+            fillAndAckAll(sut, 5 * RTT);
+        }
+        sendOne(sut);
+        sendOne(sut);
+        sendOne(sut);
+
+        assertFalse(sut.hasSlots());
+        assertEquals(3, sut.limit());
+        assertEquals(3, sut.inflight());
+    }
+
+    @Test
+    public void testAdaptiveWindowGrowsUpToTheMaximumWhileLatencyIsStable() {
+        final InflightWindow sut = new InflightWindow(100, true);
+        assertEquals(10, sut.limit(), "Adaptive window starts from the default size");
+
+        for (int round = 0; round < 10; round++) {
+            fillAndAckAll(sut, RTT);
+        }
+
+        assertEquals(100, sut.limit());
+    }
+
+    @Test
+    public void testAdaptiveWindowShrinksWhenLatencyDoubles() {
+        final InflightWindow sut = new InflightWindow(100, true);
+        fillAndAckAll(sut, RTT);
+        final int grown = sut.limit();
+
+        // a single slow round is smoothed away, a persistent one shrinks a quarter per round
+        fillAndAckAll(sut, 4 * RTT);
+        assertEquals(grown, sut.limit());
+        int rounds = 1;
+        while (sut.limit() == grown) {
+            fillAndAckAll(sut, 4 * RTT);
+            rounds++;
+        }
+        assertTrue(rounds < 5, "Took " + rounds + " rounds to shrink");
+        final int shrunk = sut.limit();
+        assertEquals(grown * 3 / 4, shrunk);
+
+        for (int round = 0; round < 3; round++) {
+            // stable after the first shrink, grows only one message at a time
+            fillAndAckAll(sut, RTT);
+        }
+        assertTrue(sut.limit() <= shrunk + 3, "Expected additive growth, was " + sut.limit());
+        assertTrue(sut.limit() > shrunk);
+    }
+
+    @Test
+    public void testAdaptiveWindowNeverGoesBelowOne() {
+        final InflightWindow sut = new InflightWindow(2, true);
+        fillAndAckAll(sut, RTT);
+
+        long rtt = RTT;
+        for (int round = 0; round < 10; round++) {
+            rtt *= 4;
+            fillAndAckAll(sut, rtt);
+        }
+
+        assertEquals(1, sut.limit());
+        assertTrue(sut.hasSlots());
+    }
+
+    @Test
+    public void testResentMessageIsNotUsedAsSample() {
+        final InflightWindow sut = new InflightWindow(100, true);
+        fillAndAckAll(sut, RTT);
+        final int limit = sut.limit();
+
+        final int packetId = sendOne(sut);
+        sut.resent(packetId);
+        now += 50 * RTT;
+        sut.acknowledged(packetId, now);
+        sut.released();
+
+        assertEquals(limit, sut.limit());
+        assertEquals(1, sut.stats("client").getResentMessages());
+    }
+
+    @Test
+    public void testResizeRestartsFromTheNewMaximum() {
+        final InflightWindow sut = new InflightWindow(100, false);
+        sendOne(sut);
+
+        sut.resize(1);
+
+        assertEquals(1, sut.limit());
+        assertFalse(sut.hasSlots(), "The message sent before the resize is still inflight");
+        assertThrows(IllegalArgumentException.class, () -> sut.resize(0));
+    }
+
+    @Test
+    public void testStatsCountSentAndAckedMessages() {
+        final InflightWindow sut = new InflightWindow(10, true);
+        fillAndAckAll(sut, RTT);
+        sendOne(sut);
+
+        final InflightWindowStats stats = sut.stats("client");
+
+        assertEquals("client", stats.getClientID());
+        assertEquals(11, stats.getSentMessages());
+        assertEquals(10, stats.getAckedMessages());
+        assertEquals(1, stats.getInflight());
+        assertEquals(TimeUnit.NANOSECONDS.toMicros(RTT), stats.getSmoothedRttMicros());
+    }
+
+    private int sendOne(InflightWindow sut) {
+        final int packetId = nextPacketId++;
+        sut.sent(packetId, now);
+        return packetId;
+    }
+
+    // sends a full window at once and receives all the acks after rtt
+    private void fillAndAckAll(InflightWindow sut, long rtt) {
+        final int first = nextPacketId;
+        while (sut.hasSlots()) {
+            sendOne(sut);
+        }
+        now += rtt;
+        for (int packetId = first; packetId < nextPacketId; packetId++) {
+            sut.acknowledged(packetId, now);
+            sut.released();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
 import io.netty.handler.codec.mqtt.MqttProperties;
@@ -55,6 +56,7 @@ import static io.moquette.broker.NettyChannelAssertions.assertEqualsConnAck;
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.*;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -204,6 +206,23 @@ public class MQTTConnectionConnectTest {
         assertEqualsConnAck(CONNECTION_REFUSED_PAYLOAD_FORMAT_INVALID, channel.readOutbound());
     }
 
+    @Test
+    public void connAckOfMqtt5AnnouncesSharedSubscriptions() throws ExecutionException, InterruptedException {
+        MqttConnectMessage msg = connMsg.clientId(FAKE_CLIENT_ID)
+            .protocolVersion(MqttVersion.MQTT_5)
+            .build();
+
+        // Exercise
+        sut.processConnect(msg).completableFuture().get();
+
+        // Verify
+        final MqttConnAckMessage connAck = channel.readOutbound();
+        assertEquals(CONNECTION_ACCEPTED, connAck.variableHeader().connectReturnCode());
+        final MqttProperties.MqttProperty<Integer> sharedSubscriptionAvailable = connAck.variableHeader().properties()
+            .getProperty(MqttProperties.MqttPropertyType.SHARED_SUBSCRIPTION_AVAILABLE.value());
+        assertEquals(1, sharedSubscriptionAvailable.value(), "Shared subscription feature is available");
+    }
+
 //    @Disabled("already covered by testWillMessageIsFiredOnClientKeepAliveExpiry and testWillMessageIsPublishedOnClientBadDisconnection")
 //    @Test
 //    public void testWillIsFired() throws ExecutionException, InterruptedException {
@@ -432,15 +451,6 @@ public class MQTTConnectionConnectTest {
         assertTrue(anotherChannel.isOpen(), "Second 'FAKE_CLIENT_ID' channel MUST be still open");
     }
 
-    @Test
-    public void testMessageIdGeneration() {
-        for (int i = 0; i < 65_536; i++) {
-            int nextPacketId = sut.nextPacketId();
-            assertTrue(nextPacketId > 0, "Packet ID must be > 0");
-            assertTrue(nextPacketId <= 65_535, "Packet ID must be <= 65_535");
-        }
-    }
-
     private SslHandler createFakeSslHandler(Certificate peerCert) throws SSLPeerUnverifiedException {
         SSLEngine mockSslEngine = mock(SSLEngine.class);
         SslHandler sslHandler = new FakeSslHandler(mockSslEngine);
@@ -288,6 +288,33 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyPublishIsReceived(channel, AT_LEAST_ONCE, "Any payload");
     }
 
+    @Test
+    public void publishToASingleSubscriberIsNotSharedEncoded() throws ExecutionException, InterruptedException, TimeoutException {
+        connection.processConnect(connectMessage).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(channel);
+        subscribe(connection, NEWS_TOPIC, AT_LEAST_ONCE);
+
+        MQTTConnection senderConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID);
+        senderConnection.processConnect(ConnectionTestUtils.buildConnect("Publisher")).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(senderConnection);
+
+        // Exercise
+        final ByteBuf anyPayload = Unpooled.copiedBuffer("Any payload", Charset.defaultCharset());
+        sut.receivedPublishQos1(senderConnection, new Topic(NEWS_TOPIC), TEST_USER, 1,
+            MqttMessageBuilders.publish()
+                .payload(anyPayload)
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build()).completableFuture().get(5, TimeUnit.SECONDS);
+
+        // Verify
+        final Object publishReceived = channel.flushOutbound().readOutbound();
+        assertTrue(publishReceived instanceof MqttPublishMessage, "A PUBLISH must be received");
+        assertFalse(publishReceived instanceof SharedPublishMessage,
+            "A single subscriber must receive the publish without the shared encoding");
+        ((MqttPublishMessage) publishReceived).release();
+    }
+
     @Test
     public void testPublishWithQoS2() throws ExecutionException, InterruptedException, TimeoutException {
         connection.processConnect(connectMessage).completableFuture().get();
@@ -0,0 +1,242 @@
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.unsafequeues.Queue;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
+import io.moquette.persistence.H2QueueRepository;
+import io.moquette.persistence.SegmentPersistentQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class QueueQuotaTest {
+
+    @Test
+    public void dropNewestDiscardsTheMessageOverTheLimit() {
+        final QueueQuota quota = new QueueQuota(2, 0, 0, 0, QueueQuota.OverflowPolicy.DROP_NEWEST);
+        final InMemoryQueue queue = limitedQueue(quota);
+        queue.enqueue(message("message0"));
+        queue.enqueue(message("message1"));
+        final SessionRegistry.PublishedMessage rejected = message("message2");
+
+        queue.enqueue(rejected);
+
+        assertEquals(0, rejected.getPayload().refCnt(), "The rejected message must be released");
+        assertEquals(2, quota.messages());
+        assertDequeued(queue, "message0", "message1");
+        assertEquals(0, quota.messages());
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewMessage() {
+        final QueueQuota quota = new QueueQuota(2, 0, 0, 0, QueueQuota.OverflowPolicy.DROP_OLDEST);
+        final InMemoryQueue queue = limitedQueue(quota);
+        final SessionRegistry.PublishedMessage oldest = message("message0");
+        queue.enqueue(oldest);
+        queue.enqueue(message("message1"));
+
+        queue.enqueue(message("message2"));
+
+        assertEquals(0, oldest.getPayload().refCnt(), "The dropped message must be released");
+        assertDequeued(queue, "message1", "message2");
+    }
+
+    @Test
+    public void dropOldestKeepsAQueuedPubRelMarker() {
+        final QueueQuota quota = new QueueQuota(1, 0, 0, 0, QueueQuota.OverflowPolicy.DROP_OLDEST);
+        final InMemoryQueue queue = limitedQueue(quota);
+        queue.enqueue(new SessionRegistry.PubRelMarker());
+        queue.enqueue(message("message0"));
+        final SessionRegistry.PublishedMessage rejected = message("message1");
+
+        queue.enqueue(rejected);
+
+        assertEquals(0, rejected.getPayload().refCnt(), "The new message must be rejected");
+        assertTrue(queue.dequeue() instanceof SessionRegistry.PubRelMarker);
+        assertDequeued(queue, "message0");
+        assertEquals(0, quota.messages());
+    }
+
+    @Test
+    public void dropOldestKeepsTheBacklogOfAReloadedQueue() {
+        final MVStore mvStore = new MVStore.Builder().open();
+        final H2QueueRepository repository = new H2QueueRepository(mvStore);
+        storeBacklog(repository.getOrCreateQueue("subscriber"));
+        final QueueQuota quota = new QueueQuota(1, 0, 0, 0, QueueQuota.OverflowPolicy.DROP_OLDEST);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> reloaded = repository.getOrCreateQueue("subscriber");
+        ((AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage>) reloaded).limitTo(quota);
+        reloaded.enqueue(message("message0"));
+        final SessionRegistry.PublishedMessage rejected = message("message1");
+
+        reloaded.enqueue(rejected);
+
+        assertEquals(0, rejected.getPayload().refCnt(), "The new message must be rejected");
+        assertDequeued(quota, reloaded, "backlog0", 1);
+        assertDequeued(quota, reloaded, "backlog1", 1);
+        assertDequeued(quota, reloaded, "message0", 0);
+        assertNull(reloaded.dequeue());
+        mvStore.close();
+    }
+
+    @Test
+    public void disconnectPolicyRejectsTheMessageWithAnException() {
+        final QueueQuota quota = new QueueQuota(1, 0, 0, 0, QueueQuota.OverflowPolicy.DISCONNECT);
+        final InMemoryQueue queue = limitedQueue(quota);
+        queue.enqueue(message("message0"));
+        final SessionRegistry.PublishedMessage rejected = message("message1");
+
+        assertThrows(QueueQuotaExceededException.class, () -> queue.enqueue(rejected));
+        assertEquals(0, rejected.getPayload().refCnt());
+        assertDequeued(queue, "message0");
+    }
+
+    @Test
+    public void payloadBytesAreLimitedForTheSession() {
+        final QueueQuota quota = new QueueQuota(0, 10, 0, 0, QueueQuota.OverflowPolicy.DROP_OLDEST);
+        final InMemoryQueue queue = limitedQueue(quota);
+        queue.enqueue(message("12345"));
+        queue.enqueue(message("67890"));
+        assertEquals(10, quota.bytes());
+
+        queue.enqueue(message("abc"));
+        assertEquals(8, quota.bytes());
+
+        // larger than the limit, it doesn't drop the queued ones
+        queue.enqueue(message("a message longer than the limit"));
+        assertDequeued(queue, "67890", "abc");
+        assertEquals(0, quota.bytes());
+    }
+
+    @Test
+    public void globalLimitIsSharedByTheSessions() {
+        final QueueQuota quota = new QueueQuota(0, 0, 3, 0, QueueQuota.OverflowPolicy.DROP_OLDEST);
+        final InMemoryQueue first = limitedQueue(quota);
+        final InMemoryQueue second = limitedQueue(quota);
+        first.enqueue(message("message0"));
+        first.enqueue(message("message1"));
+        second.enqueue(message("message2"));
+
+        // the queue makes room with its own messages
+        second.enqueue(message("message3"));
+        assertDequeued(second, "message3");
+
+        first.enqueue(message("message4"));
+        assertEquals(3, quota.messages());
+        first.closeAndPurge();
+        assertEquals(0, quota.messages());
+        assertEquals(0, quota.bytes());
+    }
+
+    @Test
+    public void backlogOfAReloadedH2QueueIsNotReleased() {
+        final MVStore mvStore = new MVStore.Builder().open();
+        final H2QueueRepository repository = new H2QueueRepository(mvStore);
+        storeBacklog(repository.getOrCreateQueue("subscriber"));
+
+        assertBacklogIsNotReleased(repository.getOrCreateQueue("subscriber"));
+        mvStore.close();
+    }
+
+    @Test
+    public void backlogOfAReloadedSegmentQueueIsNotReleased(@TempDir Path queueFolder) throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(queueFolder, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+        storeBacklog(new SegmentPersistentQueue(queuePool, "subscriber", null));
+
+        assertBacklogIsNotReleased(new SegmentPersistentQueue(queuePool, "subscriber", null));
+        queuePool.close();
+    }
+
+    @Test
+    public void messageNotQueuedForAFailedWriteIsUncounted() throws QueueException {
+        final Queue segmentedQueue = mock(Queue.class);
+        doThrow(new QueueException("No free segments")).when(segmentedQueue).enqueueBatch(anyList(), anyList());
+        final QueueQuota quota = new QueueQuota(2, 0, 0, 0, QueueQuota.OverflowPolicy.DROP_NEWEST);
+        final AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> queue =
+            new SegmentPersistentQueue(segmentedQueue);
+        queue.limitTo(quota);
+        // the second message doesn't fit in the pending batch, that's written to make room
+        queue.enqueue(message(largeContent()));
+
+        assertThrows(RuntimeException.class, () -> queue.enqueue(message(largeContent())));
+        assertEquals(1, quota.messages());
+        queue.closeAndPurge();
+        assertEquals(0, quota.messages());
+    }
+
+    private static String largeContent() {
+        final StringBuilder content = new StringBuilder();
+        while (content.length() < 40 * 1024) {
+            content.append("0123456789");
+        }
+        return content.toString();
+    }
+
+    private static void storeBacklog(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue) {
+        queue.enqueue(message("backlog0"));
+        queue.enqueue(message("backlog1"));
+        queue.flush();
+    }
+
+    private static void assertBacklogIsNotReleased(SessionMessageQueue<SessionRegistry.EnqueuedMessage> reloaded) {
+        final QueueQuota quota = new QueueQuota(2, 0, 0, 0, QueueQuota.OverflowPolicy.DROP_NEWEST);
+        ((AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage>) reloaded).limitTo(quota);
+        reloaded.enqueue(message("message0"));
+        reloaded.enqueue(message("message1"));
+        assertEquals(2, quota.messages());
+
+        assertDequeued(quota, reloaded, "backlog0", 2);
+        assertDequeued(quota, reloaded, "backlog1", 2);
+        // still full, the backlog didn't make room
+        final SessionRegistry.PublishedMessage rejected = message("message2");
+        reloaded.enqueue(rejected);
+        assertEquals(0, rejected.getPayload().refCnt(), "The rejected message must be released");
+
+        assertDequeued(quota, reloaded, "message0", 1);
+        assertDequeued(quota, reloaded, "message1", 0);
+        assertNull(reloaded.dequeue());
+        assertEquals(0, quota.bytes());
+    }
+
+    private static void assertDequeued(QueueQuota quota, SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue,
+                                       String content, int quotaMessages) {
+        final ByteBuf payload = ((SessionRegistry.PublishedMessage) queue.dequeue()).getPayload();
+        assertEquals(content, payload.toString(StandardCharsets.UTF_8));
+        assertEquals(quotaMessages, quota.messages());
+    }
+
+    private static InMemoryQueue limitedQueue(QueueQuota quota) {
+        final InMemoryQueue queue = new InMemoryQueue();
+        queue.limitTo(quota);
+        return queue;
+    }
+
+    private static void assertDequeued(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue, String... contents) {
+        for (String content : contents) {
+            final ByteBuf payload = ((SessionRegistry.PublishedMessage) queue.dequeue()).getPayload();
+            assertEquals(content, payload.toString(StandardCharsets.UTF_8));
+        }
+        assertNull(queue.dequeue());
+    }
+
+    private static SessionRegistry.PublishedMessage message(String content) {
+        return new SessionRegistry.PublishedMessage(Topic.asTopic("/temperature"), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.copiedBuffer(content, StandardCharsets.UTF_8), false);
+    }
+}
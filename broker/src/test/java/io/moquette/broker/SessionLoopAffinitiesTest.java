@@ -0,0 +1,94 @@
+package io.moquette.broker;
+
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionLoopAffinitiesTest {
+
+    private static final int LOOPS = 8;
+    private static final int CLIENTS = 16_000;
+
+    @ParameterizedTest
+    @ValueSource(strings = {SessionLoopAffinities.STRING_HASH, SessionLoopAffinities.MURMUR3,
+        SessionLoopAffinities.CONSISTENT_HASH})
+    public void testClientIdWithMinIntHashCodeIsAssignedToAValidLoop(String affinityName) {
+        assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode(), "Precondition, hashCode is MIN_VALUE");
+        final SessionLoopAffinity sut = SessionLoopAffinities.fromName(affinityName, 3);
+
+        final int loop = sut.loopFor("polygenelubricants");
+
+        assertTrue(loop >= 0 && loop < 3, "Loop out of range: " + loop);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {SessionLoopAffinities.MURMUR3, SessionLoopAffinities.CONSISTENT_HASH})
+    public void testClientIdsSharingPrefixAreSpreadEvenly(String affinityName) {
+        final SessionLoopAffinity sut = SessionLoopAffinities.fromName(affinityName, LOOPS);
+
+        final int[] sessionsPerLoop = new int[LOOPS];
+        for (int i = 0; i < CLIENTS; i++) {
+            sessionsPerLoop[sut.loopFor(String.format("factory-7/line-3/sensor-%05d", i))]++;
+        }
+
+        final int expected = CLIENTS / LOOPS;
+        for (int loop = 0; loop < LOOPS; loop++) {
+            assertTrue(Math.abs(sessionsPerLoop[loop] - expected) < expected / 4,
+                "Loop " + loop + " owns " + sessionsPerLoop[loop] + " sessions, expected about " + expected);
+        }
+    }
+
+    @Test
+    public void testAddingALoopToConsistentHashMovesSessionsOnlyToTheNewLoop() {
+        final SessionLoopAffinity before = SessionLoopAffinities.fromName(SessionLoopAffinities.CONSISTENT_HASH, LOOPS);
+        final SessionLoopAffinity after = SessionLoopAffinities.fromName(SessionLoopAffinities.CONSISTENT_HASH, LOOPS + 1);
+
+        int moved = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            final String clientId = "client" + i;
+            final int newLoop = after.loopFor(clientId);
+            if (newLoop != before.loopFor(clientId)) {
+                assertEquals(LOOPS, newLoop, "Session " + clientId + " moved between two existing loops");
+                moved++;
+            }
+        }
+        assertTrue(moved > 0, "Some sessions has to be moved to the new loop");
+        assertTrue(moved < CLIENTS / 4, "Too many sessions moved: " + moved);
+    }
+
+    @Test
+    public void testUnknownAffinityOrInvalidLoopsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> SessionLoopAffinities.fromName("random", LOOPS));
+        assertThrows(IllegalArgumentException.class,
+            () -> SessionLoopAffinities.fromName(SessionLoopAffinities.MURMUR3, 0));
+    }
+
+    @Test
+    public void testLoopGroupCountsExecutedCommandsOnTheAssignedLoop() throws InterruptedException, ExecutionException, TimeoutException {
+        final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            1024, 2, SessionLoopAffinities.MURMUR3);
+        try {
+            final int loop = sut.targetQueueOrdinal("counted");
+            for (int i = 0; i < 10; i++) {
+                sut.routeCommand("counted", "test", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+            }
+
+            assertEquals(2, sut.getEventLoopCount());
+            // the counter is updated at the end of each drained batch
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> sut.executedCommands(loop) == 10);
+            assertEquals(0, sut.executedCommands(1 - loop));
+            assertEquals(0, sut.rejectedCommands(loop));
+        } finally {
+            sut.terminate();
+        }
+    }
+}
@@ -29,6 +29,8 @@ import io.netty.channel.Channel;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.mqtt.MqttConnectMessage;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttProperties.MqttPropertyType;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttVersion;
 import org.awaitility.Awaitility;
@@ -258,6 +260,38 @@ public class SessionRegistryTest {
         }
     }
 
+    @Test
+    public void persistedSessionsAreRecreatedOnStartByTheLoopsOwningThem() {
+        final ISessionsRepository persistedSessions = memorySessionsRepository();
+        final MemoryQueueRepository persistedQueues = new MemoryQueueRepository();
+        final Instant expireAt = slidingClock.instant().plusSeconds(GLOBAL_SESSION_EXPIRY_SECONDS);
+        for (int i = 0; i < 100; i++) {
+            final String clientId = "client_" + i;
+            persistedSessions.saveSession(new ISessionsRepository.SessionData(clientId, expireAt, MqttVersion.MQTT_5,
+                GLOBAL_SESSION_EXPIRY_SECONDS, slidingClock));
+            persistedQueues.getOrCreateQueue(clientId);
+        }
+        // a session without queue isn't recreated
+        persistedSessions.saveSession(new ISessionsRepository.SessionData("without_queue", expireAt,
+            MqttVersion.MQTT_5, GLOBAL_SESSION_EXPIRY_SECONDS, slidingClock));
+
+        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024, 4,
+            SessionLoopAffinities.STRING_HASH);
+        final ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final SessionRegistry restarted = new SessionRegistry(subscriptions, persistedSessions, persistedQueues,
+            new Authorizator(new PermitAllAuthorizatorPolicy()), scheduler, slidingClock,
+            GLOBAL_SESSION_EXPIRY_SECONDS, loopsGroup);
+
+        for (int i = 0; i < 100; i++) {
+            final Session session = restarted.retrieve("client_" + i);
+            assertEquals("client_" + i, session.getClientID());
+            assertFalse(session.isClean());
+        }
+        assertNull(restarted.retrieve("without_queue"));
+        loopsGroup.terminate();
+    }
+
     @Test
     public void givenSessionWithExpireTimeWhenAfterExpirationIsPassedThenSessionIsRemoved() {
         LOG.info("givenSessionWithExpireTimeWhenAfterExpirationIsPassedThenSessionIsRemoved");
@@ -317,6 +351,28 @@ public class SessionRegistryTest {
             .until(sessionsList(), Matchers.not(Matchers.empty()));
     }
 
+    @Test
+    public void givenMqtt5ConnectWithReceiveMaximumThenInflightWindowIsTheLowerOfItAndBrokerLimit() {
+        final String clientId = "receive_maximum_client";
+        final MqttProperties lowReceiveMaximum = new MqttProperties();
+        lowReceiveMaximum.add(new MqttProperties.IntegerProperty(MqttPropertyType.RECEIVE_MAXIMUM.value(), 3));
+        SessionRegistry.SessionCreationResult res = sut.createOrReopenSession(connMsg.cleanSession(false)
+            .protocolVersion(MqttVersion.MQTT_5).properties(lowReceiveMaximum).build(), clientId, "User");
+        assertEquals(3, res.session.inflightStats().getMaxWindowSize());
+        res.session.completeConnection();
+        sut.connectionClosed(res.session);
+
+        // Exercise, reopen without Receive Maximum, that means 65535
+        res = sut.createOrReopenSession(connMsg.cleanSession(false)
+            .protocolVersion(MqttVersion.MQTT_5).properties(new MqttProperties()).build(), clientId, "User");
+
+        // Verify
+        assertEquals(SessionRegistry.CreationModeEnum.REOPEN_EXISTING, res.mode);
+        assertEquals(BrokerConstants.INFLIGHT_WINDOW_SIZE, res.session.inflightStats().getMaxWindowSize(),
+            "Reopened session must be limited by the broker inflight window size");
+        assertEquals(BrokerConstants.INFLIGHT_WINDOW_SIZE, sut.inflightStats(clientId).get().getWindowSize());
+    }
+
     protected Callable<Collection<ISessionsRepository.SessionData>> sessionsList() {
         return () -> sessionRepository.list();
     }
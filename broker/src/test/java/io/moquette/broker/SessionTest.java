@@ -15,6 +15,7 @@ import io.moquette.broker.subscriptions.Subscription;
 
 import java.time.Clock;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import org.assertj.core.api.Assertions;
 
 import static io.moquette.broker.Session.INFINITE_EXPIRY;
@@ -113,6 +114,37 @@ public class SessionTest {
         ConnectionTestUtils.verifyReceivePublish(testChannel, destinationTopic.toString(), "Message not ACK-ed at first send!");
     }
 
+    @Test
+    public void testTimingWheelResendsOnlyNotAckedMessagesAfterTheTimeout() {
+        final InflightTimingWheel timer = new InflightTimingWheel(null, FLIGHT_BEFORE_RESEND_MS, TimeUnit.MILLISECONDS, 0);
+        final ISessionsRepository.SessionData data = new ISessionsRepository.SessionData(CLIENT_ID, MqttVersion.MQTT_3_1_1,
+            INFINITE_EXPIRY, Clock.systemDefaultZone());
+        final Session timedClient = new Session(data, true, new InMemoryQueue(),
+            new InflightWindow(10, false), timer);
+        createConnection(timedClient);
+        final Topic destinationTopic = new Topic("/a/b");
+        sendQoS1To(timedClient, destinationTopic, "acked");
+        sendQoS1To(timedClient, destinationTopic, "not acked");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, destinationTopic.toString(), "acked");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, destinationTopic.toString(), "not acked");
+        timedClient.pubAckReceived(1);
+
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(FLIGHT_BEFORE_RESEND_MS);
+        assertEquals(0, timer.expire(timeoutNanos - 1), "Nothing expires before the timeout");
+        ConnectionTestUtils.verifyNoPublishIsReceived(testChannel);
+
+        assertEquals(2, timer.expire(timeoutNanos + TimeUnit.MILLISECONDS.toNanos(InflightTimingWheel.TICK_MILLIS)));
+        ConnectionTestUtils.verifyReceivePublish(testChannel, destinationTopic.toString(), "not acked");
+        ConnectionTestUtils.verifyNoPublishIsReceived(testChannel);
+        assertEquals(1, timer.scheduled(), "The resent message has to be tracked again");
+
+        timedClient.pubAckReceived(2);
+        timer.expire(3 * timeoutNanos);
+        ConnectionTestUtils.verifyNoPublishIsReceived(testChannel);
+        assertEquals(0, timer.scheduled());
+        timedClient.cleanUp();
+    }
+
     @Test
     public void testRemoveSubscription() {
         client.addSubscriptions(Arrays.asList(new Subscription(CLIENT_ID, new Topic("topic/one"), MqttQoS.AT_MOST_ONCE)));
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SharedPublishEncoderTest {
+
+    // attribute where Netty's MQTT codec keeps the protocol version negotiated on CONNECT
+    private static final AttributeKey<MqttVersion> MQTT_VERSION_KEY = AttributeKey.valueOf("NETTY_CODEC_MQTT_VERSION");
+    private static final Topic TOPIC = new Topic("plant/café/temperature");
+
+    static List<Arguments> publishes() {
+        final List<Arguments> args = new ArrayList<>();
+        for (MqttQoS qos : new MqttQoS[] {MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+            for (MqttVersion version : new MqttVersion[] {MqttVersion.MQTT_3_1_1, MqttVersion.MQTT_5}) {
+                // payloads that need 1, 2 and 3 bytes for the remaining length, copied or composed
+                for (int payloadSize : new int[] {0, 200, 20_000}) {
+                    args.add(Arguments.of(qos, version, payloadSize, false));
+                }
+                args.add(Arguments.of(qos, version, 16, true));
+            }
+        }
+        return args;
+    }
+
+    @ParameterizedTest
+    @MethodSource("publishes")
+    public void testSharedEncodingIsTheSameOfMqttEncoder(MqttQoS qos, MqttVersion version, int payloadSize,
+                                                         boolean retained) {
+        final ByteBuf payload = Unpooled.buffer(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.writeByte(i);
+        }
+        final SharedPublishFrame frame = new SharedPublishFrame(TOPIC, payload, retained);
+        final int packetId = qos == MqttQoS.AT_MOST_ONCE ? 0 : 0x1234;
+        final boolean mqtt5 = version == MqttVersion.MQTT_5;
+
+        final byte[] expected = encode(new SharedPublishMessage(frame, qos, packetId, payload.retainedDuplicate(), mqtt5),
+            version, false);
+        final byte[] shared = encode(new SharedPublishMessage(frame, qos, packetId, payload.retainedDuplicate(), mqtt5),
+            version, true);
+
+        assertEquals(ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(shared));
+        assertEquals(1, payload.refCnt(), "The written duplicates must be released");
+        payload.release();
+    }
+
+    private static byte[] encode(MqttPublishMessage msg, MqttVersion version, boolean sharedEncoder) {
+        final EmbeddedChannel channel = sharedEncoder
+            ? new EmbeddedChannel(MqttEncoder.INSTANCE, SharedPublishEncoder.INSTANCE)
+            : new EmbeddedChannel(MqttEncoder.INSTANCE);
+        channel.attr(MQTT_VERSION_KEY).set(version);
+        channel.writeOutbound(msg);
+        final ByteBuf encoded = channel.readOutbound();
+        final byte[] bytes = ByteBufUtil.getBytes(encoded);
+        encoded.release();
+        channel.finishAndReleaseAll();
+        return bytes;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.unsafequeues.Queue;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.broker.unsafequeues.QueuePool;
+import io.moquette.persistence.SegmentPersistentQueue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class SharedTopicLogTest {
+
+    private static final Topic TOPIC = new Topic("plant/boiler/alarm");
+    private static final int SLAB_SIZE = 4096;
+    private static final MqttQoS[] SESSION_QOS = {MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE, MqttQoS.AT_LEAST_ONCE};
+
+    @TempDir
+    Path tempQueueFolder;
+
+    private QueuePool queuePool;
+
+    @BeforeEach
+    public void setUp() throws QueueException {
+        queuePool = QueuePool.loadQueues(tempQueueFolder, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+    }
+
+    @AfterEach
+    public void tearDown() throws QueueException {
+        queuePool.close();
+    }
+
+    @Test
+    public void messageQueuedForManySessionsIsStoredOnce() {
+        // larger than the slab a queue starts in
+        final byte[] content = new byte[3 * SLAB_SIZE];
+        Arrays.fill(content, (byte) 'P');
+        final ByteBuf payload = Unpooled.wrappedBuffer(content);
+        final SharedPublishFrame frame = new SharedPublishFrame(TOPIC, payload, false, 1);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage>[] queues = createQueues();
+        for (int i = 0; i < queues.length; i++) {
+            queues[i].enqueue(new SessionRegistry.PublishedMessage(TOPIC, SESSION_QOS[i], payload.duplicate(), false,
+                frame));
+            queues[i].flush();
+        }
+        frame.batchDelivered();
+
+        final QueuePool.DiskUsage diskUsage = queuePool.diskUsage();
+        assertEquals(queues.length * SLAB_SIZE, diskUsage.slabBytesInUse(), "The queues must keep only references");
+        assertEquals(BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, diskUsage.segmentBytesInUse(),
+            "The message must be appended to the log once");
+        for (int i = 0; i < queues.length; i++) {
+            final SessionRegistry.PublishedMessage dequeued = (SessionRegistry.PublishedMessage) queues[i].dequeue();
+            assertEquals(TOPIC, dequeued.getTopic());
+            assertEquals(SESSION_QOS[i], dequeued.getPublishingQos(), "Each session must get the message at its QoS");
+            assertTrue(ByteBufUtil.equals(Unpooled.wrappedBuffer(content), dequeued.getPayload()));
+            assertTrue(queues[i].isEmpty());
+        }
+    }
+
+    @Test
+    public void messageNotPartOfAFanOutIsStoredInTheQueue() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = createQueue("single");
+        final ByteBuf payload = Unpooled.wrappedBuffer(new byte[3 * SLAB_SIZE]);
+        queue.enqueue(new SessionRegistry.PublishedMessage(TOPIC, MqttQoS.AT_LEAST_ONCE, payload, false));
+        queue.flush();
+
+        final QueuePool.DiskUsage diskUsage = queuePool.diskUsage();
+        assertEquals(0, diskUsage.segmentBytesInUse());
+        assertTrue(diskUsage.slabBytesInUse() > SLAB_SIZE, "The queue must grow to a larger slab");
+        assertEquals(3 * SLAB_SIZE, ((SessionRegistry.PublishedMessage) queue.dequeue()).getPayload().readableBytes());
+    }
+
+    @Test
+    public void purgedSessionsReleaseTheLogSegmentsTheyReference() {
+        final int segmentSize = BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE;
+        // two messages fill the first segment of the log, the third starts the next one
+        final ByteBuf payload = Unpooled.wrappedBuffer(new byte[segmentSize * 3 / 8]);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage>[] queues = createQueues();
+        for (int i = 0; i < 3; i++) {
+            final SharedPublishFrame frame = new SharedPublishFrame(TOPIC, payload, false, 1);
+            for (int q = 0; q < queues.length; q++) {
+                queues[q].enqueue(new SessionRegistry.PublishedMessage(TOPIC, SESSION_QOS[q], payload.duplicate(),
+                    false, frame));
+                // the references are written to the segmented queues
+                queues[q].flush();
+            }
+            frame.batchDelivered();
+        }
+        assertEquals(2L * segmentSize, queuePool.diskUsage().segmentBytesInUse());
+
+        queues[0].closeAndPurge();
+        queues[1].closeAndPurge();
+        assertEquals(2L * segmentSize, queuePool.diskUsage().segmentBytesInUse(),
+            "The log segments are still referenced by a session");
+
+        queues[2].closeAndPurge();
+        assertEquals(segmentSize, queuePool.diskUsage().segmentBytesInUse(),
+            "Only the log segment being appended must be left");
+    }
+
+    @Test
+    public void logReferencesOfABatchNotWrittenAreReleasedByThePurge() throws QueueException {
+        final int segmentSize = BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE;
+        final Queue segmentedQueue = mock(Queue.class);
+        doThrow(new QueueException("No free segments")).when(segmentedQueue).enqueueBatch(anyList(), anyList());
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue =
+            new SegmentPersistentQueue(segmentedQueue, queuePool.sharedLog());
+        // two messages fill the first segment of the log, the third starts the next one
+        final ByteBuf payload = Unpooled.wrappedBuffer(new byte[segmentSize * 3 / 8]);
+        for (int i = 0; i < 3; i++) {
+            final SharedPublishFrame frame = new SharedPublishFrame(TOPIC, payload, false, 1);
+            queue.enqueue(new SessionRegistry.PublishedMessage(TOPIC, MqttQoS.AT_LEAST_ONCE, payload.duplicate(),
+                false, frame));
+            frame.batchDelivered();
+        }
+        assertThrows(RuntimeException.class, queue::flush);
+        assertEquals(2L * segmentSize, queuePool.diskUsage().segmentBytesInUse());
+
+        queue.closeAndPurge();
+        assertEquals(segmentSize, queuePool.diskUsage().segmentBytesInUse(),
+            "The references of the records not written must be released");
+    }
+
+    @SuppressWarnings("unchecked")
+    private SessionMessageQueue<SessionRegistry.EnqueuedMessage>[] createQueues() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage>[] queues = new SessionMessageQueue[SESSION_QOS.length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = createQueue("subscriber" + i);
+        }
+        return queues;
+    }
+
+    private SessionMessageQueue<SessionRegistry.EnqueuedMessage> createQueue(String name) {
+        return new SegmentPersistentQueue(queuePool, name, queuePool.sharedLog());
+    }
+}
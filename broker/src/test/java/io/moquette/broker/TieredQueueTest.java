@@ -0,0 +1,122 @@
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.moquette.persistence.SegmentQueueRepository;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TieredQueueTest {
+
+    private static final String CLIENT_ID = "subscriber";
+
+    private MemoryQueueRepository store;
+    private TieredQueueRepository repository;
+
+    @BeforeEach
+    public void setUp() {
+        store = new MemoryQueueRepository();
+        repository = new TieredQueueRepository(store, 3, 1024);
+    }
+
+    @Test
+    public void smallBacklogStaysInMemory() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT_ID);
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue(message("message" + i));
+        }
+
+        assertFalse(store.containsQueue(CLIENT_ID), "The store must not be touched");
+        assertTrue(repository.containsQueue(CLIENT_ID));
+        assertDrained(queue, 0, 3);
+    }
+
+    @Test
+    public void overflowSpillsTheBacklogInOrder() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT_ID);
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(message("message" + i));
+        }
+
+        assertTrue(store.containsQueue(CLIENT_ID));
+        assertFalse(store.getOrCreateQueue(CLIENT_ID).isEmpty());
+        assertDrained(queue, 0, 5);
+
+        // drained, the queue is in memory again
+        queue.enqueue(message("message5"));
+        assertTrue(store.getOrCreateQueue(CLIENT_ID).isEmpty());
+        assertDrained(queue, 5, 6);
+    }
+
+    @Test
+    public void bytesOverTheLimitSpill() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT_ID);
+        queue.enqueue(message("small"));
+        queue.enqueue(new SessionRegistry.PublishedMessage(Topic.asTopic("/temperature"), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.wrappedBuffer(new byte[1024]), false));
+
+        assertTrue(store.containsQueue(CLIENT_ID));
+        assertEquals("small", payloadOf(queue.dequeue()));
+        assertEquals(1024, ((SessionRegistry.PublishedMessage) queue.dequeue()).getPayload().readableBytes());
+    }
+
+    @Test
+    public void memoryBacklogIsStoredOnClose(@TempDir Path queuesFolder) throws QueueException {
+        final TieredQueueRepository segmented = new TieredQueueRepository(openSegmentedQueues(queuesFolder), 3, 1024);
+        segmented.getOrCreateQueue(CLIENT_ID).enqueue(message("message0"));
+        segmented.close();
+
+        final TieredQueueRepository reopened = new TieredQueueRepository(openSegmentedQueues(queuesFolder), 3, 1024);
+        assertTrue(reopened.containsQueue(CLIENT_ID));
+        assertDrained(reopened.getOrCreateQueue(CLIENT_ID), 0, 1);
+        reopened.close();
+    }
+
+    private static SegmentQueueRepository openSegmentedQueues(Path queuesFolder) throws QueueException {
+        return new SegmentQueueRepository(queuesFolder, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void purgeReleasesTheMessagesInMemory() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT_ID);
+        final ByteBuf payload = Unpooled.copiedBuffer("message", StandardCharsets.UTF_8);
+        queue.enqueue(new SessionRegistry.PublishedMessage(Topic.asTopic("/temperature"), MqttQoS.AT_LEAST_ONCE,
+            payload, false));
+
+        queue.closeAndPurge();
+
+        assertEquals(0, payload.refCnt());
+        assertFalse(repository.containsQueue(CLIENT_ID));
+    }
+
+    private static void assertDrained(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertEquals("message" + i, payloadOf(queue.dequeue()));
+        }
+        assertNull(queue.dequeue());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static SessionRegistry.PublishedMessage message(String content) {
+        return new SessionRegistry.PublishedMessage(Topic.asTopic("/temperature"), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.copiedBuffer(content, StandardCharsets.UTF_8), false);
+    }
+
+    private static String payloadOf(SessionRegistry.EnqueuedMessage message) {
+        return ((SessionRegistry.PublishedMessage) message).getPayload().toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CTrieSubscriptionDirectoryMatchCacheTest {
+
+    private CTrieSubscriptionDirectory sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory(2);
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    @Test
+    public void givenRepeatedMatchOnSameTopicThenIsServedByTheCache() {
+        final Subscription sub = clientSubOnTopic("Sensor1", "a/b");
+        sut.add(sub);
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub);
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub);
+
+        assertEquals(1, sut.matchCacheMisses());
+        assertEquals(1, sut.matchCacheHits());
+    }
+
+    @Test
+    public void givenNewSubscriptionOnSameFirstLevelThenCachedMatchIsInvalidated() {
+        final Subscription sub1 = clientSubOnTopic("Sensor1", "a/b");
+        sut.add(sub1);
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub1);
+
+        final Subscription sub2 = clientSubOnTopic("Sensor2", "a/+");
+        sut.add(sub2);
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactlyInAnyOrder(sub1, sub2);
+        assertEquals(0, sut.matchCacheHits());
+    }
+
+    @Test
+    public void givenNewSubscriptionStartingWithWildcardThenEveryCachedMatchIsInvalidated() {
+        final Subscription sub1 = clientSubOnTopic("Sensor1", "a/b");
+        sut.add(sub1);
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub1);
+
+        final Subscription sub2 = clientSubOnTopic("Sensor2", "#");
+        sut.add(sub2);
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactlyInAnyOrder(sub1, sub2);
+    }
+
+    @Test
+    public void givenSubscriptionOnUnrelatedFirstLevelThenCachedMatchIsStillValid() {
+        final Subscription sub1 = clientSubOnTopic("Sensor1", "a/b");
+        sut.add(sub1);
+        sut.matchQosSharpening(asTopic("a/b"));
+
+        sut.add(clientSubOnTopic("Sensor2", "c/b"));
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub1);
+        assertEquals(1, sut.matchCacheHits());
+    }
+
+    @Test
+    public void givenRemovedSubscriptionThenCachedMatchIsInvalidated() {
+        final Subscription sub1 = clientSubOnTopic("Sensor1", "a/b");
+        sut.add(sub1);
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(sub1);
+
+        sut.removeSubscription(asTopic("a/b"), "Sensor1");
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).isEmpty();
+    }
+
+    @Test
+    public void givenCachedResultThenQosSharpeningIsPreserved() {
+        sut.add(new Subscription("Sensor1", asTopic("a/+"), MqttQoS.AT_MOST_ONCE));
+        final Subscription higherQos = new Subscription("Sensor1", asTopic("a/b"), MqttQoS.EXACTLY_ONCE);
+        sut.add(higherQos);
+
+        sut.matchQosSharpening(asTopic("a/b"));
+        assertThat(sut.matchQosSharpening(asTopic("a/b")))
+            .extracting(Subscription::getRequestedQos)
+            .containsExactly(MqttQoS.EXACTLY_ONCE);
+    }
+
+    @Test
+    public void givenMoreTopicsThanCacheSizeThenOldestAreEvicted() {
+        sut.add(clientSubOnTopic("Sensor1", "#"));
+
+        for (int i = 0; i < 64; i++) {
+            sut.matchQosSharpening(asTopic("sensor/" + i));
+        }
+
+        assertThat(sut.matchCacheEvictions()).isPositive();
+    }
+}
@@ -282,4 +282,34 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         // client1SubQoS2 should override client1SubQoS0
         assertThat(client1Sub.getRequestedQos()).isEqualTo(client1SubQoS2.getRequestedQos());
     }
+
+    @Test
+    public void givenShareGroupThenOnlyOneMemberIsMatchedForEachPublish() {
+        Subscription member1 = new Subscription("client1", asTopic("measures/+"), MqttQoS.AT_LEAST_ONCE, "group");
+        Subscription member2 = new Subscription("client2", asTopic("measures/+"), MqttQoS.AT_LEAST_ONCE, "group");
+        Subscription notShared = clientSubOnTopic("client3", "measures/temp");
+        sut.add(member1);
+        sut.add(member2);
+        sut.add(notShared);
+
+        List<Subscription> first = sut.matchQosSharpening(asTopic("measures/temp"));
+        List<Subscription> second = sut.matchQosSharpening(asTopic("measures/temp"));
+
+        // round robin moves to the other member
+        assertThat(first).containsExactlyInAnyOrder(notShared, member1);
+        assertThat(second).containsExactlyInAnyOrder(notShared, member2);
+    }
+
+    @Test
+    public void givenSameFilterSharedAndNotSharedByAClientThenRemovingTheSharedKeepsTheOther() {
+        Subscription shared = new Subscription("client1", asTopic("measures/temp"), MqttQoS.AT_LEAST_ONCE, "group");
+        Subscription notShared = clientSubOnTopic("client1", "measures/temp");
+        sut.add(shared);
+        sut.add(notShared);
+
+        sut.removeSharedSubscription("group", asTopic("measures/temp"), "client1");
+
+        assertThat(sut.matchQosSharpening(asTopic("measures/temp"))).containsExactly(notShared);
+        assertThat(sessionsRepository.listAllSubscriptions()).containsExactly(notShared);
+    }
 }
@@ -20,6 +20,7 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.Set;
 
@@ -303,4 +304,63 @@ public class CTrieTest {
         assertThat(matchingSubs3).contains(expectedMatchingsub1);
         assertThat(matchingSubs4).doesNotContain(expectedMatchingsub2);
     }
+
+    @Test
+    public void testAddAllBuildsTheSameTreeOfSingleAdds() {
+        final List<Subscription> subscriptions = Arrays.asList(
+            clientSubOnTopic("TempSensor1", "/"),
+            clientSubOnTopic("TempSensor1", "#"),
+            clientSubOnTopic("TempSensor1", "/italy/roma/temp"),
+            clientSubOnTopic("TempSensor2", "/italy/roma/temp"),
+            clientSubOnTopic("TempSensor2", "/italy/+/temp"),
+            clientSubOnTopic("TempSensor3", "/italy"),
+            clientSubOnTopic("TempSensor3", "/italy/firenze/#"),
+            new Subscription("TempSensor4", asTopic("/italy/+/temp"), MqttQoS.AT_LEAST_ONCE, "group"),
+            clientSubOnTopic("HumSensor", "humidity/1"),
+            clientSubOnTopic("HumSensor", "humidity"));
+        final CTrie singleAdds = new CTrie();
+        subscriptions.forEach(singleAdds::addToTree);
+
+        sut.addAllToTree(subscriptions);
+
+        assertEquals(singleAdds.dumpTree(), sut.dumpTree());
+        assertEquals(subscriptions.size(), sut.size());
+        assertThat(sut.recursiveMatch(asTopic("/italy/roma/temp"))).containsExactlyInAnyOrder(
+            clientSubOnTopic("TempSensor1", "#"),
+            clientSubOnTopic("TempSensor1", "/italy/roma/temp"),
+            clientSubOnTopic("TempSensor2", "/italy/roma/temp"),
+            clientSubOnTopic("TempSensor2", "/italy/+/temp"),
+            new Subscription("TempSensor4", asTopic("/italy/+/temp"), MqttQoS.AT_LEAST_ONCE, "group"));
+    }
+
+    @Test
+    public void testAddAllMergesIntoExistingNodes() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "/italy/roma/temp"));
+        sut.addToTree(clientSubOnTopic("TempSensor1", "/italy"));
+
+        sut.addAllToTree(Arrays.asList(
+            clientSubOnTopic("TempSensor2", "/italy/roma/temp"),
+            clientSubOnTopic("TempSensor2", "/italy/roma/humidity"),
+            clientSubOnTopic("TempSensor2", "/spain/madrid/temp")));
+
+        assertEquals(5, sut.size());
+        assertThat(sut.recursiveMatch(asTopic("/italy/roma/temp"))).containsExactlyInAnyOrder(
+            clientSubOnTopic("TempSensor1", "/italy/roma/temp"),
+            clientSubOnTopic("TempSensor2", "/italy/roma/temp"));
+        assertThat(sut.recursiveMatch(asTopic("/italy"))).containsExactly(clientSubOnTopic("TempSensor1", "/italy"));
+        assertThat(sut.recursiveMatch(asTopic("/spain/madrid/temp")))
+            .containsExactly(clientSubOnTopic("TempSensor2", "/spain/madrid/temp"));
+    }
+
+    @Test
+    public void testAddAllKeepsTheHigherQosOfDuplicatedSubscriptions() {
+        sut.addAllToTree(Arrays.asList(
+            new Subscription("TempSensor1", asTopic("/temp"), MqttQoS.AT_MOST_ONCE),
+            new Subscription("TempSensor1", asTopic("/temp"), MqttQoS.EXACTLY_ONCE),
+            new Subscription("TempSensor1", asTopic("/temp"), MqttQoS.AT_LEAST_ONCE)));
+
+        final List<Subscription> matching = sut.recursiveMatch(asTopic("/temp"));
+        assertThat(matching).hasSize(1);
+        assertEquals(MqttQoS.EXACTLY_ONCE, matching.get(0).getRequestedQos());
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SharedSubscriptionStrategiesTest {
+
+    private static ShareGroup groupOf(String... clientIds) {
+        final Subscription[] members = new Subscription[clientIds.length];
+        for (int i = 0; i < clientIds.length; i++) {
+            members[i] = new Subscription(clientIds[i], asTopic("measures/+"), MqttQoS.AT_LEAST_ONCE, "group");
+        }
+        return new ShareGroup("group", asTopic("measures/+"), Arrays.asList(members));
+    }
+
+    @Test
+    public void roundRobinSelectsEachMemberInTurn() {
+        final SharedSubscriptionStrategy sut = new SharedSubscriptionStrategies.RoundRobin();
+        final ShareGroup group = groupOf("c1", "c2", "c3");
+
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            counts.merge(sut.select(group, asTopic("measures/temp")).getClientId(), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.get("c1"));
+        assertEquals(3, counts.get("c2"));
+        assertEquals(3, counts.get("c3"));
+    }
+
+    @Test
+    public void stickyAlwaysSelectsTheSameMemberForATopic() {
+        final SharedSubscriptionStrategy sut = new SharedSubscriptionStrategies.StickyByHash();
+        final ShareGroup group = groupOf("c1", "c2", "c3");
+
+        final Subscription first = sut.select(group, asTopic("measures/temp"));
+        for (int i = 0; i < 10; i++) {
+            assertSame(first, sut.select(group, asTopic("measures/temp")));
+        }
+    }
+
+    @Test
+    public void stickyKeepsTheAssignedMemberWhenAnotherLeaves() {
+        final SharedSubscriptionStrategy sut = new SharedSubscriptionStrategies.StickyByHash();
+        final ShareGroup group = groupOf("c1", "c2", "c3");
+
+        for (int i = 0; i < 50; i++) {
+            final Topic topic = asTopic("measures/sensor" + i);
+            final String selected = sut.select(group, topic).getClientId();
+            final List<String> remaining = selected.equals("c3") ? Arrays.asList("c1", "c2") : Arrays.asList("c1", "c3");
+            final ShareGroup reduced = groupOf(remaining.toArray(new String[0]));
+            if (remaining.contains(selected)) {
+                assertEquals(selected, sut.select(reduced, topic).getClientId());
+            }
+        }
+    }
+
+    @Test
+    public void leastInflightSelectsTheLessLoadedMember() {
+        final Map<String, Integer> inflight = new HashMap<>();
+        inflight.put("c1", 5);
+        inflight.put("c2", 1);
+        inflight.put("c3", 3);
+        final SharedSubscriptionStrategy sut = new SharedSubscriptionStrategies.LeastInflight(inflight::get);
+
+        assertEquals("c2", sut.select(groupOf("c1", "c2", "c3"), asTopic("measures/temp")).getClientId());
+    }
+
+    @Test
+    public void unknownStrategyNameIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+            () -> SharedSubscriptionStrategies.fromName("random", clientId -> 0));
+    }
+}
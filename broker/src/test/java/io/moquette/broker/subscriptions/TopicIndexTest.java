@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopicIndexTest {
+
+    private TopicIndex<String> sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new TopicIndex<>();
+    }
+
+    private void put(String topic) {
+        sut.put(asTopic(topic), topic);
+    }
+
+    @Test
+    public void givenStoredTopicThenIsFoundByName() {
+        put("a/b/c");
+        put("a/b");
+
+        assertEquals("a/b/c", sut.get(asTopic("a/b/c")));
+        assertEquals("a/b", sut.get(asTopic("a/b")));
+        assertNull(sut.get(asTopic("a")));
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    public void givenWildcardFilterThenMatchesLikeTopicMatch() {
+        put("a");
+        put("a/b/c");
+        put("a/d/c");
+        put("a//c");
+        put("b/b/c");
+
+        assertThat(sut.match(asTopic("a/+/c"))).containsOnly("a/b/c", "a/d/c", "a//c");
+        assertThat(sut.match(asTopic("a/#"))).containsOnly("a", "a/b/c", "a/d/c", "a//c");
+        assertThat(sut.match(asTopic("+/b/#"))).containsOnly("a/b/c", "b/b/c");
+        assertThat(sut.match(asTopic("#"))).hasSize(5);
+        assertThat(sut.match(asTopic("a/+"))).isEmpty();
+    }
+
+    @Test
+    public void givenRemovedTopicThenEmptyBranchesArePruned() {
+        put("a/b/c");
+        put("a/d");
+
+        assertEquals("a/b/c", sut.remove(asTopic("a/b/c")));
+        assertNull(sut.remove(asTopic("a/b/c")));
+
+        assertThat(sut.match(asTopic("a/+/#"))).containsOnly("a/d");
+        sut.remove(asTopic("a/d"));
+        assertTrue(sut.isEmpty());
+        assertThat(sut.match(asTopic("#"))).isEmpty();
+    }
+
+    @Test
+    public void givenRemovalOfAnIntermediateLevelThenDescendantsAreKept() {
+        put("a/b");
+        put("a/b/c");
+
+        sut.remove(asTopic("a/b"));
+
+        assertEquals("a/b/c", sut.get(asTopic("a/b/c")));
+        assertEquals(1, sut.size());
+    }
+}
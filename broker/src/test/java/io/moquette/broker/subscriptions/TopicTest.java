@@ -20,6 +20,9 @@ import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TopicTest {
 
@@ -30,6 +33,20 @@ public class TopicTest {
         assertThat(new Topic("/finance/stock/ibm")).containsToken(Token.EMPTY, "finance", "stock", "ibm");
 
         assertThat(new Topic("/")).containsToken(Token.EMPTY, Token.EMPTY);
+
+        assertThat(new Topic("a//")).containsToken("a", Token.EMPTY);
+        assertThat(new Topic("//")).containsToken(Token.EMPTY, Token.EMPTY);
+        assertThat(new Topic("/a//b//")).containsToken(Token.EMPTY, "a", Token.EMPTY, "b", Token.EMPTY);
+    }
+
+    @Test
+    public void testSameTokensAreInterned() {
+        final Topic first = new Topic("building/floor1/temperature");
+        final Topic second = new Topic("building/floor2/temperature");
+
+        assertSame(first.tokenAt(0), second.tokenAt(0));
+        assertSame(first.tokenAt(2), second.tokenAt(2));
+        assertNotSame(first.tokenAt(1), second.tokenAt(1));
     }
 
     @Test
@@ -122,6 +139,18 @@ public class TopicTest {
         assertEquals(Topic.asTopic("a/b"), Topic.asTopic("/a/b").exceptHeadToken());
     }
 
+    @Test
+    public void exceptHeadTokenSharesTheTokensOfTheOriginalTopic() {
+        final Topic topic = Topic.asTopic("a/b/c");
+        final Topic view = topic.exceptHeadToken();
+
+        assertEquals(2, view.levels());
+        assertSame(topic.tokenAt(1), view.headToken());
+        assertEquals("c", view.exceptHeadToken().toString());
+        assertTrue(view.exceptHeadToken().exceptHeadToken().isEmpty());
+        assertThat(view).matches("b/+");
+    }
+
     public static TopicAssert assertThat(Topic topic) {
         return new TopicAssert(topic);
     }
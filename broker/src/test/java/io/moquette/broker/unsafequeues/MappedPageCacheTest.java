@@ -0,0 +1,124 @@
+package io.moquette.broker.unsafequeues;
+
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MappedPageCacheTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    @TempDir
+    Path tempQueueFolder;
+
+    private MappedPageCache pages;
+
+    @BeforeEach
+    public void setUp() {
+        pages = new MappedPageCache(tempQueueFolder, PAGE_SIZE, 1);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pages.close();
+    }
+
+    @Test
+    public void pageIsMappedOnceForAllItsPins() throws QueueException {
+        final MappedByteBuffer first = pages.acquire(0);
+        final MappedByteBuffer second = pages.acquire(0);
+
+        assertSame(first, second);
+        assertSame(first, pages.pinned(0));
+        assertEquals(1, pages.maps());
+        assertEquals(PAGE_SIZE, pages.mappedBytes());
+        assertTrue(Files.exists(tempQueueFolder.resolve("0.page")), "The page file must be created");
+    }
+
+    @Test
+    public void leastRecentlyReleasedPagesAreUnmapped() throws QueueException {
+        for (int pageId = 0; pageId < 3; pageId++) {
+            pages.acquire(pageId);
+        }
+        pages.release(1);
+        pages.release(0);
+
+        assertEquals(1, pages.unmaps());
+        assertThrows(IllegalStateException.class, () -> pages.pinned(1));
+        // the idle page and the pinned one are still mapped
+        assertEquals(2 * PAGE_SIZE, pages.mappedBytes());
+        pages.acquire(0);
+        assertEquals(3, pages.maps(), "An idle page must be reused without mapping it again");
+    }
+
+    @Test
+    public void unmappingFreesTheMemoryMapping() throws QueueException, IOException {
+        final Path processMappings = Paths.get("/proc/self/maps");
+        assumeTrue(Files.exists(processMappings), "Needs the list of memory mappings of Linux");
+        final String pageFile = tempQueueFolder.resolve("0.page").toAbsolutePath().toString();
+        pages.acquire(0);
+        assertTrue(new String(Files.readAllBytes(processMappings), StandardCharsets.UTF_8).contains(pageFile));
+
+        pages.release(0);
+        pages.acquire(1);
+        pages.release(1);
+
+        assertFalse(new String(Files.readAllBytes(processMappings), StandardCharsets.UTF_8).contains(pageFile),
+            "The evicted page must not be mapped anymore");
+    }
+
+    @Test
+    public void writtenPageIsKeptMappedUntilForced() throws QueueException {
+        final MappedByteBuffer written = pages.acquire(0);
+        written.put(0, (byte) 'A');
+        pages.markDirty(0);
+        pages.release(0);
+        pages.acquire(1);
+        pages.release(1);
+
+        assertSame(written, pages.pinned(0), "A page not forced must be kept mapped");
+        assertThrows(IllegalStateException.class, () -> pages.pinned(1));
+
+        pages.forceDirtyPages();
+        pages.acquire(2);
+        pages.release(2);
+        assertThrows(IllegalStateException.class, () -> pages.pinned(0));
+    }
+
+    @Test
+    public void nextPageIsPreparedInBackground() throws Exception {
+        final MappedByteBuffer prepared = pages.acquireAsync(1).get();
+
+        Awaitility.await().until(() -> Files.exists(tempQueueFolder.resolve("1.page")));
+        assertSame(prepared, pages.pinned(1));
+    }
+
+    @Test
+    public void readAheadReleasesThePageOnceLoaded() throws Exception {
+        pages.acquire(0);
+        pages.readAhead(0, 0, PAGE_SIZE);
+        pages.release(0);
+
+        // the background tasks run in order, so the read ahead is completed
+        pages.acquireAsync(1).get();
+        pages.release(1);
+        assertThrows(IllegalStateException.class, () -> pages.pinned(0), "The page read ahead must be released");
+        assertEquals(PAGE_SIZE, pages.mappedBytes());
+    }
+}
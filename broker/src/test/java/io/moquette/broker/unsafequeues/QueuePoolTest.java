@@ -1,5 +1,6 @@
 package io.moquette.broker.unsafequeues;
 
+import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -10,11 +11,13 @@ import org.slf4j.LoggerFactory;
 import io.moquette.BrokerConstants;
 import io.moquette.broker.unsafequeues.Queue;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -51,25 +54,15 @@ class QueuePoolTest {
         queuePool.close();
 
         // verify
-        final Path checkpointPath = tempQueueFolder.resolve("checkpoint.properties");
+        final Path checkpointPath = tempQueueFolder.resolve("checkpoint.journal");
         final File checkpointFile = checkpointPath.toFile();
         assertTrue(checkpointFile.exists(), "Checkpoint file must be created");
 
-        final Properties checkpoint = loadCheckpoint(checkpointPath);
-        final int lastPage = Integer.parseInt(checkpoint.get("segments.last_page").toString());
-        assertEquals(0, lastPage);
-        final int lastSegment = Integer.parseInt(checkpoint.get("segments.last_segment").toString());
-        assertEquals(1, lastSegment);
+        final CheckpointJournal.Checkpoint checkpoint = CheckpointJournal.read(tempQueueFolder);
+        assertEquals(0, checkpoint.lastPage);
+        assertEquals(1, checkpoint.lastSegment);
 
-        assertEquals("test", checkpoint.get("queues.0.name"), "Queue name must match");
-    }
-
-    private Properties loadCheckpoint(Path checkpointPath) throws IOException {
-        final FileReader fileReader;
-        fileReader = new FileReader(checkpointPath.toFile());
-        final Properties checkpointProps = new Properties();
-        checkpointProps.load(fileReader);
-        return checkpointProps;
+        assertEquals(Collections.singleton("test"), checkpoint.queues.keySet(), "Queue name must match");
     }
 
     @Test
@@ -88,18 +81,338 @@ class QueuePoolTest {
         queuePool.close();
 
         // verify
-        final Path checkpointPath = tempQueueFolder.resolve("checkpoint.properties");
+        final Path checkpointPath = tempQueueFolder.resolve("checkpoint.journal");
         final File checkpointFile = checkpointPath.toFile();
         assertTrue(checkpointFile.exists(), "Checkpoint file must be created");
 
-        final Properties checkpoint = loadCheckpoint(checkpointPath);
-        final int lastPage = Integer.parseInt(checkpoint.get("segments.last_page").toString());
-        assertEquals(0, lastPage);
-        final int lastSegment = Integer.parseInt(checkpoint.get("segments.last_segment").toString());
-        assertEquals(1, lastSegment);
+        final CheckpointJournal.Checkpoint checkpoint = CheckpointJournal.read(tempQueueFolder);
+        assertEquals(0, checkpoint.lastPage);
+        assertEquals(1, checkpoint.lastSegment);
+
+        assertEquals(Collections.singleton("test"), checkpoint.queues.keySet(), "Queue name must match");
+        assertEquals(15, checkpoint.queues.get("test").headOffset, "Queue head must be 16 bytes over the start");
+    }
+
+    @Test
+    public void reloadAllTheQueues() throws QueueException {
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        queuePool.getOrCreate("first").enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queuePool.getOrCreate("second").enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+        queuePool.close();
+
+        queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        assertEquals(new HashSet<>(Arrays.asList("first", "second")), queuePool.queueNames());
+        assertDequeued("AAAA", queuePool.getOrCreate("first"));
+        assertDequeued("BBBB", queuePool.getOrCreate("second"));
+    }
+
+    @Test
+    public void restartAfterACrashFromTheLastCheckpoint() throws QueueException {
+        final QueuePool crashed = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.INTERVAL, 3_600_000);
+        final Queue queue = crashed.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queue.enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+        assertDequeued("AAAA", queue);
+        crashed.checkpoint();
+        // lost, never checkpointed
+        queue.enqueue(ByteBuffer.wrap("CCCC".getBytes(StandardCharsets.UTF_8)));
+
+        // reload without closing
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue restored = reloaded.getOrCreate("test");
+        assertDequeued("BBBB", restored);
+        assertTrue(restored.isEmpty(), "Messages after the checkpoint must be lost");
+        crashed.close();
+    }
+
+    @Test
+    public void discardCheckpointTornByACrash() throws QueueException, IOException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queuePool.checkpoint();
+        final Path journal = tempQueueFolder.resolve("checkpoint.journal");
+        final long committedSize = Files.size(journal);
+        queue.enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+        queuePool.checkpoint();
+
+        // cut the last commit record, like a crash while appending
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(journal) - 3);
+        }
+
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue restored = reloaded.getOrCreate("test");
+        assertDequeued("AAAA", restored);
+        assertTrue(restored.isEmpty(), "The queue must be restored from the last complete checkpoint");
+        assertEquals(committedSize, Files.size(journal), "The torn checkpoint must be removed");
+    }
+
+    @Test
+    public void checkpointOnlyTheChangedQueues() throws QueueException, IOException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            queuePool.getOrCreate("queue_" + i).enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        }
+        final Path journal = tempQueueFolder.resolve("checkpoint.journal");
+        queuePool.checkpoint();
+        final long sizeWithAllQueues = Files.size(journal);
+
+        queuePool.getOrCreate("queue_42").enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+        queuePool.checkpoint();
+        final long appended = Files.size(journal) - sizeWithAllQueues;
+        assertTrue(appended < sizeWithAllQueues / 50, "Only the changed queue must be appended, was " + appended + " bytes");
+
+        // nothing changed
+        queuePool.checkpoint();
+        assertEquals(sizeWithAllQueues + appended, Files.size(journal));
+        queuePool.close();
+
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = reloaded.getOrCreate("queue_42");
+        assertDequeued("AAAA", queue);
+        assertDequeued("BBBB", queue);
+    }
+
+    @Test
+    public void groupCommitSavesTheChangesWithoutCheckpointRequests() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.GROUP_COMMIT, 0);
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> {
+            final CheckpointJournal.QueueState state = CheckpointJournal.read(tempQueueFolder).queues.get("test");
+            return state != null && state.headOffset == 7;
+        });
+        queuePool.close();
+    }
+
+    @Test
+    public void consumedSegmentIsReusedOnlyAfterACheckpoint() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.INTERVAL, 3_600_000);
+        final Queue queue = queuePool.getOrCreate("test");
+        final int halfSegment = SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE;
+        // fill segments (0, 0) and (0, 4194304), consume the first
+        for (int i = 0; i < 4; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(halfSegment)));
+        }
+        queue.dequeue();
+        queue.dequeue();
+
+        // the last checkpoint has the queue still in (0, 0)
+        queue.enqueue(ByteBuffer.wrap(generatePayload(halfSegment)));
+        assertEquals("(0, 8388608)", queuePool.segmentRefs("test")[0].toString());
+
+        queuePool.checkpoint();
+        queue.enqueue(ByteBuffer.wrap(generatePayload(halfSegment)));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(halfSegment)));
+        assertEquals("(0, 0)", queuePool.segmentRefs("test")[0].toString());
+        queuePool.close();
+    }
+
+    @Test
+    public void smallQueuesShareASegmentInSlabs() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+        for (int i = 0; i < 3; i++) {
+            queuePool.getOrCreate("queue" + i).enqueue(ByteBuffer.wrap(("message" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        assertEquals("(0, 0, slab 4096)", queuePool.segmentRefs("queue0")[0].toString());
+        assertEquals("(0, 4096, slab 4096)", queuePool.segmentRefs("queue1")[0].toString());
+        assertEquals("(0, 8192, slab 4096)", queuePool.segmentRefs("queue2")[0].toString());
+        final QueuePool.DiskUsage diskUsage = queuePool.diskUsage();
+        assertEquals(SEGMENT_SIZE, diskUsage.allocatedBytes());
+        assertEquals(SEGMENT_SIZE, diskUsage.slabCarrierBytes());
+        assertEquals(3 * 4096, diskUsage.slabBytesInUse());
+        assertEquals(0, diskUsage.segmentBytesInUse());
+        for (int i = 0; i < 3; i++) {
+            assertDequeued("message" + i, queuePool.getOrCreate("queue" + i));
+        }
+        queuePool.close();
+    }
+
+    @Test
+    public void growingQueueIsPromotedToSegmentsAndBackToASlabWhenDrained() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+        final Queue queue = queuePool.getOrCreate("test");
+        final int messageSize = 1024 - LENGTH_HEADER_SIZE;
+        // 4KB, 16KB, 64KB slabs and then a full segment
+        for (int i = 0; i < 100; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(messageSize, (byte) ('A' + i % 26))));
+        }
+        assertEquals(0, queuePool.segmentRefs("test")[0].slabSize);
+        assertEquals(0, queuePool.diskUsage().slabCarrierBytes(), "Carriers of the left slabs must be freed");
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer message = queue.dequeue().get();
+            assertEquals(messageSize, message.remaining());
+            assertEquals('A' + i % 26, message.get(messageSize - 1));
+        }
+
+        // reach the end of the segment keeping few messages in the queue
+        final int messagesPerSegment = SEGMENT_SIZE / 1024;
+        for (int i = 100; i < messagesPerSegment + 2; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(messageSize, (byte) ('A' + i % 26))));
+            if (i > 102) {
+                queue.dequeue();
+            }
+        }
+        assertEquals(16 * 1024, queuePool.segmentRefs("test")[0].slabSize);
+        assertEquals(1, queuePool.segmentRefs("test").length);
+        for (int i = messagesPerSegment - 1; i < messagesPerSegment + 2; i++) {
+            assertEquals('A' + i % 26, queue.dequeue().get().get(0));
+        }
+        assertTrue(queue.isEmpty());
+        queuePool.close();
+    }
+
+    @Test
+    public void slabQueuesAreReloaded() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+        queuePool.getOrCreate("small").enqueue(ByteBuffer.wrap("small message".getBytes(StandardCharsets.UTF_8)));
+        final Queue consumed = queuePool.getOrCreate("consumed");
+        consumed.enqueue(ByteBuffer.wrap("consumed message".getBytes(StandardCharsets.UTF_8)));
+        consumed.dequeue();
+        final Queue medium = queuePool.getOrCreate("medium");
+        for (int i = 0; i < 5; i++) {
+            medium.enqueue(ByteBuffer.wrap(generatePayload(1024 - LENGTH_HEADER_SIZE, (byte) 'M')));
+        }
+        queuePool.close();
+
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueuePool.Durability.NONE, 0, true);
+        assertEquals("(0, 4194304, slab 16384)", reloaded.segmentRefs("medium")[0].toString());
+        // the slabs in use aren't handed out again
+        reloaded.getOrCreate("new").enqueue(ByteBuffer.wrap("new message".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("(0, 8192, slab 4096)", reloaded.segmentRefs("new")[0].toString());
+
+        assertDequeued("small message", reloaded.getOrCreate("small"));
+        assertTrue(reloaded.getOrCreate("consumed").isEmpty());
+        final Queue reloadedMedium = reloaded.getOrCreate("medium");
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1024 - LENGTH_HEADER_SIZE, reloadedMedium.dequeue().get().remaining());
+        }
+        assertDequeued("new message", reloaded.getOrCreate("new"));
+        reloaded.close();
+    }
+
+    @Test
+    public void segmentsOfAPageShareItsMapping() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = queuePool.getOrCreate("test");
+        // 4 segments, a page is prepared in advance only after the half is used
+        final int messageSize = SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE;
+        for (int i = 0; i < 8; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(messageSize)));
+        }
+        queuePool.close();
+
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue reloadedQueue = reloaded.getOrCreate("test");
+        for (int i = 0; i < 8; i++) {
+            assertEquals(messageSize, reloadedQueue.dequeue().get().remaining());
+        }
+
+        final QueuePool.MappingStats mappings = reloaded.mappingStats();
+        assertEquals(1, mappings.maps(), "The segments read must share the mapping of the page");
+        assertEquals(PAGE_SIZE, mappings.mappedBytes());
+        reloaded.close();
+    }
+
+    @Test
+    public void reloadedQueuesAreOpenedOnFirstAccess() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        queuePool.getOrCreate("old").enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        // moves the allocator to the second page, leaving the first one referenced only by the old queue
+        final Queue filler = queuePool.getOrCreate("filler");
+        final int messageSize = SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE;
+        final int messages = 2 * (PAGE_SIZE / SEGMENT_SIZE + 1);
+        for (int i = 0; i < messages; i++) {
+            filler.enqueue(ByteBuffer.wrap(generatePayload(messageSize)));
+        }
+        for (int i = 0; i < messages; i++) {
+            filler.dequeue();
+        }
+        queuePool.close();
+
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        assertTrue(reloaded.contains("old"));
+        assertEquals(new HashSet<>(Arrays.asList("old", "filler")), reloaded.queueNames());
+        assertEquals(1, reloaded.mappingStats().maps(), "Only the page of the allocator must be mapped on load");
+
+        assertDequeued("AAAA", reloaded.getOrCreate("old"));
+        assertEquals(2, reloaded.mappingStats().maps());
+        reloaded.close();
+    }
+
+    @Test
+    public void sharedLogSegmentIsRecycledWhenAllItsReferencesAreRead() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final SharedLog log = queuePool.sharedLog();
+        final Queue first = queuePool.getOrCreate("first");
+        final Queue second = queuePool.getOrCreate("second");
+        final int recordSize = SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE;
+        // two records fill the first segment of the log, the third starts the next one
+        for (int i = 0; i < 3; i++) {
+            final SharedLog.Entry entry = log.append(ByteBuffer.wrap(generatePayload(recordSize, (byte) ('A' + i))));
+            enqueueReference(first, log, entry);
+            enqueueReference(second, log, entry);
+            // the fan-out is over
+            log.release(entry);
+        }
+        assertEquals(2, log.segmentsCount());
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals('A' + i, dequeueReferenced(first).get(0));
+        }
+        assertEquals(2, log.segmentsCount(), "The segment is still referenced by the second queue");
+        for (int i = 0; i < 2; i++) {
+            assertEquals('A' + i, dequeueReferenced(second).get(0));
+        }
+        assertEquals(1, log.segmentsCount());
+        // the first log segment is the first free
+        queuePool.getOrCreate("third");
+        assertEquals("(0, 8388608)", queuePool.segmentRefs("third")[0].toString());
+        queuePool.close();
+    }
+
+    @Test
+    public void sharedLogReferencesAreReloaded() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final SharedLog log = queuePool.sharedLog();
+        final SharedLog.Entry entry = log.append(ByteBuffer.wrap("shared message".getBytes(StandardCharsets.UTF_8)));
+        enqueueReference(queuePool.getOrCreate("first"), log, entry);
+        enqueueReference(queuePool.getOrCreate("second"), log, entry);
+        log.release(entry);
+        queuePool.close();
+
+        final QueuePool reloaded = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        assertEquals(1, reloaded.sharedLog().segmentsCount());
+        // the referenced log segment isn't handed out again
+        reloaded.getOrCreate("new");
+        assertEquals("(0, 12582912)", reloaded.segmentRefs("new")[0].toString());
+        assertEquals("shared message",
+            StandardCharsets.UTF_8.decode(dequeueReferenced(reloaded.getOrCreate("first"))).toString());
+        assertEquals("shared message",
+            StandardCharsets.UTF_8.decode(dequeueReferenced(reloaded.getOrCreate("second"))).toString());
+        assertEquals(0, reloaded.sharedLog().segmentsCount());
+        reloaded.close();
+    }
+
+    private static void enqueueReference(Queue queue, SharedLog log, SharedLog.Entry entry) throws QueueException {
+        log.retain(entry);
+        final ByteBuffer reference = ByteBuffer.allocate(SharedLog.Entry.ENCODED_SIZE);
+        entry.writeTo(reference);
+        reference.flip();
+        queue.enqueueBatch(Collections.singletonList(reference), Collections.singletonList(entry));
+    }
+
+    private static ByteBuffer dequeueReferenced(Queue queue) throws QueueException {
+        final ByteBuffer reference = queue.dequeue().get();
+        return queue.dereferenceLog(SharedLog.Entry.readFrom(reference));
+    }
 
-        assertEquals("test", checkpoint.get("queues.0.name"), "Queue name must match");
-        assertEquals("15", checkpoint.get("queues.0.head_offset"), "Queue head must be 16 bytes over the start");
+    private static void assertDequeued(String expected, Queue queue) throws QueueException {
+        final ByteBuffer data = queue.dequeue().get();
+        assertEquals(expected, StandardCharsets.UTF_8.decode(data).toString());
     }
 
     private TreeSet<QueuePool.SegmentRef> asTreeSet(QueuePool.SegmentRef... segments) {
@@ -1,12 +1,12 @@
 package io.moquette.broker.unsafequeues;
 
+import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import io.moquette.BrokerConstants;
 import io.moquette.broker.unsafequeues.Queue;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -139,7 +139,7 @@ class QueueTest {
         // verify
         final HashSet<String> fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
         assertEquals(2, fileset.size());
-        assertTrue(fileset.contains("checkpoint.properties"), "Checkpoint file must be created");
+        assertTrue(fileset.contains("checkpoint.journal"), "Checkpoint file must be created");
         assertTrue(fileset.contains("0.page"), "One page file must be created");
 
         final Path pageFile = tempQueueFolder.resolve("0.page");
@@ -153,6 +153,44 @@ class QueueTest {
         });
     }
 
+    @Test
+    public void enqueueBatchInsideTheHeadSegment() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap(generatePayload(10, (byte) 'a')));
+
+        queue.enqueueBatch(Arrays.asList(ByteBuffer.wrap(generatePayload(20, (byte) 'b')),
+            ByteBuffer.wrap(generatePayload(30, (byte) 'c'))));
+
+        assertContainsOnly('a', queue.dequeue().get(), 10);
+        assertContainsOnly('b', queue.dequeue().get(), 20);
+        assertContainsOnly('c', queue.dequeue().get(), 30);
+        assertTrue(queue.isEmpty(), "Queue must be empty after consuming the batch");
+    }
+
+    @Test
+    public void enqueueBatchThatSpansManySegments() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = queuePool.getOrCreate("test");
+        // leave in the head segment less space than a length header
+        queue.enqueue(ByteBuffer.wrap(generatePayload(SEGMENT_SIZE - 2 * LENGTH_HEADER_SIZE + 2, (byte) 'a')));
+
+        final int messageSize = SEGMENT_SIZE / 3;
+        final List<ByteBuffer> batch = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            batch.add(ByteBuffer.wrap(generatePayload(messageSize, (byte) ('b' + i))));
+        }
+        queue.enqueueBatch(batch);
+        queue.enqueue(ByteBuffer.wrap(generatePayload(10, (byte) 'z')));
+
+        assertContainsOnly('a', queue.dequeue().get(), SEGMENT_SIZE - 2 * LENGTH_HEADER_SIZE + 2);
+        for (int i = 0; i < 7; i++) {
+            assertContainsOnly((char) ('b' + i), queue.dequeue().get(), messageSize);
+        }
+        assertContainsOnly('z', queue.dequeue().get(), 10);
+        assertTrue(queue.isEmpty(), "Queue must be empty after consuming the batch");
+    }
+
     private void verifyFile(Path file, int bytesToRead, Consumer<ByteBuffer> verifier) throws IOException {
         final FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
         final ByteBuffer rawContent = ByteBuffer.allocate(bytesToRead);
@@ -175,12 +213,14 @@ class QueueTest {
             writeMessages(queue, payload, 1024);
         }
 
-        // check the 2 files are created
-        HashSet<String> fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
-        assertEquals(2, fileset.size());
-        assertTrue(fileset.contains("checkpoint.properties"), "Checkpoint file must be created");
-        assertTrue(fileset.contains("0.page"),
-            "One page file must be created");
+        // check the files are created, the next page before it's needed
+        Awaitility.await().untilAsserted(() -> {
+            HashSet<String> fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
+            assertEquals(3, fileset.size());
+            assertTrue(fileset.contains("checkpoint.journal"), "Checkpoint file must be created");
+            assertTrue(fileset.contains("0.page"), "The filled page file must be created");
+            assertTrue(fileset.contains("1.page"), "The next page file must be prepared");
+        });
 
         // Exercise
         // some data to force create a new page
@@ -188,9 +228,9 @@ class QueueTest {
         queue.enqueue(crossingPayload);
 
         // Verify
-        fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
+        final HashSet<String> fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
         assertEquals(3, fileset.size());
-        assertTrue(fileset.contains("checkpoint.properties"), "Checkpoint file must be created");
+        assertTrue(fileset.contains("checkpoint.journal"), "Checkpoint file must be created");
         assertTrue(fileset.contains("0.page"), "First page file must be created");
         assertTrue(fileset.contains("1.page"), "Second page file must be created");
     }
@@ -371,7 +411,7 @@ class QueueTest {
         final int loopToFill = PAGE_SIZE / messageSize;
         writeMessages(queue, payload, loopToFill - 1);
 
-        assertEquals(1, countPages(tempQueueFolder));
+        assertEquals(1, countPages(queuePool));
         assertEquals(PAGE_SIZE - messageSize, queue.currentHead().logicalOffset() + 1,
             "head must be one message size (1024) from the end of the segment");
 
@@ -380,11 +420,14 @@ class QueueTest {
         queue.enqueue(payload);
 
         // Verify
-        assertEquals(2, countPages(tempQueueFolder));
+        assertEquals(2, countPages(queuePool));
     }
 
-    private long countPages(Path tempQueueFolder) throws IOException {
-        return Files.list(tempQueueFolder).filter(p -> p.toString().endsWith(".page")).count();
+    /**
+     * @return the pages segments were taken from, without the next one created in advance.
+     * */
+    private long countPages(QueuePool queuePool) {
+        return (queuePool.diskUsage().allocatedBytes() + PAGE_SIZE - 1) / PAGE_SIZE;
     }
 
     @Test
@@ -412,7 +455,7 @@ class QueueTest {
         }
 
         // Verify
-        assertEquals(numPages, countPages(tempQueueFolder));
+        assertEquals(numPages, countPages(queuePool));
         final int numMessagesInQueue = PAGE_SIZE / messageSize;
         verifyReadingFromQueue(numMessagesInQueue, queueA, 'A', 1024 - LENGTH_HEADER_SIZE);
         verifyReadingFromQueue(numMessagesInQueue, queueB, 'B', 1024 - LENGTH_HEADER_SIZE);
@@ -471,6 +514,9 @@ class QueueTest {
 
         assertContainsOnly('A', queue.dequeue().get(), SEGMENT_SIZE - LENGTH_HEADER_SIZE);
         assertContainsOnly('B', queue.dequeue().get(), SEGMENT_SIZE - LENGTH_HEADER_SIZE);
+
+        assertTrue(Files.exists(tempQueueFolder.resolve("checkpoint.journal")), "Checkpoint file must be converted");
+        assertFalse(Files.exists(propsFile.toPath()), "Old checkpoint file must be removed");
     }
 
     @Test
@@ -519,10 +565,10 @@ class QueueTest {
 
         // Verify
         // checkpoint contains che correct order, (0,0), (0, 4194304)
-        final Properties checkpointProps = loadCheckpointFile(tempQueueFolder);
+        final CheckpointJournal.QueueState checkpoint = CheckpointJournal.read(tempQueueFolder).queues.get("test_external_fragmentation");
 
-        final String segmentRefs = checkpointProps.getProperty("queues.0.segments");
-        assertEquals("(0, 0), (0, 4194304)", segmentRefs);
+        final String segmentRefs = Arrays.toString(checkpoint.segments);
+        assertEquals("[(0, 0), (0, 4194304)]", segmentRefs);
     }
 
     @Test
@@ -556,17 +602,9 @@ class QueueTest {
 
         // Verify
         // checkpoint contains che correct order, (0,0), (0, 4194304)
-        final Properties checkpointProps = loadCheckpointFile(tempQueueFolder);
-
-        final String segmentRefs = checkpointProps.getProperty("queues.0.segments");
-        assertEquals("(0, 0), (0, 4194304)", segmentRefs);
-    }
+        final CheckpointJournal.QueueState checkpoint = CheckpointJournal.read(tempQueueFolder).queues.get("test_external_fragmentation");
 
-    private Properties loadCheckpointFile(Path dir) throws IOException {
-        final Path checkpointPath = dir.resolve("checkpoint.properties");
-        final FileReader fileReader = new FileReader(checkpointPath.toFile());
-        final Properties checkpointProps = new Properties();
-        checkpointProps.load(fileReader);
-        return checkpointProps;
+        final String segmentRefs = Arrays.toString(checkpoint.segments);
+        assertEquals("[(0, 0), (0, 4194304)]", segmentRefs);
     }
 }
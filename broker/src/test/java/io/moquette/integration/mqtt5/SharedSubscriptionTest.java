@@ -1,8 +1,11 @@
 package io.moquette.integration.mqtt5;
 
 import com.hivemq.client.mqtt.MqttClient;
+import com.hivemq.client.mqtt.MqttGlobalPublishFilter;
+import com.hivemq.client.mqtt.datatypes.MqttQos;
 import com.hivemq.client.mqtt.mqtt5.Mqtt5BlockingClient;
 import com.hivemq.client.mqtt.mqtt5.message.connect.connack.Mqtt5ConnAckReasonCode;
+import com.hivemq.client.mqtt.mqtt5.message.publish.Mqtt5Publish;
 import io.netty.handler.codec.mqtt.MqttConnAckMessage;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
@@ -11,8 +14,13 @@ import io.netty.handler.codec.mqtt.MqttReasonCodes;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
 import static io.moquette.integration.mqtt5.ConnectTest.assertConnectionAccepted;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SharedSubscriptionTest extends AbstractServerIntegrationTest {
 
@@ -33,11 +41,56 @@ public class SharedSubscriptionTest extends AbstractServerIntegrationTest {
         assertEquals(MqttReasonCodes.Disconnect.MALFORMED_PACKET.byteValue(), disconnectHeader.reasonCode());
     }
 
+    @Test
+    public void givenTwoMembersOfAShareGroupThenEachMessageIsDeliveredToOnlyOneOfThem() throws InterruptedException {
+        final Mqtt5BlockingClient member1 = createSubscriberClient("member1");
+        final Mqtt5BlockingClient member2 = createSubscriberClient("member2");
+        final Mqtt5BlockingClient publisher = createSubscriberClient("publisher");
+
+        try (Mqtt5BlockingClient.Mqtt5Publishes publishes1 = member1.publishes(MqttGlobalPublishFilter.ALL);
+             Mqtt5BlockingClient.Mqtt5Publishes publishes2 = member2.publishes(MqttGlobalPublishFilter.ALL)) {
+            subscribe(member1, "$share/metrics/measures/temp");
+            subscribe(member2, "$share/metrics/measures/temp");
+
+            final int messages = 10;
+            for (int i = 0; i < messages; i++) {
+                publisher.publishWith()
+                    .topic("measures/temp")
+                    .qos(MqttQos.AT_LEAST_ONCE)
+                    .payload(("" + i).getBytes(StandardCharsets.UTF_8))
+                    .send();
+            }
+
+            final int receivedByMember1 = countReceived(publishes1);
+            final int receivedByMember2 = countReceived(publishes2);
+            assertEquals(messages, receivedByMember1 + receivedByMember2, "Every message must be received once");
+            assertTrue(receivedByMember1 > 0, "Messages must be distributed to member1");
+            assertTrue(receivedByMember2 > 0, "Messages must be distributed to member2");
+        }
+    }
+
+    private static void subscribe(Mqtt5BlockingClient client, String topicFilter) {
+        client.subscribeWith()
+            .topicFilter(topicFilter)
+            .qos(MqttQos.AT_LEAST_ONCE)
+            .send();
+    }
+
+    private static int countReceived(Mqtt5BlockingClient.Mqtt5Publishes publishes) throws InterruptedException {
+        int count = 0;
+        Optional<Mqtt5Publish> received = publishes.receive(1, TimeUnit.SECONDS);
+        while (received.isPresent()) {
+            count++;
+            received = publishes.receive(200, TimeUnit.MILLISECONDS);
+        }
+        return count;
+    }
+
     @NotNull
-    private Mqtt5BlockingClient createSubscriberClient() {
+    private Mqtt5BlockingClient createSubscriberClient(String clientId) {
         final Mqtt5BlockingClient client = MqttClient.builder()
             .useMqttVersion5()
-            .identifier(clientName())
+            .identifier(clientId)
             .serverHost("localhost")
             .serverPort(1883)
             .buildBlocking();
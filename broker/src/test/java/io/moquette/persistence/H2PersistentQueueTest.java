@@ -16,6 +16,7 @@
 package io.moquette.persistence;
 
 import io.moquette.BrokerConstants;
+import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
@@ -56,7 +57,7 @@ public class H2PersistentQueueTest {
 
     @Test
     public void testAdd() {
-        H2PersistentQueue sut = new H2PersistentQueue(this.mvStore, "test");
+        SessionMessageQueue<SessionRegistry.EnqueuedMessage> sut = openQueue("test");
 
         sut.enqueue(createMessage("Hello"));
         sut.enqueue(createMessage("world"));
@@ -66,6 +67,10 @@ public class H2PersistentQueueTest {
         assertTrue(sut.isEmpty(), "dequeue effectively remove elements from queue");
     }
 
+    private SessionMessageQueue<SessionRegistry.EnqueuedMessage> openQueue(String clientId) {
+        return new H2QueueRepository(this.mvStore).getOrCreateQueue(clientId);
+    }
+
     private SessionRegistry.PublishedMessage createMessage(String name) {
         final ByteBuf payload = Unpooled.wrappedBuffer(name.getBytes(StandardCharsets.UTF_8));
         return new SessionRegistry.PublishedMessage(Topic.asTopic(name), MqttQoS.AT_LEAST_ONCE, payload, false);
@@ -73,7 +78,7 @@ public class H2PersistentQueueTest {
 
     @Test
     public void testPoll() {
-        H2PersistentQueue sut = new H2PersistentQueue(this.mvStore, "test");
+        SessionMessageQueue<SessionRegistry.EnqueuedMessage> sut = openQueue("test");
         sut.enqueue(createMessage("Hello"));
         sut.enqueue(createMessage("world"));
 
@@ -85,7 +90,7 @@ public class H2PersistentQueueTest {
     @Disabled
     @Test
     public void testPerformance() {
-        H2PersistentQueue sut = new H2PersistentQueue(this.mvStore, "test");
+        SessionMessageQueue<SessionRegistry.EnqueuedMessage> sut = openQueue("test");
 
         int numIterations = 10000000;
         for (int i = 0; i < numIterations; i++) {
@@ -102,7 +107,7 @@ public class H2PersistentQueueTest {
 
     @Test
     public void testReloadFromPersistedState() {
-        H2PersistentQueue before = new H2PersistentQueue(this.mvStore, "test");
+        SessionMessageQueue<SessionRegistry.EnqueuedMessage> before = openQueue("test");
         before.enqueue(createMessage("Hello"));
         before.enqueue(createMessage("crazy"));
         before.enqueue(createMessage("world"));
@@ -116,7 +121,7 @@ public class H2PersistentQueueTest {
             .open();
 
         //now reload the persisted state
-        H2PersistentQueue after = new H2PersistentQueue(this.mvStore, "test");
+        SessionMessageQueue<SessionRegistry.EnqueuedMessage> after = openQueue("test");
 
         assertEquals("crazy", ((SessionRegistry.PublishedMessage) after.dequeue()).getTopic().toString());
         assertEquals("world", ((SessionRegistry.PublishedMessage) after.dequeue()).getTopic().toString());
@@ -0,0 +1,135 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class H2QueueRepositoryTest {
+
+    private MVStore mvStore;
+
+    @BeforeEach
+    public void setUp() {
+        mvStore = new MVStore.Builder().autoCommitDisabled().open();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    @Test
+    public void allQueuesAreStoredInTheSameMaps() {
+        final H2QueueRepository sut = new H2QueueRepository(mvStore);
+        for (int i = 0; i < 100; i++) {
+            sut.getOrCreateQueue("client_" + i).enqueue(message("topic_" + i));
+        }
+
+        assertThat(sut.listQueueNames()).hasSize(100).contains("client_0", "client_99");
+        assertThat(sut.containsQueue("client_42")).isTrue();
+        assertThat(mvStore.getMapNames()).containsExactlyInAnyOrder(H2QueueRepository.MESSAGES_MAP,
+            H2QueueRepository.QUEUES_MAP, "session_queue_ids");
+
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> reopened =
+            new H2QueueRepository(mvStore).getOrCreateQueue("client_42");
+        assertThat(topicOf(reopened.dequeue())).isEqualTo("topic_42");
+        assertThat(reopened.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void purgeRemovesOnlyTheMessagesOfTheQueue() {
+        final H2QueueRepository sut = new H2QueueRepository(mvStore);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> purged = sut.getOrCreateQueue("purged");
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> kept = sut.getOrCreateQueue("kept");
+        for (int i = 0; i < 10; i++) {
+            purged.enqueue(message("purged_" + i));
+            kept.enqueue(message("kept_" + i));
+        }
+        purged.dequeue();
+
+        purged.closeAndPurge();
+
+        assertThat(sut.containsQueue("purged")).isFalse();
+        assertThat(sut.listQueueNames()).containsExactly("kept");
+        assertThat(mvStore.openMap(H2QueueRepository.MESSAGES_MAP).size()).isEqualTo(10);
+    }
+
+    @Test
+    public void queueIdsAreNotReusedAfterAReopen() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> first =
+            new H2QueueRepository(mvStore).getOrCreateQueue("first");
+        first.enqueue(message("first"));
+
+        // the next id is restored from the store
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> second =
+            new H2QueueRepository(mvStore).getOrCreateQueue("second");
+        second.enqueue(message("second"));
+
+        assertThat(topicOf(first.dequeue())).isEqualTo("first");
+        assertThat(topicOf(second.dequeue())).isEqualTo("second");
+    }
+
+    @Test
+    public void legacyQueueMapsAreMigratedOnOpen() {
+        final MVMap<Long, SessionRegistry.EnqueuedMessage> legacyQueue = mvStore.openMap("queue_client",
+            new MVMap.Builder<Long, SessionRegistry.EnqueuedMessage>().valueType(new EnqueuedMessageValueType()));
+        final MVMap<String, Long> legacyMeta = mvStore.openMap("queue_client_meta");
+        // the first message was already dequeued
+        legacyQueue.put(1L, message("second"));
+        legacyQueue.put(2L, message("third"));
+        legacyMeta.put("tail", 1L);
+        legacyMeta.put("head", 3L);
+
+        final H2QueueRepository sut = new H2QueueRepository(mvStore);
+
+        assertThat(mvStore.hasMap("queue_client")).isFalse();
+        assertThat(mvStore.hasMap("queue_client_meta")).isFalse();
+        assertThat(sut.listQueueNames()).containsExactly("client");
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = sut.getOrCreateQueue("client");
+        assertThat(topicOf(queue.dequeue())).isEqualTo("second");
+        assertThat(topicOf(queue.dequeue())).isEqualTo("third");
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void legacyQueueOfAClientIdEndingWithTheMetaSuffixIsMigrated() {
+        final MVMap<Long, SessionRegistry.EnqueuedMessage> legacyQueue = mvStore.openMap("queue_sensor_meta",
+            new MVMap.Builder<Long, SessionRegistry.EnqueuedMessage>().valueType(new EnqueuedMessageValueType()));
+        final MVMap<String, Long> legacyMeta = mvStore.openMap("queue_sensor_meta_meta");
+        // a message dequeued but left in the map, and one enqueued past the head by an interrupted write
+        legacyQueue.put(0L, message("dequeued"));
+        legacyQueue.put(1L, message("queued"));
+        legacyQueue.put(2L, message("not committed"));
+        legacyMeta.put("tail", 1L);
+        legacyMeta.put("head", 2L);
+
+        final H2QueueRepository sut = new H2QueueRepository(mvStore);
+
+        assertThat(mvStore.hasMap("queue_sensor_meta")).isFalse();
+        assertThat(mvStore.hasMap("queue_sensor_meta_meta")).isFalse();
+        assertThat(sut.listQueueNames()).containsExactly("sensor_meta");
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = sut.getOrCreateQueue("sensor_meta");
+        assertThat(topicOf(queue.dequeue())).isEqualTo("queued");
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    private static SessionRegistry.PublishedMessage message(String topic) {
+        return new SessionRegistry.PublishedMessage(Topic.asTopic(topic), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.copiedBuffer(topic, StandardCharsets.UTF_8), false);
+    }
+
+    private static String topicOf(SessionRegistry.EnqueuedMessage message) {
+        return ((SessionRegistry.PublishedMessage) message).getTopic().toString();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.RetainedMessage;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class H2RetainedRepositoryTest {
+
+    private MVStore mvStore;
+    private H2RetainedRepository sut;
+
+    @BeforeEach
+    public void setUp() {
+        mvStore = new MVStore.Builder().open();
+        sut = new H2RetainedRepository(mvStore);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    private void retain(String topic) {
+        sut.retain(new Topic(topic), MqttMessageBuilders.publish()
+            .qos(MqttQoS.AT_LEAST_ONCE)
+            .topicName(topic)
+            .retained(true)
+            .payload(Unpooled.buffer(0))
+            .build());
+    }
+
+    private Set<String> retainedOn(String topicFilter) {
+        return sut.retainedOnTopic(topicFilter).stream()
+            .map(RetainedMessage::getTopic)
+            .map(Topic::toString)
+            .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void givenExactFilterThenOnlyTheSameTopicIsReturned() {
+        retain("foo/bar/baz");
+        retain("foo/bar/bazzz");
+        retain("foo/bar");
+
+        assertThat(retainedOn("foo/bar/baz")).containsOnly("foo/bar/baz");
+    }
+
+    @Test
+    public void givenMultiLevelWildcardThenAlsoTheParentLevelIsReturned() {
+        retain("foo");
+        retain("foo/bar/baz");
+        retain("foo/baz/bar");
+        retain("foobar/baz");
+
+        assertThat(retainedOn("foo/#")).containsOnly("foo", "foo/bar/baz", "foo/baz/bar");
+        assertThat(retainedOn("#")).containsOnly("foo", "foo/bar/baz", "foo/baz/bar", "foobar/baz");
+    }
+
+    @Test
+    public void givenSingleLevelWildcardThenLevelsInterleavedBySiblingsAreReturnedOnce() {
+        // "a!" sorts between "a" and "a/..."
+        retain("a");
+        retain("a!");
+        retain("a!/b");
+        retain("a/b");
+        retain("a0/b");
+
+        assertThat(sut.retainedOnTopic("+/b")).hasSize(3);
+        assertThat(retainedOn("+/b")).containsOnly("a!/b", "a/b", "a0/b");
+        assertThat(retainedOn("+")).containsOnly("a", "a!");
+    }
+
+    @Test
+    public void givenEmptyLevelsThenSingleLevelWildcardMatchesThem() {
+        retain("/finance");
+        retain("a//b");
+
+        assertThat(retainedOn("+/finance")).containsOnly("/finance");
+        assertThat(retainedOn("a/+/b")).containsOnly("a//b");
+    }
+
+    @Test
+    public void givenCleanedTopicThenIsNotReturned() {
+        retain("foo/bar");
+        sut.cleanRetained(new Topic("foo/bar"));
+
+        assertThat(retainedOn("foo/+")).isEmpty();
+    }
+
+    @Test
+    public void matchesLikeTheReferenceMatcherOnRandomTopics() {
+        final Random random = new Random(42);
+        final String[] words = {"", "a", "a!", "ab", "b", "$SYS"};
+        final List<String> topics = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final String topic = randomTopic(random, words);
+            if (topic.isEmpty()) {
+                // not a valid topic name
+                continue;
+            }
+            topics.add(topic);
+            retain(topic);
+        }
+        final String[] filterWords = {"", "a", "a!", "b", "+"};
+        for (int i = 0; i < 300; i++) {
+            String filter = randomTopic(random, filterWords);
+            if (random.nextBoolean()) {
+                filter = filter + "/#";
+            }
+            final String[] filterLevels = filter.split("/", -1);
+            final Set<String> expected = topics.stream()
+                .filter(t -> referenceMatch(t.split("/", -1), filterLevels))
+                .collect(Collectors.toSet());
+            assertThat(retainedOn(filter)).as("filter %s", filter).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void retainedMessagesAreReadBackFromTheFile(@TempDir Path storeFolder) {
+        final String storeFile = storeFolder.resolve("retained.h2").toString();
+        final MVStore fileStore = new MVStore.Builder().fileName(storeFile).open();
+        new H2RetainedRepository(fileStore).retain(new Topic("plant/boiler"), MqttMessageBuilders.publish()
+            .qos(MqttQoS.EXACTLY_ONCE)
+            .topicName("plant/boiler")
+            .retained(true)
+            .payload(Unpooled.copiedBuffer("hot", StandardCharsets.UTF_8))
+            .build());
+        fileStore.close();
+
+        final MVStore reopened = new MVStore.Builder().fileName(storeFile).open();
+        final Collection<RetainedMessage> retained = new H2RetainedRepository(reopened).retainedOnTopic("plant/+");
+        assertThat(retained).hasSize(1);
+        final RetainedMessage message = retained.iterator().next();
+        assertThat(message.getTopic()).isEqualTo(new Topic("plant/boiler"));
+        assertThat(message.qosLevel()).isEqualTo(MqttQoS.EXACTLY_ONCE);
+        assertThat(new String(message.getPayload(), StandardCharsets.UTF_8)).isEqualTo("hot");
+        reopened.close();
+    }
+
+    @Test
+    public void givenJavaSerializedMapThenItsMessagesAreMigrated() {
+        final MVStore legacyStore = new MVStore.Builder().open();
+        legacyStore.<Topic, RetainedMessage>openMap("retained_store")
+            .put(new Topic("foo/bar"), new RetainedMessage(new Topic("foo/bar"), MqttQoS.AT_LEAST_ONCE, new byte[0]));
+
+        final H2RetainedRepository migrated = new H2RetainedRepository(legacyStore);
+
+        assertThat(migrated.retainedOnTopic("foo/#")).extracting(RetainedMessage::getTopic)
+            .containsOnly(new Topic("foo/bar"));
+        assertThat(legacyStore.hasMap("retained_store")).isFalse();
+        legacyStore.close();
+    }
+
+    /**
+     * MQTT matching rules, differently from Topic.match a + doesn't match a missing level when followed by #.
+     * */
+    private static boolean referenceMatch(String[] topic, String[] filter) {
+        for (int i = 0; i < filter.length; i++) {
+            if ("#".equals(filter[i])) {
+                return true;
+            }
+            if (i >= topic.length || (!"+".equals(filter[i]) && !filter[i].equals(topic[i]))) {
+                return false;
+            }
+        }
+        return topic.length == filter.length;
+    }
+
+    private static String randomTopic(Random random, String[] words) {
+        final int levels = 1 + random.nextInt(3);
+        final StringBuilder sb = new StringBuilder();
+        for (int l = 0; l < levels; l++) {
+            if (l > 0) {
+                sb.append('/');
+            }
+            sb.append(words[random.nextInt(words.length)]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,97 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class H2SubscriptionsRepositoryTest {
+
+    private static final Subscription PLAIN = new Subscription("client", new Topic("plant/+/temperature"),
+        MqttQoS.AT_LEAST_ONCE);
+    private static final Subscription SHARED = new Subscription("client", new Topic("plant/#"),
+        MqttQoS.EXACTLY_ONCE, "monitors");
+
+    @TempDir
+    Path storeFolder;
+
+    @Test
+    public void subscriptionsAreReadBackFromTheFile() {
+        final MVStore store = openStore();
+        final H2SubscriptionsRepository repository = new H2SubscriptionsRepository(store);
+        repository.addNewSubscription(PLAIN);
+        repository.addNewSubscription(SHARED);
+        store.close();
+
+        final MVStore reopened = openStore();
+        final Set<Subscription> subscriptions = new H2SubscriptionsRepository(reopened).listAllSubscriptions();
+        assertThat(subscriptions).containsOnly(PLAIN, SHARED);
+        assertThat(subscriptions).extracting(Subscription::getRequestedQos)
+            .containsOnly(MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE);
+        reopened.close();
+    }
+
+    @Test
+    public void subscriptionsAreRemovedByTheSubscribedFilter() {
+        final MVStore store = openStore();
+        final H2SubscriptionsRepository repository = new H2SubscriptionsRepository(store);
+        repository.addNewSubscription(PLAIN);
+        repository.addNewSubscription(SHARED);
+
+        repository.removeSubscription("$share/monitors/plant/#", "client");
+        assertThat(repository.listAllSubscriptions()).containsOnly(PLAIN);
+
+        repository.removeSubscription("plant/+/temperature", "client");
+        assertThat(repository.listAllSubscriptions()).isEmpty();
+        store.close();
+    }
+
+    @Test
+    public void removingASharedFilterWithoutTopicKeepsTheSubscriptions() {
+        final MVStore store = openStore();
+        final H2SubscriptionsRepository repository = new H2SubscriptionsRepository(store);
+        repository.addNewSubscription(SHARED);
+
+        repository.removeSubscription("$share/monitors", "client");
+        assertThat(repository.listAllSubscriptions()).containsOnly(SHARED);
+        store.close();
+    }
+
+    @Test
+    public void resubscribingUpdatesTheRequestedQos() {
+        final MVStore store = openStore();
+        final H2SubscriptionsRepository repository = new H2SubscriptionsRepository(store);
+        repository.addNewSubscription(PLAIN);
+        repository.addNewSubscription(new Subscription("client", new Topic("plant/+/temperature"),
+            MqttQoS.AT_MOST_ONCE));
+
+        assertThat(repository.listAllSubscriptions()).extracting(Subscription::getRequestedQos)
+            .containsExactly(MqttQoS.AT_MOST_ONCE);
+        store.close();
+    }
+
+    @Test
+    public void givenJavaSerializedMapThenItsSubscriptionsAreMigrated() {
+        final MVStore store = openStore();
+        store.<String, Subscription>openMap("subscriptions").put(PLAIN.getSubscribedFilter() + "-client", PLAIN);
+        store.<String, Subscription>openMap("subscriptions").put(SHARED.getSubscribedFilter() + "-client", SHARED);
+        store.close();
+
+        final MVStore reopened = openStore();
+        final H2SubscriptionsRepository repository = new H2SubscriptionsRepository(reopened);
+        assertThat(repository.listAllSubscriptions()).containsOnly(PLAIN, SHARED);
+        assertThat(reopened.hasMap("subscriptions")).isFalse();
+        reopened.close();
+    }
+
+    private MVStore openStore() {
+        return new MVStore.Builder().fileName(storeFolder.resolve("subscriptions.h2").toString()).open();
+    }
+}
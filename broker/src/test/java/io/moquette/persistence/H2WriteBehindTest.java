@@ -0,0 +1,117 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.awaitility.Awaitility;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class H2WriteBehindTest {
+
+    private static final long ONE_HOUR_MILLIS = Duration.ofHours(1).toMillis();
+
+    private MVStore mvStore;
+    private H2WriteBehind sut;
+
+    @BeforeEach
+    public void setUp() {
+        mvStore = new MVStore.Builder().autoCommitDisabled().open();
+        // commits only when asked or by batch size
+        sut = new H2WriteBehind(mvStore, ONE_HOUR_MILLIS, 10, 0, 0);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sut.close();
+        mvStore.close();
+    }
+
+    @Test
+    public void updatesOfTheSameKeyAreWrittenOnce() {
+        final MVMap<String, Integer> map = mvStore.openMap("counters");
+        for (int i = 0; i < 1000; i++) {
+            sut.put(map, "hot", i);
+        }
+
+        assertThat(map.get("hot")).isNull();
+        assertThat(sut.get(map, "hot")).isEqualTo(999);
+
+        sut.flush(map);
+        assertThat(map.get("hot")).isEqualTo(999);
+        assertThat(sut.stats().appliedWrites()).isEqualTo(1);
+        assertThat(sut.stats().coalescedWrites()).isEqualTo(999);
+        assertThat(sut.stats().pendingWrites()).isZero();
+    }
+
+    @Test
+    public void pendingRemoveHidesTheStoredValue() {
+        final MVMap<String, Integer> map = mvStore.openMap("counters");
+        map.put("key", 1);
+
+        sut.remove(map, "key");
+
+        assertThat(sut.get(map, "key")).isNull();
+        sut.flush(map);
+        assertThat(map.containsKey("key")).isFalse();
+    }
+
+    @Test
+    public void batchOfPendingKeysStartsACommit() {
+        final MVMap<Integer, Integer> map = mvStore.openMap("values");
+        for (int i = 0; i < 10; i++) {
+            sut.put(map, i, i);
+        }
+
+        Awaitility.await().atMost(Duration.ofSeconds(5)).until(() -> sut.stats().commits() == 1);
+        assertThat(map.size()).isEqualTo(10);
+        assertThat(mvStore.hasUnsavedChanges()).isFalse();
+    }
+
+    @Test
+    public void retainedLookupSeesThePendingMessages() {
+        final H2RetainedRepository retained = new H2RetainedRepository(mvStore, sut);
+        for (int i = 0; i < 100; i++) {
+            retained.retain(new Topic("plant/boiler"), MqttMessageBuilders.publish()
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .topicName("plant/boiler")
+                .retained(true)
+                .payload(Unpooled.copiedBuffer("temperature " + i, StandardCharsets.UTF_8))
+                .build());
+        }
+
+        assertThat(retained.retainedOnTopic("plant/#"))
+            .extracting(message -> new String(message.getPayload(), StandardCharsets.UTF_8))
+            .containsExactly("temperature 99");
+        assertThat(sut.stats().appliedWrites()).isEqualTo(1);
+    }
+
+    @Test
+    public void messageDequeuedBeforeTheCommitIsNeverStored() {
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue =
+            new H2QueueRepository(mvStore, sut).getOrCreateQueue("subscriber");
+        queue.enqueue(new SessionRegistry.PublishedMessage(Topic.asTopic("plant/boiler"), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.copiedBuffer("hot", StandardCharsets.UTF_8), false));
+        assertThat(queue.dequeue()).isNotNull();
+
+        final MVMap<?, ?> messages = mvStore.openMap(H2QueueRepository.MESSAGES_MAP);
+        sut.flush(messages);
+        assertThat(messages.isEmpty()).isTrue();
+
+        // reopened from the pending head and tail
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> reopened =
+            new H2QueueRepository(mvStore, sut).getOrCreateQueue("subscriber");
+        assertThat(reopened.isEmpty()).isTrue();
+    }
+}
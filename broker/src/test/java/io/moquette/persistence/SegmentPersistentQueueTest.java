@@ -15,11 +15,13 @@
  */
 package io.moquette.persistence;
 
+import io.moquette.broker.EncodedPublishedMessage;
 import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry;
 import io.moquette.broker.SessionRegistry.EnqueuedMessage;
 import io.moquette.broker.SessionRegistry.PublishedMessage;
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.unsafequeues.Queue;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -29,6 +31,7 @@ import java.nio.charset.StandardCharsets;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -40,6 +43,10 @@ import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
 public class SegmentPersistentQueueTest {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SegmentPersistentQueueTest.class.getName());
@@ -202,8 +209,9 @@ public class SegmentPersistentQueueTest {
     }
 
     private static PublishedMessage createMessage(String topic, int totalMessageSize) {
-        // 4 totalSize + 1 msgType + 1 qos + 4 topicSize + 4 bodySize = 14
-        int bodySize = totalMessageSize - 14 - topic.getBytes(UTF_8).length;
+        // 4 totalSize + 1 msgType + 1 PUBLISH type + 2 remaining length + 2 topicSize + 2 packetId = 12,
+        // the remaining length takes 2 bytes for messages from 128 to 16383 bytes
+        int bodySize = totalMessageSize - 12 - topic.getBytes(UTF_8).length;
         final ByteBuf payload = Unpooled.wrappedBuffer(getBody(bodySize).getBytes(StandardCharsets.UTF_8));
         return new PublishedMessage(Topic.asTopic(topic), MqttQoS.AT_LEAST_ONCE, payload, false);
     }
@@ -247,6 +255,65 @@ public class SegmentPersistentQueueTest {
         assertTrue(queue.isEmpty(), "should be empty");
     }
 
+    @Test
+    public void testDequeuedMessagesAreInWireFormat() {
+        SessionMessageQueue<EnqueuedMessage> queue = createQueue();
+        final ByteBuf payload = Unpooled.wrappedBuffer(getBody(300).getBytes(UTF_8));
+        final PublishedMessage msg = new PublishedMessage(Topic.asTopic("plant/café"), MqttQoS.EXACTLY_ONCE, payload, false);
+        queue.enqueue(msg);
+        queue.enqueue(new SessionRegistry.PubRelMarker());
+        assertEquals(0, payload.readerIndex(), "Enqueue must not consume the payload");
+
+        final EnqueuedMessage dequeued = queue.dequeue();
+        assertTrue(dequeued instanceof EncodedPublishedMessage);
+        final EncodedPublishedMessage encoded = (EncodedPublishedMessage) dequeued;
+        assertEquals(MqttQoS.EXACTLY_ONCE, encoded.getPublishingQos());
+        checkMessage(encoded, "plant/café");
+        encoded.release();
+        assertTrue(queue.dequeue() instanceof SessionRegistry.PubRelMarker);
+        assertTrue(queue.isEmpty(), "should be empty");
+    }
+
+    @Test
+    public void testEnqueuedMessagesAreStoredOnFlush() {
+        SessionMessageQueue<EnqueuedMessage> queue = queueRepository.getOrCreateQueue("testEnqueuedMessagesAreStoredOnFlush");
+        queues.add(queue);
+        createAndAddToQueue(queue, "Hello", 100);
+        createAndAddToQueue(queue, "crazy", 1000);
+        createAndAddToQueue(queue, "world", 100);
+        assertFalse(queue.isEmpty(), "Messages waiting to be flushed are in the queue");
+        final SessionMessageQueue<EnqueuedMessage> beforeFlush =
+            queueRepository.getOrCreateQueue("testEnqueuedMessagesAreStoredOnFlush");
+        assertTrue(beforeFlush.isEmpty(), "Messages are stored only on flush");
+
+        queue.flush();
+
+        final SessionMessageQueue<EnqueuedMessage> reloaded =
+            queueRepository.getOrCreateQueue("testEnqueuedMessagesAreStoredOnFlush");
+        checkMessage((PublishedMessage) reloaded.dequeue(), "Hello");
+        checkMessage((PublishedMessage) reloaded.dequeue(), "crazy");
+        checkMessage((PublishedMessage) reloaded.dequeue(), "world");
+        assertTrue(reloaded.isEmpty(), "should be empty");
+    }
+
+    @Test
+    public void testBatchNotWrittenIsKeptForTheNextFlush() throws QueueException {
+        final Queue segmentedQueue = mock(Queue.class);
+        final List<Integer> writtenBatches = new ArrayList<>();
+        doThrow(new QueueException("No free segments"))
+            .doAnswer(invocation -> writtenBatches.add(invocation.<List<?>>getArgument(0).size()))
+            .when(segmentedQueue).enqueueBatch(anyList(), anyList());
+        final SegmentPersistentQueue queue = new SegmentPersistentQueue(segmentedQueue);
+        createAndAddToQueue(queue, "Hello", 100);
+        createAndAddToQueue(queue, "world", 100);
+
+        assertThrows(RuntimeException.class, queue::flush);
+        assertFalse(queue.isEmpty(), "The messages not written must be still queued");
+
+        queue.flush();
+        assertEquals(Collections.singletonList(2), writtenBatches, "The batch must be written again, whole");
+    }
+
     @Test
     public void testReloadFromPersistedState() {
         LOGGER.info("testReloadFromPersistedState");